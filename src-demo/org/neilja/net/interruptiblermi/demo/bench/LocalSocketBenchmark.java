@@ -0,0 +1,169 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi.demo.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RMISocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+
+import org.neilja.net.interruptiblermi.InterruptibleRMISocketFactory;
+import org.neilja.net.interruptiblermi.InterruptibleRMISocketFactoryConfig;
+import org.neilja.net.interruptiblermi.InterruptibleRMISocketProfile;
+
+/**
+ * Compares the local transport of {@link InterruptibleRMISocketFactory} (see
+ * {@link InterruptibleRMISocketFactoryConfig#isLocal()}) and the shared memory transport (see
+ * {@link InterruptibleRMISocketFactoryConfig#isSharedMemory()}) with TCP loopback: it exports an
+ * echo service once with each configuration, and reports the round-trip time and the CPU time (of
+ * all the threads of the VM, client and server alike) per call, for small and large messages. The
+ * configurations use channel sockets, so that only the transport differs.
+ * <p>
+ * Usage: <code>LocalSocketBenchmark [calls]</code> (10000 by default). Requires Java 16 or later
+ * for the local transport; on an earlier VM both runs use TCP.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+public class LocalSocketBenchmark
+{
+	/**
+	 * The echo service of the benchmark.
+	 */
+	public interface Echo extends Remote
+	{
+		/**
+		 * Return the supplied data.
+		 */
+		byte[] echo(byte[] data) throws RemoteException;
+	}
+
+	/**
+	 * The sizes of the messages, in bytes.
+	 */
+	private static final int[] SIZES = { 16, 1024, 64 * 1024 };
+
+	/**
+	 * The number of rounds with each configuration; the first round warms up.
+	 */
+	private static final int ROUNDS = 3;
+
+
+
+	/**
+	 * Run the benchmark.
+	 */
+	public static void main(final String[] args) throws Exception
+	{
+		final int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+		System.out.println("Unix domain sockets supported: "
+			+ InterruptibleRMISocketFactory.isLocalSocketSupported());
+		InterruptibleRMISocketFactory.setChannelSockets(true);
+
+		final Echo service = new Echo()
+		{
+			public byte[] echo(final byte[] data)
+			{
+				return data;
+			}
+		};
+
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			System.out.println(round == 0 ? "Warm-up:" : "Round " + round + ":");
+			run("tcp  ", service, false, false, calls);
+			run("local", service, true, false, calls);
+			run("shm  ", service, false, true, calls);
+		}
+
+		System.exit(0);
+	}
+
+
+
+	/**
+	 * Export the service with a factory in or out of the local and shared memory modes, and time
+	 * calls of each size through it.
+	 */
+	private static void run(final String name, final Echo service, final boolean local,
+		final boolean sharedMemory, final int calls) throws Exception
+	{
+		final InterruptibleRMISocketFactoryConfig config = new InterruptibleRMISocketFactoryConfig(
+			false, InterruptibleRMISocketProfile.DEFAULT, 0).withLocal(local).withSharedMemory(
+			sharedMemory);
+		final InterruptibleRMISocketFactory factory = new InterruptibleRMISocketFactory(
+			RMISocketFactory.getDefaultSocketFactory(), config);
+		final Echo stub = (Echo) UnicastRemoteObject.exportObject(service, 0, factory, factory);
+
+		try
+		{
+			for (final int size : SIZES)
+			{
+				final byte[] data = new byte[size];
+				final int count = size > 4096 ? calls / 10 : calls;
+				final long cpuStart = cpuTime();
+				final long start = System.nanoTime();
+
+				for (int i = 0; i < count; i++)
+				{
+					stub.echo(data);
+				}
+
+				final long elapsed = System.nanoTime() - start;
+				final long cpu = cpuTime() - cpuStart;
+
+				System.out.println("  " + name + " " + size + " bytes: "
+					+ format(elapsed / count / 1000.0) + " us/call, cpu "
+					+ format(cpu / count / 1000.0) + " us/call");
+			}
+		}
+		finally
+		{
+			UnicastRemoteObject.unexportObject(service, true);
+		}
+	}
+
+
+
+	/**
+	 * Return the CPU time of all the live threads of the VM, in nanoseconds.
+	 */
+	private static long cpuTime()
+	{
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long total = 0;
+
+		for (final long id : threads.getAllThreadIds())
+		{
+			final long time = threads.getThreadCpuTime(id);
+
+			if (time > 0)
+			{
+				total += time;
+			}
+		}
+
+		return total;
+	}
+
+
+
+	private static String format(final double value)
+	{
+		return String.valueOf(Math.round(value * 10) / 10.0);
+	}
+}
@@ -264,6 +264,9 @@ public class LockServiceClientUI
 			iter.remove();
 			lc.dispose();
 		}
+
+		// let any lock releases submitted by the controllers complete, then let the threads die
+		LockerViewController.shutdownExecutor();
 	}
 
 
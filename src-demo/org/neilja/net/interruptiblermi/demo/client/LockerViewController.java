@@ -19,6 +19,7 @@ import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.rmi.Naming;
+import java.util.concurrent.Future;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -34,7 +35,7 @@ import javax.swing.border.Border;
 import javax.swing.event.InternalFrameAdapter;
 import javax.swing.event.InternalFrameEvent;
 
-import org.neilja.net.interruptiblermi.InterruptibleRMIThreadFactory;
+import org.neilja.net.interruptiblermi.InterruptibleRMIExecutorService;
 import org.neilja.net.interruptiblermi.demo.server.LockService;
 
 
@@ -70,6 +71,12 @@ class LockerViewController
 	 */
 	private static int controllerCount = 0;
 
+	/**
+	 * The executor that runs the lock service calls for all the windows. Locking tasks are
+	 * cancelled via their Future, which terminates the RMI call.
+	 */
+	private static final InterruptibleRMIExecutorService executor = InterruptibleRMIExecutorService.newCachedThreadPool();
+
 	private JInternalFrame frame;
 	private JButton lockButton;
 	private JButton unlockButton;
@@ -77,7 +84,7 @@ class LockerViewController
 	private JLabel infoLabel;
 
 
-	private Thread lockingThread;
+	private Future<?> lockingTask;
 	private int currentLockCookie = -1;
 
 	private JProgressBar progressBar;
@@ -85,6 +92,17 @@ class LockerViewController
 
 
 
+	/**
+	 * Shut down the executor shared by the View-Controllers, once all the windows have been
+	 * disposed of. Tasks already submitted are still run.
+	 */
+	static void shutdownExecutor()
+	{
+		executor.shutdown();
+	}
+
+
+
 	/**
 	 * Create a new View-Controller object.
 	 */
@@ -239,9 +257,7 @@ class LockerViewController
 			}
 		};
 
-		this.lockingThread = InterruptibleRMIThreadFactory.getInstance().newThread(r);
-
-		this.lockingThread.start();
+		this.lockingTask = executor.submit(r);
 
 		this.cancelLockingButton.setEnabled(true);
 
@@ -297,7 +313,7 @@ class LockerViewController
 				LockerViewController.this.cancelLockingButton.setEnabled(false);
 				LockerViewController.this.progressBar.setVisible(false);
 				LockerViewController.this.currentLockCookie = lockCookie;
-				LockerViewController.this.lockingThread = null;
+				LockerViewController.this.lockingTask = null;
 				LockerViewController.this.infoLabel.setForeground(DARK_GREEN);
 				LockerViewController.this.infoLabel.setText("You currently have the lock! [value="
 					+ LockerViewController.this.currentLockCookie + "]");
@@ -334,9 +350,9 @@ class LockerViewController
 	{
 		LockerViewController.this.frame.dispose();
 
-		if (this.lockingThread != null)
+		if (this.lockingTask != null)
 		{
-			this.lockingThread.interrupt();
+			this.lockingTask.cancel(true);
 		}
 		if (LockerViewController.this.currentLockCookie != -1)
 		{
@@ -385,8 +401,7 @@ class LockerViewController
 			}
 		};
 
-		Thread unlockingThread = InterruptibleRMIThreadFactory.getInstance().newThread(r);
-		unlockingThread.start();
+		executor.submit(r);
 
 	}
 
@@ -394,12 +409,12 @@ class LockerViewController
 
 	private synchronized void executeCancelAcquiringLock()
 	{
-		if (this.lockingThread == null)
+		if (this.lockingTask == null)
 		{
-			throw new IllegalStateException("Locking Thread is null!");
+			throw new IllegalStateException("Locking Task is null!");
 		}
 
-		this.lockingThread.interrupt();
+		this.lockingTask.cancel(true);
 
 	}
 
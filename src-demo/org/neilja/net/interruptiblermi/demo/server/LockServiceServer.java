@@ -24,6 +24,7 @@ import java.util.Random;
 import java.util.Scanner;
 import java.util.logging.Logger;
 
+import org.neilja.net.interruptiblermi.InterruptibleRMISemaphore;
 import org.neilja.net.interruptiblermi.InterruptibleRMISocketFactory;
 
 /**
@@ -70,6 +71,13 @@ public class LockServiceServer implements LockService
 	 */
 	private int lockCookie = -1;
 
+	/**
+	 * Semaphore with a single permit, held by the client that currently has the lock. Waiting
+	 * threads whose client cancels the call are dropped from the semaphore's queue, so the lock is
+	 * never handed to a "zombie" thread.
+	 */
+	private final InterruptibleRMISemaphore lockSemaphore = new InterruptibleRMISemaphore(1);
+
 
 
 	/**
@@ -89,6 +97,14 @@ public class LockServiceServer implements LockService
 		 * this object using the factory.
 		 */
 		final InterruptibleRMISocketFactory socketFactory = new InterruptibleRMISocketFactory();
+
+		/*
+		 * Start the monitor that detects cancelled calls while their server RMI thread is
+		 * blocked, so that threads waiting in #acquireLock are dropped from the lock's queue as
+		 * soon as their client cancels.
+		 */
+		InterruptibleRMISocketFactory.startServerMonitor(50);
+
 		final LockService stub = (LockService) UnicastRemoteObject.exportObject(this, 0,
 			socketFactory, socketFactory);
 
@@ -191,60 +207,46 @@ public class LockServiceServer implements LockService
 
 	/**
 	 * Acquire the lock, blocking until the lock becomes available, and return a "lock cookie". This
-	 * method can throw a RuntimeException if the calling thread's RMI socket has been closed while
+	 * method can throw a RuntimeException if the calling thread's RMI call has been cancelled while
 	 * the thread was waiting, or if the server has started the shutdown process.
 	 * 
 	 * @see LockService#acquireLock()
 	 */
-	public synchronized int acquireLock()
+	public int acquireLock()
 	{
-		Logger.global.info(Thread.currentThread().getName() + " -> entering wait loop.");
+		Logger.global.info(Thread.currentThread().getName() + " -> waiting for the lock.");
 
-
-		while (this.lockCookie != -1)
+		try
 		{
 			/*
-			 * If the lockCookie is set to a value other than -1, then the lock has already been
-			 * assigned. This thread needs to wait until the lock has become available.
+			 * Wait for the single permit. Only one waiting thread is woken when the lock is
+			 * released. If the client cancels the call while this thread is waiting, the
+			 * semaphore drops this thread from its queue and throws a CancellationException (a
+			 * RuntimeException), so this "zombie" thread never gets the lock.
 			 */
-			try
-			{
-				/*
-				 * Give up the monitor and wait.
-				 */
-				wait();
-
-				/*
-				 * Another thread has called #notify / #notifyAll, and this thread had the monitor.
-				 * Typically this means that this thread now gets to acquire the lock, but first we
-				 * have to check that this thread is not "zombie thread". First we check if the RMI
-				 * socket that spawned this thread is still open. Then we check that the server
-				 * isn't shutting down.
-				 */
-				if (InterruptibleRMISocketFactory.isCurrentRMIServerThreadSocketAlive() == false)
-				{
-					throw new RuntimeException("This thread's RMI socket is dead!");
-				}
-				if (this.isShuttingDown)
-				{
-					throw new RuntimeException("Server is shutting down forcefully!");
-				}
-			}
-			catch (InterruptedException e)
-			{
-				// doesn't happen
-				e.printStackTrace();
-			}
+			this.lockSemaphore.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw new RuntimeException("Interrupted while waiting for the lock!");
 		}
 
-		/*
-		 * Generate a random lock cookie value to return to the client.
-		 */
+		synchronized (this)
+		{
+			if (this.isShuttingDown)
+			{
+				this.lockSemaphore.release();
+				throw new RuntimeException("Server is shutting down forcefully!");
+			}
 
-		this.lockCookie = Math.abs(this.random.nextInt());
-		Logger.global.info(Thread.currentThread().getName() + " -> returning lock cookie: "
-			+ this.lockCookie);
-		return this.lockCookie;
+			/*
+			 * Generate a random lock cookie value to return to the client.
+			 */
+			this.lockCookie = Math.abs(this.random.nextInt());
+			Logger.global.info(Thread.currentThread().getName() + " -> returning lock cookie: "
+				+ this.lockCookie);
+			return this.lockCookie;
+		}
 	}
 
 
@@ -267,6 +269,12 @@ public class LockServiceServer implements LockService
 				"The supplied lock cookie does not match the server's lock cookie.");
 		}
 
+		if (this.lockCookie == -1)
+		{
+			// nobody has the lock
+			return;
+		}
+
 		Logger.global.info(Thread.currentThread().getName()
 			+ " -> releasing lock with lockCookie value: " + this.lockCookie);
 
@@ -276,8 +284,8 @@ public class LockServiceServer implements LockService
 		this.lockCookie = -1;
 
 		/*
-		 * Wake up any waiting threads and give them a chance to acquire the lock.
+		 * Hand the lock to the longest-waiting thread whose client is still waiting.
 		 */
-		this.notifyAll();
+		this.lockSemaphore.release();
 	}
 }
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signals that the client of an RMI call has cancelled the call (typically by calling
+ * {@link Thread#interrupt()} on a thread from {@link InterruptibleRMIThreadFactory}). Obtain the
+ * token for the RMI call being executed by the current thread with
+ * <code>RMICallContext.current().cancellationToken()</code>.
+ * <p>
+ * A token only applies to a single RMI call: once the call has completed (i.e. the RMI transport
+ * starts sending the result back to the client) the token is "retired". A retired token is never
+ * cancelled, and cancel actions registered with it are discarded.
+ * </p>
+ * <p>
+ * Cancellation is detected when the server-side RMI socket is closed, when
+ * {@link #isCancelled()} (or {@link #throwIfCancelled()}) finds the client's shutdown signal, or by
+ * the monitor started with {@link InterruptibleRMISocketFactory#startServerMonitor(long)}. Code
+ * that relies on {@link #onCancel(Runnable)} or {@link #await()} to learn about cancellation
+ * promptly should run with the monitor started.
+ * </p>
+ * 
+ * @see RMICallContext
+ * @author neilotoole@apache.org
+ */
+public final class CancellationToken
+{
+	/**
+	 * Token for threads that are not executing an RMI call. It is never cancelled, and (as it is
+	 * retired from the start) it discards cancel actions rather than accumulating them.
+	 */
+	static final CancellationToken NEVER = new CancellationToken(null);
+
+	static
+	{
+		NEVER.retire();
+	}
+
+	/**
+	 * The socket of the RMI call, or null for {@link #NEVER}.
+	 */
+	private final InterruptibleRMIServerSideSocket socket;
+
+	private volatile boolean isCancelled = false;
+
+	private volatile boolean isRetired = false;
+
+	/**
+	 * The registered cancel actions, or null if there are none. Guarded by this.
+	 */
+	private List<Runnable> cancelActions;
+
+
+
+	/**
+	 * Create a token for the current RMI call on the supplied socket.
+	 */
+	CancellationToken(final InterruptibleRMIServerSideSocket socket)
+	{
+		this.socket = socket;
+	}
+
+
+
+	/**
+	 * Return true if the RMI call has been cancelled by its client. If that is not yet known, this
+	 * method may check the RMI socket for the client's shutdown signal (at most about once per
+	 * millisecond, so it is cheap enough to call from tight loops).
+	 */
+	public boolean isCancelled()
+	{
+		if (this.isCancelled == false && this.isRetired == false && this.socket != null)
+		{
+			this.socket.isAlive();
+		}
+
+		return this.isCancelled;
+	}
+
+
+
+	/**
+	 * Return true if the cancellation of the RMI call is already known. Unlike
+	 * {@link #isCancelled()}, never checks the RMI socket (or runs cancel actions), so it may be
+	 * called while holding a lock.
+	 */
+	boolean isKnownCancelled()
+	{
+		return this.isCancelled;
+	}
+
+
+
+	/**
+	 * Throw a {@link CancellationException} if the RMI call has been cancelled by its client.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call has been cancelled
+	 */
+	public void throwIfCancelled() throws CancellationException
+	{
+		if (isCancelled())
+		{
+			throw new CancellationException("The RMI call has been cancelled by the client");
+		}
+	}
+
+
+
+	/**
+	 * Register an action to be run when the RMI call is cancelled, e.g. to release a resource or to
+	 * abort a computation. The action is run on the thread that detects the cancellation (which
+	 * may be the monitor thread), so it should be short and must not block. If the call has
+	 * already been cancelled, the action is run immediately on the current thread. If the call has
+	 * already completed, the action is discarded.
+	 */
+	public void onCancel(final Runnable action)
+	{
+		if (action == null)
+		{
+			throw new NullPointerException("action");
+		}
+
+		synchronized (this)
+		{
+			if (this.isRetired)
+			{
+				return;
+			}
+
+			if (this.isCancelled == false)
+			{
+				if (this.cancelActions == null)
+				{
+					this.cancelActions = new ArrayList<Runnable>(2);
+				}
+
+				this.cancelActions.add(action);
+				return;
+			}
+		}
+
+		runQuietly(action);
+	}
+
+
+
+	/**
+	 * Remove a cancel action previously registered with {@link #onCancel(Runnable)}, so that it is
+	 * no longer run if the call is cancelled. Return true if the action was registered.
+	 */
+	synchronized boolean removeCancelAction(final Runnable action)
+	{
+		return this.cancelActions != null && this.cancelActions.remove(action);
+	}
+
+
+
+	/**
+	 * Wait until the RMI call is cancelled or has completed. Return true if the call was
+	 * cancelled.
+	 * 
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 */
+	public synchronized boolean await() throws InterruptedException
+	{
+		while (this.isCancelled == false && this.isRetired == false)
+		{
+			this.wait();
+		}
+
+		return this.isCancelled;
+	}
+
+
+
+	/**
+	 * Wait until the RMI call is cancelled or has completed, or until the timeout elapses. Return
+	 * true if the call was cancelled.
+	 * 
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 */
+	public synchronized boolean await(final long timeout, final TimeUnit unit)
+		throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (this.isCancelled == false && this.isRetired == false)
+		{
+			final long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0)
+			{
+				break;
+			}
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return this.isCancelled;
+	}
+
+
+
+	/**
+	 * Mark the RMI call as cancelled, and run the registered cancel actions. Does nothing if the
+	 * token has already been cancelled or retired.
+	 */
+	void cancel()
+	{
+		final List<Runnable> actions;
+
+		synchronized (this)
+		{
+			if (this.isCancelled || this.isRetired)
+			{
+				return;
+			}
+
+			this.isCancelled = true;
+			actions = this.cancelActions;
+			this.cancelActions = null;
+			this.notifyAll();
+		}
+
+		if (actions != null)
+		{
+			for (final Runnable action : actions)
+			{
+				runQuietly(action);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Mark the RMI call as completed, discarding the registered cancel actions.
+	 */
+	synchronized void retire()
+	{
+		this.isRetired = true;
+		this.cancelActions = null;
+		this.notifyAll();
+	}
+
+
+
+	/**
+	 * Run a cancel action, swallowing any exception so that the remaining actions still run.
+	 */
+	private static void runQuietly(final Runnable action)
+	{
+		try
+		{
+			action.run();
+		}
+		catch (final RuntimeException e)
+		{
+			// just swallow this
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this class and the state of the token.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [cancelled=" + this.isCancelled + ", retired="
+			+ this.isRetired + "]";
+	}
+}
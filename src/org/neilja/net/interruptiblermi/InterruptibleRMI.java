@@ -0,0 +1,202 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Static utilities for bounding the duration of RMI calls. For example, to give up on a call that
+ * takes more than two seconds:
+ * 
+ * <pre>
+ * final String result = InterruptibleRMI.withDeadline(2, TimeUnit.SECONDS, new Callable&lt;String&gt;()
+ * {
+ * 	public String call() throws RemoteException
+ * 	{
+ * 		return remoteService.doSomethingSlow();
+ * 	}
+ * });
+ * </pre>
+ * 
+ * When the deadline expires, the RMI call is cancelled exactly as if
+ * {@link InterruptibleRMICancelHandle#cancel()} had been invoked for the calling thread, and
+ * {@link #withDeadline(long, TimeUnit, Callable)} throws a {@link TimeoutException}. The
+ * deadlines of all threads are serviced by a single shared timer wheel, so there is no timer
+ * thread or scheduled future per call. The deadline also bounds the time spent connecting new
+ * RMI connections.
+ * 
+ * @see InterruptibleRMICancelHandle
+ * @author neilotoole@apache.org
+ */
+public final class InterruptibleRMI
+{
+	/**
+	 * The deadline of one invocation of {@link InterruptibleRMI#withDeadline}. It is the task
+	 * scheduled on the timer wheel.
+	 */
+	private static final class Deadline implements Runnable
+	{
+		private final InterruptibleRMICancelHandle handle;
+
+		/**
+		 * Guarded by this.
+		 */
+		private boolean isActive = true;
+
+		/**
+		 * Guarded by this.
+		 */
+		private boolean isExpired;
+
+		/**
+		 * True if the thread was not already interrupted when the deadline expired, so that the
+		 * interrupt was delivered by the expiry. Guarded by this.
+		 */
+		private boolean isInterruptDelivered;
+
+
+
+		Deadline(final InterruptibleRMICancelHandle handle)
+		{
+			this.handle = handle;
+		}
+
+
+
+		/**
+		 * Called by the timer thread when the deadline expires (or by the calling thread, once it
+		 * has observed that the deadline has passed): cancel the call, if it is still in progress.
+		 */
+		public synchronized void run()
+		{
+			if (this.isActive && this.isExpired == false)
+			{
+				this.isExpired = true;
+				this.isInterruptDelivered = this.handle.getThread().isInterrupted() == false;
+				this.handle.cancel();
+			}
+		}
+
+
+
+		/**
+		 * Called by the calling thread once the call has completed, waiting for a concurrent
+		 * expiry to complete. Return true if the deadline expired.
+		 */
+		synchronized boolean deactivate()
+		{
+			this.isActive = false;
+			return this.isExpired;
+		}
+
+
+
+		/**
+		 * Return true if the deadline expired, and its expiry delivered the thread's interrupt.
+		 */
+		synchronized boolean isInterruptDelivered()
+		{
+			return this.isExpired && this.isInterruptDelivered;
+		}
+	}
+
+
+
+	private InterruptibleRMI()
+	{
+	// no instances
+	}
+
+
+
+	/**
+	 * Invoke the supplied callable (which typically makes one or more RMI calls with sockets from
+	 * {@link InterruptibleRMISocketFactory}) on the current thread, cancelling it if it has not
+	 * completed once the supplied timeout has elapsed. Any thread can be used (not just threads
+	 * from {@link InterruptibleRMIThreadFactory}).
+	 * <p>
+	 * If the deadline expires, the current thread is interrupted and the RMI socket in IO (if any)
+	 * is shut down and closed. If the callable then completes with an exception, a
+	 * {@link TimeoutException} (whose cause is that exception) is thrown. Either way, the interrupt
+	 * delivered by the expiry is cleared before this method returns (an interrupt that the thread
+	 * already had is kept). Deadlines can be nested: the TimeoutException is thrown by the
+	 * invocation whose deadline expired.
+	 * </p>
+	 * 
+	 * @return the result of the callable.
+	 * @throws TimeoutException if the timeout is not positive, or the deadline expired before the
+	 *             callable completed.
+	 * @throws Exception if thrown by the callable (and the deadline did not expire).
+	 */
+	public static <V> V withDeadline(final long timeout, final TimeUnit unit, final Callable<V> callable)
+		throws Exception
+	{
+		if (timeout <= 0)
+		{
+			throw new TimeoutException("The deadline has already expired");
+		}
+
+		final boolean wasRegistered = InterruptibleRMICancelHandle.current() != null;
+		final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.register();
+		final Deadline deadline = new Deadline(handle);
+		final InterruptibleRMITimerWheel.Timeout expiry = InterruptibleRMITimerWheel.getInstance().schedule(
+			deadline, timeout, unit);
+
+		// publish the deadline (or the enclosing one, if that expires sooner), to bound connects
+		final long enclosingNanos = handle.getDeadlineNanos();
+		final Runnable enclosingExpiry = handle.getDeadlineExpiry();
+		final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+
+		if (enclosingNanos == 0 || deadlineNanos - enclosingNanos < 0)
+		{
+			handle.setDeadline(deadlineNanos == 0 ? 1 : deadlineNanos, deadline);
+		}
+
+		try
+		{
+			return callable.call();
+		}
+		catch (final Exception e)
+		{
+			// a connect bounded by the deadline expires it itself, rather than wait for the timer
+			if (deadline.deactivate())
+			{
+				final TimeoutException te = new TimeoutException("The deadline of " + timeout + " "
+					+ unit.toString().toLowerCase() + " expired");
+				te.initCause(e);
+				throw te;
+			}
+
+			throw e;
+		}
+		finally
+		{
+			if (deadline.deactivate() && deadline.isInterruptDelivered())
+			{
+				// discard the interrupt of the expiry
+				Thread.interrupted();
+			}
+
+			expiry.cancel();
+			handle.setDeadline(enclosingNanos, enclosingExpiry);
+
+			if (wasRegistered == false)
+			{
+				InterruptibleRMICancelHandle.unregister();
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client-side cache of resolved host addresses, and of the connect health of each address,
+ * shared by all instances of {@link InterruptibleRMISocketFactory} (which are deserialized anew
+ * with each stub). Successful resolutions are cached for the TTL, and failed resolutions for the
+ * negative TTL (see {@link #setTTL(long, long, TimeUnit)}).
+ * <p>
+ * The addresses of a host are returned in connect order (see {@link InterruptibleRMIConnector}):
+ * addresses that failed to connect within the last {@link #FAILURE_PENALTY_MILLIS} go last, and
+ * the other addresses are ordered by their (smoothed) connect time, fastest first, followed by
+ * the addresses that have not connected yet. Addresses of equal standing alternate between
+ * address families.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketFactory#setAddressCacheTTL(long, long, TimeUnit)
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIAddressCache
+{
+	/**
+	 * How long an address that failed to connect is tried last.
+	 */
+	static final long FAILURE_PENALTY_MILLIS = 30 * 1000;
+
+	/**
+	 * The maximum number of addresses with tracked health; the health of all addresses is
+	 * forgotten when this is exceeded.
+	 */
+	private static final int MAX_HEALTH_ENTRIES = 1024;
+
+	/**
+	 * The resolutions of a host.
+	 */
+	private static final class Resolution
+	{
+		/**
+		 * The addresses, or null if the resolution failed.
+		 */
+		final InetAddress[] addresses;
+
+		/**
+		 * The failure message, if the resolution failed.
+		 */
+		final String failure;
+
+		/**
+		 * The System#nanoTime at which this resolution expires.
+		 */
+		final long expiresNanos;
+
+
+
+		Resolution(final InetAddress[] addresses, final String failure, final long expiresNanos)
+		{
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expiresNanos = expiresNanos;
+		}
+	}
+
+	/**
+	 * The connect health of an address.
+	 */
+	private static final class Health
+	{
+		/**
+		 * The smoothed connect time in nanoseconds, or 0 if the address has not connected yet.
+		 */
+		volatile long connectNanos;
+
+		/**
+		 * The System#nanoTime of the last failure to connect, or 0 if the last connect succeeded.
+		 */
+		volatile long failedNanos;
+	}
+
+	private static final InterruptibleRMIAddressCache instance = new InterruptibleRMIAddressCache();
+
+
+
+	/**
+	 * Return the shared cache.
+	 */
+	static InterruptibleRMIAddressCache getInstance()
+	{
+		return instance;
+	}
+
+	private final ConcurrentHashMap<String, Resolution> resolutions = new ConcurrentHashMap<String, Resolution>();
+	private final ConcurrentHashMap<InetSocketAddress, Health> health = new ConcurrentHashMap<InetSocketAddress, Health>();
+
+	private volatile long ttlNanos = TimeUnit.SECONDS.toNanos(30);
+	private volatile long negativeTTLNanos = TimeUnit.SECONDS.toNanos(10);
+
+
+
+	private InterruptibleRMIAddressCache()
+	{
+	// singleton
+	}
+
+
+
+	/**
+	 * Set how long successful and failed resolutions are cached (0 disables caching of either).
+	 */
+	void setTTL(final long ttl, final long negativeTTL, final TimeUnit unit)
+	{
+		if (ttl < 0 || negativeTTL < 0)
+		{
+			throw new IllegalArgumentException("The TTLs must not be negative: " + ttl + ", "
+				+ negativeTTL);
+		}
+
+		this.ttlNanos = unit.toNanos(ttl);
+		this.negativeTTLNanos = unit.toNanos(negativeTTL);
+		this.resolutions.clear();
+	}
+
+
+
+	/**
+	 * Return how long successful resolutions are cached, in the supplied unit.
+	 */
+	long getTTL(final TimeUnit unit)
+	{
+		return unit.convert(this.ttlNanos, TimeUnit.NANOSECONDS);
+	}
+
+
+
+	/**
+	 * Return how long failed resolutions are cached, in the supplied unit.
+	 */
+	long getNegativeTTL(final TimeUnit unit)
+	{
+		return unit.convert(this.negativeTTLNanos, TimeUnit.NANOSECONDS);
+	}
+
+
+
+	/**
+	 * Return the addresses of the supplied host, in connect order for the supplied port.
+	 * 
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved (or its failure to resolve is cached)
+	 */
+	InetAddress[] resolve(final String host, final int port) throws UnknownHostException
+	{
+		final long now = System.nanoTime();
+		Resolution resolution = this.resolutions.get(host);
+
+		if (resolution == null || now - resolution.expiresNanos >= 0)
+		{
+			resolution = lookup(host, now);
+		}
+
+		if (resolution.addresses == null)
+		{
+			throw new UnknownHostException(resolution.failure);
+		}
+
+		return order(resolution.addresses, port, now);
+	}
+
+
+
+	/**
+	 * Resolve the supplied host, and cache the result.
+	 */
+	private Resolution lookup(final String host, final long now) throws UnknownHostException
+	{
+		Resolution resolution;
+
+		try
+		{
+			resolution = new Resolution(InterruptibleRMIConnector.orderAddresses(InetAddress.getAllByName(host)),
+				null, now + this.ttlNanos);
+
+			if (this.ttlNanos == 0)
+			{
+				return resolution;
+			}
+		}
+		catch (final UnknownHostException e)
+		{
+			if (this.negativeTTLNanos == 0)
+			{
+				throw e;
+			}
+
+			resolution = new Resolution(null, e.getMessage(), now + this.negativeTTLNanos);
+		}
+
+		this.resolutions.put(host, resolution);
+		return resolution;
+	}
+
+
+
+	/**
+	 * Return a copy of the supplied addresses, sorted by their health.
+	 */
+	private InetAddress[] order(final InetAddress[] addresses, final int port, final long now)
+	{
+		final InetAddress[] ordered = addresses.clone();
+
+		if (ordered.length == 1 || this.health.isEmpty())
+		{
+			return ordered;
+		}
+
+		final long[] keys = new long[ordered.length];
+
+		for (int i = 0; i < ordered.length; i++)
+		{
+			keys[i] = sortKey(ordered[i], port, now);
+		}
+
+		final Integer[] indexes = new Integer[ordered.length];
+
+		for (int i = 0; i < indexes.length; i++)
+		{
+			indexes[i] = Integer.valueOf(i);
+		}
+
+		// a stable sort, so that addresses of equal health keep the resolver's order
+		Arrays.sort(indexes, new Comparator<Integer>()
+		{
+			public int compare(final Integer a, final Integer b)
+			{
+				final long ka = keys[a.intValue()];
+				final long kb = keys[b.intValue()];
+				return ka < kb ? -1 : (ka == kb ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < ordered.length; i++)
+		{
+			ordered[i] = addresses[indexes[i].intValue()];
+		}
+
+		return ordered;
+	}
+
+
+
+	/**
+	 * Return the sort key of the supplied address: its connect time, Long.MAX_VALUE - 1 if it has
+	 * not connected yet, or Long.MAX_VALUE if it failed recently.
+	 */
+	private long sortKey(final InetAddress address, final int port, final long now)
+	{
+		final Health h = this.health.get(new InetSocketAddress(address, port));
+
+		if (h == null)
+		{
+			return Long.MAX_VALUE - 1;
+		}
+
+		final long failedNanos = h.failedNanos;
+
+		if (failedNanos != 0 && now - failedNanos < TimeUnit.MILLISECONDS.toNanos(FAILURE_PENALTY_MILLIS))
+		{
+			return Long.MAX_VALUE;
+		}
+
+		return h.connectNanos == 0 ? Long.MAX_VALUE - 1 : h.connectNanos;
+	}
+
+
+
+	/**
+	 * Record that the supplied address connected in the supplied time.
+	 */
+	void connected(final InetSocketAddress address, final long connectNanos)
+	{
+		final Health h = getHealth(address);
+		final long previous = h.connectNanos;
+
+		// smoothed like TCP's SRTT
+		h.connectNanos = previous == 0 ? Math.max(1, connectNanos) : Math.max(1, previous
+			- (previous >> 3) + (connectNanos >> 3));
+		h.failedNanos = 0;
+	}
+
+
+
+	/**
+	 * Record that the supplied address failed to connect.
+	 */
+	void failed(final InetSocketAddress address)
+	{
+		final long now = System.nanoTime();
+		getHealth(address).failedNanos = now == 0 ? 1 : now;
+	}
+
+
+
+	private Health getHealth(final InetSocketAddress address)
+	{
+		Health h = this.health.get(address);
+
+		if (h == null)
+		{
+			if (this.health.size() >= MAX_HEALTH_ENTRIES)
+			{
+				this.health.clear();
+			}
+
+			final Health newHealth = new Health();
+			h = this.health.putIfAbsent(address, newHealth);
+
+			if (h == null)
+			{
+				h = newHealth;
+			}
+		}
+
+		return h;
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of the stream buffers used in the buffered mode (see
+ * {@link InterruptibleRMISocketProfile#getBufferSize()}), so that connections that come and go
+ * (e.g. when calls are cancelled) do not each allocate new buffers. Buffers are pooled by size,
+ * and at most {@link #MAX_POOLED} buffers of each size are kept.
+ * 
+ * @see InterruptibleRMIBufferedInputStream
+ * @see InterruptibleRMIBufferedOutputStream
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIBufferPool
+{
+	/**
+	 * The maximum number of buffers kept per size.
+	 */
+	static final int MAX_POOLED = 64;
+
+	/**
+	 * The pooled buffers of one size.
+	 */
+	private static final class Buffers
+	{
+		final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+
+		/**
+		 * The number of buffers in the queue (as ConcurrentLinkedQueue#size is not constant-time).
+		 */
+		final AtomicInteger count = new AtomicInteger();
+	}
+
+	private static final ConcurrentHashMap<Integer, Buffers> pools = new ConcurrentHashMap<Integer, Buffers>();
+
+
+
+	private InterruptibleRMIBufferPool()
+	{
+	// no instances
+	}
+
+
+
+	/**
+	 * Return a buffer of the supplied size, from the pool if possible.
+	 */
+	static byte[] acquire(final int size)
+	{
+		final Buffers buffers = pools.get(Integer.valueOf(size));
+
+		if (buffers != null)
+		{
+			final byte[] buffer = buffers.queue.poll();
+
+			if (buffer != null)
+			{
+				buffers.count.decrementAndGet();
+				return buffer;
+			}
+		}
+
+		return new byte[size];
+	}
+
+
+
+	/**
+	 * Return the supplied buffer to the pool, which must no longer be used by the caller.
+	 */
+	static void release(final byte[] buffer)
+	{
+		final Integer size = Integer.valueOf(buffer.length);
+		Buffers buffers = pools.get(size);
+
+		if (buffers == null)
+		{
+			final Buffers newBuffers = new Buffers();
+			buffers = pools.putIfAbsent(size, newBuffers);
+
+			if (buffers == null)
+			{
+				buffers = newBuffers;
+			}
+		}
+
+		if (buffers.count.incrementAndGet() <= MAX_POOLED)
+		{
+			buffers.queue.add(buffer);
+		}
+		else
+		{
+			buffers.count.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The buffered variant of {@link InterruptibleRMISocketInputStream}: reads are served from a
+ * buffer (drawn from {@link InterruptibleRMIBufferPool} on first use), which is filled by a
+ * single read of the decorated stream, so the listener's #ioStarting and #ioEnding methods are
+ * called once per fill rather than once per read. Reads at least as large as the buffer bypass
+ * it. Mark and reset are not supported.
+ * <p>
+ * Like the unbuffered variant, this class takes no locks: RMI reads a connection from one thread
+ * at a time.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketProfile#getBufferSize()
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIBufferedInputStream extends InterruptibleRMISocketInputStream
+{
+	private final int size;
+
+	/**
+	 * The buffer, or null if it has not been acquired (or has been released).
+	 */
+	private byte[] buffer;
+
+	/**
+	 * The position of the next byte to read in the buffer, and the end of the data in it.
+	 */
+	private int pos, limit;
+
+
+
+	/**
+	 * Create a new buffered stream that decorates the supplied InputStream and calls back to the
+	 * supplied listener, with a buffer of the supplied size.
+	 */
+	InterruptibleRMIBufferedInputStream(final InterruptibleRMISocket listener,
+		final InputStream decoratee, final int size)
+	{
+		super(listener, decoratee);
+		this.size = size;
+	}
+
+
+
+	/**
+	 * Return the number of buffered bytes, plus the number available from the decorated stream.
+	 * 
+	 * @see InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException
+	{
+		return this.limit - this.pos + this.decoratee.available();
+	}
+
+
+
+	/**
+	 * Return false.
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+
+
+	/**
+	 * Does nothing, as mark is not supported.
+	 */
+	@Override
+	public void mark(final int readlimit)
+	{
+	// not supported
+	}
+
+
+
+	/**
+	 * Throw an IOException, as reset is not supported.
+	 */
+	@Override
+	public void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+
+
+
+	/**
+	 * @see InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException
+	{
+		if (this.pos == this.limit && fill() == false)
+		{
+			return -1;
+		}
+
+		return this.buffer[this.pos++] & 0xff;
+	}
+
+
+
+	/**
+	 * @see InputStream#read(byte[])
+	 */
+	@Override
+	public int read(final byte[] b) throws IOException
+	{
+		return read(b, 0, b.length);
+	}
+
+
+
+	/**
+	 * @see InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+
+		if (this.pos == this.limit)
+		{
+			if (len >= this.size)
+			{
+				// nothing to gain from copying through the buffer
+				return super.read(b, off, len);
+			}
+
+			if (fill() == false)
+			{
+				return -1;
+			}
+		}
+
+		final int count = Math.min(len, this.limit - this.pos);
+		System.arraycopy(this.buffer, this.pos, b, off, count);
+		this.pos += count;
+		return count;
+	}
+
+
+
+	/**
+	 * @see InputStream#skip(long)
+	 */
+	@Override
+	public long skip(final long n) throws IOException
+	{
+		if (this.pos == this.limit)
+		{
+			return super.skip(n);
+		}
+
+		final int count = (int) Math.min(Math.max(n, 0), this.limit - this.pos);
+		this.pos += count;
+		return count;
+	}
+
+
+
+	/**
+	 * Fill the buffer with a single read of the decorated stream. Return false at the end of the
+	 * stream.
+	 */
+	private boolean fill() throws IOException
+	{
+		if (this.buffer == null)
+		{
+			this.buffer = InterruptibleRMIBufferPool.acquire(this.size);
+		}
+
+		final int count;
+
+		try
+		{
+			this.listener.ioStarting();
+			count = this.decoratee.read(this.buffer, 0, this.size);
+		}
+		finally
+		{
+			this.listener.ioEnding();
+		}
+
+		if (count <= 0)
+		{
+			return false;
+		}
+
+		this.pos = 0;
+		this.limit = count;
+		return true;
+	}
+
+
+
+	/**
+	 * Return the buffer to the pool, discarding any unread data. Called when the socket is
+	 * closed by the RMI transport, which does not happen during a read.
+	 */
+	void release()
+	{
+		final byte[] b = this.buffer;
+
+		if (b != null)
+		{
+			this.buffer = null;
+			this.pos = 0;
+			this.limit = 0;
+			InterruptibleRMIBufferPool.release(b);
+		}
+	}
+}
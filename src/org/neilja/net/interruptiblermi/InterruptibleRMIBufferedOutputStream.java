@@ -0,0 +1,249 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The buffered variant of {@link InterruptibleRMISocketOutputStream}: writes are collected in a
+ * buffer (drawn from {@link InterruptibleRMIBufferPool} on first use), which is written to the
+ * decorated stream when it is full or when the stream is flushed, so the listener's #writeStarting
+ * and #writeEnding methods are called once per buffer write rather than once per write. Writes at
+ * least as large as the buffer are written through, together with any buffered data (in a single
+ * gathering write, if the socket is an {@link InterruptibleRMIChannelSocket}). As the
+ * buffer is written inside the listener's hooks, a thread interrupted while flushing is
+ * unblocked just as it would be by the unbuffered stream.
+ * <p>
+ * Like the unbuffered variant, this class takes no locks: RMI writes a connection from one
+ * thread at a time.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketProfile#getBufferSize()
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIBufferedOutputStream extends InterruptibleRMISocketOutputStream
+{
+	private final int size;
+
+	/**
+	 * The decorated stream, if it is the stream of a channel socket (otherwise null).
+	 */
+	private final InterruptibleRMIChannelSocket.ChannelOutputStream channelOutput;
+
+	/**
+	 * The buffer, or null if it has not been acquired (or has been released).
+	 */
+	private byte[] buffer;
+
+	/**
+	 * The number of bytes in the buffer.
+	 */
+	private int count;
+
+
+
+	/**
+	 * Create a new buffered stream that decorates the supplied OutputStream and calls back to the
+	 * supplied listener, with a buffer of the supplied size.
+	 */
+	InterruptibleRMIBufferedOutputStream(final InterruptibleRMISocket listener,
+		final OutputStream decoratee, final int size)
+	{
+		super(listener, decoratee);
+		this.size = size;
+		this.channelOutput = decoratee instanceof InterruptibleRMIChannelSocket.ChannelOutputStream
+			? (InterruptibleRMIChannelSocket.ChannelOutputStream) decoratee : null;
+	}
+
+
+
+	/**
+	 * @see OutputStream#write(int)
+	 */
+	@Override
+	public void write(final int b) throws IOException
+	{
+		if (this.buffer == null)
+		{
+			this.buffer = InterruptibleRMIBufferPool.acquire(this.size);
+		}
+		else if (this.count == this.size)
+		{
+			writeBuffer(false);
+		}
+
+		this.buffer[this.count++] = (byte) b;
+	}
+
+
+
+	/**
+	 * @see OutputStream#write(byte[])
+	 */
+	@Override
+	public void write(final byte[] b) throws IOException
+	{
+		write(b, 0, b.length);
+	}
+
+
+
+	/**
+	 * @see OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException
+	{
+		if (len >= this.size)
+		{
+			// write the buffered data and the supplied data in one go
+			try
+			{
+				this.listener.writeStarting();
+
+				if (this.count > 0 && this.channelOutput != null)
+				{
+					gather(b, off, len);
+					return;
+				}
+
+				if (this.count > 0)
+				{
+					this.decoratee.write(this.buffer, 0, this.count);
+					this.count = 0;
+				}
+
+				this.decoratee.write(b, off, len);
+			}
+			finally
+			{
+				this.listener.writeEnding();
+			}
+
+			return;
+		}
+
+		if (this.buffer == null)
+		{
+			this.buffer = InterruptibleRMIBufferPool.acquire(this.size);
+		}
+		else if (len > this.size - this.count)
+		{
+			writeBuffer(false);
+		}
+
+		System.arraycopy(b, off, this.buffer, this.count, len);
+		this.count += len;
+	}
+
+
+
+	/**
+	 * Write the buffered data to the decorated stream, and flush it.
+	 * 
+	 * @see OutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		writeBuffer(true);
+	}
+
+
+
+	/**
+	 * Write the buffered data, and close the underlying OutputStream. The data is written within
+	 * the listener's hooks, but (as with the unbuffered stream) the close itself is not.
+	 * 
+	 * @see OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (this.count > 0)
+			{
+				writeBuffer(true);
+			}
+		}
+		finally
+		{
+			super.close();
+		}
+	}
+
+
+
+	/**
+	 * Write the buffered data to the decorated stream (flushing it if requested) within a single
+	 * pair of calls to the listener's hooks.
+	 */
+	private void writeBuffer(final boolean flush) throws IOException
+	{
+		try
+		{
+			this.listener.writeStarting();
+
+			if (this.count > 0)
+			{
+				final int length = this.count;
+				this.count = 0;
+				this.decoratee.write(this.buffer, 0, length);
+			}
+
+			if (flush)
+			{
+				this.decoratee.flush();
+			}
+		}
+		finally
+		{
+			this.listener.writeEnding();
+		}
+	}
+
+
+
+	/**
+	 * Write the buffered data and the supplied data to the channel in a single gathering write.
+	 */
+	private void gather(final byte[] b, final int off, final int len) throws IOException
+	{
+		final ByteBuffer[] buffers = { ByteBuffer.wrap(this.buffer, 0, this.count),
+			ByteBuffer.wrap(b, off, len) };
+		this.count = 0;
+		this.channelOutput.write(buffers);
+	}
+
+
+
+	/**
+	 * Return the buffer to the pool, discarding any unwritten data. Called when the socket is
+	 * closed by the RMI transport, which does not happen during a write.
+	 */
+	void release()
+	{
+		final byte[] b = this.buffer;
+
+		if (b != null)
+		{
+			this.buffer = null;
+			this.count = 0;
+			InterruptibleRMIBufferPool.release(b);
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Handle for cancelling the RMI calls made by a thread, for threads that are not created by
+ * {@link InterruptibleRMIThreadFactory} (e.g. virtual threads, pool threads of executors that you
+ * don't control, or {@link java.util.concurrent.ForkJoinPool} workers). A thread registers itself
+ * with {@link #register()}, and hands the returned handle to whoever may need to cancel its RMI
+ * calls. Calling {@link #cancel()} on the handle interrupts the thread and, if the thread is in a
+ * blocking RMI IO operation on a socket from {@link InterruptibleRMISocketFactory}, shuts down and
+ * closes that socket, exactly as {@link Thread#interrupt()} does for threads from
+ * {@link InterruptibleRMIThreadFactory}.
+ * 
+ * <pre>
+ * final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.register();
+ * 
+ * try
+ * {
+ * 	publishHandle(handle); // e.g. so that a "cancel" button can call handle.cancel()
+ * 	remoteService.doSomethingSlow();
+ * }
+ * finally
+ * {
+ * 	InterruptibleRMICancelHandle.unregister();
+ * }
+ * </pre>
+ * 
+ * The registration is kept in a thread-local slot, so it works for any kind of thread, and costs
+ * nothing for threads that never register.
+ * 
+ * @see InterruptibleRMIThreadFactory
+ * @author neilotoole@apache.org
+ */
+public final class InterruptibleRMICancelHandle
+{
+	/**
+	 * Updater for {@link #socketInIO}.
+	 */
+	private static final AtomicReferenceFieldUpdater<InterruptibleRMICancelHandle, Object> socketInIOUpdater = AtomicReferenceFieldUpdater.newUpdater(
+		InterruptibleRMICancelHandle.class, Object.class, "socketInIO");
+
+	/**
+	 * The handles of registered threads (other than instances of InterruptibleRMIThread, which hold
+	 * their own handle).
+	 */
+	private static final ThreadLocal<InterruptibleRMICancelHandle> threadHandle = new ThreadLocal<InterruptibleRMICancelHandle>();
+
+
+
+	/**
+	 * Register the current thread for RMI call cancellation, and return its handle. If the thread
+	 * is already registered (or was created by {@link InterruptibleRMIThreadFactory}), its existing
+	 * handle is returned.
+	 */
+	public static InterruptibleRMICancelHandle register()
+	{
+		InterruptibleRMICancelHandle handle = current();
+
+		if (handle == null)
+		{
+			handle = new InterruptibleRMICancelHandle(Thread.currentThread());
+			threadHandle.set(handle);
+		}
+
+		return handle;
+	}
+
+
+
+	/**
+	 * Remove the registration of the current thread (if any). Threads that are reused for
+	 * unrelated work, such as pool threads, should unregister when they are done, so that the
+	 * handle can no longer affect them. Has no effect on threads created by
+	 * {@link InterruptibleRMIThreadFactory}.
+	 */
+	public static void unregister()
+	{
+		final InterruptibleRMICancelHandle handle = threadHandle.get();
+
+		if (handle != null)
+		{
+			synchronized (handle)
+			{
+				handle.isRegistered = false;
+			}
+
+			threadHandle.remove();
+			handle.unregisterSocketInIO();
+		}
+	}
+
+
+
+	/**
+	 * Return the handle of the current thread, or null if the current thread is not registered.
+	 */
+	public static InterruptibleRMICancelHandle current()
+	{
+		final Thread thread = Thread.currentThread();
+
+		if (thread instanceof InterruptibleRMIThread)
+		{
+			return ((InterruptibleRMIThread) thread).getCancelHandle();
+		}
+
+		return threadHandle.get();
+	}
+
+	/**
+	 * The registered thread.
+	 */
+	private final Thread thread;
+
+	/**
+	 * False once the thread has unregistered this handle. Guarded by this.
+	 */
+	private boolean isRegistered = true;
+
+	/**
+	 * The socket that the thread currently has in a blocking IO operation, the
+	 * {@link PendingCancel} that a cancel has put in its place (until the canceller claims it, or
+	 * the IO operation ends), or null.
+	 */
+	private volatile Object socketInIO;
+
+	/**
+	 * The System#nanoTime at which the thread's innermost deadline expires, or 0 if the thread has
+	 * no deadline. Only accessed by the thread itself.
+	 */
+	private long deadlineNanos;
+
+	/**
+	 * The task that expires the deadline of {@link #deadlineNanos}, or null if the thread has no
+	 * deadline. Only accessed by the thread itself.
+	 */
+	private Runnable deadlineExpiry;
+
+
+
+	/**
+	 * Create a handle for the supplied thread.
+	 */
+	InterruptibleRMICancelHandle(final Thread thread)
+	{
+		this.thread = thread;
+	}
+
+
+
+	/**
+	 * Return the thread that this handle cancels.
+	 */
+	public Thread getThread()
+	{
+		return this.thread;
+	}
+
+
+
+	/**
+	 * Cancel the RMI call currently being made by the thread: the thread is interrupted and, if it
+	 * is in a blocking RMI IO operation, the socket is handed to a background thread that sends a
+	 * shutdown signal to the RMI server and closes the socket, terminating the IO operation. This
+	 * method never blocks. Afterwards, the thread's interrupt status will have been set. Has no
+	 * effect once the thread has unregistered this handle (see {@link #unregister()}).
+	 * 
+	 * @see InterruptibleRMICanceller
+	 */
+	public synchronized void cancel()
+	{
+		if (this.isRegistered == false)
+		{
+			return;
+		}
+
+		this.thread.interrupt();
+		abortSocketInIO();
+	}
+
+
+
+	/**
+	 * Return the System#nanoTime at which the thread's deadline expires, or 0 if it has none (see
+	 * {@link InterruptibleRMI#withDeadline}). Must be called by the thread.
+	 */
+	long getDeadlineNanos()
+	{
+		return this.deadlineNanos;
+	}
+
+
+
+	/**
+	 * Return the task that expires the thread's deadline, or null if it has none. Must be called by
+	 * the thread.
+	 */
+	Runnable getDeadlineExpiry()
+	{
+		return this.deadlineExpiry;
+	}
+
+
+
+	/**
+	 * Set the System#nanoTime at which the thread's deadline expires, and the task that expires it
+	 * (0 and null for none). Must be called by the thread.
+	 */
+	void setDeadline(final long deadlineNanos, final Runnable deadlineExpiry)
+	{
+		this.deadlineNanos = deadlineNanos;
+		this.deadlineExpiry = deadlineExpiry;
+	}
+
+
+
+	/**
+	 * Expire the thread's deadline now (if it has one), rather than when the timer services it:
+	 * called by the thread once it has observed that the deadline has passed, so that the call
+	 * fails as having timed out. Must be called by the thread.
+	 */
+	void expireDeadline()
+	{
+		if (this.deadlineExpiry != null)
+		{
+			this.deadlineExpiry.run();
+		}
+	}
+
+
+
+	/**
+	 * Register the supplied socket as currently being in an IO operation.
+	 */
+	void registerSocketInIO(final InterruptibleRMIClientSocket socket)
+	{
+		this.socketInIO = socket;
+	}
+
+
+
+	/**
+	 * Unregister the socket currently registered as being in an IO operation, and return true if
+	 * a cancel took it during the operation, which must then fail. If the canceller has not yet
+	 * claimed the socket, it is withdrawn from the canceller, and left alone (so a cancel never
+	 * shuts down a socket once its IO operation has ended, and RMI may have reused it); otherwise
+	 * the socket is being shut down. Either way, RMI does not reuse the connection of a failed
+	 * operation.
+	 */
+	boolean unregisterSocketInIO()
+	{
+		final Object previous = socketInIOUpdater.getAndSet(this, null);
+
+		return previous instanceof InterruptibleRMIClientSocket == false;
+	}
+
+
+
+	/**
+	 * If a socket is registered as being in an IO operation, put a {@link PendingCancel} in its
+	 * place, and hand that to the canceller.
+	 */
+	void abortSocketInIO()
+	{
+		while (true)
+		{
+			final Object current = this.socketInIO;
+
+			if (current instanceof InterruptibleRMIClientSocket == false)
+			{
+				return;
+			}
+
+			final PendingCancel cancel = new PendingCancel(this,
+				(InterruptibleRMIClientSocket) current);
+
+			if (socketInIOUpdater.compareAndSet(this, current, cancel))
+			{
+				InterruptibleRMICanceller.cancel(cancel);
+				return;
+			}
+		}
+	}
+
+
+
+	/**
+	 * The cancel of a socket in an IO operation, which the canceller must claim before it shuts
+	 * the socket down. The claim fails if the IO operation has ended in the meantime.
+	 */
+	static final class PendingCancel
+	{
+		private final InterruptibleRMICancelHandle handle;
+
+		/**
+		 * The socket to shut down.
+		 */
+		final InterruptibleRMIClientSocket socket;
+
+
+
+		PendingCancel(final InterruptibleRMICancelHandle handle,
+			final InterruptibleRMIClientSocket socket)
+		{
+			this.handle = handle;
+			this.socket = socket;
+		}
+
+
+
+		/**
+		 * Return true if the socket is still in the IO operation that was cancelled, in which
+		 * case the IO operation fails when it ends, and the socket may be shut down.
+		 */
+		boolean claim()
+		{
+			return socketInIOUpdater.compareAndSet(this.handle, this, null);
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the name of the thread.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + this.thread.getName() + "]";
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes the client sockets of cancelled RMI calls, so that cancelling a call (via
+ * {@link InterruptibleRMIThread#interrupt()} or {@link InterruptibleRMICancelHandle#cancel()})
+ * never blocks the cancelling thread. Writing the shutdown signal to a socket can block, if the
+ * send buffer is full because the server has stopped reading, so a socket is handled according
+ * to what its cancel may block on. Either way, the socket is first claimed from the cancel handle
+ * of the cancelled thread (see {@link InterruptibleRMICancelHandle.PendingCancel#claim()}), and left
+ * alone if the IO operation that was cancelled has ended in the meantime:
+ * <ul>
+ * <li>A socket whose shutdown writes to the connection (see
+ * {@link InterruptibleRMIClientSocket#isShutdownBlocking()}) is reset at once, by the cancelling
+ * thread (an immediate close that sends a TCP RST), if a thread is blocked writing to it (see
+ * {@link InterruptibleRMISocket#hasWriter()}), as the signal would only queue up behind the
+ * blocked write, or if its server has recently stalled. The reset unblocks the write, and the
+ * server learns of the cancellation from it.</li>
+ * <li>Any other socket is shut down by one of a few daemon threads, with a fallback on the shared
+ * {@link InterruptibleRMITimerWheel}: if the signal has not been written within
+ * {@link #SIGNAL_TIMEOUT_MILLIS}, the fallback resets the connection, and the server is taken to
+ * have stalled for {@link #STALL_MILLIS}. The sockets of a server are shut down one at a time,
+ * so a stalled server holds up one thread, for {@link #SIGNAL_TIMEOUT_MILLIS} at most, while the
+ * other threads carry on with the cancels of other servers.</li>
+ * </ul>
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMICanceller
+{
+	/**
+	 * How long the shutdown signal may take to write before the connection is reset.
+	 */
+	static final long SIGNAL_TIMEOUT_MILLIS = 100;
+
+	/**
+	 * How long the server of a socket whose shutdown signal timed out is taken to have stalled.
+	 */
+	static final long STALL_MILLIS = 5000;
+
+	/**
+	 * The number of threads that shut down sockets.
+	 */
+	static final int THREADS = 4;
+
+	/**
+	 * The threads that shut down sockets, created on first use, and stopped when idle.
+	 */
+	private static ThreadPoolExecutor executor;
+
+	/**
+	 * The sockets waiting to be shut down, by server, for each server whose sockets a thread is
+	 * shutting down. Guarded by itself.
+	 */
+	private static final Map<SocketAddress, LinkedList<InterruptibleRMICancelHandle.PendingCancel>> pending = new HashMap<SocketAddress, LinkedList<InterruptibleRMICancelHandle.PendingCancel>>();
+
+	/**
+	 * The System#nanoTime until which each stalled server is taken to have stalled.
+	 */
+	private static final ConcurrentHashMap<SocketAddress, Long> stalledServers = new ConcurrentHashMap<SocketAddress, Long>();
+
+
+
+	/**
+	 * Reset the socket of the supplied cancel, or schedule it to be shut down and closed, and
+	 * return immediately.
+	 */
+	static void cancel(final InterruptibleRMICancelHandle.PendingCancel cancel)
+	{
+		final InterruptibleRMIClientSocket socket = cancel.socket;
+		final SocketAddress server = socket.getRemoteSocketAddress();
+
+		if (socket.isShutdownBlocking() && (socket.hasWriter() || isStalled(server)))
+		{
+			if (cancel.claim())
+			{
+				socket.reset();
+			}
+
+			return;
+		}
+
+		if (server != null)
+		{
+			synchronized (pending)
+			{
+				final LinkedList<InterruptibleRMICancelHandle.PendingCancel> cancels = pending.get(server);
+
+				if (cancels != null)
+				{
+					// a thread is shutting down a socket of this server, and takes this one next
+					cancels.add(cancel);
+					return;
+				}
+
+				pending.put(server, new LinkedList<InterruptibleRMICancelHandle.PendingCancel>());
+			}
+		}
+
+		getExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				InterruptibleRMICancelHandle.PendingCancel next = cancel;
+
+				while (next != null)
+				{
+					try
+					{
+						shutdown(next, server);
+					}
+					catch (final RuntimeException e)
+					{
+						// report it, but don't hold up the cancels queued behind it
+						final Thread thread = Thread.currentThread();
+						thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+					}
+					finally
+					{
+						next = server != null ? nextPending(server) : null;
+					}
+				}
+			}
+		});
+	}
+
+
+
+	/**
+	 * Claim the socket of the supplied cancel, and shut it down and close it (or reset it, if its
+	 * server has stalled since it was queued), resetting the connection if the shutdown signal
+	 * can't be written in time.
+	 */
+	private static void shutdown(final InterruptibleRMICancelHandle.PendingCancel cancel,
+		final SocketAddress server)
+	{
+		final InterruptibleRMIClientSocket socket = cancel.socket;
+
+		if (cancel.claim() == false)
+		{
+			return;
+		}
+
+		if (socket.isShutdownBlocking() && isStalled(server))
+		{
+			socket.reset();
+			return;
+		}
+
+		final InterruptibleRMITimerWheel.Timeout fallback = InterruptibleRMITimerWheel.getInstance().schedule(
+			new Runnable()
+			{
+				public void run()
+				{
+					if (server != null)
+					{
+						stalledServers.put(server, Long.valueOf(System.nanoTime()
+							+ TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS)));
+					}
+
+					socket.reset();
+				}
+			}, SIGNAL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+		try
+		{
+			socket.shutdown();
+		}
+		finally
+		{
+			fallback.cancel();
+		}
+	}
+
+
+
+	/**
+	 * Return the next cancel of a socket of the supplied server, or null (and forget the server)
+	 * if there is none.
+	 */
+	private static InterruptibleRMICancelHandle.PendingCancel nextPending(
+		final SocketAddress server)
+	{
+		synchronized (pending)
+		{
+			final InterruptibleRMICancelHandle.PendingCancel cancel = pending.get(server).poll();
+
+			if (cancel == null)
+			{
+				pending.remove(server);
+			}
+
+			return cancel;
+		}
+	}
+
+
+
+	/**
+	 * Return true if the supplied server has stalled recently (forgetting it once that has
+	 * expired).
+	 */
+	private static boolean isStalled(final SocketAddress server)
+	{
+		final Long until = server != null ? stalledServers.get(server) : null;
+
+		if (until == null)
+		{
+			return false;
+		}
+
+		if (until.longValue() - System.nanoTime() > 0)
+		{
+			return true;
+		}
+
+		stalledServers.remove(server, until);
+		return false;
+	}
+
+
+
+	private static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					public Thread newThread(final Runnable r)
+					{
+						final Thread thread = new Thread(r, "InterruptibleRMI-Canceller");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		return executor;
+	}
+
+
+
+	private InterruptibleRMICanceller()
+	{
+	}
+}
@@ -0,0 +1,627 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An RMI client socket backed by a {@link SocketChannel} (see
+ * {@link InterruptibleRMISocketFactory#setChannelSockets(boolean)}), as seen by the RMI transport
+ * through the decoration of {@link InterruptibleRMIClientSocket}. The socket is connected in
+ * blocking mode, and then switched to non-blocking mode: its streams wait for the channel in a
+ * {@link Selector}, which an interrupt wakes without closing the channel. So any thread that is
+ * interrupted while it waits, whether or not it has a cancel handle, cancels the connection as
+ * {@link InterruptibleRMIClientSocket#shutdown()} does (see {@link #abort()}): the shutdown signal
+ * is written without blocking, the socket is closed, and the wait fails with an
+ * InterruptedIOException. A blocking channel would instead be closed by the interrupt itself,
+ * before the signal could be written, and the server would only learn of the cancel from the end
+ * of the stream.
+ * <p>
+ * Each stream opens its selector when it first has to wait (which, for the output stream, is
+ * only when the send buffer is full), and the selectors are closed with the socket. Reads honour
+ * the SO_TIMEOUT of the socket. As the channel has no non-blocking
+ * {@link InputStream#available()}, the input stream reads a byte ahead to answer it.
+ * </p>
+ * <p>
+ * The Unix domain sockets of the local transport (see {@link InterruptibleRMILocalSocket}) are
+ * channel sockets too, on both sides of the connection. On the server side, an interrupt closes
+ * the connection without writing the shutdown signal.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIChannelSocket extends InterruptibleRMISocket
+{
+	private final SocketChannel channel;
+
+	/**
+	 * True on the client side of the connection, which writes the shutdown signal when cancelled.
+	 */
+	private final boolean isClientSide;
+	private final ChannelInputStream input = new ChannelInputStream();
+	private final ChannelOutputStream output = new ChannelOutputStream();
+
+	/**
+	 * Guarded by this.
+	 */
+	private boolean isClosed;
+
+
+
+	/**
+	 * Create an unconnected socket backed by the supplied channel.
+	 */
+	InterruptibleRMIChannelSocket(final SocketChannel channel)
+	{
+		this(channel, channel.socket(), true);
+	}
+
+
+
+	/**
+	 * Create a socket backed by the supplied channel, decorating the supplied Socket face of the
+	 * channel (which is not used for IO).
+	 */
+	InterruptibleRMIChannelSocket(final SocketChannel channel, final Socket face,
+		final boolean isClientSide)
+	{
+		super(face);
+		this.channel = channel;
+		this.isClientSide = isClientSide;
+	}
+
+
+
+	/**
+	 * Connect the channel, and switch it to non-blocking mode.
+	 * 
+	 * @see java.net.Socket#connect(SocketAddress)
+	 */
+	@Override
+	public void connect(final SocketAddress endpoint) throws IOException
+	{
+		connect(endpoint, 0);
+	}
+
+
+
+	/**
+	 * Connect the channel, and switch it to non-blocking mode.
+	 * 
+	 * @see java.net.Socket#connect(SocketAddress, int)
+	 */
+	@Override
+	public void connect(final SocketAddress endpoint, final int timeout) throws IOException
+	{
+		this.decoratee.connect(endpoint, timeout);
+		this.channel.configureBlocking(false);
+	}
+
+
+
+	/**
+	 * Cancel the connection: on the client side, write the shutdown signal if there is room for it
+	 * in the send buffer (otherwise reset the connection, so that the server does not wait behind
+	 * the unsent data), and close this socket. Does not block.
+	 */
+	void abort()
+	{
+		synchronized (this)
+		{
+			if (this.isClosed)
+			{
+				return;
+			}
+		}
+
+		try
+		{
+			if (this.isClientSide
+				&& this.channel.write(ByteBuffer.wrap(new byte[] { SHUTDOWN_SOCKET })) == 0)
+			{
+				this.decoratee.setSoLinger(true, 0);
+			}
+		}
+		catch (final IOException e)
+		{
+			// just swallow this; the socket is closed regardless
+		}
+
+		try
+		{
+			close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+	}
+
+
+
+	/**
+	 * Close the channel, and the selectors of the streams (which wakes any thread waiting in
+	 * them).
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			if (this.isClosed)
+			{
+				return;
+			}
+
+			this.isClosed = true;
+		}
+
+		try
+		{
+			this.decoratee.close();
+		}
+		finally
+		{
+			this.input.closeSelector();
+			this.output.closeSelector();
+		}
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		checkStream();
+		return this.input;
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		checkStream();
+		return this.output;
+	}
+
+
+
+	/**
+	 * Throw a SocketException if the streams of this socket can't be used.
+	 */
+	private void checkStream() throws SocketException
+	{
+		if (isClosed())
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		if (isConnected() == false)
+		{
+			throw new SocketException("Socket is not connected");
+		}
+	}
+
+
+
+	/**
+	 * Not used, as this socket returns its own streams.
+	 */
+	@Override
+	void ioStarting()
+	{
+	// nothing to do
+	}
+
+
+
+	/**
+	 * Not used, as this socket returns its own streams.
+	 */
+	@Override
+	void ioEnding()
+	{
+	// nothing to do
+	}
+
+	/**
+	 * Waits for the channel to be ready for the operation of one of the streams, and wraps the
+	 * arrays of the stream in buffers.
+	 */
+	private final class ChannelWaiter
+	{
+		private final int operation;
+
+		/**
+		 * The selector, opened on first use. Guarded by the socket.
+		 */
+		private Selector selector;
+
+		/**
+		 * The array last wrapped by {@link #wrap(byte[], int, int)}, and its buffer.
+		 */
+		private byte[] array;
+		private ByteBuffer buffer;
+
+
+
+		ChannelWaiter(final int operation)
+		{
+			this.operation = operation;
+		}
+
+
+
+		/**
+		 * Return a buffer over the supplied range of the supplied array. The RMI transport reads
+		 * and writes through its own buffers, so the buffer of the last array is reused.
+		 */
+		ByteBuffer wrap(final byte[] b, final int off, final int len)
+		{
+			if (b != this.array)
+			{
+				this.array = b;
+				this.buffer = ByteBuffer.wrap(b);
+			}
+
+			this.buffer.clear();
+			this.buffer.position(off);
+			this.buffer.limit(off + len);
+			return this.buffer;
+		}
+
+
+
+		/**
+		 * Wait until the channel may be ready for the operation, or until the supplied
+		 * System#nanoTime deadline (0 for none). If the thread is interrupted, the connection is
+		 * cancelled (see {@link InterruptibleRMIChannelSocket#abort()}).
+		 */
+		void await(final long deadlineNanos) throws IOException
+		{
+			long timeoutMillis = 0;
+
+			if (deadlineNanos != 0)
+			{
+				final long remainingNanos = deadlineNanos - System.nanoTime();
+
+				if (remainingNanos <= 0)
+				{
+					throw new SocketTimeoutException("Read timed out");
+				}
+
+				timeoutMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(remainingNanos), 1);
+			}
+
+			final Selector s = getSelector();
+
+			try
+			{
+				s.select(timeoutMillis);
+				s.selectedKeys().clear();
+			}
+			catch (final ClosedSelectorException e)
+			{
+				throw new SocketException("Socket closed");
+			}
+
+			if (Thread.currentThread().isInterrupted())
+			{
+				abort();
+				throw new InterruptedIOException("The RMI call was interrupted");
+			}
+		}
+
+
+
+		/**
+		 * Return the selector, opening it (with the channel registered for the operation) on
+		 * first use.
+		 */
+		private Selector getSelector() throws IOException
+		{
+			synchronized (InterruptibleRMIChannelSocket.this)
+			{
+				if (InterruptibleRMIChannelSocket.this.isClosed)
+				{
+					throw new SocketException("Socket closed");
+				}
+
+				if (this.selector == null)
+				{
+					final Selector s = Selector.open();
+
+					try
+					{
+						InterruptibleRMIChannelSocket.this.channel.register(s, this.operation);
+					}
+					catch (final IOException e)
+					{
+						s.close();
+						throw e;
+					}
+
+					this.selector = s;
+				}
+
+				return this.selector;
+			}
+		}
+
+
+
+		/**
+		 * Close the selector (if open).
+		 */
+		void closeSelector()
+		{
+			final Selector s;
+
+			synchronized (InterruptibleRMIChannelSocket.this)
+			{
+				s = this.selector;
+			}
+
+			if (s != null)
+			{
+				try
+				{
+					s.close();
+				}
+				catch (final IOException e)
+				{
+					// just swallow this
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the channel.
+	 */
+	private final class ChannelInputStream extends InputStream
+	{
+		private final ChannelWaiter waiter = new ChannelWaiter(SelectionKey.OP_READ);
+
+		private final byte[] singleByte = new byte[1];
+
+		/**
+		 * The byte read ahead by {@link #available()}.
+		 */
+		private final ByteBuffer readAhead = ByteBuffer.allocate(1);
+
+		/**
+		 * True if {@link #readAhead} holds a byte, or the end of the stream was reached by
+		 * {@link #available()}.
+		 */
+		private boolean hasReadAhead;
+		private boolean isEndOfStream;
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			return read(this.singleByte, 0, 1) < 0 ? -1 : this.singleByte[0] & 0xff;
+		}
+
+
+
+		/**
+		 * Read from the channel, waiting (up to the SO_TIMEOUT of the socket) until data is
+		 * available.
+		 * 
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			if (this.hasReadAhead)
+			{
+				this.hasReadAhead = false;
+				b[off] = this.readAhead.get(0);
+				return 1;
+			}
+
+			if (this.isEndOfStream)
+			{
+				return -1;
+			}
+
+			final ByteBuffer buffer = this.waiter.wrap(b, off, len);
+			final int timeoutMillis = getSoTimeout();
+			// (a deadline that happens to be 0 is moved by a nanosecond, as 0 means none)
+			final long deadlineNanos = timeoutMillis > 0 ? System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis) | 1 : 0;
+
+			while (true)
+			{
+				final int count = InterruptibleRMIChannelSocket.this.channel.read(buffer);
+
+				if (count != 0)
+				{
+					return count;
+				}
+
+				this.waiter.await(deadlineNanos);
+			}
+		}
+
+
+
+		/**
+		 * Return 1 if a byte (or the end of the stream) can be read without blocking, reading it
+		 * ahead from the channel if necessary; otherwise 0.
+		 * 
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException
+		{
+			if (this.hasReadAhead || this.isEndOfStream)
+			{
+				return 1;
+			}
+
+			this.readAhead.clear();
+			final int count = InterruptibleRMIChannelSocket.this.channel.read(this.readAhead);
+
+			if (count == 0)
+			{
+				return 0;
+			}
+
+			if (count < 0)
+			{
+				this.isEndOfStream = true;
+			}
+			else
+			{
+				this.hasReadAhead = true;
+			}
+
+			return 1;
+		}
+
+
+
+		/**
+		 * Close the socket.
+		 * 
+		 * @see InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			InterruptibleRMIChannelSocket.this.close();
+		}
+
+
+
+		void closeSelector()
+		{
+			this.waiter.closeSelector();
+		}
+	}
+
+	/**
+	 * Writes the channel.
+	 */
+	final class ChannelOutputStream extends OutputStream
+	{
+		private final ChannelWaiter waiter = new ChannelWaiter(SelectionKey.OP_WRITE);
+
+		private final byte[] singleByte = new byte[1];
+
+
+
+		/**
+		 * @see OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException
+		{
+			this.singleByte[0] = (byte) b;
+			write(this.singleByte, 0, 1);
+		}
+
+
+
+		/**
+		 * Write to the channel, waiting whenever the send buffer is full.
+		 * 
+		 * @see OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			final ByteBuffer buffer = this.waiter.wrap(b, off, len);
+
+			while (buffer.hasRemaining())
+			{
+				if (InterruptibleRMIChannelSocket.this.channel.write(buffer) == 0)
+				{
+					this.waiter.await(0);
+				}
+			}
+		}
+
+
+
+		/**
+		 * Write the supplied buffers to the channel in gathering writes, waiting whenever the send
+		 * buffer is full.
+		 */
+		void write(final ByteBuffer[] buffers) throws IOException
+		{
+			final ByteBuffer last = buffers[buffers.length - 1];
+
+			while (last.hasRemaining())
+			{
+				if (InterruptibleRMIChannelSocket.this.channel.write(buffers) == 0)
+				{
+					this.waiter.await(0);
+				}
+			}
+		}
+
+
+
+		/**
+		 * Close the socket.
+		 * 
+		 * @see OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			InterruptibleRMIChannelSocket.this.close();
+		}
+
+
+
+		void closeSelector()
+		{
+			this.waiter.closeSelector();
+		}
+	}
+}
@@ -13,6 +13,9 @@
  */
 package org.neilja.net.interruptiblermi;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
 
 /**
@@ -23,12 +26,31 @@ import java.net.Socket;
 class InterruptibleRMIClientSocket extends InterruptibleRMISocket
 {
 
+	/**
+	 * The endpoint that this socket is connected to, or null if it is not tracked.
+	 */
+	private final InterruptibleRMIEndpoint endpoint;
+
+
+
 	/**
 	 * Create a decorator for the given socket.
 	 */
 	InterruptibleRMIClientSocket(final Socket decoratee)
+	{
+		this(decoratee, null);
+	}
+
+
+
+	/**
+	 * Create a decorator for the given socket, connected to the supplied endpoint (which is told
+	 * when a cancel costs it the connection).
+	 */
+	InterruptibleRMIClientSocket(final Socket decoratee, final InterruptibleRMIEndpoint endpoint)
 	{
 		super(decoratee);
+		this.endpoint = endpoint;
 	}
 
 
@@ -36,13 +58,17 @@ class InterruptibleRMIClientSocket extends InterruptibleRMISocket
 	/**
 	 * Called by {@link InterruptibleRMISocketInputStream} and
 	 * {@link InterruptibleRMISocketOutputStream} before the thread enters an RMI IO operation.
+	 * Publishes this socket on the cancel handle of the thread (if any), with a single volatile
+	 * write. This socket keeps no state of its own, so no locking is needed.
 	 */
 	@Override
 	void ioStarting()
 	{
-		if (Thread.currentThread() instanceof InterruptibleRMIThread)
+		final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.current();
+
+		if (handle != null)
 		{
-			((InterruptibleRMIThread) Thread.currentThread()).registerSocketInIO(this);
+			handle.registerSocketInIO(this);
 		}
 	}
 
@@ -51,13 +77,145 @@ class InterruptibleRMIClientSocket extends InterruptibleRMISocket
 	/**
 	 * Called by {@link InterruptibleRMISocketInputStream} and
 	 * {@link InterruptibleRMISocketOutputStream} after the thread exits an RMI IO operation.
+	 * Throws an InterruptedIOException if the RMI call was cancelled during the operation, even if
+	 * the operation completed, so that RMI does not reuse a connection that the cancel may shut
+	 * down.
 	 */
 	@Override
-	void ioEnding()
+	void ioEnding() throws InterruptedIOException
+	{
+		final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.current();
+
+		if (handle != null && handle.unregisterSocketInIO())
+		{
+			throw new InterruptedIOException("The RMI call was interrupted");
+		}
+	}
+
+
+
+	/**
+	 * Write the shutdown signal (like an EOF) to the RMI server, to help the server side shutdown
+	 * its threads, and then close this socket. The signal is written directly to the decorated
+	 * socket, so the calling thread is not registered as being in IO. Note that writing the signal
+	 * blocks if the send buffer is full (see {@link #isShutdownBlocking()}). In the
+	 * connection-preserving cancel mode, only the RMI call is cancelled (see
+	 * {@link InterruptibleRMIFramedSocket#cancelCall()}), and in the multiplexed transport only the
+	 * stream of the call (see {@link InterruptibleRMIMultiplexedSocket#cancelCall()}). A channel
+	 * socket is aborted instead, which does not block (see
+	 * {@link InterruptibleRMIChannelSocket#abort()}), as is a shared memory socket (see
+	 * {@link InterruptibleRMISharedMemorySocket#abort()}).
+	 * 
+	 * @see InterruptibleRMICanceller
+	 */
+	void shutdown()
+	{
+		if (this.decoratee instanceof InterruptibleRMIFramedSocket)
+		{
+			// only the call is cancelled; the connection is kept
+			((InterruptibleRMIFramedSocket) this.decoratee).cancelCall();
+			return;
+		}
+
+		if (this.decoratee instanceof InterruptibleRMIMultiplexedSocket)
+		{
+			// only the stream is cancelled; the physical connection is kept
+			((InterruptibleRMIMultiplexedSocket) this.decoratee).cancelCall();
+			return;
+		}
+
+		if (this.decoratee.isClosed())
+		{
+			return;
+		}
+
+		if (this.decoratee instanceof InterruptibleRMIChannelSocket)
+		{
+			((InterruptibleRMIChannelSocket) this.decoratee).abort();
+			replenishEndpoint();
+			return;
+		}
+
+		if (this.decoratee instanceof InterruptibleRMISharedMemorySocket)
+		{
+			((InterruptibleRMISharedMemorySocket) this.decoratee).abort();
+			replenishEndpoint();
+			return;
+		}
+
+		try
+		{
+			final OutputStream out = this.decoratee.getOutputStream();
+			out.write(InterruptibleRMISocket.SHUTDOWN_SOCKET);
+			out.flush();
+			out.close();
+
+			this.decoratee.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		replenishEndpoint();
+	}
+
+
+
+	/**
+	 * Return true if {@link #shutdown()} may block: if it writes to the connection, which a thread
+	 * blocked on a full send buffer holds up (the cancel frame of a framed socket waits for the
+	 * frame being written, too). Channel sockets, shared memory sockets and the streams of the
+	 * multiplexed transport are cancelled without blocking.
+	 */
+	boolean isShutdownBlocking()
+	{
+		return (this.decoratee instanceof InterruptibleRMIChannelSocket
+			|| this.decoratee instanceof InterruptibleRMISharedMemorySocket
+			|| this.decoratee instanceof InterruptibleRMIMultiplexedSocket) == false;
+	}
+
+
+
+	/**
+	 * Close this socket immediately, discarding any unsent data and resetting the connection
+	 * (SO_LINGER with a zero timeout). This unblocks a thread that is blocked writing to the
+	 * socket.
+	 */
+	void reset()
+	{
+		try
+		{
+			this.decoratee.setSoLinger(true, 0);
+		}
+		catch (final IOException e)
+		{
+			// just swallow this; the socket is closed regardless
+		}
+
+		try
+		{
+			this.decoratee.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		replenishEndpoint();
+	}
+
+
+
+	/**
+	 * Tell the endpoint (if any) that this socket's connection has been lost to a cancel, so that
+	 * a spare connection is opened in the background.
+	 */
+	private void replenishEndpoint()
 	{
-		if (Thread.currentThread() instanceof InterruptibleRMIThread)
+		if (this.endpoint != null)
 		{
-			((InterruptibleRMIThread) Thread.currentThread()).unregisterSocketInIO();
+			this.endpoint.replenish();
 		}
 	}
 
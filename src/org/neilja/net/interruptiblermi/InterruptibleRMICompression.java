@@ -0,0 +1,667 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression stage of one connection (see
+ * {@link InterruptibleRMISocketFactoryConfig#getCompressionThreshold()}), which sits between the
+ * streams of an {@link InterruptibleRMISocket} and the streams of the decorated socket. The data
+ * written is collected in blocks of up to {@link #BLOCK_SIZE} bytes, and a block is sent when it
+ * is full or when the stream is flushed (which the RMI transport does at the end of each message).
+ * Blocks smaller than the threshold are sent as they are; larger blocks are deflated (at the
+ * fastest level), with a dictionary that lasts as long as the connection, so that the class
+ * descriptors repeated by successive calls compress well.
+ * <p>
+ * Compression is negotiated per connection, without a round trip: the client starts its output
+ * with {@link #OFFER} and the version of the block format, and the server (which looks for the
+ * offer in the first byte it reads) starts its output with {@link #ACK} and the version it speaks.
+ * A server that receives no offer (i.e. from a client that is not configured for compression)
+ * leaves both directions of the connection as they are.
+ * </p>
+ * <p>
+ * On the server side, the stage sits above the read-ahead layer of
+ * {@link InterruptibleRMIServerSideSocket}, so a probe sees the raw stream: between blocks, where
+ * a client writes {@link InterruptibleRMISocket#SHUTDOWN_SOCKET}, which is not a block type. A
+ * cancel in the middle of a block closes the connection like any other cancel, and the other side
+ * sees a truncated block. The deflater and inflater are released by {@link #end()} when the RMI
+ * transport closes the socket.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMICompression
+{
+	/**
+	 * The first byte written by a client that compresses.
+	 */
+	static final int OFFER = 0x7E;
+
+	/**
+	 * The first byte written by a server that has received {@link #OFFER}.
+	 */
+	static final int ACK = 0x7D;
+
+	/**
+	 * The version of the block format.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * The block types: data as it is, and deflated data.
+	 */
+	static final int RAW_BLOCK = 0x01, DEFLATED_BLOCK = 0x02;
+
+	/**
+	 * The maximum size of the data of a block.
+	 */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * The size of a block header: the type, and the length of the block (as an int).
+	 */
+	private static final int HEADER_SIZE = 5;
+
+	/**
+	 * The maximum length of a deflated block (generously above the worst case of deflate).
+	 */
+	private static final int MAX_DEFLATED_SIZE = 2 * BLOCK_SIZE;
+
+	/**
+	 * The negotiation states of a stream.
+	 */
+	private static final int UNNEGOTIATED = 0, BLOCKS = 1, PASS_THROUGH = 2;
+
+	private final int threshold;
+	private final boolean isServer;
+
+	/**
+	 * On the server side, set by the input when it has found the client's offer.
+	 */
+	private volatile boolean isOffered;
+
+	/**
+	 * The inflater and deflater, created on first use.
+	 */
+	private volatile Inflater inflater;
+	private volatile Deflater deflater;
+
+	/**
+	 * The buffer of the output, drawn from {@link InterruptibleRMIBufferPool} on first use.
+	 */
+	private volatile byte[] block;
+
+
+
+	/**
+	 * Create the compression stage of a connection.
+	 * 
+	 * @param threshold
+	 *            the size from which blocks are deflated
+	 * @param isServer
+	 *            true on the server side of the connection
+	 */
+	InterruptibleRMICompression(final int threshold, final boolean isServer)
+	{
+		this.threshold = threshold;
+		this.isServer = isServer;
+	}
+
+
+
+	/**
+	 * Return the stream that decompresses the supplied input of the decorated socket.
+	 */
+	InputStream decorate(final InputStream in)
+	{
+		return new InflatingInputStream(in);
+	}
+
+
+
+	/**
+	 * Return the stream that compresses to the supplied output of the decorated socket.
+	 */
+	OutputStream decorate(final OutputStream out)
+	{
+		return new DeflatingOutputStream(out);
+	}
+
+
+
+	/**
+	 * Release the inflater, the deflater and the output buffer. Called when the RMI transport
+	 * closes the socket, which it does not do while the streams are in use.
+	 */
+	void end()
+	{
+		final Inflater i = this.inflater;
+
+		if (i != null)
+		{
+			this.inflater = null;
+			i.end();
+		}
+
+		final Deflater d = this.deflater;
+
+		if (d != null)
+		{
+			this.deflater = null;
+			d.end();
+		}
+
+		final byte[] b = this.block;
+
+		if (b != null)
+		{
+			this.block = null;
+			InterruptibleRMIBufferPool.release(b);
+		}
+	}
+
+
+
+	private static void readFully(final InputStream in, final byte[] b, final int len)
+		throws IOException
+	{
+		int count = 0;
+
+		while (count < len)
+		{
+			final int n = in.read(b, count, len - count);
+
+			if (n < 0)
+			{
+				throw new EOFException("Truncated compressed block");
+			}
+
+			count += n;
+		}
+	}
+
+	/**
+	 * Reads the blocks of the connection (or passes the data through, if it is not compressed).
+	 */
+	private final class InflatingInputStream extends InputStream
+	{
+		private final InputStream in;
+		private int state = UNNEGOTIATED;
+
+		/**
+		 * On the server side, the first byte read, if it was not the offer (-1 for none).
+		 */
+		private int pending = -1;
+
+		/**
+		 * The number of bytes left in the current raw block.
+		 */
+		private int rawRemaining;
+
+		/**
+		 * True while the inflater may have output of the current deflated block.
+		 */
+		private boolean isInflating;
+
+		/**
+		 * The buffer of the current deflated block.
+		 */
+		private byte[] deflated = new byte[0];
+
+		private final byte[] singleByte = new byte[1];
+
+
+
+		InflatingInputStream(final InputStream in)
+		{
+			this.in = in;
+		}
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			return read(this.singleByte, 0, 1) < 0 ? -1 : this.singleByte[0] & 0xff;
+		}
+
+
+
+		/**
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			if (this.state == UNNEGOTIATED)
+			{
+				negotiate();
+			}
+
+			if (this.state == PASS_THROUGH)
+			{
+				if (this.pending >= 0)
+				{
+					b[off] = (byte) this.pending;
+					this.pending = -1;
+					return 1;
+				}
+
+				return this.in.read(b, off, len);
+			}
+
+			while (true)
+			{
+				if (this.rawRemaining > 0)
+				{
+					final int n = this.in.read(b, off, Math.min(len, this.rawRemaining));
+
+					if (n < 0)
+					{
+						throw new EOFException("Truncated block");
+					}
+
+					this.rawRemaining -= n;
+					return n;
+				}
+
+				if (this.isInflating)
+				{
+					final int n;
+
+					try
+					{
+						n = InterruptibleRMICompression.this.inflater.inflate(b, off, len);
+					}
+					catch (final DataFormatException e)
+					{
+						throw new IOException("Invalid compressed block: " + e.getMessage());
+					}
+
+					if (n > 0)
+					{
+						return n;
+					}
+
+					this.isInflating = false;
+				}
+
+				if (nextBlock() == false)
+				{
+					return -1;
+				}
+			}
+		}
+
+
+
+		/**
+		 * Return the number of bytes that can be read without blocking, as far as is known.
+		 * 
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException
+		{
+			if (this.state == PASS_THROUGH)
+			{
+				return (this.pending >= 0 ? 1 : 0) + this.in.available();
+			}
+
+			if (this.rawRemaining > 0)
+			{
+				return Math.min(this.rawRemaining, this.in.available());
+			}
+
+			return 0;
+		}
+
+
+
+		/**
+		 * Close the decorated stream.
+		 * 
+		 * @see InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			this.in.close();
+		}
+
+
+
+		/**
+		 * Read the first byte: on the client side, the server's acknowledgement; on the server
+		 * side, the client's offer (or the first byte of uncompressed data).
+		 */
+		private void negotiate() throws IOException
+		{
+			final int first = this.in.read();
+
+			if (first < 0)
+			{
+				throw new EOFException("The connection was closed before compression was negotiated");
+			}
+
+			if (InterruptibleRMICompression.this.isServer)
+			{
+				if (first != OFFER)
+				{
+					this.pending = first;
+					this.state = PASS_THROUGH;
+					return;
+				}
+
+				if (this.in.read() != VERSION)
+				{
+					throw new IOException("Unsupported compression version");
+				}
+
+				InterruptibleRMICompression.this.isOffered = true;
+			}
+			else if (first != ACK || this.in.read() != VERSION)
+			{
+				throw new IOException("The server did not accept compression");
+			}
+
+			this.state = BLOCKS;
+		}
+
+
+
+		/**
+		 * Read the header of the next block (and, for a deflated block, the block). Return false
+		 * at the end of the stream.
+		 */
+		private boolean nextBlock() throws IOException
+		{
+			final int type = this.in.read();
+
+			if (type < 0)
+			{
+				return false;
+			}
+
+			final int b1 = this.in.read(), b2 = this.in.read(), b3 = this.in.read(), b4 = this.in.read();
+
+			if ((b1 | b2 | b3 | b4) < 0)
+			{
+				throw new EOFException("Truncated block header");
+			}
+
+			final int length = (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+
+			if (type == RAW_BLOCK && length >= 0 && length <= BLOCK_SIZE)
+			{
+				this.rawRemaining = length;
+				return true;
+			}
+
+			if (type != DEFLATED_BLOCK || length < 0 || length > MAX_DEFLATED_SIZE)
+			{
+				throw new IOException("Invalid block: type " + type + ", length " + length);
+			}
+
+			if (this.deflated.length < length)
+			{
+				this.deflated = new byte[Math.max(length, BLOCK_SIZE)];
+			}
+
+			readFully(this.in, this.deflated, length);
+
+			if (InterruptibleRMICompression.this.inflater == null)
+			{
+				InterruptibleRMICompression.this.inflater = new Inflater(true);
+			}
+
+			InterruptibleRMICompression.this.inflater.setInput(this.deflated, 0, length);
+			this.isInflating = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Writes the blocks of the connection (or passes the data through, if it is not compressed).
+	 */
+	private final class DeflatingOutputStream extends OutputStream
+	{
+		private final OutputStream out;
+		private int state = UNNEGOTIATED;
+
+		/**
+		 * The number of bytes of data in the block (which starts after the header).
+		 */
+		private int count;
+
+		/**
+		 * The buffer of the deflated block, with room for the header.
+		 */
+		private byte[] deflated;
+
+		private final byte[] singleByte = new byte[1];
+
+
+
+		DeflatingOutputStream(final OutputStream out)
+		{
+			this.out = out;
+		}
+
+
+
+		/**
+		 * @see OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException
+		{
+			this.singleByte[0] = (byte) b;
+			write(this.singleByte, 0, 1);
+		}
+
+
+
+		/**
+		 * @see OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException
+		{
+			if (this.state == UNNEGOTIATED)
+			{
+				negotiate();
+			}
+
+			if (this.state == PASS_THROUGH)
+			{
+				this.out.write(b, off, len);
+				return;
+			}
+
+			while (len > 0)
+			{
+				final byte[] data = getBlock();
+				final int n = Math.min(len, BLOCK_SIZE - this.count);
+				System.arraycopy(b, off, data, HEADER_SIZE + this.count, n);
+				this.count += n;
+				off += n;
+				len -= n;
+
+				if (this.count == BLOCK_SIZE)
+				{
+					writeBlock();
+				}
+			}
+		}
+
+
+
+		/**
+		 * Send the current block, and flush the decorated stream.
+		 * 
+		 * @see OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			if (this.state == BLOCKS)
+			{
+				writeBlock();
+			}
+
+			this.out.flush();
+		}
+
+
+
+		/**
+		 * Close the decorated stream.
+		 * 
+		 * @see OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			this.out.close();
+		}
+
+
+
+		/**
+		 * Start the output: on the client side with the offer, and on the server side with the
+		 * acknowledgement (if the client made the offer, which the server reads before it first
+		 * writes).
+		 */
+		private void negotiate() throws IOException
+		{
+			if (InterruptibleRMICompression.this.isServer
+				&& InterruptibleRMICompression.this.isOffered == false)
+			{
+				this.state = PASS_THROUGH;
+				return;
+			}
+
+			getBlock()[HEADER_SIZE] = (byte) (InterruptibleRMICompression.this.isServer ? ACK
+				: OFFER);
+			getBlock()[HEADER_SIZE + 1] = (byte) VERSION;
+			this.out.write(getBlock(), HEADER_SIZE, 2);
+			this.state = BLOCKS;
+		}
+
+
+
+		private byte[] getBlock()
+		{
+			byte[] data = InterruptibleRMICompression.this.block;
+
+			if (data == null)
+			{
+				data = InterruptibleRMIBufferPool.acquire(HEADER_SIZE + BLOCK_SIZE);
+				InterruptibleRMICompression.this.block = data;
+			}
+
+			return data;
+		}
+
+
+
+		/**
+		 * Send the current block (if not empty), deflated if it is at least as large as the
+		 * threshold, as a single write to the decorated stream.
+		 */
+		private void writeBlock() throws IOException
+		{
+			final int length = this.count;
+
+			if (length == 0)
+			{
+				return;
+			}
+
+			this.count = 0;
+			final byte[] data = getBlock();
+
+			if (length < InterruptibleRMICompression.this.threshold)
+			{
+				writeHeader(data, RAW_BLOCK, length);
+				this.out.write(data, 0, HEADER_SIZE + length);
+				return;
+			}
+
+			Deflater d = InterruptibleRMICompression.this.deflater;
+
+			if (d == null)
+			{
+				d = new Deflater(Deflater.BEST_SPEED, true);
+				InterruptibleRMICompression.this.deflater = d;
+			}
+
+			if (this.deflated == null)
+			{
+				this.deflated = new byte[HEADER_SIZE + BLOCK_SIZE];
+			}
+
+			d.setInput(data, HEADER_SIZE, length);
+			int deflatedLength = 0;
+
+			while (true)
+			{
+				final int space = this.deflated.length - HEADER_SIZE - deflatedLength;
+				final int n = d.deflate(this.deflated, HEADER_SIZE + deflatedLength, space,
+					Deflater.SYNC_FLUSH);
+				deflatedLength += n;
+
+				if (n < space)
+				{
+					break;
+				}
+
+				// the output filled the buffer, so there may be more
+				final byte[] larger = new byte[this.deflated.length * 2];
+				System.arraycopy(this.deflated, 0, larger, 0, HEADER_SIZE + deflatedLength);
+				this.deflated = larger;
+			}
+
+			writeHeader(this.deflated, DEFLATED_BLOCK, deflatedLength);
+			this.out.write(this.deflated, 0, HEADER_SIZE + deflatedLength);
+		}
+
+
+
+		private void writeHeader(final byte[] b, final int type, final int length)
+		{
+			b[0] = (byte) type;
+			b[1] = (byte) (length >>> 24);
+			b[2] = (byte) (length >>> 16);
+			b[3] = (byte) (length >>> 8);
+			b[4] = (byte) length;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.Date;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * {@link Condition} implementation for {@link InterruptibleRMILock}. Waiters are tied to the RMI
+ * call they are executing: a waiter whose call is cancelled by the client is removed from the
+ * condition's queue at once, and signals skip such "zombie" waiters. Each await method re-acquires
+ * the lock before returning or throwing, including when it throws {@link CancellationException}.
+ * 
+ * @see InterruptibleRMILock#newCondition()
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMICondition implements Condition
+{
+	private final InterruptibleRMILock lock;
+
+	private final InterruptibleRMIWaitQueue queue;
+
+
+
+	/**
+	 * Create a condition bound to the supplied lock.
+	 */
+	InterruptibleRMICondition(final InterruptibleRMILock lock)
+	{
+		this.lock = lock;
+		this.queue = new InterruptibleRMIWaitQueue(lock.mutex);
+	}
+
+
+
+	/**
+	 * @see Condition#await()
+	 */
+	public void await() throws InterruptedException
+	{
+		await(true, false, 0);
+	}
+
+
+
+	/**
+	 * @see Condition#awaitUninterruptibly()
+	 */
+	public void awaitUninterruptibly()
+	{
+		try
+		{
+			await(false, false, 0);
+		}
+		catch (final InterruptedException e)
+		{
+			// doesn't happen, as interrupts are ignored
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	/**
+	 * @see Condition#awaitNanos(long)
+	 */
+	public long awaitNanos(final long nanosTimeout) throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + nanosTimeout;
+
+		await(true, true, nanosTimeout);
+		return deadline - System.nanoTime();
+	}
+
+
+
+	/**
+	 * @see Condition#await(long, TimeUnit)
+	 */
+	public boolean await(final long time, final TimeUnit unit) throws InterruptedException
+	{
+		return await(true, true, unit.toNanos(time));
+	}
+
+
+
+	/**
+	 * @see Condition#awaitUntil(Date)
+	 */
+	public boolean awaitUntil(final Date deadline) throws InterruptedException
+	{
+		final long millis = deadline.getTime() - System.currentTimeMillis();
+
+		return await(true, true, TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+
+
+	/**
+	 * Wake the longest-waiting thread whose RMI call has not been cancelled (if any).
+	 * 
+	 * @see Condition#signal()
+	 */
+	public void signal()
+	{
+		this.queue.probeHead();
+
+		synchronized (this.lock.mutex)
+		{
+			this.lock.checkHeldByCurrentThread();
+
+			final InterruptibleRMIWaitQueue.Waiter waiter = this.queue.pollLive();
+
+			if (waiter != null)
+			{
+				InterruptibleRMIWaitQueue.grant(waiter);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Wake all waiting threads whose RMI call has not been cancelled.
+	 * 
+	 * @see Condition#signalAll()
+	 */
+	public void signalAll()
+	{
+		synchronized (this.lock.mutex)
+		{
+			this.lock.checkHeldByCurrentThread();
+
+			InterruptibleRMIWaitQueue.Waiter waiter;
+
+			while ((waiter = this.queue.pollLive()) != null)
+			{
+				InterruptibleRMIWaitQueue.grant(waiter);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Release the lock, wait to be signalled, and re-acquire the lock. Return true if signalled, or
+	 * false if the timeout elapsed first.
+	 */
+	private boolean await(final boolean interruptible, final boolean timed, final long nanos)
+		throws InterruptedException
+	{
+		if (interruptible && Thread.interrupted())
+		{
+			throw new InterruptedException();
+		}
+
+		final CancellationToken token = InterruptibleRMIWaitQueue.currentToken();
+		final InterruptibleRMIWaitQueue.Waiter waiter;
+
+		synchronized (this.lock.mutex)
+		{
+			this.lock.checkHeldByCurrentThread();
+			waiter = this.queue.add(token);
+			waiter.holds = this.lock.releaseAll();
+		}
+
+		try
+		{
+			return this.queue.await(waiter, interruptible, timed, nanos);
+		}
+		finally
+		{
+			/*
+			 * Re-acquire the lock whatever happened, ignoring cancellation and interrupts.
+			 */
+			this.lock.acquire(CancellationToken.NEVER, waiter.holds, false, false, 0);
+		}
+	}
+}
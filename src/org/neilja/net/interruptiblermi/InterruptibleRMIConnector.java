@@ -0,0 +1,831 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.rmi.server.RMISocketFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects new RMI client sockets so that the connect can be cancelled, and is bounded by the
+ * deadline of the calling thread (see {@link InterruptibleRMI#withDeadline}). A blocking connect
+ * cannot be interrupted, so for a thread with a cancel handle, the connect attempts are made by
+ * background threads while the calling thread waits: if the thread is interrupted (or cancelled
+ * via its handle), or its deadline expires, the attempts are abandoned, and the connect throws
+ * an {@link InterruptedIOException} (a {@link SocketTimeoutException} for a deadline).
+ * <p>
+ * If the underlying factory is the default RMI socket factory, the connect is made here, so that a
+ * host with several addresses is connected "happy eyeballs" style (RFC 8305): the addresses are
+ * resolved and ordered by {@link InterruptibleRMIAddressCache} (by connect health, and alternating
+ * between address families), an attempt is started on the next address whenever the previous
+ * attempt fails or has not connected within {@link #ATTEMPT_DELAY_MILLIS}, the first attempt to
+ * connect wins, and the other attempts are closed. An abandoned attempt is closed too, which stops
+ * its connect. A connect through any other factory is a single call to the factory; an abandoned
+ * call is left to complete in the background, and its socket is then closed.
+ * </p>
+ * Threads without a cancel handle connect to a host with a single address on the calling thread.
+ * <p>
+ * If channel sockets are enabled (see {@link #setUsingChannels(boolean)}), the sockets connected
+ * here are {@link InterruptibleRMIChannelSocket}s, except those that carry framed connections: an
+ * interrupt cancels the connection of a channel socket, which would defeat the
+ * connection-preserving cancel mode.
+ * </p>
+ * <p>
+ * In the local mode (see {@link InterruptibleRMISocketFactoryConfig#isLocal()}), a direct connect
+ * to a local endpoint is made through its Unix domain socket, if it has one. That connect does not
+ * block on the network, so it is made on the calling thread.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketFactory#createSocket(String, int)
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIConnector
+{
+	/**
+	 * A setup of a connected socket that waits for the server (the TLS handshake, or the offer of
+	 * shared memory). It returns the socket to use, and closes the connected socket if it fails.
+	 */
+	interface Handshake
+	{
+		Socket run(Socket socket) throws IOException;
+	}
+
+	/**
+	 * A handshake run by a background thread, while the calling thread waits for it as for the
+	 * attempts of a connect.
+	 */
+	private static final class HandshakeTask implements Runnable
+	{
+		private final Socket socket;
+		private final Handshake handshake;
+
+		/**
+		 * The outcome of the handshake. Guarded by this.
+		 */
+		private Socket result;
+		private IOException failure;
+
+		/**
+		 * True once the handshake has completed, or has been abandoned. Guarded by this.
+		 */
+		private boolean isDone, isAbandoned;
+
+
+
+		HandshakeTask(final Socket socket, final Handshake handshake)
+		{
+			this.socket = socket;
+			this.handshake = handshake;
+		}
+
+
+
+		/**
+		 * Run the handshake, and report its outcome (or close its socket, if it was abandoned).
+		 */
+		public void run()
+		{
+			Socket handshaken = null;
+			IOException handshakeFailure = null;
+
+			try
+			{
+				handshaken = this.handshake.run(this.socket);
+			}
+			catch (final IOException e)
+			{
+				handshakeFailure = e;
+			}
+			catch (final RuntimeException e)
+			{
+				close(this.socket);
+				handshakeFailure = new IOException("The handshake failed: " + e);
+				handshakeFailure.initCause(e);
+			}
+
+			synchronized (this)
+			{
+				if (this.isAbandoned == false)
+				{
+					this.result = handshaken;
+					this.failure = handshakeFailure;
+					this.isDone = true;
+					notifyAll();
+					return;
+				}
+			}
+
+			if (handshaken != null)
+			{
+				close(handshaken);
+			}
+		}
+
+
+
+		/**
+		 * Wait for the handshake to complete, and return its socket. If the thread is cancelled,
+		 * or its deadline expires, the socket is closed (which fails the handshake).
+		 */
+		synchronized Socket await(final InterruptibleRMICancelHandle handle, final String endpoint)
+			throws IOException
+		{
+			final long deadlineNanos = handle.getDeadlineNanos();
+
+			while (this.isDone == false)
+			{
+				long waitNanos = Long.MAX_VALUE;
+
+				if (deadlineNanos != 0)
+				{
+					waitNanos = deadlineNanos - System.nanoTime();
+
+					if (waitNanos <= 0)
+					{
+						abandon();
+						handle.expireDeadline();
+						throw new SocketTimeoutException("The deadline expired while connecting to "
+							+ endpoint);
+					}
+				}
+
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+				}
+				catch (final InterruptedException e)
+				{
+					abandon();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("The connect to " + endpoint + " was cancelled");
+				}
+			}
+
+			if (this.failure != null)
+			{
+				throw this.failure;
+			}
+
+			return this.result;
+		}
+
+
+
+		/**
+		 * Abandon the handshake, closing its socket. Called with the lock held.
+		 */
+		private void abandon()
+		{
+			this.isAbandoned = true;
+			close(this.socket);
+		}
+	}
+
+	/**
+	 * How long an attempt is given to connect before an attempt on the next address is started.
+	 */
+	static final long ATTEMPT_DELAY_MILLIS = 250;
+
+	/**
+	 * Runs the connect attempts (and other background connects), created on first use.
+	 */
+	private static ThreadPoolExecutor executor;
+
+	/**
+	 * True if the sockets connected here are backed by a SocketChannel.
+	 */
+	private static volatile boolean isUsingChannels = false;
+
+
+
+	/**
+	 * Return a new socket, connected to the supplied host and port through the supplied factory,
+	 * and configured with the profile of the supplied configuration. In the connection-preserving
+	 * cancel mode, the socket will carry a framed connection, and so is never backed by a channel.
+	 * In the TLS mode, the socket is secured with TLS (the handshake, which verifies that the
+	 * certificate of the server names the host, is complete when it is returned), and is never
+	 * backed by a channel either; nor is the physical connection of the multiplexed transport,
+	 * whose streams are written by many threads. Otherwise, in the local mode, the socket is
+	 * connected through the socket file of the endpoint if it is local and the connect is direct
+	 * (see {@link InterruptibleRMILocalSocket#connect(String, int)}); and in the shared memory
+	 * mode, a socket connected to an address of this host is offered shared memory (see
+	 * {@link InterruptibleRMISharedMemorySocket#connect(Socket)}). The TLS handshake and the offer
+	 * wait for the server, so they can be cancelled, and are bounded by the deadline, like the
+	 * connect.
+	 */
+	static Socket connect(final RMISocketFactory factory,
+		final InterruptibleRMISocketFactoryConfig config, final String host, final int port)
+		throws IOException
+	{
+		final boolean isFramed = config.isPreservingConnections() || config.isMultiplexed();
+		final boolean isSecure = config.isSecure();
+
+		Socket socket = null;
+
+		if (config.isLocal() && isFramed == false && isSecure == false && isDirect(factory))
+		{
+			socket = InterruptibleRMILocalSocket.connect(host, port);
+		}
+
+		if (socket == null)
+		{
+			socket = connect(factory, config.getProfile(), host, port, isFramed || isSecure);
+		}
+
+		if (isSecure)
+		{
+			return handshake(socket, host, port, new Handshake()
+			{
+				public Socket run(final Socket connected) throws IOException
+				{
+					return InterruptibleRMITLSSocket.connect(connected, host, port);
+				}
+			});
+		}
+
+		if (config.isSharedMemory() && isFramed == false
+			&& InterruptibleRMISharedMemorySocket.isSupported()
+			&& InterruptibleRMILocalSocket.isLocal(socket.getInetAddress()))
+		{
+			return handshake(socket, host, port, new Handshake()
+			{
+				public Socket run(final Socket connected) throws IOException
+				{
+					return InterruptibleRMISharedMemorySocket.connect(connected);
+				}
+			});
+		}
+
+		return socket;
+	}
+
+
+
+	/**
+	 * Run the supplied handshake on the supplied socket, connected to the supplied host and port.
+	 * For a thread with a cancel handle, the handshake is run by a background thread while the
+	 * calling thread waits, so that it is cancelled, and bounded by the deadline of the thread,
+	 * like the connect itself. A thread without a cancel handle runs it on the calling thread.
+	 */
+	private static Socket handshake(final Socket socket, final String host, final int port,
+		final Handshake handshake) throws IOException
+	{
+		final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.current();
+
+		if (handle == null)
+		{
+			return handshake.run(socket);
+		}
+
+		final HandshakeTask task = new HandshakeTask(socket, handshake);
+		execute(task);
+		return task.await(handle, host + ":" + port);
+	}
+
+
+
+	/**
+	 * Return a new plain socket, as {@link #connect(RMISocketFactory,
+	 * InterruptibleRMISocketFactoryConfig, String, int)} does. If isStreamed is true, the socket is
+	 * never backed by a channel.
+	 */
+	private static Socket connect(final RMISocketFactory factory,
+		final InterruptibleRMISocketProfile profile, final String host, final int port,
+		final boolean isStreamed) throws IOException
+	{
+		final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.current();
+		final InetAddress[] addresses = isDirect(factory) ? InterruptibleRMIAddressCache.getInstance().resolve(
+			host, port) : null;
+
+		if (handle == null && addresses == null)
+		{
+			return createSocket(factory, profile, host, port);
+		}
+
+		if (handle == null && addresses.length == 1)
+		{
+			final Socket socket = newSocket(isStreamed);
+
+			try
+			{
+				connect(socket, profile, addresses[0], port, 0);
+			}
+			catch (final IOException e)
+			{
+				close(socket);
+				throw e;
+			}
+
+			return socket;
+		}
+
+		return new InterruptibleRMIConnector(factory, profile, host, port, addresses, isStreamed).connect(
+			handle);
+	}
+
+
+
+	/**
+	 * Set whether the sockets connected directly (i.e. through the default RMI socket factory)
+	 * are backed by a SocketChannel, from now on.
+	 */
+	static void setUsingChannels(final boolean useChannels)
+	{
+		isUsingChannels = useChannels;
+	}
+
+
+
+	/**
+	 * Return true if the sockets connected directly are backed by a SocketChannel.
+	 */
+	static boolean isUsingChannels()
+	{
+		return isUsingChannels;
+	}
+
+
+
+	/**
+	 * Return a new unconnected socket, backed by a SocketChannel if channels are in use and the
+	 * socket will not carry a framed connection or TLS (isStreamed).
+	 */
+	private static Socket newSocket(final boolean isStreamed) throws IOException
+	{
+		if (isUsingChannels && isStreamed == false)
+		{
+			return new InterruptibleRMIChannelSocket(SocketChannel.open());
+		}
+
+		return new Socket();
+	}
+
+
+
+	/**
+	 * Run the supplied task on a background thread.
+	 */
+	static void execute(final Runnable task)
+	{
+		getExecutor().execute(task);
+	}
+
+
+
+	private static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory()
+				{
+					public Thread newThread(final Runnable r)
+					{
+						final Thread thread = new Thread(r, "InterruptibleRMI-Connector");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		}
+
+		return executor;
+	}
+
+
+
+	/**
+	 * Return true if the supplied factory is the default RMI socket factory, which makes a direct
+	 * connection (unless HTTP proxying is configured, which older JDKs fall back to).
+	 */
+	private static boolean isDirect(final RMISocketFactory factory)
+	{
+		return factory.getClass() == RMISocketFactory.getDefaultSocketFactory().getClass()
+			&& System.getProperty("http.proxyHost") == null;
+	}
+
+
+
+	/**
+	 * Return the supplied addresses, reordered to alternate between IPv6 and IPv4 addresses,
+	 * starting with the family of the first address.
+	 */
+	static InetAddress[] orderAddresses(final InetAddress[] addresses)
+	{
+		if (addresses.length <= 2)
+		{
+			return addresses;
+		}
+
+		final boolean isFirstIPv6 = addresses[0] instanceof Inet6Address;
+		final List<InetAddress> first = new ArrayList<InetAddress>();
+		final List<InetAddress> second = new ArrayList<InetAddress>();
+
+		for (final InetAddress address : addresses)
+		{
+			if ((address instanceof Inet6Address) == isFirstIPv6)
+			{
+				first.add(address);
+			}
+			else
+			{
+				second.add(address);
+			}
+		}
+
+		final InetAddress[] ordered = new InetAddress[addresses.length];
+
+		for (int i = 0, f = 0, s = 0; i < ordered.length; i++)
+		{
+			if (s == second.size() || (f < first.size() && f <= s))
+			{
+				ordered[i] = first.get(f++);
+			}
+			else
+			{
+				ordered[i] = second.get(s++);
+			}
+		}
+
+		return ordered;
+	}
+
+	private final RMISocketFactory factory;
+	private final InterruptibleRMISocketProfile profile;
+	private final String host;
+	private final int port;
+
+	/**
+	 * The addresses to attempt, in order, or null to make a single attempt through the factory.
+	 */
+	private final InetAddress[] addresses;
+
+	/**
+	 * True if the socket will carry a framed connection or TLS.
+	 */
+	private final boolean isStreamed;
+
+	/**
+	 * The connect timeout of each attempt, in milliseconds (0 for none).
+	 */
+	private int timeoutMillis;
+
+	/**
+	 * The sockets of the attempts in progress. Guarded by this.
+	 */
+	private final List<Socket> attempts = new ArrayList<Socket>();
+
+	/**
+	 * The number of attempts started, and the number that failed. Guarded by this.
+	 */
+	private int started, failed;
+
+	/**
+	 * The failure of the last attempt that failed. Guarded by this.
+	 */
+	private IOException lastFailure;
+
+	/**
+	 * The socket of the first attempt to connect. Guarded by this.
+	 */
+	private Socket winner;
+
+	/**
+	 * True once the connect has a winner or has been abandoned. Guarded by this.
+	 */
+	private boolean isDone;
+
+
+
+	private InterruptibleRMIConnector(final RMISocketFactory factory,
+		final InterruptibleRMISocketProfile profile, final String host, final int port,
+		final InetAddress[] addresses, final boolean isStreamed)
+	{
+		this.factory = factory;
+		this.profile = profile;
+		this.host = host;
+		this.port = port;
+		this.addresses = addresses;
+		this.isStreamed = isStreamed;
+	}
+
+
+
+	/**
+	 * Start the attempts, and wait for the first to connect.
+	 * 
+	 * @param handle
+	 *            the cancel handle of the current thread, or null if it has none (in which case the
+	 *            wait is not interruptible)
+	 */
+	private synchronized Socket connect(final InterruptibleRMICancelHandle handle) throws IOException
+	{
+		final long deadlineNanos = handle == null ? 0 : handle.getDeadlineNanos();
+
+		if (deadlineNanos != 0)
+		{
+			// rounded up, so that the attempts don't time out before the deadline
+			final long remainingNanos = deadlineNanos - System.nanoTime();
+			final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(remainingNanos
+				+ TimeUnit.MILLISECONDS.toNanos(1) - 1);
+			this.timeoutMillis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remainingMillis));
+		}
+
+		final int count = this.addresses == null ? 1 : this.addresses.length;
+		long lastStartNanos = 0;
+		boolean isInterrupted = false;
+
+		try
+		{
+			while (this.winner == null)
+			{
+				final long now = System.nanoTime();
+
+				if (deadlineNanos != 0 && deadlineNanos - now <= 0)
+				{
+					// the attempts are bounded by the deadline, so may fail before it is serviced
+					abandon();
+					handle.expireDeadline();
+					throw new SocketTimeoutException("The deadline expired while connecting to "
+						+ this.host + ":" + this.port);
+				}
+
+				if (this.failed == count)
+				{
+					this.isDone = true;
+					throw this.lastFailure;
+				}
+
+				long waitNanos = Long.MAX_VALUE;
+
+				if (this.started < count)
+				{
+					final long delayNanos = lastStartNanos + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS)
+						- now;
+
+					if (this.started == 0 || this.failed == this.started || delayNanos <= 0)
+					{
+						startAttempt(this.started++);
+						lastStartNanos = now;
+						continue;
+					}
+
+					waitNanos = delayNanos;
+				}
+
+				if (deadlineNanos != 0)
+				{
+					waitNanos = Math.min(waitNanos, deadlineNanos - now);
+				}
+
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+				}
+				catch (final InterruptedException e)
+				{
+					if (handle == null)
+					{
+						// keep waiting, like a blocking connect
+						isInterrupted = true;
+						continue;
+					}
+
+					abandon();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("The connect to " + this.host + ":" + this.port
+						+ " was cancelled");
+				}
+			}
+
+			this.isDone = true;
+			closeAttempts(this.winner);
+			return this.winner;
+		}
+		finally
+		{
+			if (isInterrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Start the attempt with the supplied index on a background thread.
+	 */
+	private void startAttempt(final int index)
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				attempt(index);
+			}
+		});
+	}
+
+
+
+	/**
+	 * Make the attempt with the supplied index, and report its outcome.
+	 */
+	private void attempt(final int index)
+	{
+		Socket socket = null;
+		IOException failure = null;
+
+		try
+		{
+			if (this.addresses == null)
+			{
+				socket = createSocket(this.factory, this.profile, this.host, this.port);
+			}
+			else
+			{
+				socket = newSocket(this.isStreamed);
+
+				synchronized (this)
+				{
+					if (this.isDone)
+					{
+						close(socket);
+						return;
+					}
+
+					this.attempts.add(socket);
+				}
+
+				connect(socket, this.profile, this.addresses[index], this.port, this.timeoutMillis);
+			}
+		}
+		catch (final IOException e)
+		{
+			failure = e;
+		}
+
+		synchronized (this)
+		{
+			this.attempts.remove(socket);
+
+			if (failure != null)
+			{
+				this.failed++;
+				this.lastFailure = failure;
+				notifyAll();
+			}
+			else if (this.isDone == false && this.winner == null)
+			{
+				this.winner = socket;
+				notifyAll();
+				return;
+			}
+		}
+
+		// a failure, a loser, or too late
+		if (socket != null)
+		{
+			close(socket);
+		}
+	}
+
+
+
+	/**
+	 * Abandon the connect, closing the attempts in progress (and any winner). Called with the lock
+	 * held.
+	 */
+	private void abandon()
+	{
+		this.isDone = true;
+		closeAttempts(null);
+
+		if (this.winner != null)
+		{
+			close(this.winner);
+		}
+	}
+
+
+
+	/**
+	 * Close the sockets of the attempts in progress, other than the supplied socket. Called with
+	 * the lock held.
+	 */
+	private void closeAttempts(final Socket except)
+	{
+		for (final Socket socket : this.attempts)
+		{
+			if (socket != except)
+			{
+				close(socket);
+			}
+		}
+
+		this.attempts.clear();
+	}
+
+
+
+	/**
+	 * Return a new socket from the supplied factory, configured with the supplied profile.
+	 */
+	private static Socket createSocket(final RMISocketFactory factory,
+		final InterruptibleRMISocketProfile profile, final String host, final int port)
+		throws IOException
+	{
+		final Socket socket = factory.createSocket(host, port);
+
+		try
+		{
+			profile.configure(socket);
+		}
+		catch (final IOException e)
+		{
+			close(socket);
+			throw e;
+		}
+
+		return socket;
+	}
+
+
+
+	/**
+	 * Configure the supplied socket with the supplied profile, connect it to the supplied address
+	 * and port, and record the outcome in the address cache (unless the socket was closed, i.e.
+	 * the attempt was abandoned).
+	 */
+	private static void connect(final Socket socket, final InterruptibleRMISocketProfile profile,
+		final InetAddress address, final int port, final int timeoutMillis) throws IOException
+	{
+		final InetSocketAddress endpoint = new InetSocketAddress(address, port);
+		profile.configure(socket);
+		final long start = System.nanoTime();
+
+		try
+		{
+			socket.connect(endpoint, timeoutMillis);
+		}
+		catch (final IOException e)
+		{
+			if (socket.isClosed() == false)
+			{
+				InterruptibleRMIAddressCache.getInstance().failed(endpoint);
+			}
+
+			throw e;
+		}
+
+		InterruptibleRMIAddressCache.getInstance().connected(endpoint, System.nanoTime() - start);
+	}
+
+
+
+	private static void close(final Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the host and port.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + this.host + ":" + this.port + "]";
+	}
+}
@@ -0,0 +1,673 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client-side RMI endpoint (host and port, as reached through a given underlying socket factory
+ * with a given profile), with its pool of spare physical connections. Spares come from two sources:
+ * <ul>
+ * <li>connections whose RMI call was cancelled in the connection-preserving cancel mode (see
+ * {@link InterruptibleRMIFramedSocket}), which are kept for reuse; and</li>
+ * <li>if pre-warming is enabled (see {@link #setSpareTarget(int)}, and
+ * {@link InterruptibleRMISocketFactoryConfig#getSpareConnections()}), connections opened in the
+ * background, so that the pool holds the target number of spares. The pool is topped up whenever
+ * a spare is taken, and whenever a cancelled call costs the endpoint its connection, so that the
+ * call that follows a cancellation does not wait for a TCP connect.</li>
+ * </ul>
+ * A spare that is not used within {@link #SPARE_IDLE_MILLIS} is closed (and not replaced until
+ * the endpoint is used again). Connects are made by {@link InterruptibleRMIConnector}, and
+ * background connects run on its threads.
+ * <p>
+ * An endpoint that is idle (with no spares, and no physical connections of the multiplexed
+ * transport) is forgotten when its last spare expires or its last connection closes, and by a
+ * sweep of the endpoints whenever their number has doubled, so that a client that talks to many
+ * endpoints (such as objects exported on anonymous ports) does not accumulate them. A forgotten
+ * endpoint that is still in use (by a call in progress) is put back when it is next given a
+ * spare.
+ * </p>
+ * <p>
+ * In the multiplexed transport (see
+ * {@link InterruptibleRMISocketFactoryConfig#getMultiplexedConnections()}), the endpoint keeps no
+ * spares: it hands out streams of its physical connections instead, each from the connection with
+ * the fewest streams. A new physical connection is opened when every connection carries streams,
+ * until the endpoint has as many as the configuration allows.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketFactory#setSpareConnections(int)
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIEndpoint
+{
+	/**
+	 * The maximum number of spares kept per endpoint, and so the maximum target.
+	 */
+	static final int MAX_SPARES = 8;
+
+	/**
+	 * The number of spares that are kept per endpoint for reuse, even without pre-warming.
+	 */
+	private static final int REUSED_SPARES = 4;
+
+	/**
+	 * How long a spare connection is kept before it is closed (the same as the default idle time
+	 * of connections in the RMI connection cache).
+	 */
+	private static final long SPARE_IDLE_MILLIS = 15 * 1000;
+
+	/**
+	 * The endpoints, by key.
+	 */
+	private static final ConcurrentHashMap<String, InterruptibleRMIEndpoint> endpoints = new ConcurrentHashMap<String, InterruptibleRMIEndpoint>();
+
+	/**
+	 * The number of endpoints below which they are never swept.
+	 */
+	private static final int MIN_SWEEP_SIZE = 64;
+
+	/**
+	 * The number of endpoints at which the next sweep of idle endpoints is made.
+	 */
+	private static volatile int sweepSize = MIN_SWEEP_SIZE;
+
+	/**
+	 * The number of pre-warmed spares per endpoint.
+	 */
+	private static volatile int spareTarget = 0;
+
+	/**
+	 * Return the endpoint for the supplied host and port, as reached through the supplied
+	 * factory with the supplied configuration.
+	 */
+	static InterruptibleRMIEndpoint getInstance(final RMISocketFactory factory,
+		final InterruptibleRMISocketFactoryConfig config, final String host, final int port)
+	{
+		final String key = factory.getClass().getName() + "|" + config.getProfile() + "|" + host + ":"
+			+ port + (config.isPreservingConnections() ? "|framed" : "") + (config.isSecure() ? "|tls" : "")
+			+ (config.isLocal() ? "|local" : "") + (config.isSharedMemory() ? "|shm" : "")
+			+ (config.isMultiplexed() ? "|mux" + config.getMultiplexedConnections() : "");
+		InterruptibleRMIEndpoint endpoint;
+
+		do
+		{
+			endpoint = endpoints.get(key);
+
+			if (endpoint == null)
+			{
+				final InterruptibleRMIEndpoint newEndpoint = new InterruptibleRMIEndpoint(factory,
+					config, host, port, key);
+				endpoint = endpoints.putIfAbsent(key, newEndpoint);
+
+				if (endpoint == null)
+				{
+					endpoint = newEndpoint;
+
+					if (endpoints.size() >= sweepSize)
+					{
+						sweep();
+					}
+				}
+			}
+		}
+		while (endpoint.isEvicted);
+
+		if (config.getSpareConnections() > endpoint.configuredSpareTarget)
+		{
+			endpoint.configuredSpareTarget = config.getSpareConnections();
+		}
+
+		return endpoint;
+	}
+
+
+
+	/**
+	 * Forget the endpoints that are idle, once their number has reached {@link #sweepSize}.
+	 */
+	private static synchronized void sweep()
+	{
+		if (endpoints.size() < sweepSize)
+		{
+			return;
+		}
+
+		for (final InterruptibleRMIEndpoint endpoint : endpoints.values())
+		{
+			endpoint.evictIfIdle();
+		}
+
+		sweepSize = Math.max(MIN_SWEEP_SIZE, 2 * endpoints.size());
+	}
+
+
+
+	/**
+	 * Set the number of pre-warmed spares per endpoint (0 disables pre-warming).
+	 */
+	static void setSpareTarget(final int target)
+	{
+		if (target < 0 || target > MAX_SPARES)
+		{
+			throw new IllegalArgumentException("The spare target must be between 0 and "
+				+ MAX_SPARES + ": " + target);
+		}
+
+		spareTarget = target;
+	}
+
+
+
+	/**
+	 * Return the number of pre-warmed spares per endpoint.
+	 */
+	static int getSpareTarget()
+	{
+		return spareTarget;
+	}
+
+
+
+	/**
+	 * A spare connection, with the timeout that closes it when idle.
+	 */
+	private static final class Spare
+	{
+		final Socket socket;
+		InterruptibleRMITimerWheel.Timeout idleTimeout;
+
+
+
+		Spare(final Socket socket)
+		{
+			this.socket = socket;
+		}
+	}
+
+	private final RMISocketFactory factory;
+
+	/**
+	 * The configuration of the connections to this endpoint: their profile, and whether they carry
+	 * framed connections, are secured with TLS, or use the local transport. (The spare target of
+	 * the configuration is kept in {@link #configuredSpareTarget}.)
+	 */
+	private final InterruptibleRMISocketFactoryConfig config;
+	private final String host;
+	private final int port;
+
+	/**
+	 * The key of this endpoint in {@link #endpoints}.
+	 */
+	private final String key;
+
+	/**
+	 * True once this endpoint has been removed from {@link #endpoints} as idle (until it is put
+	 * back). Written while holding {@link #spares}.
+	 */
+	private volatile boolean isEvicted;
+
+	/**
+	 * Guarded by itself.
+	 */
+	private final LinkedList<Spare> spares = new LinkedList<Spare>();
+
+	/**
+	 * The number of background connects in progress. Guarded by {@link #spares}.
+	 */
+	private int pendingConnects;
+
+	/**
+	 * The number of pre-warmed spares requested by the configuration of the factory (as pushed by
+	 * the server), if greater than {@link #spareTarget}.
+	 */
+	private volatile int configuredSpareTarget;
+
+	/**
+	 * The physical connections of the multiplexed transport. Guarded by itself.
+	 */
+	private final List<InterruptibleRMIMultiplexedConnection> multiplexedConnections = new ArrayList<InterruptibleRMIMultiplexedConnection>();
+
+	/**
+	 * The number of physical connections of the multiplexed transport being connected. Guarded
+	 * by {@link #multiplexedConnections}.
+	 */
+	private int pendingMultiplexedConnects;
+
+
+
+	private InterruptibleRMIEndpoint(final RMISocketFactory factory,
+		final InterruptibleRMISocketFactoryConfig config, final String host, final int port,
+		final String key)
+	{
+		this.factory = factory;
+		this.config = config;
+		this.host = host;
+		this.port = port;
+		this.key = key;
+	}
+
+
+
+	/**
+	 * Return a connected socket to this endpoint: a spare if there is one, otherwise a new
+	 * connection. Either way, the spares are topped up in the background.
+	 */
+	Socket connect() throws IOException
+	{
+		if (this.config.isMultiplexed())
+		{
+			return openStream();
+		}
+
+		Socket socket = takeSpare();
+
+		if (socket == null)
+		{
+			socket = InterruptibleRMIConnector.connect(this.factory, this.config, this.host,
+				this.port);
+		}
+
+		replenish();
+		return socket;
+	}
+
+
+
+	/**
+	 * Return a new stream of the multiplexed transport, over the physical connection with the
+	 * fewest streams, or over a new physical connection if every connection carries streams and
+	 * the endpoint may have more. If the endpoint has no connection, and may have no more, the
+	 * calling thread waits for one that is being connected.
+	 */
+	private Socket openStream() throws IOException
+	{
+		while (true)
+		{
+			InterruptibleRMIMultiplexedConnection connection = null;
+
+			synchronized (this.multiplexedConnections)
+			{
+				for (final InterruptibleRMIMultiplexedConnection c : this.multiplexedConnections)
+				{
+					if (connection == null || c.getStreamCount() < connection.getStreamCount())
+					{
+						connection = c;
+					}
+				}
+
+				final int count = this.multiplexedConnections.size() + this.pendingMultiplexedConnects;
+
+				if ((connection == null || connection.getStreamCount() > 0)
+					&& count < this.config.getMultiplexedConnections())
+				{
+					++this.pendingMultiplexedConnects;
+					connection = null;
+				}
+				else if (connection == null)
+				{
+					awaitMultiplexed();
+					continue;
+				}
+			}
+
+			final boolean isNew = connection == null;
+
+			if (isNew)
+			{
+				connection = connectMultiplexed();
+			}
+
+			final Socket stream = connection.openStream();
+
+			if (stream != null)
+			{
+				return stream;
+			}
+
+			// the connection has just closed, or has run out of stream ids (in which case it is
+			// closed once its streams end)
+			removeMultiplexed(connection);
+
+			if (isNew)
+			{
+				throw new IOException("Can't open a stream over a new connection to " + this.host
+					+ ":" + this.port);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Wait for a physical connection of the multiplexed transport that is being connected. The
+	 * caller holds {@link #multiplexedConnections}.
+	 */
+	private void awaitMultiplexed() throws IOException
+	{
+		try
+		{
+			this.multiplexedConnections.wait();
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting");
+		}
+	}
+
+
+
+	/**
+	 * Open a new physical connection of the multiplexed transport (of which
+	 * {@link #pendingMultiplexedConnects} counts one), and add it to the connections.
+	 */
+	private InterruptibleRMIMultiplexedConnection connectMultiplexed() throws IOException
+	{
+		InterruptibleRMIMultiplexedConnection connection = null;
+
+		try
+		{
+			connection = new InterruptibleRMIMultiplexedConnection(InterruptibleRMIConnector.connect(
+				this.factory, this.config, this.host, this.port), null, this);
+			connection.start();
+			return connection;
+		}
+		finally
+		{
+			synchronized (this.multiplexedConnections)
+			{
+				--this.pendingMultiplexedConnects;
+
+				if (connection != null && connection.isClosed() == false)
+				{
+					this.multiplexedConnections.add(connection);
+					current();
+				}
+
+				this.multiplexedConnections.notifyAll();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Remove the supplied physical connection of the multiplexed transport, which has closed.
+	 */
+	void removeMultiplexed(final InterruptibleRMIMultiplexedConnection connection)
+	{
+		synchronized (this.multiplexedConnections)
+		{
+			this.multiplexedConnections.remove(connection);
+		}
+
+		evictIfIdle();
+	}
+
+
+
+	/**
+	 * Forget this endpoint if it is idle: it has no spares, and no physical connections of the
+	 * multiplexed transport (and is connecting none).
+	 */
+	private void evictIfIdle()
+	{
+		synchronized (this.multiplexedConnections)
+		{
+			synchronized (this.spares)
+			{
+				if (this.isEvicted == false && this.spares.isEmpty() && this.pendingConnects == 0
+					&& this.multiplexedConnections.isEmpty() && this.pendingMultiplexedConnects == 0)
+				{
+					this.isEvicted = true;
+					endpoints.remove(this.key, this);
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the endpoint that stands for this one: this endpoint, after putting it back if it has
+	 * been forgotten, unless another endpoint has taken its place in the meantime.
+	 */
+	private InterruptibleRMIEndpoint current()
+	{
+		synchronized (this.spares)
+		{
+			if (this.isEvicted == false)
+			{
+				return this;
+			}
+
+			final InterruptibleRMIEndpoint other = endpoints.putIfAbsent(this.key, this);
+
+			if (other != null)
+			{
+				return other;
+			}
+
+			this.isEvicted = false;
+			return this;
+		}
+	}
+
+
+
+	/**
+	 * Return a spare connection, or null if there is none.
+	 */
+	private Socket takeSpare()
+	{
+		while (true)
+		{
+			final Spare spare;
+
+			synchronized (this.spares)
+			{
+				spare = this.spares.poll();
+			}
+
+			if (spare == null)
+			{
+				return null;
+			}
+
+			// if the idle timeout has already fired, the spare is being closed
+			if (spare.idleTimeout.cancel() && spare.socket.isClosed() == false)
+			{
+				return spare.socket;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Keep the supplied connected socket as a spare, or close it if this endpoint has enough
+	 * spares already.
+	 */
+	void release(final Socket socket)
+	{
+		final InterruptibleRMIEndpoint current = current();
+
+		if (current != this)
+		{
+			current.release(socket);
+			return;
+		}
+
+		final Spare spare = new Spare(socket);
+
+		synchronized (this.spares)
+		{
+			if (this.spares.size() < Math.max(getTarget(), REUSED_SPARES))
+			{
+				spare.idleTimeout = InterruptibleRMITimerWheel.getInstance().schedule(new Runnable()
+				{
+					public void run()
+					{
+						expire(spare);
+					}
+				}, SPARE_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+
+				this.spares.add(spare);
+				return;
+			}
+		}
+
+		close(socket);
+	}
+
+
+
+	/**
+	 * Start enough background connects to bring the spares up to the target. Called after a spare
+	 * has been taken, and after a cancelled call has cost this endpoint a connection.
+	 */
+	void replenish()
+	{
+		final InterruptibleRMIEndpoint current = current();
+
+		if (current != this)
+		{
+			current.replenish();
+			return;
+		}
+
+		final int target = getTarget();
+
+		if (target == 0)
+		{
+			return;
+		}
+
+		final int count;
+
+		synchronized (this.spares)
+		{
+			count = target - this.spares.size() - this.pendingConnects;
+
+			if (count <= 0)
+			{
+				return;
+			}
+
+			this.pendingConnects += count;
+		}
+
+		for (int i = 0; i < count; i++)
+		{
+			InterruptibleRMIConnector.execute(new Runnable()
+			{
+				public void run()
+				{
+					connectSpare();
+				}
+			});
+		}
+	}
+
+
+
+	/**
+	 * Return the number of pre-warmed spares for this endpoint.
+	 */
+	private int getTarget()
+	{
+		return Math.max(spareTarget, this.configuredSpareTarget);
+	}
+
+
+
+	/**
+	 * Open a connection in the background, and keep it as a spare.
+	 */
+	private void connectSpare()
+	{
+		Socket socket = null;
+
+		try
+		{
+			socket = InterruptibleRMIConnector.connect(this.factory, this.config, this.host,
+				this.port);
+		}
+		catch (final IOException e)
+		{
+			// no spare this time; the next call connects as usual
+		}
+		finally
+		{
+			synchronized (this.spares)
+			{
+				--this.pendingConnects;
+			}
+		}
+
+		if (socket != null)
+		{
+			release(socket);
+		}
+	}
+
+
+
+	/**
+	 * Close the supplied spare, which has been idle for too long. Called by the timer thread.
+	 */
+	private void expire(final Spare spare)
+	{
+		synchronized (this.spares)
+		{
+			this.spares.remove(spare);
+		}
+
+		close(spare.socket);
+		evictIfIdle();
+	}
+
+
+
+	private static void close(final Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the host and port.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + this.host + ":" + this.port + "]";
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExecutorService that runs tasks on a pool of threads from {@link InterruptibleRMIThreadFactory},
+ * so that RMI calls made by a task can be cancelled with the standard
+ * {@link java.util.concurrent.Future#cancel(boolean)} method. Calling <code>cancel(true)</code> on
+ * the Future returned by {@link #submit(Runnable)} (etc.) interrupts the task and, if the task is
+ * in a blocking RMI IO operation on a socket from {@link InterruptibleRMISocketFactory}, shuts down
+ * and closes that socket, just like {@link Thread#interrupt()} does for a thread from
+ * {@link InterruptibleRMIThreadFactory}. Only the socket of the cancelled task is affected: a
+ * cancel that arrives as the task is finishing completes before the worker thread moves on, and
+ * the worker's interrupt status is cleared between tasks, so a cancel can never hit the next task
+ * run by the same thread.
+ * <p>
+ * Note that tasks passed directly to {@link #execute(Runnable)} have no Future, and so can only be
+ * cancelled by {@link #shutdownNow()}.
+ * </p>
+ * 
+ * @see InterruptibleRMICancelHandle
+ * @author neilotoole@apache.org
+ */
+public class InterruptibleRMIExecutorService extends ThreadPoolExecutor
+{
+	/**
+	 * Return a new executor that uses a fixed number of threads operating off an unbounded queue.
+	 * 
+	 * @see java.util.concurrent.Executors#newFixedThreadPool(int)
+	 */
+	public static InterruptibleRMIExecutorService newFixedThreadPool(final int poolSize)
+	{
+		return new InterruptibleRMIExecutorService(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>());
+	}
+
+
+
+	/**
+	 * Return a new executor that creates threads as needed, and reuses threads that have been
+	 * idle for less than sixty seconds.
+	 * 
+	 * @see java.util.concurrent.Executors#newCachedThreadPool()
+	 */
+	public static InterruptibleRMIExecutorService newCachedThreadPool()
+	{
+		return new InterruptibleRMIExecutorService(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>());
+	}
+
+
+
+	/**
+	 * Create a new executor with the supplied parameters, using threads from
+	 * {@link InterruptibleRMIThreadFactory}.
+	 * 
+	 * @see ThreadPoolExecutor#ThreadPoolExecutor(int, int, long, TimeUnit, BlockingQueue)
+	 */
+	public InterruptibleRMIExecutorService(final int corePoolSize, final int maximumPoolSize,
+		final long keepAliveTime, final TimeUnit unit, final BlockingQueue<Runnable> workQueue)
+	{
+		super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue,
+			InterruptibleRMIThreadFactory.getInstance());
+	}
+
+
+
+	/**
+	 * Return a task whose {@link java.util.concurrent.Future#cancel(boolean)} method cancels the
+	 * RMI call in progress.
+	 */
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value)
+	{
+		return new InterruptibleRMIFutureTask<T>(runnable, value);
+	}
+
+
+
+	/**
+	 * Return a task whose {@link java.util.concurrent.Future#cancel(boolean)} method cancels the
+	 * RMI call in progress.
+	 */
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable)
+	{
+		return new InterruptibleRMIFutureTask<T>(callable);
+	}
+
+	/**
+	 * FutureTask that tracks the cancel handle of the thread running it, for as long as it is
+	 * running.
+	 */
+	private static final class InterruptibleRMIFutureTask<V> extends FutureTask<V>
+	{
+		/**
+		 * The cancel handle of the thread running this task, or null if the task is not running.
+		 * Guarded by this.
+		 */
+		private InterruptibleRMICancelHandle runnerHandle;
+
+
+
+		InterruptibleRMIFutureTask(final Callable<V> callable)
+		{
+			super(callable);
+		}
+
+
+
+		InterruptibleRMIFutureTask(final Runnable runnable, final V result)
+		{
+			super(runnable, result);
+		}
+
+
+
+		/**
+		 * Run the task with the cancel handle of the current thread published. On exit, the
+		 * handle is withdrawn (waiting for a concurrent cancel to complete), and the thread's
+		 * interrupt status is cleared, so that nothing of this task's cancellation leaks into
+		 * the next task run by the thread.
+		 */
+		@Override
+		public void run()
+		{
+			final InterruptibleRMICancelHandle handle = InterruptibleRMICancelHandle.register();
+
+			synchronized (this)
+			{
+				this.runnerHandle = handle;
+			}
+
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					this.runnerHandle = null;
+				}
+
+				InterruptibleRMICancelHandle.unregister();
+				Thread.interrupted();
+			}
+		}
+
+
+
+		/**
+		 * Cancel this task. If mayInterruptIfRunning is true and the task is running, the RMI
+		 * call in progress (if any) is cancelled via the thread's cancel handle.
+		 */
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning)
+		{
+			if (super.cancel(false) == false)
+			{
+				return false;
+			}
+
+			if (mayInterruptIfRunning)
+			{
+				synchronized (this)
+				{
+					if (this.runnerHandle != null)
+					{
+						this.runnerHandle.cancel();
+					}
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A physical (TCP) connection in the connection-preserving cancel mode of
+ * {@link InterruptibleRMISocketFactory}. In that mode, everything written to the connection is
+ * framed, so that a cancelled RMI call can be cut off without closing the connection:
+ * <ul>
+ * <li>{@link #DATA}: a two-byte (big-endian) length, followed by that many bytes of RMI data;</li>
+ * <li>{@link #CANCEL}: sent by the client to cancel the RMI call in progress;</li>
+ * <li>{@link #CANCEL_ACK}: sent by the server in reply to {@link #CANCEL}, once it has stopped
+ * sending data for the cancelled call.</li>
+ * </ul>
+ * The RMI transport on each side sees a logical connection ({@link InterruptibleRMIFramedSocket}),
+ * which ends when the call is cancelled. The physical connection then carries on with a new logical
+ * connection: on the server side it is accepted again by
+ * {@link InterruptibleRMIFramedServerSocket}, and on the client side it is kept as a spare by its
+ * {@link InterruptibleRMIEndpoint}, and handed out by the next
+ * {@link InterruptibleRMISocketFactory#createSocket(String, int)} for the same endpoint. The next
+ * call therefore pays for neither a TCP connect nor a closed connection in TIME_WAIT (only the
+ * brief JRMP handshake of the new logical connection).
+ * <p>
+ * The read methods must only be called by one thread at a time, and the write methods must only
+ * be called while holding {@link #writeLock}.
+ * </p>
+ * 
+ * @see InterruptibleRMIFramedSocket
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIFramedConnection
+{
+	/**
+	 * Frame type of a data frame.
+	 */
+	static final int DATA = 1;
+
+	/**
+	 * Frame type of the client's request to cancel the call in progress.
+	 */
+	static final int CANCEL = 2;
+
+	/**
+	 * Frame type of the server's acknowledgement of {@link #CANCEL}.
+	 */
+	static final int CANCEL_ACK = 3;
+
+	/**
+	 * Returned by {@link #readFrame(boolean)} at the end of the stream.
+	 */
+	static final int END_OF_STREAM = -1;
+
+	/**
+	 * Returned by {@link #readFrame(boolean)} when no complete frame header can be read without
+	 * blocking.
+	 */
+	static final int NOTHING_AVAILABLE = -2;
+
+	/**
+	 * The size of a data frame header.
+	 */
+	private static final int DATA_HEADER_SIZE = 3;
+
+	/**
+	 * The maximum payload of a data frame.
+	 */
+	private static final int MAX_DATA_SIZE = 8192;
+
+	/**
+	 * The physical socket.
+	 */
+	final Socket socket;
+
+	/**
+	 * The server socket that accepts this connection again after a cancelled call, or null for a
+	 * client connection.
+	 */
+	final InterruptibleRMIFramedServerSocket server;
+
+	/**
+	 * The endpoint of a client connection, or null for a server connection.
+	 */
+	final InterruptibleRMIEndpoint endpoint;
+
+	/**
+	 * Lock held while writing a frame, so that frames are never interleaved.
+	 */
+	final Object writeLock = new Object();
+
+	private final InputStream in;
+	private final OutputStream out;
+
+	private final byte[] readBuffer = new byte[MAX_DATA_SIZE + DATA_HEADER_SIZE];
+	private int readPos;
+	private int readLimit;
+
+	/**
+	 * The number of bytes of the current data frame that have not been read yet.
+	 */
+	private int dataRemaining;
+
+	private final byte[] writeBuffer = new byte[MAX_DATA_SIZE + DATA_HEADER_SIZE];
+
+
+
+	/**
+	 * Create a connection over the supplied physical socket. If the socket's streams can't be
+	 * obtained, the socket is closed.
+	 */
+	InterruptibleRMIFramedConnection(final Socket socket, final InterruptibleRMIFramedServerSocket server,
+		final InterruptibleRMIEndpoint endpoint) throws IOException
+	{
+		this.socket = socket;
+		this.server = server;
+		this.endpoint = endpoint;
+
+		try
+		{
+			this.in = socket.getInputStream();
+			this.out = socket.getOutputStream();
+		}
+		catch (final IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Create a marker that is not connected to anything (see
+	 * {@link InterruptibleRMIFramedServerSocket}).
+	 */
+	InterruptibleRMIFramedConnection()
+	{
+		this.socket = null;
+		this.server = null;
+		this.endpoint = null;
+		this.in = null;
+		this.out = null;
+	}
+
+
+
+	/**
+	 * Read the header of the next frame (unless the current data frame has unread bytes), and
+	 * return its type, {@link #END_OF_STREAM}, or, if mayBlock is false and no complete header is
+	 * available, {@link #NOTHING_AVAILABLE}.
+	 */
+	int readFrame(final boolean mayBlock) throws IOException
+	{
+		if (this.dataRemaining > 0)
+		{
+			return DATA;
+		}
+
+		int buffered = fill(1, mayBlock);
+
+		if (buffered < 0)
+		{
+			return END_OF_STREAM;
+		}
+
+		if (buffered < 1)
+		{
+			return NOTHING_AVAILABLE;
+		}
+
+		final int type = this.readBuffer[this.readPos];
+
+		if (type != DATA)
+		{
+			++this.readPos;
+			return type;
+		}
+
+		buffered = fill(DATA_HEADER_SIZE, mayBlock);
+
+		if (buffered < 0)
+		{
+			throw new EOFException("Truncated RMI frame header");
+		}
+
+		if (buffered < DATA_HEADER_SIZE)
+		{
+			return NOTHING_AVAILABLE;
+		}
+
+		final int length = ((this.readBuffer[this.readPos + 1] & 0xFF) << 8)
+			| (this.readBuffer[this.readPos + 2] & 0xFF);
+
+		if (length == 0)
+		{
+			throw new IOException("Empty RMI data frame");
+		}
+
+		this.readPos += DATA_HEADER_SIZE;
+		this.dataRemaining = length;
+		return DATA;
+	}
+
+
+
+	/**
+	 * Read up to len bytes of the current data frame, blocking until at least one byte is
+	 * available. Must only be called after {@link #readFrame(boolean)} has returned {@link #DATA}.
+	 */
+	int readData(final byte[] b, final int off, final int len) throws IOException
+	{
+		int count = Math.min(len, this.dataRemaining);
+		final int buffered = this.readLimit - this.readPos;
+
+		if (buffered > 0)
+		{
+			count = Math.min(count, buffered);
+			System.arraycopy(this.readBuffer, this.readPos, b, off, count);
+			this.readPos += count;
+		}
+		else
+		{
+			// large frames are read straight into the caller's buffer
+			count = this.in.read(b, off, count);
+
+			if (count < 0)
+			{
+				throw new EOFException("Truncated RMI data frame");
+			}
+		}
+
+		this.dataRemaining -= count;
+		return count;
+	}
+
+
+
+	/**
+	 * Return the number of bytes of the current data frame that can be read without blocking.
+	 */
+	int availableData() throws IOException
+	{
+		if (this.dataRemaining == 0)
+		{
+			return 0;
+		}
+
+		return Math.min(this.dataRemaining, this.readLimit - this.readPos + this.in.available());
+	}
+
+
+
+	/**
+	 * Make sure that the read buffer holds at least the supplied number of bytes, reading from
+	 * the socket as necessary. Return the number of bytes buffered (which is less than needed
+	 * only if mayBlock is false and not enough bytes are available), or -1 at the end of the
+	 * stream.
+	 */
+	private int fill(final int needed, final boolean mayBlock) throws IOException
+	{
+		while (this.readLimit - this.readPos < needed)
+		{
+			if (mayBlock == false && this.in.available() <= 0)
+			{
+				break;
+			}
+
+			if (this.readPos > 0)
+			{
+				System.arraycopy(this.readBuffer, this.readPos, this.readBuffer, 0, this.readLimit
+					- this.readPos);
+				this.readLimit -= this.readPos;
+				this.readPos = 0;
+			}
+
+			final int count = this.in.read(this.readBuffer, this.readLimit, this.readBuffer.length
+				- this.readLimit);
+
+			if (count < 0)
+			{
+				return -1;
+			}
+
+			this.readLimit += count;
+		}
+
+		return this.readLimit - this.readPos;
+	}
+
+
+
+	/**
+	 * Return true if input has been read from the socket but not consumed yet.
+	 */
+	boolean hasBufferedInput()
+	{
+		return this.readPos < this.readLimit || this.dataRemaining > 0;
+	}
+
+
+
+	/**
+	 * Write the supplied data as one or more data frames. The caller must hold
+	 * {@link #writeLock}.
+	 */
+	void writeData(final byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			final int count = Math.min(len, MAX_DATA_SIZE);
+
+			// header and payload go out in a single write, as RMI sockets use TCP_NODELAY
+			this.writeBuffer[0] = DATA;
+			this.writeBuffer[1] = (byte) (count >>> 8);
+			this.writeBuffer[2] = (byte) count;
+			System.arraycopy(b, off, this.writeBuffer, DATA_HEADER_SIZE, count);
+			this.out.write(this.writeBuffer, 0, DATA_HEADER_SIZE + count);
+
+			off += count;
+			len -= count;
+		}
+	}
+
+
+
+	/**
+	 * Write and flush a control frame. The caller must hold {@link #writeLock}.
+	 */
+	void writeControl(final int type) throws IOException
+	{
+		this.out.write(type);
+		this.out.flush();
+	}
+
+
+
+	/**
+	 * Flush the socket's output stream. The caller must hold {@link #writeLock}.
+	 */
+	void flush() throws IOException
+	{
+		this.out.flush();
+	}
+
+
+
+	/**
+	 * Close the physical connection.
+	 */
+	void close()
+	{
+		try
+		{
+			this.socket.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+	}
+
+
+
+	/**
+	 * Close the physical connection immediately, discarding any unsent data and resetting the
+	 * connection.
+	 */
+	void reset()
+	{
+		try
+		{
+			this.socket.setSoLinger(true, 0);
+		}
+		catch (final IOException e)
+		{
+			// just swallow this; the socket is closed regardless
+		}
+
+		close();
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the physical socket.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + this.socket + "]";
+	}
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server socket for the connection-preserving cancel mode of {@link InterruptibleRMISocketFactory}.
+ * Besides new TCP connections, {@link #accept()} returns the physical connections whose previous
+ * RMI call has been cancelled (see {@link InterruptibleRMIFramedSocket}), so that the RMI
+ * transport serves them afresh. As {@link #accept()} must be woken by either, a daemon thread
+ * accepts the new TCP connections and queues them with the reaccepted ones.
+ * 
+ * @see InterruptibleRMIFramedConnection
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIFramedServerSocket extends InterruptibleRMIServerSocket implements Runnable
+{
+	/**
+	 * Queued to wake up the callers of {@link #accept()} when this server socket is closed.
+	 */
+	private static final InterruptibleRMIFramedConnection CLOSED = new InterruptibleRMIFramedConnection();
+
+	/**
+	 * How long the acceptor thread waits before retrying after a failed accept (e.g. when the
+	 * process has run out of file descriptors).
+	 */
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+
+	private final LinkedBlockingQueue<InterruptibleRMIFramedConnection> connections = new LinkedBlockingQueue<InterruptibleRMIFramedConnection>();
+
+	private volatile boolean isClosed;
+
+	private final Thread acceptor;
+
+
+
+	/**
+	 * Create a decorator for the supplied (bound) server socket, and start accepting connections
+	 * (applying the profile of the supplied configuration to them).
+	 */
+	InterruptibleRMIFramedServerSocket(final ServerSocket decoratee,
+		final InterruptibleRMISocketFactoryConfig config) throws IOException
+	{
+		super(decoratee, config);
+
+		this.acceptor = new Thread(this, "InterruptibleRMI-Acceptor-" + decoratee.getLocalPort());
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+
+
+	/**
+	 * Return the next new or reaccepted connection, as a logical connection decorated for
+	 * interruptible RMI. Honours SO_TIMEOUT.
+	 * 
+	 * @see ServerSocket#accept()
+	 */
+	@Override
+	public Socket accept() throws IOException
+	{
+		while (true)
+		{
+			final InterruptibleRMIFramedConnection connection = nextConnection();
+
+			if (connection == CLOSED)
+			{
+				// wake up the next caller too
+				this.connections.add(CLOSED);
+				throw new SocketException("Socket is closed");
+			}
+
+			if (connection.socket.isClosed() == false)
+			{
+				return newServerSideSocket(new InterruptibleRMIFramedSocket(connection));
+			}
+		}
+	}
+
+
+
+	/**
+	 * Take the next connection from the queue, honouring SO_TIMEOUT.
+	 */
+	private InterruptibleRMIFramedConnection nextConnection() throws IOException
+	{
+		try
+		{
+			final int timeout = this.decoratee.getSoTimeout();
+
+			if (timeout <= 0)
+			{
+				return this.connections.take();
+			}
+
+			final InterruptibleRMIFramedConnection connection = this.connections.poll(timeout,
+				TimeUnit.MILLISECONDS);
+
+			if (connection == null)
+			{
+				throw new SocketTimeoutException("Accept timed out");
+			}
+
+			return connection;
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while accepting");
+		}
+	}
+
+
+
+	/**
+	 * Queue the supplied connection (whose previous RMI call has been cancelled) to be accepted
+	 * again, or close it if this server socket has been closed.
+	 */
+	void reaccept(final InterruptibleRMIFramedConnection connection)
+	{
+		this.connections.add(connection);
+
+		if (this.isClosed)
+		{
+			closeQueuedConnections();
+		}
+	}
+
+
+
+	/**
+	 * The acceptor loop: accept new TCP connections, and queue them for {@link #accept()}.
+	 */
+	public void run()
+	{
+		while (this.isClosed == false)
+		{
+			try
+			{
+				this.connections.add(new InterruptibleRMIFramedConnection(acceptConfigured(),
+					this, null));
+			}
+			catch (final SocketTimeoutException e)
+			{
+				// SO_TIMEOUT is applied by #accept
+			}
+			catch (final IOException e)
+			{
+				if (this.isClosed || this.decoratee.isClosed())
+				{
+					break;
+				}
+
+				try
+				{
+					Thread.sleep(ACCEPT_RETRY_MILLIS);
+				}
+				catch (final InterruptedException ie)
+				{
+					break;
+				}
+			}
+		}
+
+		close();
+	}
+
+
+
+	/**
+	 * Close this server socket, and the connections that are waiting to be accepted.
+	 * 
+	 * @see ServerSocket#close()
+	 */
+	@Override
+	public void close()
+	{
+		this.isClosed = true;
+
+		try
+		{
+			super.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		closeQueuedConnections();
+	}
+
+
+
+	/**
+	 * Close the queued connections, and queue {@link #CLOSED} instead.
+	 */
+	private void closeQueuedConnections()
+	{
+		InterruptibleRMIFramedConnection connection;
+
+		while ((connection = this.connections.poll()) != null)
+		{
+			if (connection != CLOSED)
+			{
+				connection.close();
+			}
+		}
+
+		this.connections.add(CLOSED);
+	}
+
+
+
+	/**
+	 * @see ServerSocket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.isClosed || super.isClosed();
+	}
+}
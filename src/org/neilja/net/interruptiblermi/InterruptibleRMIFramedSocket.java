@@ -0,0 +1,623 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A logical connection over an {@link InterruptibleRMIFramedConnection}, as seen by the RMI
+ * transport (through the decoration of {@link InterruptibleRMIClientSocket} or
+ * {@link InterruptibleRMIServerSideSocket}). The logical connection ends when its RMI call is
+ * cancelled:
+ * <ul>
+ * <li>On the client side, {@link #cancelCall()} sends
+ * {@link InterruptibleRMIFramedConnection#CANCEL} and the thread making the call discards the
+ * remaining data of the call until the server's {@link InterruptibleRMIFramedConnection#CANCEL_ACK}
+ * arrives, at which point the read fails with an InterruptedIOException. When the RMI transport
+ * then closes this socket, the physical connection is kept as a spare by its
+ * {@link InterruptibleRMIEndpoint}. If the acknowledgement does not arrive within
+ * {@link #CANCEL_ACK_TIMEOUT_MILLIS}, the physical connection is reset instead.</li>
+ * <li>On the server side, the cancel frame is found either by the RMI transport reading the
+ * connection, or by a probe of {@link InterruptibleRMIServerSideSocket} (see
+ * {@link InputStream#available()}). Either way, the acknowledgement is sent at once, the
+ * physical connection is handed back to {@link InterruptibleRMIFramedServerSocket} to be accepted
+ * again, and from then on reads of this socket return the end of the stream (which the probe
+ * reports as a cancelled call) and writes fail.</li>
+ * </ul>
+ * Socket options are forwarded to the physical socket.
+ * 
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIFramedSocket extends InterruptibleRMISocket
+{
+	/**
+	 * How long the client waits for the server to acknowledge a cancel before resetting the
+	 * connection. The server acknowledges at once if the RMI transport is reading the connection;
+	 * otherwise, as soon as the cancel is found by a probe (see
+	 * {@link InterruptibleRMISocketFactory#startServerMonitor(long)}).
+	 */
+	static final long CANCEL_ACK_TIMEOUT_MILLIS = 1000;
+
+	private final InterruptibleRMIFramedConnection connection;
+	private final InputStream input = new FramedInputStream();
+	private final OutputStream output = new FramedOutputStream();
+
+	private volatile boolean isClosed;
+
+	/**
+	 * Set on the client side once the call has been cancelled, and on the server side once the
+	 * client's cancel has been received.
+	 */
+	private volatile boolean isCallCancelled;
+
+	/**
+	 * Client side: true while a thread is reading this logical connection for its call. Guarded by
+	 * the write lock of the connection, so that a cancel is only sent while the call is in IO.
+	 */
+	private boolean isReading;
+
+	/**
+	 * Set once the physical connection has moved on to the next logical connection: on the client
+	 * side when the cancel has been acknowledged, and on the server side when the acknowledgement
+	 * has been sent.
+	 */
+	private volatile boolean isDetached;
+
+	/**
+	 * The client's timeout for the acknowledgement of a cancel, or null.
+	 */
+	private volatile InterruptibleRMITimerWheel.Timeout ackTimeout;
+
+
+
+	/**
+	 * Create a logical connection over the supplied physical connection.
+	 */
+	InterruptibleRMIFramedSocket(final InterruptibleRMIFramedConnection connection)
+	{
+		super(connection.socket);
+		this.connection = connection;
+	}
+
+
+
+	/**
+	 * Return true on the server side of the connection.
+	 */
+	private boolean isServer()
+	{
+		return this.connection.server != null;
+	}
+
+
+
+	/**
+	 * Cancel the RMI call in progress (client side only): send the cancel frame, and make sure
+	 * that the connection is reset if the cancel is not acknowledged in time. This method does
+	 * nothing unless a thread is reading this logical connection, so that a cancel that arrives
+	 * after the last read of a call never ends the logical connection that RMI reuses for the next
+	 * call. (The cancelled thread fails anyway, as its socket was taken from it while in IO.) This
+	 * method blocks while another thread is writing a frame.
+	 */
+	void cancelCall()
+	{
+		synchronized (this.connection.writeLock)
+		{
+			if (this.isClosed || this.isCallCancelled || this.isReading == false)
+			{
+				return;
+			}
+
+			this.isCallCancelled = true;
+			this.ackTimeout = InterruptibleRMITimerWheel.getInstance().schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (InterruptibleRMIFramedSocket.this.isDetached == false)
+					{
+						InterruptibleRMIFramedSocket.this.connection.reset();
+						InterruptibleRMIFramedSocket.this.connection.endpoint.replenish();
+					}
+				}
+			}, CANCEL_ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+			try
+			{
+				this.connection.writeControl(InterruptibleRMIFramedConnection.CANCEL);
+			}
+			catch (final IOException e)
+			{
+				this.connection.reset();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Handle a control frame read from the connection. Return true if the logical connection has
+	 * ended as a result.
+	 */
+	private boolean handleControlFrame(final int type) throws IOException
+	{
+		if (isServer())
+		{
+			if (type != InterruptibleRMIFramedConnection.CANCEL)
+			{
+				throw new IOException("Unexpected RMI frame type: " + type);
+			}
+
+			acknowledgeCancel();
+			return true;
+		}
+
+		if (type != InterruptibleRMIFramedConnection.CANCEL_ACK || this.isCallCancelled == false)
+		{
+			throw new IOException("Unexpected RMI frame type: " + type);
+		}
+
+		this.isDetached = true;
+		this.ackTimeout.cancel();
+		return true;
+	}
+
+
+
+	/**
+	 * Server side: acknowledge the client's cancel, and hand the physical connection back to the
+	 * server socket.
+	 */
+	private void acknowledgeCancel() throws IOException
+	{
+		synchronized (this.connection.writeLock)
+		{
+			this.isCallCancelled = true;
+
+			if (this.isClosed)
+			{
+				return;
+			}
+
+			this.isDetached = true;
+
+			try
+			{
+				this.connection.writeControl(InterruptibleRMIFramedConnection.CANCEL_ACK);
+			}
+			catch (final IOException e)
+			{
+				this.connection.close();
+				return;
+			}
+		}
+
+		this.connection.server.reaccept(this.connection);
+	}
+
+
+
+	/**
+	 * Return the result of reading this socket once the logical connection has ended: the end of
+	 * the stream on the server side, and an InterruptedIOException on the client side.
+	 */
+	private int endOfCall() throws IOException
+	{
+		if (isServer())
+		{
+			return -1;
+		}
+
+		throw new InterruptedIOException("The RMI call has been cancelled");
+	}
+
+
+
+	/**
+	 * Client side: mark this logical connection as being read.
+	 */
+	private void readStarting()
+	{
+		synchronized (this.connection.writeLock)
+		{
+			this.isReading = true;
+		}
+	}
+
+
+
+	/**
+	 * Client side: unless the call has been cancelled, mark this logical connection as no longer
+	 * being read, and return true. Otherwise return false, and the reader goes on discarding the
+	 * data of the call until the cancel is acknowledged.
+	 */
+	private boolean readEnding()
+	{
+		synchronized (this.connection.writeLock)
+		{
+			if (this.isCallCancelled)
+			{
+				return false;
+			}
+
+			this.isReading = false;
+			return true;
+		}
+	}
+
+
+
+	/**
+	 * Throw an IOException if the logical connection has ended, or is closed.
+	 */
+	private void checkWritable() throws IOException
+	{
+		if (this.isClosed)
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		if (this.isCallCancelled || this.isDetached)
+		{
+			throw new InterruptedIOException("The RMI call has been cancelled");
+		}
+	}
+
+
+
+	/**
+	 * Close the logical connection. The physical connection is closed too, unless it has moved on
+	 * to the next logical connection (in which case, on the client side, it is kept as a spare).
+	 * This method does not block.
+	 */
+	@Override
+	public void close()
+	{
+		if (this.isClosed)
+		{
+			return;
+		}
+
+		this.isClosed = true;
+
+		if (this.isDetached == false)
+		{
+			final InterruptibleRMITimerWheel.Timeout timeout = this.ackTimeout;
+
+			if (timeout != null)
+			{
+				timeout.cancel();
+			}
+
+			this.connection.close();
+		}
+		else if (isServer() == false)
+		{
+			if (this.connection.hasBufferedInput())
+			{
+				// the server sent something after the acknowledgement: don't trust the connection
+				this.connection.close();
+			}
+			else
+			{
+				this.connection.endpoint.release(this.connection.socket);
+			}
+		}
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.isClosed || this.decoratee.isClosed();
+	}
+
+
+
+	/**
+	 * Return the InputStream of this logical connection.
+	 * 
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		if (isClosed())
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		return this.input;
+	}
+
+
+
+	/**
+	 * Return the OutputStream of this logical connection.
+	 * 
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		if (isClosed())
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		return this.output;
+	}
+
+
+
+	/**
+	 * Not used, as this socket returns its own streams.
+	 */
+	@Override
+	void ioStarting()
+	{
+	// nothing to do
+	}
+
+
+
+	/**
+	 * Not used, as this socket returns its own streams.
+	 */
+	@Override
+	void ioEnding()
+	{
+	// nothing to do
+	}
+
+
+
+	/**
+	 * Return true only if object is this socket, as several logical connections share the same
+	 * physical socket over time.
+	 */
+	@Override
+	public boolean equals(final Object object)
+	{
+		return this == object;
+	}
+
+
+
+	/**
+	 * Return the identity hash code of this socket.
+	 */
+	@Override
+	public int hashCode()
+	{
+		return System.identityHashCode(this);
+	}
+
+	/**
+	 * Reads the data frames of the logical connection.
+	 */
+	private final class FramedInputStream extends InputStream
+	{
+		private final byte[] singleByte = new byte[1];
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			final int count = read(this.singleByte, 0, 1);
+			return count < 0 ? -1 : this.singleByte[0] & 0xFF;
+		}
+
+
+
+		/**
+		 * Read the data of the logical connection. On the client side, the data that follows a
+		 * cancel is discarded, including the data of a read that the cancel overtook.
+		 * 
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len <= 0)
+			{
+				return 0;
+			}
+
+			if (isServer())
+			{
+				return readFrames(b, off, len);
+			}
+
+			readStarting();
+
+			try
+			{
+				return readFrames(b, off, len);
+			}
+			finally
+			{
+				if (InterruptibleRMIFramedSocket.this.isReading)
+				{
+					synchronized (InterruptibleRMIFramedSocket.this.connection.writeLock)
+					{
+						InterruptibleRMIFramedSocket.this.isReading = false;
+					}
+				}
+			}
+		}
+
+
+
+		/**
+		 * Read frames until there is data for the caller, or the logical connection has ended.
+		 */
+		private int readFrames(final byte[] b, final int off, final int len) throws IOException
+		{
+			while (true)
+			{
+				if (InterruptibleRMIFramedSocket.this.isDetached)
+				{
+					return endOfCall();
+				}
+
+				final int type = InterruptibleRMIFramedSocket.this.connection.readFrame(true);
+
+				if (type == InterruptibleRMIFramedConnection.DATA)
+				{
+					final int count = InterruptibleRMIFramedSocket.this.connection.readData(b, off, len);
+
+					if (isServer() || readEnding())
+					{
+						return count;
+					}
+				}
+				else if (type == InterruptibleRMIFramedConnection.END_OF_STREAM)
+				{
+					return -1;
+				}
+				else
+				{
+					handleControlFrame(type);
+				}
+			}
+		}
+
+
+
+		/**
+		 * Return the number of bytes that can be read without blocking. This method looks for a
+		 * cancel frame without blocking: on the server side, once the call has been cancelled,
+		 * it returns 1, so that a probe reads the end of the stream.
+		 * 
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException
+		{
+			while (InterruptibleRMIFramedSocket.this.isDetached == false)
+			{
+				final int type = InterruptibleRMIFramedSocket.this.connection.readFrame(false);
+
+				if (type == InterruptibleRMIFramedConnection.DATA)
+				{
+					return InterruptibleRMIFramedSocket.this.connection.availableData();
+				}
+
+				if (type == InterruptibleRMIFramedConnection.NOTHING_AVAILABLE
+					|| type == InterruptibleRMIFramedConnection.END_OF_STREAM)
+				{
+					return 0;
+				}
+
+				handleControlFrame(type);
+			}
+
+			return isServer() ? 1 : 0;
+		}
+
+
+
+		/**
+		 * Close the logical connection.
+		 * 
+		 * @see InputStream#close()
+		 */
+		@Override
+		public void close()
+		{
+			InterruptibleRMIFramedSocket.this.close();
+		}
+	}
+
+	/**
+	 * Writes the data frames of the logical connection.
+	 */
+	private final class FramedOutputStream extends OutputStream
+	{
+		private final byte[] singleByte = new byte[1];
+
+
+
+		/**
+		 * @see OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException
+		{
+			synchronized (InterruptibleRMIFramedSocket.this.connection.writeLock)
+			{
+				this.singleByte[0] = (byte) b;
+				write(this.singleByte, 0, 1);
+			}
+		}
+
+
+
+		/**
+		 * Write the supplied data as data frames, unless the call has been cancelled.
+		 * 
+		 * @see OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			synchronized (InterruptibleRMIFramedSocket.this.connection.writeLock)
+			{
+				checkWritable();
+				InterruptibleRMIFramedSocket.this.connection.writeData(b, off, len);
+			}
+		}
+
+
+
+		/**
+		 * @see OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			synchronized (InterruptibleRMIFramedSocket.this.connection.writeLock)
+			{
+				checkWritable();
+				InterruptibleRMIFramedSocket.this.connection.flush();
+			}
+		}
+
+
+
+		/**
+		 * Close the logical connection.
+		 * 
+		 * @see OutputStream#close()
+		 */
+		@Override
+		public void close()
+		{
+			InterruptibleRMIFramedSocket.this.close();
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server socket for the local transport of {@link InterruptibleRMISocketFactory} (see
+ * {@link InterruptibleRMISocketFactoryConfig#isLocal()}). Besides its TCP port, it listens on the
+ * Unix domain socket file of the port (see {@link InterruptibleRMILocalSocket}), so that
+ * {@link #accept()} returns the connections of both. As {@link #accept()} must be woken by
+ * either, two daemon threads accept the connections and queue them, as in
+ * {@link InterruptibleRMIFramedServerSocket}. The socket file is deleted when this server socket is
+ * closed.
+ * 
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMILocalServerSocket extends InterruptibleRMIServerSocket
+{
+	/**
+	 * Queued to wake up the callers of {@link #accept()} when this server socket is closed.
+	 */
+	private static final Socket CLOSED = new Socket();
+
+	/**
+	 * How long an acceptor thread waits before retrying after a failed accept (e.g. when the
+	 * process has run out of file descriptors).
+	 */
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+
+	private final LinkedBlockingQueue<Socket> sockets = new LinkedBlockingQueue<Socket>();
+
+	private final ServerSocketChannel localServer;
+
+	private final int port;
+
+	private volatile boolean isClosed;
+
+
+
+	/**
+	 * Create a decorator for the supplied (bound) server socket, bind the socket file of its port,
+	 * and start accepting connections (applying the profile of the supplied configuration to the
+	 * TCP connections).
+	 */
+	InterruptibleRMILocalServerSocket(final ServerSocket decoratee,
+		final InterruptibleRMISocketFactoryConfig config) throws IOException
+	{
+		super(decoratee, config);
+		this.port = decoratee.getLocalPort();
+		this.localServer = InterruptibleRMILocalSocket.bind(this.port);
+
+		startAcceptor("InterruptibleRMI-Acceptor-" + this.port, new Runnable()
+		{
+			public void run()
+			{
+				acceptTCP();
+			}
+		});
+
+		startAcceptor("InterruptibleRMI-LocalAcceptor-" + this.port, new Runnable()
+		{
+			public void run()
+			{
+				acceptLocal();
+			}
+		});
+	}
+
+
+
+	private static void startAcceptor(final String name, final Runnable loop)
+	{
+		final Thread acceptor = new Thread(loop, name);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+
+
+	/**
+	 * Return the next TCP or Unix domain socket connection, decorated for interruptible RMI.
+	 * Honours SO_TIMEOUT.
+	 * 
+	 * @see ServerSocket#accept()
+	 */
+	@Override
+	public Socket accept() throws IOException
+	{
+		while (true)
+		{
+			final Socket socket = nextSocket();
+
+			if (socket == CLOSED)
+			{
+				// wake up the next caller too
+				this.sockets.add(CLOSED);
+				throw new SocketException("Socket is closed");
+			}
+
+			if (socket.isClosed() == false)
+			{
+				return newServerSideSocket(socket);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Take the next socket from the queue, honouring SO_TIMEOUT.
+	 */
+	private Socket nextSocket() throws IOException
+	{
+		try
+		{
+			final int timeout = this.decoratee.getSoTimeout();
+
+			if (timeout <= 0)
+			{
+				return this.sockets.take();
+			}
+
+			final Socket socket = this.sockets.poll(timeout, TimeUnit.MILLISECONDS);
+
+			if (socket == null)
+			{
+				throw new SocketTimeoutException("Accept timed out");
+			}
+
+			return socket;
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while accepting");
+		}
+	}
+
+
+
+	/**
+	 * The TCP acceptor loop: accept TCP connections, and queue them for {@link #accept()}.
+	 */
+	void acceptTCP()
+	{
+		while (this.isClosed == false)
+		{
+			try
+			{
+				queue(acceptConfigured());
+			}
+			catch (final SocketTimeoutException e)
+			{
+				// SO_TIMEOUT is applied by #accept
+			}
+			catch (final IOException e)
+			{
+				if (this.isClosed || this.decoratee.isClosed() || awaitRetry() == false)
+				{
+					break;
+				}
+			}
+		}
+
+		close();
+	}
+
+
+
+	/**
+	 * The local acceptor loop: accept Unix domain socket connections, and queue them for
+	 * {@link #accept()}.
+	 */
+	void acceptLocal()
+	{
+		while (this.isClosed == false)
+		{
+			try
+			{
+				queue(InterruptibleRMILocalSocket.accept(this.localServer, this.port));
+			}
+			catch (final IOException e)
+			{
+				if (this.isClosed || this.localServer.isOpen() == false || awaitRetry() == false)
+				{
+					break;
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Queue the supplied socket for {@link #accept()}, or close it if this server socket has been
+	 * closed.
+	 */
+	private void queue(final Socket socket)
+	{
+		this.sockets.add(socket);
+
+		if (this.isClosed)
+		{
+			closeQueuedSockets();
+		}
+	}
+
+
+
+	/**
+	 * Wait before retrying a failed accept; return false if interrupted.
+	 */
+	private static boolean awaitRetry()
+	{
+		try
+		{
+			Thread.sleep(ACCEPT_RETRY_MILLIS);
+			return true;
+		}
+		catch (final InterruptedException e)
+		{
+			return false;
+		}
+	}
+
+
+
+	/**
+	 * Close this server socket, its socket file, and the sockets that are waiting to be accepted.
+	 * 
+	 * @see ServerSocket#close()
+	 */
+	@Override
+	public void close()
+	{
+		this.isClosed = true;
+
+		try
+		{
+			super.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		try
+		{
+			this.localServer.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		InterruptibleRMILocalSocket.getPath(this.port).delete();
+		closeQueuedSockets();
+	}
+
+
+
+	/**
+	 * Close the queued sockets, and queue {@link #CLOSED} instead.
+	 */
+	private void closeQueuedSockets()
+	{
+		Socket socket;
+
+		while ((socket = this.sockets.poll()) != null)
+		{
+			if (socket != CLOSED)
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (final IOException e)
+				{
+					// just swallow this
+				}
+			}
+		}
+
+		this.sockets.add(CLOSED);
+	}
+
+
+
+	/**
+	 * @see ServerSocket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.isClosed || super.isClosed();
+	}
+}
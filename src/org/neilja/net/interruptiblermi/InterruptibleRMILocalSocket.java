@@ -0,0 +1,837 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Socket face of a connected Unix domain socket channel, for the local transport (see
+ * {@link InterruptibleRMISocketFactoryConfig#isLocal()}). It is decorated by
+ * {@link InterruptibleRMIChannelSocket}, which reads and writes the channel itself (so the local
+ * transport has the interrupt semantics of channel sockets); this class supplies the rest of the
+ * Socket API. The socket buffer sizes apply to the channel, the other TCP options are ignored,
+ * and the addresses are the loopback address and the TCP port of the endpoint, so that RMI sees a
+ * loopback connection.
+ * <p>
+ * A server socket in the local mode also listens on the socket file
+ * <code>interruptiblermi-&lt;port&gt;.sock</code> in the directory of {@link #setDirectory(File)},
+ * and a client connects to that file (rather than to the TCP port) when it exists and the host of
+ * the endpoint is an address of this host. Unix domain socket channels appeared in Java 16, so
+ * they are used reflectively: on an earlier VM, {@link #isSupported()} returns false, and the
+ * local mode uses TCP.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMILocalSocket extends Socket
+{
+	/**
+	 * The protocol family of Unix domain sockets, or null if not supported.
+	 */
+	private static final ProtocolFamily UNIX;
+
+	/**
+	 * SocketChannel#open(ProtocolFamily), ServerSocketChannel#open(ProtocolFamily), and
+	 * UnixDomainSocketAddress#of(String) (null if not supported).
+	 */
+	private static final Method openChannel, openServerChannel, addressOf;
+
+	static
+	{
+		ProtocolFamily unix = null;
+		Method open = null, openServer = null, of = null;
+
+		try
+		{
+			unix = StandardProtocolFamily.valueOf("UNIX");
+			open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+		}
+		catch (final Exception e)
+		{
+			// before Java 16
+			unix = null;
+		}
+
+		UNIX = unix;
+		openChannel = open;
+		openServerChannel = openServer;
+		addressOf = of;
+	}
+
+	/**
+	 * The directory of the socket files.
+	 */
+	private static volatile File directory = new File(System.getProperty("java.io.tmpdir"));
+
+	/**
+	 * Whether each address (other than loopback addresses) is an address of this host.
+	 */
+	private static final ConcurrentHashMap<InetAddress, Boolean> localAddresses = new ConcurrentHashMap<InetAddress, Boolean>();
+
+	private final SocketChannel channel;
+
+	/**
+	 * The TCP port of the endpoint.
+	 */
+	private final int port;
+
+	private volatile int soTimeout;
+	private volatile int soLinger = -1;
+	private volatile boolean isInputShutdown;
+	private volatile boolean isOutputShutdown;
+
+
+
+	private InterruptibleRMILocalSocket(final SocketChannel channel, final int port)
+	{
+		this.channel = channel;
+		this.port = port;
+	}
+
+
+
+	/**
+	 * Return true if Unix domain sockets are supported by this VM.
+	 */
+	static boolean isSupported()
+	{
+		return UNIX != null;
+	}
+
+
+
+	/**
+	 * Set the directory of the socket files, for server sockets created from now on, and for the
+	 * connects of clients.
+	 */
+	static void setDirectory(final File dir)
+	{
+		if (dir == null)
+		{
+			throw new NullPointerException("dir");
+		}
+
+		directory = dir;
+	}
+
+
+
+	/**
+	 * Return the directory of the socket files.
+	 */
+	static File getDirectory()
+	{
+		return directory;
+	}
+
+
+
+	/**
+	 * Return the socket file of the supplied TCP port.
+	 */
+	static File getPath(final int port)
+	{
+		return new File(directory, "interruptiblermi-" + port + ".sock");
+	}
+
+
+
+	/**
+	 * Return a socket connected to the socket file of the supplied endpoint, if it is local,
+	 * decorated by {@link InterruptibleRMIChannelSocket}; or null if the endpoint is not local, has
+	 * no socket file, or can't be connected (in which case the caller connects with TCP).
+	 */
+	static Socket connect(final String host, final int port) throws IOException
+	{
+		if (isSupported() == false)
+		{
+			return null;
+		}
+
+		final File path = getPath(port);
+
+		if (path.exists() == false || isLocal(InterruptibleRMIAddressCache.getInstance().resolve(host,
+			port)) == false)
+		{
+			return null;
+		}
+
+		final SocketChannel channel = (SocketChannel) invoke(openChannel, UNIX);
+
+		try
+		{
+			channel.connect(address(path));
+			channel.configureBlocking(false);
+		}
+		catch (final IOException e)
+		{
+			// e.g. a stale socket file; use TCP
+			channel.close();
+			return null;
+		}
+
+		return new InterruptibleRMIChannelSocket(channel, new InterruptibleRMILocalSocket(channel, port),
+			true);
+	}
+
+
+
+	/**
+	 * Return a server channel bound to the socket file of the supplied TCP port (replacing a stale
+	 * file left by a process that has exited, as the TCP port is now ours).
+	 */
+	static ServerSocketChannel bind(final int port) throws IOException
+	{
+		final File path = getPath(port);
+		path.delete();
+
+		final ServerSocketChannel server = (ServerSocketChannel) invoke(openServerChannel, UNIX);
+
+		try
+		{
+			server.bind(address(path));
+		}
+		catch (final IOException e)
+		{
+			server.close();
+			throw e;
+		}
+
+		path.deleteOnExit();
+		return server;
+	}
+
+
+
+	/**
+	 * Accept a connection from the supplied server channel (bound by {@link #bind(int)} for the
+	 * supplied TCP port), decorated by {@link InterruptibleRMIChannelSocket}.
+	 */
+	static Socket accept(final ServerSocketChannel server, final int port) throws IOException
+	{
+		final SocketChannel channel = server.accept();
+
+		try
+		{
+			channel.configureBlocking(false);
+		}
+		catch (final IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		return new InterruptibleRMIChannelSocket(channel, new InterruptibleRMILocalSocket(channel, port),
+			false);
+	}
+
+
+
+	/**
+	 * Return true if any of the supplied addresses is an address of this host.
+	 */
+	private static boolean isLocal(final InetAddress[] addresses)
+	{
+		for (final InetAddress address : addresses)
+		{
+			if (isLocal(address))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+
+	/**
+	 * Return true if the supplied address is an address of this host (the answer is cached, as
+	 * looking up the network interfaces is slow).
+	 */
+	static boolean isLocal(final InetAddress address)
+	{
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress())
+		{
+			return true;
+		}
+
+		Boolean isLocal = localAddresses.get(address);
+
+		if (isLocal == null)
+		{
+			try
+			{
+				isLocal = Boolean.valueOf(NetworkInterface.getByInetAddress(address) != null);
+			}
+			catch (final SocketException e)
+			{
+				isLocal = Boolean.FALSE;
+			}
+
+			localAddresses.put(address, isLocal);
+		}
+
+		return isLocal.booleanValue();
+	}
+
+
+
+	private static SocketAddress address(final File path) throws IOException
+	{
+		return (SocketAddress) invoke(addressOf, path.getPath());
+	}
+
+
+
+	private static Object invoke(final Method method, final Object argument) throws IOException
+	{
+		try
+		{
+			return method.invoke(null, argument);
+		}
+		catch (final InvocationTargetException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+
+			throw new IOException("Unix domain socket failure: " + e.getCause());
+		}
+		catch (final IllegalAccessException e)
+		{
+			throw new IOException("Unix domain sockets are not accessible: " + e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * Not supported: the channel is connected when this socket is created.
+	 * 
+	 * @see Socket#connect(SocketAddress, int)
+	 */
+	@Override
+	public void connect(final SocketAddress endpoint, final int timeout) throws IOException
+	{
+		throw new SocketException("Already connected");
+	}
+
+
+
+	/**
+	 * Not supported: the channel is connected when this socket is created.
+	 * 
+	 * @see Socket#bind(SocketAddress)
+	 */
+	@Override
+	public void bind(final SocketAddress bindpoint) throws IOException
+	{
+		throw new SocketException("Already bound");
+	}
+
+
+
+	/**
+	 * Close the channel.
+	 * 
+	 * @see Socket#close()
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.channel.close();
+	}
+
+
+
+	/**
+	 * @see Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.channel.isOpen() == false;
+	}
+
+
+
+	/**
+	 * @see Socket#isConnected()
+	 */
+	@Override
+	public boolean isConnected()
+	{
+		return this.channel.isConnected();
+	}
+
+
+
+	/**
+	 * @see Socket#isBound()
+	 */
+	@Override
+	public boolean isBound()
+	{
+		return true;
+	}
+
+
+
+	/**
+	 * @see Socket#shutdownInput()
+	 */
+	@Override
+	public void shutdownInput() throws IOException
+	{
+		this.channel.shutdownInput();
+		this.isInputShutdown = true;
+	}
+
+
+
+	/**
+	 * @see Socket#shutdownOutput()
+	 */
+	@Override
+	public void shutdownOutput() throws IOException
+	{
+		this.channel.shutdownOutput();
+		this.isOutputShutdown = true;
+	}
+
+
+
+	/**
+	 * @see Socket#isInputShutdown()
+	 */
+	@Override
+	public boolean isInputShutdown()
+	{
+		return this.isInputShutdown;
+	}
+
+
+
+	/**
+	 * @see Socket#isOutputShutdown()
+	 */
+	@Override
+	public boolean isOutputShutdown()
+	{
+		return this.isOutputShutdown;
+	}
+
+
+
+	/**
+	 * Not supported: {@link InterruptibleRMIChannelSocket} reads the channel itself.
+	 * 
+	 * @see Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		throw new SocketException("Use the channel");
+	}
+
+
+
+	/**
+	 * Not supported: {@link InterruptibleRMIChannelSocket} writes the channel itself.
+	 * 
+	 * @see Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		throw new SocketException("Use the channel");
+	}
+
+
+
+	/**
+	 * @see Socket#getChannel()
+	 */
+	@Override
+	public SocketChannel getChannel()
+	{
+		return this.channel;
+	}
+
+
+
+	/**
+	 * Return the loopback address.
+	 * 
+	 * @see Socket#getInetAddress()
+	 */
+	@Override
+	public InetAddress getInetAddress()
+	{
+		return InetAddress.getLoopbackAddress();
+	}
+
+
+
+	/**
+	 * Return the TCP port of the endpoint.
+	 * 
+	 * @see Socket#getPort()
+	 */
+	@Override
+	public int getPort()
+	{
+		return this.port;
+	}
+
+
+
+	/**
+	 * Return the loopback address.
+	 * 
+	 * @see Socket#getLocalAddress()
+	 */
+	@Override
+	public InetAddress getLocalAddress()
+	{
+		return InetAddress.getLoopbackAddress();
+	}
+
+
+
+	/**
+	 * Return 0, as the socket has no local port.
+	 * 
+	 * @see Socket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort()
+	{
+		return 0;
+	}
+
+
+
+	/**
+	 * @see Socket#getRemoteSocketAddress()
+	 */
+	@Override
+	public SocketAddress getRemoteSocketAddress()
+	{
+		return new InetSocketAddress(getInetAddress(), this.port);
+	}
+
+
+
+	/**
+	 * @see Socket#getLocalSocketAddress()
+	 */
+	@Override
+	public SocketAddress getLocalSocketAddress()
+	{
+		return new InetSocketAddress(getLocalAddress(), 0);
+	}
+
+
+
+	/**
+	 * @see Socket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout()
+	{
+		return this.soTimeout;
+	}
+
+
+
+	/**
+	 * Set the timeout of reads, which {@link InterruptibleRMIChannelSocket} honours.
+	 * 
+	 * @see Socket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(final int timeout) throws SocketException
+	{
+		if (timeout < 0)
+		{
+			throw new IllegalArgumentException("timeout can't be negative");
+		}
+
+		this.soTimeout = timeout;
+	}
+
+
+
+	/**
+	 * @see Socket#getSoLinger()
+	 */
+	@Override
+	public int getSoLinger()
+	{
+		return this.soLinger;
+	}
+
+
+
+	/**
+	 * Record the setting, which has no effect: closing a Unix domain socket discards unsent data.
+	 * 
+	 * @see Socket#setSoLinger(boolean, int)
+	 */
+	@Override
+	public void setSoLinger(final boolean on, final int linger)
+	{
+		this.soLinger = on ? Math.min(linger, 65535) : -1;
+	}
+
+
+
+	/**
+	 * @see Socket#getSendBufferSize()
+	 */
+	@Override
+	public int getSendBufferSize() throws SocketException
+	{
+		try
+		{
+			return this.channel.getOption(StandardSocketOptions.SO_SNDBUF).intValue();
+		}
+		catch (final IOException e)
+		{
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * @see Socket#setSendBufferSize(int)
+	 */
+	@Override
+	public void setSendBufferSize(final int size) throws SocketException
+	{
+		try
+		{
+			this.channel.setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(size));
+		}
+		catch (final IOException e)
+		{
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * @see Socket#getReceiveBufferSize()
+	 */
+	@Override
+	public int getReceiveBufferSize() throws SocketException
+	{
+		try
+		{
+			return this.channel.getOption(StandardSocketOptions.SO_RCVBUF).intValue();
+		}
+		catch (final IOException e)
+		{
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * @see Socket#setReceiveBufferSize(int)
+	 */
+	@Override
+	public void setReceiveBufferSize(final int size) throws SocketException
+	{
+		try
+		{
+			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(size));
+		}
+		catch (final IOException e)
+		{
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * Return true, as Unix domain sockets do not delay small writes.
+	 * 
+	 * @see Socket#getTcpNoDelay()
+	 */
+	@Override
+	public boolean getTcpNoDelay()
+	{
+		return true;
+	}
+
+
+
+	/**
+	 * Ignored.
+	 * 
+	 * @see Socket#setTcpNoDelay(boolean)
+	 */
+	@Override
+	public void setTcpNoDelay(final boolean on)
+	{
+		// not applicable
+	}
+
+
+
+	/**
+	 * @see Socket#getKeepAlive()
+	 */
+	@Override
+	public boolean getKeepAlive()
+	{
+		return false;
+	}
+
+
+
+	/**
+	 * Ignored.
+	 * 
+	 * @see Socket#setKeepAlive(boolean)
+	 */
+	@Override
+	public void setKeepAlive(final boolean on)
+	{
+		// not applicable
+	}
+
+
+
+	/**
+	 * @see Socket#getTrafficClass()
+	 */
+	@Override
+	public int getTrafficClass()
+	{
+		return 0;
+	}
+
+
+
+	/**
+	 * Ignored.
+	 * 
+	 * @see Socket#setTrafficClass(int)
+	 */
+	@Override
+	public void setTrafficClass(final int tc)
+	{
+		// not applicable
+	}
+
+
+
+	/**
+	 * @see Socket#getOOBInline()
+	 */
+	@Override
+	public boolean getOOBInline()
+	{
+		return false;
+	}
+
+
+
+	/**
+	 * Ignored.
+	 * 
+	 * @see Socket#setOOBInline(boolean)
+	 */
+	@Override
+	public void setOOBInline(final boolean on)
+	{
+		// not applicable
+	}
+
+
+
+	/**
+	 * Not supported.
+	 * 
+	 * @see Socket#sendUrgentData(int)
+	 */
+	@Override
+	public void sendUrgentData(final int data) throws IOException
+	{
+		throw new SocketException("Urgent data is not supported");
+	}
+
+
+
+	/**
+	 * @see Socket#getReuseAddress()
+	 */
+	@Override
+	public boolean getReuseAddress()
+	{
+		return false;
+	}
+
+
+
+	/**
+	 * Ignored.
+	 * 
+	 * @see Socket#setReuseAddress(boolean)
+	 */
+	@Override
+	public void setReuseAddress(final boolean on)
+	{
+		// not applicable
+	}
+
+
+
+	/**
+	 * Return the name of this class and the socket file.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + getPath(this.port) + "]";
+	}
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A fair, reentrant {@link Lock} for use by RMI server code, whose waiters are tied to the RMI
+ * call they are executing. If the client cancels the call while the server RMI thread is waiting
+ * for the lock (or on one of the lock's conditions), the waiter is removed from the queue at once
+ * and the waiting method throws {@link CancellationException}; the lock is never handed to such a
+ * "zombie" waiter. On {@link #unlock()} the lock is handed directly to the longest-waiting live
+ * thread, and only that thread is woken.
+ * <p>
+ * {@link #lock()} and {@link Condition#awaitUninterruptibly()} ignore interrupts, as the
+ * {@link Lock} contract requires, but still throw {@link CancellationException} when the RMI call
+ * is cancelled. (Before a condition's await method throws, the lock is re-acquired, as usual.)
+ * Cancellation is noticed as soon as the call's {@link CancellationToken} is cancelled (see
+ * {@link InterruptibleRMISocketFactory#startServerMonitor(long)}), and in any case when the lock
+ * or a signal would otherwise be granted to the waiter. Threads that are not RMI server threads
+ * can use the lock too, in which case it behaves like a plain fair reentrant lock.
+ * </p>
+ * 
+ * @see InterruptibleRMISemaphore
+ * @author neilotoole@apache.org
+ */
+public class InterruptibleRMILock implements Lock
+{
+	final Object mutex = new Object();
+
+	private final InterruptibleRMIWaitQueue queue = new InterruptibleRMIWaitQueue(this.mutex);
+
+	/**
+	 * The thread holding the lock, or null. Guarded by mutex.
+	 */
+	private Thread owner;
+
+	/**
+	 * The number of holds on the lock by the owner. Guarded by mutex.
+	 */
+	private int holdCount = 0;
+
+
+
+	/**
+	 * Acquire the lock, waiting until it is available, and ignoring interrupts.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call being executed by the current thread is cancelled by the client
+	 * @see Lock#lock()
+	 */
+	public void lock()
+	{
+		try
+		{
+			acquire(InterruptibleRMIWaitQueue.currentToken(), 1, false, false, 0);
+		}
+		catch (final InterruptedException e)
+		{
+			// doesn't happen, as interrupts are ignored
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	/**
+	 * Acquire the lock, waiting until it is available.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call being executed by the current thread is cancelled by the client
+	 * @see Lock#lockInterruptibly()
+	 */
+	public void lockInterruptibly() throws InterruptedException
+	{
+		if (Thread.interrupted())
+		{
+			throw new InterruptedException();
+		}
+
+		acquire(InterruptibleRMIWaitQueue.currentToken(), 1, true, false, 0);
+	}
+
+
+
+	/**
+	 * Acquire the lock if it is available (and no other thread is waiting for it). Return true if
+	 * the lock was acquired.
+	 * 
+	 * @see Lock#tryLock()
+	 */
+	public boolean tryLock()
+	{
+		synchronized (this.mutex)
+		{
+			return tryAcquire(1);
+		}
+	}
+
+
+
+	/**
+	 * Acquire the lock, waiting up to the supplied timeout for it to become available. Return true
+	 * if the lock was acquired.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call being executed by the current thread is cancelled by the client
+	 * @see Lock#tryLock(long, TimeUnit)
+	 */
+	public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException
+	{
+		if (Thread.interrupted())
+		{
+			throw new InterruptedException();
+		}
+
+		return acquire(InterruptibleRMIWaitQueue.currentToken(), 1, true, true, unit.toNanos(time));
+	}
+
+
+
+	/**
+	 * Release one hold on the lock. When the last hold is released, the lock is handed to the
+	 * longest-waiting thread whose RMI call has not been cancelled (if any).
+	 * 
+	 * @throws IllegalMonitorStateException
+	 *             if the current thread does not hold the lock
+	 * @see Lock#unlock()
+	 */
+	public void unlock()
+	{
+		this.queue.probeHead();
+
+		synchronized (this.mutex)
+		{
+			checkHeldByCurrentThread();
+
+			if (--this.holdCount == 0)
+			{
+				handOff();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return a new {@link Condition} bound to this lock. Signals are only delivered to waiters
+	 * whose RMI call has not been cancelled.
+	 * 
+	 * @see Lock#newCondition()
+	 */
+	public Condition newCondition()
+	{
+		return new InterruptibleRMICondition(this);
+	}
+
+
+
+	/**
+	 * Return true if the lock is held by any thread.
+	 */
+	public boolean isLocked()
+	{
+		synchronized (this.mutex)
+		{
+			return this.owner != null;
+		}
+	}
+
+
+
+	/**
+	 * Return true if the lock is held by the current thread.
+	 */
+	public boolean isHeldByCurrentThread()
+	{
+		synchronized (this.mutex)
+		{
+			return this.owner == Thread.currentThread();
+		}
+	}
+
+
+
+	/**
+	 * Return the number of threads waiting to acquire the lock.
+	 */
+	public int getQueueLength()
+	{
+		synchronized (this.mutex)
+		{
+			return this.queue.size();
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the owner of the lock.
+	 */
+	@Override
+	public String toString()
+	{
+		synchronized (this.mutex)
+		{
+			return this.getClass().getName()
+				+ (this.owner == null ? " [unlocked]" : " [locked by " + this.owner.getName() + "]");
+		}
+	}
+
+
+
+	/**
+	 * Throw IllegalMonitorStateException if the current thread does not hold the lock. Must be
+	 * called while holding the mutex.
+	 */
+	void checkHeldByCurrentThread()
+	{
+		if (this.owner != Thread.currentThread())
+		{
+			throw new IllegalMonitorStateException();
+		}
+	}
+
+
+
+	/**
+	 * Release all holds on the lock by the current thread (which must hold the lock), and return
+	 * the number of holds released. Used by conditions. Must be called while holding the mutex.
+	 */
+	int releaseAll()
+	{
+		final int holds = this.holdCount;
+		this.holdCount = 0;
+		handOff();
+		return holds;
+	}
+
+
+
+	/**
+	 * Acquire the lock with the supplied number of holds, waiting until it is available. Return
+	 * true if the lock was acquired, or false if the timeout elapsed first.
+	 * 
+	 * @throws CancellationException
+	 *             if the supplied token is cancelled
+	 * @throws InterruptedException
+	 *             if interruptible is true and the current thread is interrupted while waiting
+	 */
+	boolean acquire(final CancellationToken token, final int holds, final boolean interruptible,
+		final boolean timed, final long nanos) throws InterruptedException
+	{
+		final InterruptibleRMIWaitQueue.Waiter waiter;
+
+		synchronized (this.mutex)
+		{
+			if (tryAcquire(holds))
+			{
+				return true;
+			}
+
+			if (timed && nanos <= 0)
+			{
+				return false;
+			}
+		}
+
+		/*
+		 * Checking the token may run cancel actions, so don't hold the mutex while doing so.
+		 */
+		token.throwIfCancelled();
+
+		synchronized (this.mutex)
+		{
+			if (tryAcquire(holds))
+			{
+				return true;
+			}
+
+			waiter = this.queue.add(token);
+			waiter.holds = holds;
+		}
+
+		/*
+		 * When the waiter is granted, handOff() has already made its thread the owner.
+		 */
+		return this.queue.await(waiter, interruptible, timed, nanos);
+	}
+
+
+
+	/**
+	 * Acquire the lock with the supplied number of holds if it is available (and no other thread
+	 * is waiting for it), or add the holds if the current thread already owns it. Must be called
+	 * while holding the mutex.
+	 */
+	private boolean tryAcquire(final int holds)
+	{
+		final Thread current = Thread.currentThread();
+
+		if (this.owner == current)
+		{
+			this.holdCount += holds;
+			return true;
+		}
+
+		if (this.owner == null && this.queue.isEmpty())
+		{
+			this.owner = current;
+			this.holdCount = holds;
+			return true;
+		}
+
+		return false;
+	}
+
+
+
+	/**
+	 * Hand the (released) lock to the longest-waiting live waiter, or mark it as unlocked. Must
+	 * be called while holding the mutex.
+	 */
+	private void handOff()
+	{
+		final InterruptibleRMIWaitQueue.Waiter waiter = this.queue.pollLive();
+
+		if (waiter == null)
+		{
+			this.owner = null;
+		}
+		else
+		{
+			this.owner = waiter.thread;
+			this.holdCount = waiter.holds;
+			InterruptibleRMIWaitQueue.grant(waiter);
+		}
+	}
+}
@@ -0,0 +1,781 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A physical (TCP) connection of the multiplexed transport of {@link InterruptibleRMISocketFactory}
+ * (see {@link InterruptibleRMISocketFactoryConfig#getMultiplexedConnections()}), which carries the
+ * logical connections ({@link InterruptibleRMIMultiplexedSocket}) of many RMI calls at once. The
+ * client starts the connection with {@link #MAGIC}, and from then on everything written to it in
+ * either direction is a frame: a type, and a four-byte (big-endian) stream id, followed by
+ * <ul>
+ * <li>{@link #OPEN}: nothing; sent by the client to open a stream, with an id greater than those
+ * of all the streams it opened before;</li>
+ * <li>{@link #DATA}: a two-byte length, and that many bytes of RMI data;</li>
+ * <li>{@link #WINDOW}: a four-byte number of bytes of the stream that the sender has read, which
+ * the receiver may send again (see below);</li>
+ * <li>{@link #CLOSE}: nothing; sent by either side when it closes the stream;</li>
+ * <li>{@link #CANCEL}: nothing; sent by the client to cancel the RMI call of the stream.</li>
+ * </ul>
+ * Each side may have at most {@link #WINDOW_SIZE} bytes of each stream in flight, so a stream
+ * whose reader is slow (or busy executing the call) never holds up the other streams. A daemon
+ * thread on each side reads the frames, and hands the data to the streams; it never writes, so
+ * the connection always drains, and a writer holding {@link #writeLock} is never blocked for
+ * long. Frames for a stream that has since been closed or cancelled are discarded, so ending a
+ * stream needs no acknowledgement. The failure of the connection, or a frame that breaks the
+ * protocol, resets all its streams.
+ * <p>
+ * On the client side, the connection belongs to its {@link InterruptibleRMIEndpoint}, which
+ * spreads the streams of the endpoint over its connections, and closes a connection that has
+ * carried no stream for {@link #IDLE_MILLIS}. On the server side, a connection whose first byte
+ * is not that of {@link #MAGIC} comes from a client that does not use the transport, and is handed
+ * to the {@link InterruptibleRMIMultiplexedServerSocket} to be accepted as a plain connection.
+ * </p>
+ * 
+ * @see InterruptibleRMIMultiplexedSocket
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIMultiplexedConnection implements Runnable
+{
+	/**
+	 * Written by the client when the connection opens.
+	 */
+	static final int MAGIC = 0x49524D58;
+
+	/**
+	 * Frame type of the opening of a stream.
+	 */
+	static final int OPEN = 1;
+
+	/**
+	 * Frame type of a data frame.
+	 */
+	static final int DATA = 2;
+
+	/**
+	 * Frame type of a window update.
+	 */
+	static final int WINDOW = 3;
+
+	/**
+	 * Frame type of the closing of a stream.
+	 */
+	static final int CLOSE = 4;
+
+	/**
+	 * Frame type of the client's request to cancel the call of a stream.
+	 */
+	static final int CANCEL = 5;
+
+	/**
+	 * The number of bytes of each stream that may be in flight in each direction.
+	 */
+	static final int WINDOW_SIZE = 256 * 1024;
+
+	/**
+	 * The maximum payload of a data frame.
+	 */
+	static final int MAX_DATA_SIZE = 16 * 1024;
+
+	/**
+	 * How long a client connection may carry no stream before it is closed (the same as the
+	 * default idle time of connections in the RMI connection cache).
+	 */
+	static final long IDLE_MILLIS = 15 * 1000;
+
+	/**
+	 * The size of a frame header (without the length of a data frame).
+	 */
+	private static final int HEADER_SIZE = 5;
+
+	/**
+	 * The size of a data frame header.
+	 */
+	private static final int DATA_HEADER_SIZE = HEADER_SIZE + 2;
+
+	/**
+	 * The physical socket.
+	 */
+	final Socket socket;
+
+	/**
+	 * The server socket that accepts the streams of this connection, or null for a client
+	 * connection.
+	 */
+	private final InterruptibleRMIMultiplexedServerSocket server;
+
+	/**
+	 * The endpoint of a client connection, or null for a server connection.
+	 */
+	private final InterruptibleRMIEndpoint endpoint;
+
+	/**
+	 * Lock held while writing a frame, so that frames are never interleaved.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * The open streams, by id.
+	 */
+	private final ConcurrentHashMap<Integer, InterruptibleRMIMultiplexedSocket> streams = new ConcurrentHashMap<Integer, InterruptibleRMIMultiplexedSocket>();
+
+	private final DataInputStream in;
+
+	/**
+	 * Guarded by {@link #writeLock}.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Guarded by {@link #writeLock}.
+	 */
+	private final byte[] header = new byte[DATA_HEADER_SIZE];
+
+	/**
+	 * The id of the last stream opened. Written by the client under {@link #writeLock}, and by
+	 * the reading thread on the server.
+	 */
+	private volatile int lastStreamId;
+
+	/**
+	 * Set when the connection is closed. Written while holding this, so that no stream is opened
+	 * once it is set.
+	 */
+	private volatile boolean isClosed;
+
+	/**
+	 * True while the idle timeout of a client connection is scheduled. Guarded by this.
+	 */
+	private boolean isIdleTimeoutScheduled;
+
+	/**
+	 * The System#nanoTime value at which a client connection last carried its last stream.
+	 */
+	private volatile long idleSinceNanos;
+
+
+
+	/**
+	 * Create a connection over the supplied physical socket. If the socket's streams can't be
+	 * obtained, the socket is closed.
+	 */
+	InterruptibleRMIMultiplexedConnection(final Socket socket,
+		final InterruptibleRMIMultiplexedServerSocket server, final InterruptibleRMIEndpoint endpoint)
+		throws IOException
+	{
+		this.socket = socket;
+		this.server = server;
+		this.endpoint = endpoint;
+
+		try
+		{
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+				4 * MAX_DATA_SIZE));
+			this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_DATA_SIZE
+				+ DATA_HEADER_SIZE);
+		}
+		catch (final IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Start the thread that reads the frames of this connection. On the client side, the magic
+	 * number is written first.
+	 */
+	void start() throws IOException
+	{
+		if (this.server == null)
+		{
+			this.writeLock.lock();
+
+			try
+			{
+				this.header[0] = (byte) (MAGIC >>> 24);
+				this.header[1] = (byte) (MAGIC >>> 16);
+				this.header[2] = (byte) (MAGIC >>> 8);
+				this.header[3] = (byte) MAGIC;
+				this.out.write(this.header, 0, 4);
+			}
+			catch (final IOException e)
+			{
+				close(e);
+				throw e;
+			}
+			finally
+			{
+				this.writeLock.unlock();
+			}
+		}
+
+		final Thread thread = new Thread(this, "InterruptibleRMI-Demultiplexer-"
+			+ (this.server == null ? this.socket.getPort() : this.socket.getLocalPort()));
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+
+	/**
+	 * Return true on the server side of the connection.
+	 */
+	boolean isServer()
+	{
+		return this.server != null;
+	}
+
+
+
+	/**
+	 * Return true if this connection has been closed.
+	 */
+	boolean isClosed()
+	{
+		return this.isClosed;
+	}
+
+
+
+	/**
+	 * Return the number of open streams.
+	 */
+	int getStreamCount()
+	{
+		return this.streams.size();
+	}
+
+
+
+	/**
+	 * Open a new stream (client side only), or return null if this connection is closed or has
+	 * run out of stream ids. The opening frame is sent with the first flush of the connection.
+	 */
+	InterruptibleRMIMultiplexedSocket openStream()
+	{
+		this.writeLock.lock();
+
+		try
+		{
+			if (this.lastStreamId == Integer.MAX_VALUE)
+			{
+				return null;
+			}
+
+			final int id = this.lastStreamId + 1;
+			final InterruptibleRMIMultiplexedSocket stream = register(id);
+
+			if (stream == null)
+			{
+				return null;
+			}
+
+			writeHeader(OPEN, id, HEADER_SIZE);
+			return stream;
+		}
+		catch (final IOException e)
+		{
+			close(e);
+			return null;
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+
+
+	/**
+	 * Add a new stream with the supplied id to the open streams, and return it; or return null if
+	 * this connection is closed.
+	 */
+	private synchronized InterruptibleRMIMultiplexedSocket register(final int id)
+	{
+		if (this.isClosed)
+		{
+			return null;
+		}
+
+		final InterruptibleRMIMultiplexedSocket stream = new InterruptibleRMIMultiplexedSocket(this,
+			id);
+		this.streams.put(Integer.valueOf(id), stream);
+		this.lastStreamId = id;
+		return stream;
+	}
+
+
+
+	/**
+	 * Remove the supplied stream from the open streams. Return true if it was open, in which case
+	 * the caller must tell the other side. A client connection that is left without streams starts
+	 * its idle timeout.
+	 */
+	boolean remove(final InterruptibleRMIMultiplexedSocket stream)
+	{
+		if (this.streams.remove(Integer.valueOf(stream.id), stream) == false)
+		{
+			return false;
+		}
+
+		if (this.endpoint != null && this.streams.isEmpty())
+		{
+			this.idleSinceNanos = System.nanoTime();
+			scheduleIdleTimeout(IDLE_MILLIS);
+		}
+
+		return true;
+	}
+
+
+
+	/**
+	 * Schedule the idle timeout of a client connection, unless it is already scheduled.
+	 */
+	private synchronized void scheduleIdleTimeout(final long delayMillis)
+	{
+		if (this.isIdleTimeoutScheduled || this.isClosed)
+		{
+			return;
+		}
+
+		this.isIdleTimeoutScheduled = true;
+		InterruptibleRMITimerWheel.getInstance().schedule(new Runnable()
+		{
+			public void run()
+			{
+				expire();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+
+	/**
+	 * Close a client connection that has carried no stream for {@link #IDLE_MILLIS}, or schedule
+	 * the timeout again if it has been idle for less. Called by the timer thread.
+	 */
+	private void expire()
+	{
+		synchronized (this)
+		{
+			this.isIdleTimeoutScheduled = false;
+
+			if (this.isClosed || this.streams.isEmpty() == false)
+			{
+				// the next stream to end starts the timeout again
+				return;
+			}
+
+			final long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- this.idleSinceNanos);
+
+			if (idleMillis < IDLE_MILLIS)
+			{
+				scheduleIdleTimeout(IDLE_MILLIS - idleMillis);
+				return;
+			}
+
+			this.isClosed = true;
+		}
+
+		closed(null);
+	}
+
+
+
+	/**
+	 * Write a data frame of the supplied stream, of at most {@link #MAX_DATA_SIZE} bytes. The data
+	 * is sent with the next flush.
+	 */
+	void writeData(final int id, final byte[] b, final int off, final int len) throws IOException
+	{
+		this.writeLock.lock();
+
+		try
+		{
+			checkOpen();
+			this.header[5] = (byte) (len >>> 8);
+			this.header[6] = (byte) len;
+			writeHeader(DATA, id, DATA_HEADER_SIZE);
+			this.out.write(b, off, len);
+		}
+		catch (final IOException e)
+		{
+			close(e);
+			throw e;
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+
+
+	/**
+	 * Flush the frames written so far.
+	 */
+	void flush() throws IOException
+	{
+		this.writeLock.lock();
+
+		try
+		{
+			checkOpen();
+			this.out.flush();
+		}
+		catch (final IOException e)
+		{
+			close(e);
+			throw e;
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+
+
+	/**
+	 * Write and flush a window update of the supplied stream.
+	 */
+	void writeWindow(final int id, final int increment) throws IOException
+	{
+		this.writeLock.lock();
+
+		try
+		{
+			checkOpen();
+			this.header[5] = (byte) (increment >>> 24);
+			this.header[6] = (byte) (increment >>> 16);
+			writeHeader(WINDOW, id, DATA_HEADER_SIZE);
+			this.out.write(increment >>> 8);
+			this.out.write(increment);
+			this.out.flush();
+		}
+		catch (final IOException e)
+		{
+			close(e);
+			throw e;
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+
+
+	/**
+	 * Write and flush a {@link #CLOSE} or {@link #CANCEL} frame of the supplied stream, without
+	 * blocking: if another thread is writing a frame, the frame is written by a background thread
+	 * once it is done.
+	 */
+	void writeControl(final int type, final int id)
+	{
+		if (this.writeLock.tryLock())
+		{
+			writeControlLocked(type, id);
+			return;
+		}
+
+		InterruptibleRMIConnector.execute(new Runnable()
+		{
+			public void run()
+			{
+				InterruptibleRMIMultiplexedConnection.this.writeLock.lock();
+				writeControlLocked(type, id);
+			}
+		});
+	}
+
+
+
+	/**
+	 * Write and flush a control frame, and release {@link #writeLock}, which the caller holds.
+	 */
+	private void writeControlLocked(final int type, final int id)
+	{
+		try
+		{
+			if (this.isClosed == false)
+			{
+				writeHeader(type, id, HEADER_SIZE);
+				this.out.flush();
+			}
+		}
+		catch (final IOException e)
+		{
+			close(e);
+		}
+		finally
+		{
+			this.writeLock.unlock();
+		}
+	}
+
+
+
+	/**
+	 * Write the type and id of a frame, followed by the rest of the supplied header size from
+	 * {@link #header}. The caller must hold {@link #writeLock}.
+	 */
+	private void writeHeader(final int type, final int id, final int size) throws IOException
+	{
+		this.header[0] = (byte) type;
+		this.header[1] = (byte) (id >>> 24);
+		this.header[2] = (byte) (id >>> 16);
+		this.header[3] = (byte) (id >>> 8);
+		this.header[4] = (byte) id;
+		this.out.write(this.header, 0, size);
+	}
+
+
+
+	private void checkOpen() throws SocketException
+	{
+		if (this.isClosed)
+		{
+			throw new SocketException("Connection reset");
+		}
+	}
+
+
+
+	/**
+	 * The reading loop: read the frames of this connection, and hand them to their streams, until
+	 * the connection ends.
+	 */
+	public void run()
+	{
+		IOException failure = null;
+
+		try
+		{
+			if (isServer() && readMagic() == false)
+			{
+				// handed over as a plain connection
+				return;
+			}
+
+			while (true)
+			{
+				final int type = this.in.read();
+
+				if (type < 0)
+				{
+					break;
+				}
+
+				readFrame(type, this.in.readInt());
+			}
+		}
+		catch (final IOException e)
+		{
+			failure = e;
+		}
+
+		close(failure == null ? new EOFException("Connection closed by peer") : failure);
+	}
+
+
+
+	/**
+	 * Server side: read the magic number, and return true; or, if the first byte shows that the
+	 * client does not use the transport, hand the socket (with that byte) to the server socket to
+	 * be accepted as a plain connection, and return false. The first byte is read from the socket
+	 * itself, so that no more of a plain connection is buffered.
+	 */
+	private boolean readMagic() throws IOException
+	{
+		final int first = this.socket.getInputStream().read();
+
+		if (first < 0)
+		{
+			throw new EOFException("Connection closed by peer");
+		}
+
+		if (first != MAGIC >>> 24)
+		{
+			this.server.enqueuePlain(this.socket, first);
+			return false;
+		}
+
+		if ((first << 24 | this.in.readUnsignedByte() << 16 | this.in.readUnsignedShort()) != MAGIC)
+		{
+			throw new IOException("Not a multiplexed RMI connection");
+		}
+
+		return true;
+	}
+
+
+
+	/**
+	 * Read the rest of a frame of the supplied type and stream, and handle it.
+	 */
+	private void readFrame(final int type, final int id) throws IOException
+	{
+		if (type == OPEN && isServer())
+		{
+			if (id <= this.lastStreamId)
+			{
+				throw new IOException("Reused RMI stream id: " + id);
+			}
+
+			final InterruptibleRMIMultiplexedSocket stream = register(id);
+
+			if (stream != null)
+			{
+				this.server.enqueue(stream);
+			}
+
+			return;
+		}
+
+		if (id <= 0 || id > this.lastStreamId)
+		{
+			throw new IOException("Unknown RMI stream id: " + id);
+		}
+
+		// null if the stream has been closed or cancelled, in which case the frame is discarded
+		final InterruptibleRMIMultiplexedSocket stream = this.streams.get(Integer.valueOf(id));
+
+		if (type == DATA)
+		{
+			final int length = this.in.readUnsignedShort();
+
+			if (length == 0 || length > MAX_DATA_SIZE)
+			{
+				throw new IOException("Invalid RMI data frame length: " + length);
+			}
+
+			final byte[] data = new byte[length];
+			this.in.readFully(data);
+
+			if (stream != null)
+			{
+				stream.received(data);
+			}
+		}
+		else if (type == WINDOW)
+		{
+			final int increment = this.in.readInt();
+
+			if (increment <= 0 || increment > WINDOW_SIZE)
+			{
+				throw new IOException("Invalid RMI window update: " + increment);
+			}
+
+			if (stream != null)
+			{
+				stream.credited(increment);
+			}
+		}
+		else if (type == CLOSE || (type == CANCEL && isServer()))
+		{
+			if (stream != null && this.streams.remove(Integer.valueOf(id), stream))
+			{
+				stream.endedByPeer(type == CANCEL);
+			}
+		}
+		else
+		{
+			throw new IOException("Unexpected RMI frame type: " + type);
+		}
+	}
+
+
+
+	/**
+	 * Close the physical connection, and reset its streams with the supplied failure (or as
+	 * closed, if it is null). A client connection is removed from its endpoint.
+	 */
+	void close(final IOException failure)
+	{
+		synchronized (this)
+		{
+			if (this.isClosed)
+			{
+				return;
+			}
+
+			this.isClosed = true;
+		}
+
+		closed(failure);
+	}
+
+
+
+	/**
+	 * Close the physical connection, once {@link #isClosed} has been set, and reset the streams
+	 * that were open at that point.
+	 */
+	private void closed(final IOException failure)
+	{
+		try
+		{
+			this.socket.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		final IOException reset = failure == null ? new SocketException("Connection closed")
+			: failure;
+
+		for (final InterruptibleRMIMultiplexedSocket stream : this.streams.values())
+		{
+			stream.reset(reset);
+		}
+
+		this.streams.clear();
+
+		if (this.endpoint != null)
+		{
+			this.endpoint.removeMultiplexed(this);
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this class, the physical socket, and the number of open streams.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + this.socket + ", streams=" + this.streams.size()
+			+ "]";
+	}
+}
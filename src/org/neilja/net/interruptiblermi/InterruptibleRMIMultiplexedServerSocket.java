@@ -0,0 +1,302 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server socket for the multiplexed transport of {@link InterruptibleRMISocketFactory}.
+ * {@link #accept()} returns the streams that clients open over their physical connections (see
+ * {@link InterruptibleRMIMultiplexedConnection}), so that the RMI transport serves each stream as
+ * a connection of its own. A daemon thread accepts the physical connections, and the reading
+ * thread of each connection queues its new streams for {@link #accept()}. A connection that does
+ * not start with {@link InterruptibleRMIMultiplexedConnection#MAGIC}, from a client that does not
+ * use the transport (e.g. one that predates it), is queued as it is, and accepted as a plain
+ * connection.
+ * 
+ * @see InterruptibleRMIMultiplexedSocket
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIMultiplexedServerSocket extends InterruptibleRMIServerSocket implements Runnable
+{
+	/**
+	 * Queued to wake up the callers of {@link #accept()} when this server socket is closed.
+	 */
+	private static final Object CLOSED = new Object();
+
+	/**
+	 * How long the acceptor thread waits before retrying after a failed accept (e.g. when the
+	 * process has run out of file descriptors).
+	 */
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+
+	/**
+	 * The streams and plain connections waiting to be accepted, and {@link #CLOSED}.
+	 */
+	private final LinkedBlockingQueue<Object> streams = new LinkedBlockingQueue<Object>();
+
+	private volatile boolean isClosed;
+
+	private final Thread acceptor;
+
+
+
+	/**
+	 * Create a decorator for the supplied (bound) server socket, and start accepting connections
+	 * (applying the profile of the supplied configuration to them).
+	 */
+	InterruptibleRMIMultiplexedServerSocket(final ServerSocket decoratee,
+		final InterruptibleRMISocketFactoryConfig config) throws IOException
+	{
+		super(decoratee, config);
+
+		this.acceptor = new Thread(this, "InterruptibleRMI-Acceptor-" + decoratee.getLocalPort());
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+
+
+	/**
+	 * Return the next stream opened by a client (or plain connection), decorated for interruptible
+	 * RMI. Honours SO_TIMEOUT.
+	 * 
+	 * @see ServerSocket#accept()
+	 */
+	@Override
+	public Socket accept() throws IOException
+	{
+		while (true)
+		{
+			final Object stream = nextStream();
+
+			if (stream == CLOSED)
+			{
+				// wake up the next caller too
+				this.streams.add(CLOSED);
+				throw new SocketException("Socket is closed");
+			}
+
+			if (stream instanceof PlainConnection)
+			{
+				final PlainConnection plain = (PlainConnection) stream;
+				return newServerSideSocket(plain.socket, plain.firstByte);
+			}
+
+			final InterruptibleRMIMultiplexedSocket socket = (InterruptibleRMIMultiplexedSocket) stream;
+
+			if (socket.isEndedByPeer() == false)
+			{
+				return newServerSideSocket(socket);
+			}
+
+			socket.close();
+		}
+	}
+
+
+
+	/**
+	 * Take the next stream from the queue, honouring SO_TIMEOUT.
+	 */
+	private Object nextStream() throws IOException
+	{
+		try
+		{
+			final int timeout = this.decoratee.getSoTimeout();
+
+			if (timeout <= 0)
+			{
+				return this.streams.take();
+			}
+
+			final Object stream = this.streams.poll(timeout, TimeUnit.MILLISECONDS);
+
+			if (stream == null)
+			{
+				throw new SocketTimeoutException("Accept timed out");
+			}
+
+			return stream;
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while accepting");
+		}
+	}
+
+
+
+	/**
+	 * Queue the supplied stream, just opened by a client, to be accepted, or close it if this
+	 * server socket has been closed. Called by the reading thread of its connection.
+	 */
+	void enqueue(final InterruptibleRMIMultiplexedSocket stream)
+	{
+		this.streams.add(stream);
+
+		if (this.isClosed)
+		{
+			closeQueuedStreams();
+		}
+	}
+
+
+
+	/**
+	 * Queue the supplied physical connection, whose first byte (supplied) shows that it does not
+	 * use the multiplexed transport, to be accepted as a plain connection, or close it if this
+	 * server socket has been closed. Called by the reading thread of the connection.
+	 */
+	void enqueuePlain(final Socket socket, final int firstByte)
+	{
+		this.streams.add(new PlainConnection(socket, firstByte));
+
+		if (this.isClosed)
+		{
+			closeQueuedStreams();
+		}
+	}
+
+
+
+	/**
+	 * The acceptor loop: accept physical connections, and start reading their frames.
+	 */
+	public void run()
+	{
+		while (this.isClosed == false)
+		{
+			try
+			{
+				new InterruptibleRMIMultiplexedConnection(acceptConfigured(), this, null).start();
+			}
+			catch (final SocketTimeoutException e)
+			{
+				// SO_TIMEOUT is applied by #accept
+			}
+			catch (final IOException e)
+			{
+				if (this.isClosed || this.decoratee.isClosed())
+				{
+					break;
+				}
+
+				try
+				{
+					Thread.sleep(ACCEPT_RETRY_MILLIS);
+				}
+				catch (final InterruptedException ie)
+				{
+					break;
+				}
+			}
+		}
+
+		close();
+	}
+
+
+
+	/**
+	 * Close this server socket, and the streams that are waiting to be accepted. The physical
+	 * connections carry on with the streams that have been accepted, as TCP connections outlive
+	 * their server socket.
+	 * 
+	 * @see ServerSocket#close()
+	 */
+	@Override
+	public void close()
+	{
+		this.isClosed = true;
+
+		try
+		{
+			super.close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+
+		closeQueuedStreams();
+	}
+
+
+
+	/**
+	 * Close the queued streams and plain connections, and queue {@link #CLOSED} instead.
+	 */
+	private void closeQueuedStreams()
+	{
+		Object stream;
+
+		while ((stream = this.streams.poll()) != null)
+		{
+			if (stream instanceof PlainConnection)
+			{
+				try
+				{
+					((PlainConnection) stream).socket.close();
+				}
+				catch (final IOException e)
+				{
+					// just swallow this
+				}
+			}
+			else if (stream != CLOSED)
+			{
+				((InterruptibleRMIMultiplexedSocket) stream).close();
+			}
+		}
+
+		this.streams.add(CLOSED);
+	}
+
+
+
+	/**
+	 * @see ServerSocket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.isClosed || super.isClosed();
+	}
+
+	/**
+	 * A physical connection that does not use the multiplexed transport, and its first byte.
+	 */
+	private static final class PlainConnection
+	{
+		final Socket socket;
+		final int firstByte;
+
+
+
+		PlainConnection(final Socket socket, final int firstByte)
+		{
+			this.socket = socket;
+			this.firstByte = firstByte;
+		}
+	}
+}
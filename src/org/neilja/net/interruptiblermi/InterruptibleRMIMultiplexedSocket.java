@@ -0,0 +1,766 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A logical connection (a stream) of an {@link InterruptibleRMIMultiplexedConnection}, as seen by
+ * the RMI transport through the decoration of {@link InterruptibleRMIClientSocket} or
+ * {@link InterruptibleRMIServerSideSocket}. The data received for the stream is queued here by
+ * the reading thread of the connection, and its readers and writers wait on this socket's monitor
+ * (for data, and for window to send, respectively). The stream ends without affecting the other
+ * streams of the connection:
+ * <ul>
+ * <li>On the client side, {@link #cancelCall()} sends
+ * {@link InterruptibleRMIMultiplexedConnection#CANCEL}, discards the data received for the call,
+ * and wakes the waiting threads, which fail with an InterruptedIOException. Any thread that is
+ * interrupted while it waits cancels the call the same way, whether or not it has a cancel
+ * handle.</li>
+ * <li>On the server side, the cancel (or the client closing the stream) is noted at once by the
+ * reading thread of the connection: from then on reads return the end of the stream (which a
+ * probe of {@link InterruptibleRMIServerSideSocket} reports as a cancelled call, and which
+ * {@link #isEndedByPeer()} reports without one), and writes fail.</li>
+ * </ul>
+ * Reads honour the SO_TIMEOUT of this socket, which is kept apart from that of the shared
+ * physical socket. Other socket options are forwarded to the physical socket, except SO_LINGER,
+ * as closing this socket never closes the physical connection.
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMIMultiplexedSocket extends InterruptibleRMISocket
+{
+	/**
+	 * The physical connection.
+	 */
+	private final InterruptibleRMIMultiplexedConnection connection;
+
+	/**
+	 * The stream id.
+	 */
+	final int id;
+
+	private final InputStream input = new MultiplexedInputStream();
+	private final OutputStream output = new MultiplexedOutputStream();
+
+	/**
+	 * The data received and not read yet, in frames. Guarded by this.
+	 */
+	private final LinkedList<byte[]> received = new LinkedList<byte[]>();
+
+	/**
+	 * The number of bytes of the first frame of {@link #received} that have been read. Guarded by
+	 * this.
+	 */
+	private int receivedOffset;
+
+	/**
+	 * The number of bytes received and not read yet. Guarded by this.
+	 */
+	private int receivedCount;
+
+	/**
+	 * The number of bytes read and not yet reported to the sender in a window update. Guarded by
+	 * this.
+	 */
+	private int readCount;
+
+	/**
+	 * The number of bytes that may be sent before the receiver reports that it has read them.
+	 * Guarded by this.
+	 */
+	private int sendWindow = InterruptibleRMIMultiplexedConnection.WINDOW_SIZE;
+
+	private volatile boolean isClosed;
+
+	/**
+	 * Set on the client side once the call has been cancelled, and on the server side once the
+	 * client has cancelled the call.
+	 */
+	private volatile boolean isCallCancelled;
+
+	/**
+	 * Set once the other side has closed the stream.
+	 */
+	private volatile boolean isClosedByPeer;
+
+	/**
+	 * The failure of the physical connection, or null.
+	 */
+	private volatile IOException failure;
+
+	private volatile int soTimeout;
+
+
+
+	/**
+	 * Create a stream of the supplied physical connection.
+	 */
+	InterruptibleRMIMultiplexedSocket(final InterruptibleRMIMultiplexedConnection connection,
+		final int id)
+	{
+		super(connection.socket);
+		this.connection = connection;
+		this.id = id;
+	}
+
+
+
+	/**
+	 * Cancel the RMI call of this stream (client side only): send the cancel frame, and wake the
+	 * threads waiting on the stream. This method does not block.
+	 */
+	void cancelCall()
+	{
+		synchronized (this)
+		{
+			if (this.isClosed || this.isCallCancelled)
+			{
+				return;
+			}
+
+			this.isCallCancelled = true;
+			discardReceived();
+		}
+
+		if (this.connection.remove(this))
+		{
+			this.connection.writeControl(InterruptibleRMIMultiplexedConnection.CANCEL, this.id);
+		}
+	}
+
+
+
+	/**
+	 * Return true on the server side once the client has cancelled the call or closed the
+	 * stream, or once the physical connection has failed.
+	 */
+	boolean isEndedByPeer()
+	{
+		return this.isCallCancelled || this.isClosedByPeer || this.failure != null;
+	}
+
+
+
+	/**
+	 * Queue the supplied data frame, received by the reading thread of the connection.
+	 */
+	synchronized void received(final byte[] data) throws IOException
+	{
+		if (this.isClosed || this.isCallCancelled)
+		{
+			return;
+		}
+
+		if (this.receivedCount + data.length > InterruptibleRMIMultiplexedConnection.WINDOW_SIZE)
+		{
+			throw new IOException("RMI stream window exceeded: " + this.id);
+		}
+
+		this.received.add(data);
+		this.receivedCount += data.length;
+		notifyAll();
+	}
+
+
+
+	/**
+	 * Add the supplied window update, received by the reading thread of the connection, to the
+	 * window.
+	 */
+	synchronized void credited(final int increment) throws IOException
+	{
+		if (this.sendWindow + increment > InterruptibleRMIMultiplexedConnection.WINDOW_SIZE)
+		{
+			throw new IOException("RMI stream window overflow: " + this.id);
+		}
+
+		this.sendWindow += increment;
+		notifyAll();
+	}
+
+
+
+	/**
+	 * Note that the other side has closed the stream, or (if cancelled is true) cancelled the
+	 * call. Called by the reading thread of the connection, once it has removed the stream.
+	 */
+	synchronized void endedByPeer(final boolean cancelled)
+	{
+		if (cancelled)
+		{
+			this.isCallCancelled = true;
+			discardReceived();
+		}
+		else
+		{
+			this.isClosedByPeer = true;
+		}
+
+		notifyAll();
+	}
+
+
+
+	/**
+	 * Note the failure of the physical connection, and wake the waiting threads.
+	 */
+	synchronized void reset(final IOException cause)
+	{
+		this.failure = cause;
+		discardReceived();
+		notifyAll();
+	}
+
+
+
+	/**
+	 * Discard the data received and not read yet, and wake the waiting threads. The caller holds
+	 * this.
+	 */
+	private void discardReceived()
+	{
+		this.received.clear();
+		this.receivedOffset = 0;
+		this.receivedCount = 0;
+		notifyAll();
+	}
+
+
+
+	/**
+	 * Wait on this socket's monitor until notified, or until the supplied System#nanoTime deadline
+	 * (0 for none). If the thread is interrupted, the call is cancelled on the client side, and the
+	 * stream is closed on the server side. The caller holds this.
+	 */
+	private void await(final long deadlineNanos) throws IOException
+	{
+		long timeoutMillis = 0;
+
+		if (deadlineNanos != 0)
+		{
+			final long remainingNanos = deadlineNanos - System.nanoTime();
+
+			if (remainingNanos <= 0)
+			{
+				throw new SocketTimeoutException("Read timed out");
+			}
+
+			timeoutMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(remainingNanos), 1);
+		}
+
+		try
+		{
+			wait(timeoutMillis);
+		}
+		catch (final InterruptedException e)
+		{
+			// keep the interrupt status, as an interrupted channel does
+			Thread.currentThread().interrupt();
+
+			if (this.connection.isServer())
+			{
+				close();
+			}
+			else
+			{
+				cancelCall();
+			}
+
+			throw new InterruptedIOException("The RMI call was interrupted");
+		}
+	}
+
+
+
+	/**
+	 * Throw an IOException if the stream has ended, or is closed.
+	 */
+	private void checkWritable() throws IOException
+	{
+		if (this.isClosed)
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		if (this.isCallCancelled)
+		{
+			throw new InterruptedIOException("The RMI call has been cancelled");
+		}
+
+		final IOException cause = this.failure;
+
+		if (cause != null)
+		{
+			throw new SocketException(cause.getMessage());
+		}
+
+		if (this.isClosedByPeer)
+		{
+			throw new SocketException("Socket closed by peer");
+		}
+	}
+
+
+
+	/**
+	 * Close the stream, and tell the other side (unless the stream has already ended). The
+	 * physical connection is left open for the other streams. This method does not block.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (this.isClosed)
+			{
+				return;
+			}
+
+			this.isClosed = true;
+			discardReceived();
+		}
+
+		if (this.connection.remove(this))
+		{
+			this.connection.writeControl(InterruptibleRMIMultiplexedConnection.CLOSE, this.id);
+		}
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.isClosed;
+	}
+
+
+
+	/**
+	 * Return the InputStream of this stream.
+	 * 
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		if (this.isClosed)
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		return this.input;
+	}
+
+
+
+	/**
+	 * Return the OutputStream of this stream.
+	 * 
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		if (this.isClosed)
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		return this.output;
+	}
+
+
+
+	/**
+	 * Return the SO_TIMEOUT of this stream.
+	 * 
+	 * @see java.net.Socket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout()
+	{
+		return this.soTimeout;
+	}
+
+
+
+	/**
+	 * Set the SO_TIMEOUT of this stream, which does not affect the physical socket.
+	 * 
+	 * @see java.net.Socket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(final int timeout) throws SocketException
+	{
+		if (timeout < 0)
+		{
+			throw new IllegalArgumentException("timeout can't be negative");
+		}
+
+		this.soTimeout = timeout;
+	}
+
+
+
+	/**
+	 * Ignored, as closing this socket never closes the physical connection.
+	 * 
+	 * @see java.net.Socket#setSoLinger(boolean, int)
+	 */
+	@Override
+	public void setSoLinger(final boolean on, final int linger)
+	{
+	// nothing to do
+	}
+
+
+
+	/**
+	 * Not supported, as the physical connection is shared.
+	 * 
+	 * @see java.net.Socket#shutdownInput()
+	 */
+	@Override
+	public void shutdownInput() throws IOException
+	{
+		throw new SocketException("Not supported by multiplexed sockets");
+	}
+
+
+
+	/**
+	 * Not supported, as the physical connection is shared.
+	 * 
+	 * @see java.net.Socket#shutdownOutput()
+	 */
+	@Override
+	public void shutdownOutput() throws IOException
+	{
+		throw new SocketException("Not supported by multiplexed sockets");
+	}
+
+
+
+	/**
+	 * Not used, as this socket returns its own streams.
+	 */
+	@Override
+	void ioStarting()
+	{
+	// nothing to do
+	}
+
+
+
+	/**
+	 * Not used, as this socket returns its own streams.
+	 */
+	@Override
+	void ioEnding()
+	{
+	// nothing to do
+	}
+
+
+
+	/**
+	 * Return true only if object is this socket, as many streams share the same physical socket.
+	 */
+	@Override
+	public boolean equals(final Object object)
+	{
+		return this == object;
+	}
+
+
+
+	/**
+	 * Return the identity hash code of this socket.
+	 */
+	@Override
+	public int hashCode()
+	{
+		return System.identityHashCode(this);
+	}
+
+
+
+	/**
+	 * Return the name of this class, the stream id, and the physical socket.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [stream=" + this.id + ", " + this.decoratee + "]";
+	}
+
+	/**
+	 * Reads the data received for the stream.
+	 */
+	private final class MultiplexedInputStream extends InputStream
+	{
+		private final byte[] singleByte = new byte[1];
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			final int count = read(this.singleByte, 0, 1);
+			return count < 0 ? -1 : this.singleByte[0] & 0xFF;
+		}
+
+
+
+		/**
+		 * Read the data received for the stream, waiting for it if necessary. Once half the window
+		 * has been read, a window update is sent.
+		 * 
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len <= 0)
+			{
+				return 0;
+			}
+
+			final InterruptibleRMIMultiplexedSocket stream = InterruptibleRMIMultiplexedSocket.this;
+			int count = 0;
+			int increment = 0;
+
+			synchronized (stream)
+			{
+				final int timeoutMillis = stream.soTimeout;
+				// (a deadline that happens to be 0 is moved by a nanosecond, as 0 means none)
+				final long deadlineNanos = timeoutMillis > 0 ? System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis) | 1 : 0;
+
+				while (true)
+				{
+					if (stream.isClosed)
+					{
+						throw new SocketException("Socket is closed");
+					}
+
+					if (stream.isCallCancelled)
+					{
+						if (stream.connection.isServer())
+						{
+							return -1;
+						}
+
+						throw new InterruptedIOException("The RMI call has been cancelled");
+					}
+
+					if (stream.receivedCount > 0)
+					{
+						break;
+					}
+
+					final IOException cause = stream.failure;
+
+					if (cause != null)
+					{
+						throw new SocketException(cause.getMessage());
+					}
+
+					if (stream.isClosedByPeer)
+					{
+						return -1;
+					}
+
+					stream.await(deadlineNanos);
+				}
+
+				while (count < len && stream.receivedCount > 0)
+				{
+					final byte[] data = stream.received.getFirst();
+					final int n = Math.min(len - count, data.length - stream.receivedOffset);
+					System.arraycopy(data, stream.receivedOffset, b, off + count, n);
+					count += n;
+					stream.receivedCount -= n;
+					stream.receivedOffset += n;
+
+					if (stream.receivedOffset == data.length)
+					{
+						stream.received.removeFirst();
+						stream.receivedOffset = 0;
+					}
+				}
+
+				stream.readCount += count;
+
+				if (stream.readCount >= InterruptibleRMIMultiplexedConnection.WINDOW_SIZE / 2
+					&& stream.isClosedByPeer == false)
+				{
+					increment = stream.readCount;
+					stream.readCount = 0;
+				}
+			}
+
+			if (increment > 0)
+			{
+				try
+				{
+					stream.connection.writeWindow(stream.id, increment);
+				}
+				catch (final IOException e)
+				{
+					// the data has been read; the failure is reported by the next operation
+				}
+			}
+
+			return count;
+		}
+
+
+
+		/**
+		 * Return the number of bytes received and not read yet. On the server side, once the
+		 * stream has ended, this returns 1, so that a probe reads the end of the stream.
+		 * 
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available()
+		{
+			final InterruptibleRMIMultiplexedSocket stream = InterruptibleRMIMultiplexedSocket.this;
+
+			synchronized (stream)
+			{
+				if (stream.receivedCount > 0)
+				{
+					return stream.receivedCount;
+				}
+
+				return stream.connection.isServer() && stream.isEndedByPeer() ? 1 : 0;
+			}
+		}
+
+
+
+		/**
+		 * Close the stream.
+		 * 
+		 * @see InputStream#close()
+		 */
+		@Override
+		public void close()
+		{
+			InterruptibleRMIMultiplexedSocket.this.close();
+		}
+	}
+
+	/**
+	 * Writes the data of the stream, within the window.
+	 */
+	private final class MultiplexedOutputStream extends OutputStream
+	{
+		private final byte[] singleByte = new byte[1];
+
+
+
+		/**
+		 * @see OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException
+		{
+			this.singleByte[0] = (byte) b;
+			write(this.singleByte, 0, 1);
+		}
+
+
+
+		/**
+		 * Write the supplied data as data frames, waiting for window as necessary, unless the
+		 * stream has ended. The data is sent with the next flush.
+		 * 
+		 * @see OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException
+		{
+			final InterruptibleRMIMultiplexedSocket stream = InterruptibleRMIMultiplexedSocket.this;
+
+			while (len > 0)
+			{
+				final int count;
+
+				synchronized (stream)
+				{
+					stream.checkWritable();
+
+					while (stream.sendWindow == 0)
+					{
+						stream.await(0);
+						stream.checkWritable();
+					}
+
+					count = Math.min(Math.min(len, stream.sendWindow),
+						InterruptibleRMIMultiplexedConnection.MAX_DATA_SIZE);
+					stream.sendWindow -= count;
+				}
+
+				stream.connection.writeData(stream.id, b, off, count);
+				off += count;
+				len -= count;
+			}
+		}
+
+
+
+		/**
+		 * Send the data written so far.
+		 * 
+		 * @see OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			InterruptibleRMIMultiplexedSocket.this.checkWritable();
+			InterruptibleRMIMultiplexedSocket.this.connection.flush();
+		}
+
+
+
+		/**
+		 * Close the stream.
+		 * 
+		 * @see OutputStream#close()
+		 */
+		@Override
+		public void close()
+		{
+			InterruptibleRMIMultiplexedSocket.this.close();
+		}
+	}
+}
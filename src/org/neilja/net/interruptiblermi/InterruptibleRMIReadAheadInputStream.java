@@ -0,0 +1,251 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream decorator with a one-byte read-ahead buffer, used beneath the server-side
+ * {@link InterruptibleRMISocketInputStream}. The {@link #peek()} method looks at the next byte
+ * without blocking and without consuming it: a byte that has been peeked at is returned by the
+ * next read, so the RMI transport sees an unmodified stream. This is what allows the server side to
+ * look for {@link InterruptibleRMISocket#SHUTDOWN_SOCKET} while an RMI call is in progress. (A
+ * single byte suffices, as the shutdown signal is a single byte.)
+ * <p>
+ * This class is not thread-safe. {@link InterruptibleRMIServerSideSocket} guarantees that
+ * {@link #peek()} never runs concurrently with a read.
+ * </p>
+ * 
+ * @see org.neilja.net.interruptiblermi.InterruptibleRMIServerSideSocket
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIReadAheadInputStream extends FilterInputStream
+{
+	/**
+	 * Value returned by {@link #peek()} when no byte is available without blocking.
+	 */
+	static final int NOTHING_AVAILABLE = -2;
+
+	/**
+	 * Value of {@link #readAhead} when the buffer is empty.
+	 */
+	private static final int EMPTY = -1;
+
+	/**
+	 * The byte that has been read ahead, or {@link #EMPTY}.
+	 */
+	private int readAhead;
+
+
+
+	/**
+	 * Create a new read-ahead stream decorating the supplied InputStream.
+	 */
+	InterruptibleRMIReadAheadInputStream(final InputStream decoratee)
+	{
+		this(decoratee, EMPTY);
+	}
+
+
+
+	/**
+	 * Create a new read-ahead stream decorating the supplied InputStream, from which the supplied
+	 * byte (unless negative) has already been read.
+	 */
+	InterruptibleRMIReadAheadInputStream(final InputStream decoratee, final int readAhead)
+	{
+		super(decoratee);
+		this.readAhead = readAhead < 0 ? EMPTY : readAhead;
+	}
+
+
+
+	/**
+	 * Return the next byte of the stream without consuming it, -1 if the end of the stream has
+	 * been reached, or {@link #NOTHING_AVAILABLE} if no byte can be read without blocking.
+	 */
+	int peek() throws IOException
+	{
+		if (this.readAhead == EMPTY)
+		{
+			if (this.in.available() <= 0)
+			{
+				return NOTHING_AVAILABLE;
+			}
+
+			final int val = this.in.read();
+
+			if (val == -1)
+			{
+				return -1;
+			}
+
+			this.readAhead = val;
+		}
+
+		return this.readAhead;
+	}
+
+
+
+	/**
+	 * Return the next byte of the stream without consuming it, or -1 if the end of the stream has
+	 * been reached. Unlike {@link #peek()}, this method blocks until input is available (subject to
+	 * the socket's SO_TIMEOUT).
+	 */
+	int peekWaiting() throws IOException
+	{
+		if (this.readAhead == EMPTY)
+		{
+			final int val = this.in.read();
+
+			if (val == -1)
+			{
+				return -1;
+			}
+
+			this.readAhead = val;
+		}
+
+		return this.readAhead;
+	}
+
+
+
+	/**
+	 * Discard the byte that has been read ahead (if any).
+	 */
+	void discardPeeked()
+	{
+		this.readAhead = EMPTY;
+	}
+
+
+
+	/**
+	 * @see InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException
+	{
+		return this.readAhead == EMPTY ? this.in.available() : 1 + this.in.available();
+	}
+
+
+
+	/**
+	 * Mark/reset is not supported, as it would interfere with the read-ahead buffer.
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+
+
+	/**
+	 * Does nothing, as mark/reset is not supported.
+	 */
+	@Override
+	public synchronized void mark(final int readlimit)
+	{
+	// not supported
+	}
+
+
+
+	/**
+	 * Always throws IOException, as mark/reset is not supported.
+	 */
+	@Override
+	public synchronized void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+
+
+
+	/**
+	 * @see InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException
+	{
+		final int val = this.readAhead;
+
+		if (val == EMPTY)
+		{
+			return this.in.read();
+		}
+
+		this.readAhead = EMPTY;
+		return val;
+	}
+
+
+
+	/**
+	 * @see InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException
+	{
+		final int val = this.readAhead;
+
+		if (val == EMPTY || len <= 0)
+		{
+			return this.in.read(b, off, len);
+		}
+
+		this.readAhead = EMPTY;
+		b[off] = (byte) val;
+
+		/*
+		 * Top up with whatever else can be read without blocking.
+		 */
+		final int available = len > 1 ? this.in.available() : 0;
+
+		if (available > 0)
+		{
+			final int count = this.in.read(b, off + 1, Math.min(len - 1, available));
+
+			if (count > 0)
+			{
+				return 1 + count;
+			}
+		}
+
+		return 1;
+	}
+
+
+
+	/**
+	 * @see InputStream#skip(long)
+	 */
+	@Override
+	public long skip(final long n) throws IOException
+	{
+		if (this.readAhead == EMPTY || n <= 0)
+		{
+			return this.in.skip(n);
+		}
+
+		this.readAhead = EMPTY;
+		return 1;
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fair counting semaphore for use by RMI server code, whose waiters are tied to the RMI call
+ * they are executing. If the client cancels the call while the server RMI thread is waiting for a
+ * permit, the waiter is removed from the queue at once and {@link #acquire()} throws
+ * {@link CancellationException}; a released permit is never handed to such a "zombie" waiter.
+ * Exactly one waiter is woken per released permit, so there are no "thundering herd" wakeups.
+ * <p>
+ * Cancellation is noticed as soon as the call's {@link CancellationToken} is cancelled (see
+ * {@link InterruptibleRMISocketFactory#startServerMonitor(long)}), and in any case when a permit
+ * would otherwise be granted to the waiter. Threads that are not RMI server threads can use the
+ * semaphore too, in which case it behaves like a plain fair semaphore.
+ * </p>
+ * 
+ * @see InterruptibleRMILock
+ * @author neilotoole@apache.org
+ */
+public class InterruptibleRMISemaphore
+{
+	private final Object mutex = new Object();
+
+	private final InterruptibleRMIWaitQueue queue = new InterruptibleRMIWaitQueue(this.mutex);
+
+	/**
+	 * The number of available permits. Guarded by mutex.
+	 */
+	private int permits;
+
+
+
+	/**
+	 * Create a semaphore with the supplied number of permits.
+	 */
+	public InterruptibleRMISemaphore(final int permits)
+	{
+		this.permits = permits;
+	}
+
+
+
+	/**
+	 * Acquire a permit, waiting until one is available.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call being executed by the current thread is cancelled by the client
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException
+	{
+		acquire(true, false, 0);
+	}
+
+
+
+	/**
+	 * Acquire a permit, waiting until one is available, and ignoring interrupts.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call being executed by the current thread is cancelled by the client
+	 */
+	public void acquireUninterruptibly()
+	{
+		try
+		{
+			acquire(false, false, 0);
+		}
+		catch (final InterruptedException e)
+		{
+			// doesn't happen, as interrupts are ignored
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	/**
+	 * Acquire a permit if one is available (and no other thread is waiting for one). Return true
+	 * if a permit was acquired.
+	 */
+	public boolean tryAcquire()
+	{
+		synchronized (this.mutex)
+		{
+			if (this.permits > 0 && this.queue.isEmpty())
+			{
+				--this.permits;
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+
+
+	/**
+	 * Acquire a permit, waiting up to the supplied timeout for one to become available. Return
+	 * true if a permit was acquired.
+	 * 
+	 * @throws CancellationException
+	 *             if the RMI call being executed by the current thread is cancelled by the client
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 */
+	public boolean tryAcquire(final long timeout, final TimeUnit unit) throws InterruptedException
+	{
+		return acquire(true, true, unit.toNanos(timeout));
+	}
+
+
+
+	/**
+	 * Release a permit, granting it to the longest-waiting thread whose RMI call has not been
+	 * cancelled (if any).
+	 */
+	public void release()
+	{
+		this.queue.probeHead();
+
+		synchronized (this.mutex)
+		{
+			final InterruptibleRMIWaitQueue.Waiter waiter = this.queue.pollLive();
+
+			if (waiter == null)
+			{
+				++this.permits;
+			}
+			else
+			{
+				InterruptibleRMIWaitQueue.grant(waiter);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the number of permits currently available.
+	 */
+	public int availablePermits()
+	{
+		synchronized (this.mutex)
+		{
+			return this.permits;
+		}
+	}
+
+
+
+	/**
+	 * Return the number of threads waiting for a permit.
+	 */
+	public int getQueueLength()
+	{
+		synchronized (this.mutex)
+		{
+			return this.queue.size();
+		}
+	}
+
+
+
+	private boolean acquire(final boolean interruptible, final boolean timed, final long nanos)
+		throws InterruptedException
+	{
+		if (interruptible && Thread.interrupted())
+		{
+			throw new InterruptedException();
+		}
+
+		final CancellationToken token = InterruptibleRMIWaitQueue.currentToken();
+		final InterruptibleRMIWaitQueue.Waiter waiter;
+
+		synchronized (this.mutex)
+		{
+			if (this.permits > 0 && this.queue.isEmpty())
+			{
+				--this.permits;
+				return true;
+			}
+
+			if (timed && nanos <= 0)
+			{
+				return false;
+			}
+		}
+
+		/*
+		 * Checking the token may run cancel actions, so don't hold the mutex while doing so.
+		 */
+		token.throwIfCancelled();
+
+		synchronized (this.mutex)
+		{
+			if (this.permits > 0 && this.queue.isEmpty())
+			{
+				--this.permits;
+				return true;
+			}
+
+			waiter = this.queue.add(token);
+		}
+
+		return this.queue.await(waiter, interruptible, timed, nanos);
+	}
+
+
+
+	/**
+	 * Return the name of this class, the number of available permits and the queue length.
+	 */
+	@Override
+	public String toString()
+	{
+		synchronized (this.mutex)
+		{
+			return this.getClass().getName() + " [permits=" + this.permits + ", queueLength="
+				+ this.queue.size() + "]";
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+/**
+ * Optional background monitor that watches every server-side RMI socket with a call in progress,
+ * and interrupts the server RMI thread as soon as the client goes away (the client's shutdown
+ * signal arrives, the connection is reset, or the client closes the connection). Without the
+ * monitor, a server RMI thread that is blocked (e.g. in {@link Object#wait()}) only learns that it
+ * is a "zombie" when it wakes up for some other reason and checks
+ * {@link InterruptibleRMISocketFactory#isCurrentRMIServerThreadSocketAlive()}.
+ * <p>
+ * A single daemon thread sweeps the {@link InterruptibleRMIServerSocketRegistry} at a fixed
+ * interval. A socket is only probed once it has been idle (no IO operation started or ended) for a
+ * whole interval, i.e. while the RMI transport has handed the call to application code. The
+ * sockets decorated by this library are plain blocking sockets, which cannot be registered with a
+ * {@link java.nio.channels.Selector}, so the monitor polls: the probes themselves never consume RMI
+ * data, and cost no more than a system call or two per in-progress call.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketFactory#startServerMonitor(long)
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIServerMonitor implements Runnable
+{
+	/**
+	 * The maximum number of probes per sweep that may wait for input (see
+	 * {@link InterruptibleRMIServerSideSocket#monitor(long, boolean)}), which bounds the duration
+	 * of a sweep.
+	 */
+	private static final int MAX_WAITING_PROBES_PER_SWEEP = 10;
+
+	/**
+	 * The running monitor, or null.
+	 */
+	private static InterruptibleRMIServerMonitor instance;
+
+
+
+	/**
+	 * Start the monitor, sweeping at the supplied interval. If the monitor is already running, it
+	 * is restarted with the new interval.
+	 */
+	static synchronized void start(final long intervalMillis)
+	{
+		if (intervalMillis <= 0)
+		{
+			throw new IllegalArgumentException("intervalMillis must be positive: " + intervalMillis);
+		}
+
+		stop();
+
+		instance = new InterruptibleRMIServerMonitor(intervalMillis);
+		instance.thread.start();
+	}
+
+
+
+	/**
+	 * Stop the monitor, if it is running.
+	 */
+	static synchronized void stop()
+	{
+		if (instance != null)
+		{
+			instance.isRunning = false;
+			instance.thread.interrupt();
+			instance = null;
+		}
+	}
+
+
+
+	private final long intervalMillis;
+
+	private final Thread thread;
+
+	private volatile boolean isRunning = true;
+
+
+
+	private InterruptibleRMIServerMonitor(final long intervalMillis)
+	{
+		this.intervalMillis = intervalMillis;
+		this.thread = new Thread(this, "InterruptibleRMI-Monitor");
+		this.thread.setDaemon(true);
+	}
+
+
+
+	/**
+	 * The monitor loop.
+	 * 
+	 * @see Runnable#run()
+	 */
+	public void run()
+	{
+		while (this.isRunning)
+		{
+			try
+			{
+				sweep();
+				Thread.sleep(this.intervalMillis);
+			}
+			catch (final InterruptedException e)
+			{
+				// stop() has been called, or a spurious interrupt; re-check isRunning
+			}
+			catch (final RuntimeException e)
+			{
+				// never let a bad socket kill the monitor
+			}
+		}
+	}
+
+
+
+	/**
+	 * Give every registered socket the chance to probe for its client having gone away.
+	 */
+	private void sweep()
+	{
+		final long now = System.nanoTime();
+		int waitingProbes = 0;
+
+		for (final InterruptibleRMIServerSocketRegistry.Entry entry : InterruptibleRMIServerSocketRegistry.getEntries())
+		{
+			final InterruptibleRMIServerSideSocket socket = entry.get();
+
+			if (socket != null
+				&& socket.monitor(now, waitingProbes < MAX_WAITING_PROBES_PER_SWEEP))
+			{
+				++waitingProbes;
+			}
+		}
+	}
+}
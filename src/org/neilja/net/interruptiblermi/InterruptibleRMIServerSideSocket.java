@@ -16,11 +16,31 @@ package org.neilja.net.interruptiblermi;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Socket decorator to support the interruptible RMI mechanism.
+ * <p>
+ * The association between server RMI threads and their sockets is kept without any global lock:
+ * each socket records the thread currently using it in a volatile field, and each thread records
+ * (a weak reference to) the socket it is using in a thread-local slot. Both directions are keyed by
+ * identity, so no lookup ever goes through {@link #equals(Object)} or {@link #hashCode()} of the
+ * decorated socket. Every socket is also tracked in {@link InterruptibleRMIServerSocketRegistry},
+ * whose reaper cleans up after sockets and threads that disappear without a regular close.
+ * </p>
+ * <p>
+ * Liveness is tracked with a volatile "cancelled" flag. The flag is set when the socket is closed,
+ * or when a probe of the input stream finds the client's
+ * {@link InterruptibleRMISocket#SHUTDOWN_SOCKET} signal, the end of the stream, or an error. The
+ * probe uses a one-byte read-ahead buffer ({@link InterruptibleRMIReadAheadInputStream}), so it
+ * never consumes RMI data, and it only runs while no IO operation is in progress on the socket
+ * (i.e. while an RMI call is being executed). Probes are rate-limited to one per
+ * {@link #PROBE_INTERVAL_NANOS}, so that a liveness check usually costs a couple of volatile reads
+ * and no system call.
+ * </p>
  * 
  * @see org.neilja.net.interruptiblermi.InterruptibleRMISocketFactory
  * @author neilotoole@apache.org
@@ -30,215 +50,673 @@ import java.util.Map;
 class InterruptibleRMIServerSideSocket extends InterruptibleRMISocket
 {
 	/**
-	 * A mapping of server RMI threads to the sockets that the thread is using for RMI calls.
+	 * Updater for {@link #boundThread}, used so that exactly one party disassociates the thread
+	 * from the socket when the socket is closed or handed to another thread.
 	 */
-	private static Map<Thread, InterruptibleRMIServerSideSocket> threadSocketMap;
+	private static final AtomicReferenceFieldUpdater<InterruptibleRMIServerSideSocket, Thread> boundThreadUpdater = AtomicReferenceFieldUpdater.newUpdater(
+		InterruptibleRMIServerSideSocket.class, Thread.class, "boundThread");
 
 	/**
-	 * A mapping of RMI sockets to the server RMI threads using the sockets.
+	 * Thread-local slot holding the registry entry (a weak reference) for the socket that the
+	 * server RMI thread (the current thread) is using for RMI calls. A thread that has never used
+	 * an RMI server socket has an empty slot.
 	 */
-	private static Map<InterruptibleRMIServerSideSocket, Thread> socketThreadMap;
+	private static final ThreadLocal<InterruptibleRMIServerSocketRegistry.Entry> threadSocket = new ThreadLocal<InterruptibleRMIServerSocketRegistry.Entry>();
 
 	/**
-	 * Thread-local variable to keep track of which threads are RMI Server threads.
+	 * Set once any thread has been associated with a server socket. Until then, no RMI server
+	 * socket is in use in this VM, and every thread is considered to be alive.
 	 */
-	private static final ThreadLocal<Boolean> threadIsRmi = new ThreadLocal<Boolean>()
+	private static volatile boolean isThreadSocketMappingInUse = false;
+
+	/**
+	 * Updater for {@link #ioState}.
+	 */
+	private static final AtomicIntegerFieldUpdater<InterruptibleRMIServerSideSocket> ioStateUpdater = AtomicIntegerFieldUpdater.newUpdater(
+		InterruptibleRMIServerSideSocket.class, "ioState");
+
+	/**
+	 * Value of {@link #ioState} while the input stream is being probed.
+	 */
+	private static final int PROBING = -1;
+
+	/**
+	 * Minimum interval between two probes of the input stream.
+	 */
+	private static final long PROBE_INTERVAL_NANOS = 1000 * 1000;
+
+	/**
+	 * How long a probe made by {@link InterruptibleRMIServerMonitor} may wait for input, in order to
+	 * detect an orderly close by the client (which, unlike the shutdown signal, sends no data).
+	 */
+	private static final int MONITOR_WAIT_MILLIS = 1;
+
+	/**
+	 * Minimum interval between two waiting probes of the same socket by the monitor.
+	 */
+	private static final long MONITOR_WAIT_INTERVAL_NANOS = 1000 * 1000 * 1000;
+
+
+
+	/**
+	 * Called by {@link #ioStarting()} to associate a server RMI thread (the current thread) with
+	 * the supplied socket. Any socket that was previously associated with the current thread is
+	 * disassociated from it, so that closing that socket does not interrupt this thread.
+	 */
+	private static void registerThreadIsUsingSocket(final InterruptibleRMIServerSideSocket socket)
 	{
-		protected Boolean initialValue()
+		final Thread thread = Thread.currentThread();
+		final InterruptibleRMIServerSocketRegistry.Entry previousEntry = threadSocket.get();
+		final InterruptibleRMIServerSideSocket previousSocket = previousEntry == null
+			? null
+			: previousEntry.get();
+
+		if (previousSocket != null && previousSocket != socket)
 		{
-			return false;
+			boundThreadUpdater.compareAndSet(previousSocket, thread, null);
 		}
-	};
+
+		/*
+		 * Associate the thread and the socket. Publishing the thread on the socket implicitly
+		 * disassociates any thread that previously used the socket.
+		 */
+		socket.boundThread = thread;
+		threadSocket.set(socket.registryEntry);
+
+		if (isThreadSocketMappingInUse == false)
+		{
+			isThreadSocketMappingInUse = true;
+		}
+	}
+
+
 
 	/**
-	 * (Lazily) initialize the maps (and exception handler) for managing server RMI socket/thread
-	 * tracking.
+	 * Called when the socket's {@link #close()} method is invoked. This method disassociates the
+	 * socket from its associated RMI server thread, calls {@link Thread#interrupt()} on the thread
+	 * in case it is currently waiting, and removes the socket from the registry.
 	 * 
 	 */
-	private static void initializeServerThreadSocketMapping()
+	private static void registerSocketIsClosing(final InterruptibleRMIServerSideSocket socket)
 	{
-		threadSocketMap = new HashMap<Thread, InterruptibleRMIServerSideSocket>();
-		socketThreadMap = new HashMap<InterruptibleRMIServerSideSocket, Thread>();
+		socket.unbindThread();
+		InterruptibleRMIServerSocketRegistry.unregister(socket.registryEntry);
 	}
 
 
 
 	/**
-	 * Called by {@link #ioStarting()} to associate a server RMI thread (the current thread) with
-	 * the supplied socket.
+	 * Return true if the socket associated with the RMI server thread (the current thread) has not
+	 * been closed or marked for shutdown by the client of the RMI thread.
 	 */
-	private synchronized static void registerThreadIsUsingSocket(
-		final InterruptibleRMIServerSideSocket socket)
+	static boolean isCurrentRMIServerThreadSocketAlive()
 	{
-		if (threadSocketMap == null)
+		final InterruptibleRMIServerSocketRegistry.Entry entry = threadSocket.get();
+
+		if (entry == null)
 		{
-			initializeServerThreadSocketMapping();
+			return isThreadSocketMappingInUse == false;
 		}
 
-		/*
-		 * Clear out any previously registered thread
-		 */
-		final Thread previousThread = socketThreadMap.remove(socket);
+		final InterruptibleRMIServerSideSocket socket = entry.get();
 
-		if (previousThread != null)
+		if (socket == null || socket.boundThread != Thread.currentThread())
 		{
-			threadSocketMap.remove(previousThread);
+			/*
+			 * The socket has since been closed (or collected), or handed over to another thread.
+			 */
+			return false;
 		}
 
-		/*
-		 * Associate the thread and the socket.
-		 */
-		threadSocketMap.put(Thread.currentThread(), socket);
-		socketThreadMap.put(socket, Thread.currentThread());
-		threadIsRmi.set(true);
+		return socket.isAlive();
+	}
+	
+	/**
+	 * Return the {@link CancellationToken} for the RMI call being executed by the current thread,
+	 * or null if the current thread is not an RMI server thread. If the thread's socket has been
+	 * collected, or handed over to another thread, the returned token is already cancelled
+	 * (consistent with {@link #isCurrentRMIServerThreadSocketAlive()} returning false).
+	 */
+	static CancellationToken getCurrentCallToken()
+	{
+		final InterruptibleRMIServerSocketRegistry.Entry entry = threadSocket.get();
+
+		if (entry == null)
+		{
+			return null;
+		}
+
+		final InterruptibleRMIServerSideSocket socket = entry.get();
+
+		if (socket == null
+			|| (socket.boundThread != Thread.currentThread() && socket.isCancelled == false))
+		{
+			final CancellationToken token = new CancellationToken(null);
+			token.cancel();
+			return token;
+		}
+
+		return socket.getCallToken();
 	}
 
+	/**
+	 * Return true if the current thread is an RMI server thread (i.e. has opened an
+	 * InterruptibleRMIServerSocket).
+	 */
+	static boolean isCurrentThreadRMIServer()
+	{
+		return threadSocket.get() != null;
+	}
 
+	/**
+	 * The server RMI thread currently using this socket, or null if there is none (or if the
+	 * socket has been closed).
+	 */
+	private volatile Thread boundThread;
 
 	/**
-	 * Called when the socket's {@link #close()} method is invoked. This method disassociates the
-	 * socket from its associated RMI server thread, and calls {@link Thread#interrupt()} on the
-	 * thread in case it is currently waiting.
+	 * This socket's entry in {@link InterruptibleRMIServerSocketRegistry}.
+	 */
+	private final InterruptibleRMIServerSocketRegistry.Entry registryEntry;
+
+	/**
+	 * The read-ahead layer beneath {@link #input}, used to probe for the shutdown signal.
+	 */
+	private final InterruptibleRMIReadAheadInputStream readAheadInput;
+
+	/**
+	 * The InputStream returned by {@link #getInputStream()}.
+	 */
+	private final InterruptibleRMISocketInputStream input;
+
+	/**
+	 * The decorated socket, if it is a shared memory socket, whose cancel flag is read directly by
+	 * {@link #isAlive()}; otherwise null.
+	 */
+	private final InterruptibleRMISharedMemorySocket sharedMemory;
+
+	/**
+	 * The decorated socket, if it is a stream of the multiplexed transport, whose end is noted by
+	 * the reading thread of its connection, and read directly by {@link #isAlive()}; otherwise
+	 * null.
+	 */
+	private final InterruptibleRMIMultiplexedSocket multiplexed;
+
+	/**
+	 * Set when the client has shut down or interrupted the RMI call, or when this socket has been
+	 * closed.
+	 */
+	private volatile boolean isCancelled = false;
+
+	/**
+	 * The number of IO operations in progress on this socket, or {@link #PROBING} while the input
+	 * stream is being probed.
+	 */
+	private volatile int ioState = 0;
+
+	/**
+	 * The token for the RMI call currently being executed, or null if none has been requested.
+	 * Created and retired by the associated thread only.
+	 */
+	private volatile CancellationToken callToken;
+
+	/**
+	 * Incremented at the end of every IO operation, so that the monitor can tell whether the
+	 * socket has been idle between two of its sweeps. Racy updates are harmless, as only changes of
+	 * the value matter.
+	 */
+	private int ioSequence = 0;
+
+	/**
+	 * The System#nanoTime value of the most recent probe. Racy updates are harmless: at worst an
+	 * extra probe is made.
+	 */
+	private long lastProbeNanos;
+
+	/**
+	 * The {@link #ioSequence} value seen by the previous call of {@link #monitor(long, boolean)}.
+	 * Only used by the monitor thread.
+	 */
+	private int monitoredIOSequence = -1;
+
+	/**
+	 * The System#nanoTime value of the monitor's most recent waiting probe of this socket. Only
+	 * used by the monitor thread.
+	 */
+	private long monitoredWaitNanos;
+
+
+
+	/**
+	 * Create a decorator for the supplied accepted socket, with the compression stage of the
+	 * supplied threshold (0 for none) between the read-ahead and the hooks of the input, so that
+	 * probes see the raw stream.
 	 * 
+	 * @see InterruptibleRMISocket#InterruptibleRMISocket(Socket)
 	 */
-	private synchronized static void registerSocketIsClosing(
-		final InterruptibleRMIServerSideSocket socket)
+	InterruptibleRMIServerSideSocket(final Socket decoratee, final int compressionThreshold)
+		throws IOException
 	{
-		if (threadSocketMap == null)
+		this(decoratee, compressionThreshold, -1);
+	}
+
+
+
+	/**
+	 * Create a decorator as above, for a socket from which the supplied first byte (unless
+	 * negative) has already been read.
+	 */
+	InterruptibleRMIServerSideSocket(final Socket decoratee, final int compressionThreshold,
+		final int firstByte) throws IOException
+	{
+		super(decoratee);
+		enableCompression(compressionThreshold, true);
+
+		try
 		{
-			return;
+			this.readAheadInput = new InterruptibleRMIReadAheadInputStream(decoratee.getInputStream(),
+				firstByte);
+		}
+		catch (final IOException e)
+		{
+			decoratee.close();
+			throw e;
 		}
 
-		final Thread thread = socketThreadMap.remove(socket);
+		this.input = new InterruptibleRMISocketInputStream(this, decorate(this.readAheadInput));
+		this.sharedMemory = decoratee instanceof InterruptibleRMISharedMemorySocket
+			? (InterruptibleRMISharedMemorySocket) decoratee
+			: null;
+		this.multiplexed = decoratee instanceof InterruptibleRMIMultiplexedSocket
+			? (InterruptibleRMIMultiplexedSocket) decoratee
+			: null;
+		this.lastProbeNanos = System.nanoTime() - PROBE_INTERVAL_NANOS;
+		this.monitoredWaitNanos = this.lastProbeNanos - MONITOR_WAIT_INTERVAL_NANOS;
+		this.registryEntry = InterruptibleRMIServerSocketRegistry.register(this);
+	}
+
 
-		if (thread != null)
+
+	/**
+	 * Return false if the client has shut down or interrupted the RMI call, or if this socket has
+	 * been closed. If that is not yet known, and no probe has been made within the last
+	 * {@link #PROBE_INTERVAL_NANOS}, the input stream is probed first. On a shared memory socket,
+	 * the state of the client in shared memory is read first, on every call, as that costs no
+	 * system call; so is the end of a stream of the multiplexed transport.
+	 */
+	boolean isAlive()
+	{
+		if (this.isCancelled)
 		{
-			threadSocketMap.remove(socket);
-			thread.interrupt();
+			return false;
 		}
+
+		if ((this.sharedMemory != null && this.sharedMemory.isPeerGone())
+			|| (this.multiplexed != null && this.multiplexed.isEndedByPeer()))
+		{
+			this.isCancelled = true;
+			fireCancellation();
+			return false;
+		}
+
+		final long now = System.nanoTime();
+
+		if (now - this.lastProbeNanos >= PROBE_INTERVAL_NANOS)
+		{
+			this.lastProbeNanos = now;
+			probe(this.ioSequence, 0);
+
+			if (this.isCancelled)
+			{
+				fireCancellation();
+			}
+		}
+
+		return this.isCancelled == false;
 	}
 
 
 
 	/**
-	 * Return true if the socket associated with the RMI server thread (the current thread) has not
-	 * been closed or marked for shutdown by the client of the RMI thread.
+	 * Return the token for the RMI call currently being executed on this socket, creating it if
+	 * necessary. Called by the associated thread, while it executes the call. The token is retired
+	 * when the thread next starts an IO operation on this socket, as that means the RMI transport
+	 * has finished executing the call.
+	 */
+	CancellationToken getCallToken()
+	{
+		CancellationToken token = this.callToken;
+
+		if (token == null)
+		{
+			token = new CancellationToken(this);
+			this.callToken = token;
+
+			/*
+			 * Whoever marks this socket as cancelled does so before reading callToken, so either
+			 * they see the new token, or the flag is seen here.
+			 */
+			if (this.isCancelled)
+			{
+				token.cancel();
+			}
+		}
+
+		return token;
+	}
+
+
+
+	/**
+	 * Cancel the token of the RMI call currently being executed (if any), running its cancel
+	 * actions on the current thread. Must be called after {@link #isCancelled} has been set, and
+	 * never while {@link #ioState} is {@link #PROBING}, as cancel actions may take a while.
 	 */
-	static synchronized boolean isCurrentRMIServerThreadSocketAlive()
+	private void fireCancellation()
 	{
-		if (threadSocketMap == null)
+		final CancellationToken token = this.callToken;
+
+		if (token != null)
+		{
+			token.cancel();
+		}
+	}
+
+
+
+	/**
+	 * Called on every sweep of {@link InterruptibleRMIServerMonitor}. If an RMI call is in
+	 * progress on this socket (a thread is associated with it, and no IO operation has started or
+	 * ended since the previous sweep), the input stream is probed, and if the client has gone away
+	 * the associated thread is interrupted at once. If mayWait is true, and this socket has not had
+	 * a waiting probe within {@link #MONITOR_WAIT_INTERVAL_NANOS}, the probe may wait up to
+	 * {@link #MONITOR_WAIT_MILLIS} for input. Return true if such a waiting probe was made.
+	 */
+	boolean monitor(final long now, final boolean mayWait)
+	{
+		final int sequence = this.ioSequence;
+		final boolean isIdle = sequence == this.monitoredIOSequence;
+		this.monitoredIOSequence = sequence;
+
+		if (isIdle == false || this.isCancelled || this.boundThread == null)
+		{
+			return false;
+		}
+
+		final boolean isWaiting = mayWait
+			&& now - this.monitoredWaitNanos >= MONITOR_WAIT_INTERVAL_NANOS;
+
+		if (isWaiting)
 		{
-			return true;
+			this.monitoredWaitNanos = now;
 		}
 
-		final Socket socket = threadSocketMap.get(Thread.currentThread());
+		probe(sequence, isWaiting ? MONITOR_WAIT_MILLIS : 0);
+
+		if (this.isCancelled)
+		{
+			unbindThread();
+			fireCancellation();
+		}
+
+		return isWaiting;
+	}
+
 
-		boolean isAlive = true;
+
+	/**
+	 * Look for the shutdown signal, the end of the stream, or an error on the input stream, and
+	 * mark this socket as cancelled if one is found. The probe is skipped if an IO operation is in
+	 * progress, or if one has started or ended since {@link #ioSequence} had the expected value: in
+	 * that case the RMI transport may be between two reads of a message, and any pending bytes
+	 * belong to it. The probe does not block, unless a timeout is supplied, in which case it waits
+	 * up to that long for input.
+	 */
+	private void probe(final int expectedIOSequence, final int timeoutMillis)
+	{
+		if (ioStateUpdater.compareAndSet(this, 0, PROBING) == false)
+		{
+			return;
+		}
 
 		try
 		{
-			if (socket == null || socket.isClosed())
+			if (this.ioSequence != expectedIOSequence)
+			{
+				return;
+			}
+
+			if (this.decoratee.isClosed())
 			{
-				isAlive = false;
+				this.isCancelled = true;
+				return;
 			}
-			else
+
+			final InterruptibleRMITLSSocket tlsSocket = getTLSSocket();
+
+			if (tlsSocket != null)
 			{
-				/*
-				 * When a client explicitly interrupts the InterruptibleRMIThread, the special value
-				 * SHUTDOWN_SOCKET is written to the socket indicating it should shut down.
-				 */
-
-				final InputStream in = socket.getInputStream();
-
-				if (in.available() > 0)
-				{
-					final int val = in.read();
-
-					if (val == InterruptibleRMISocket.SHUTDOWN_SOCKET)
-					{
-						isAlive = false;
-					}
-				}
+				// the shutdown signal (or a cancel frame) is only seen once its record is decrypted
+				tlsSocket.decryptArrived();
 			}
 
+			/*
+			 * When a client explicitly interrupts the InterruptibleRMIThread, the special value
+			 * SHUTDOWN_SOCKET is written to the socket indicating it should shut down.
+			 */
+			int val = this.readAheadInput.peek();
+
+			if (val == InterruptibleRMIReadAheadInputStream.NOTHING_AVAILABLE && timeoutMillis > 0)
+			{
+				val = peekWaiting(timeoutMillis);
+			}
+
+			if (val == InterruptibleRMISocket.SHUTDOWN_SOCKET)
+			{
+				this.readAheadInput.discardPeeked();
+				this.isCancelled = true;
+			}
+			else if (val == -1)
+			{
+				this.isCancelled = true;
+			}
 		}
-		catch (final Exception e)
+		catch (final IOException e)
 		{
 			/*
 			 * If an exception occurs while calling an operation on the socket, then it's fair to
 			 * assume that the socket is dead.
 			 */
-			isAlive = false;
+			this.isCancelled = true;
+		}
+		finally
+		{
+			this.ioState = 0;
 		}
+	}
 
-		return isAlive;
+
+
+	/**
+	 * Wait up to the supplied timeout for the next byte of the input stream, without consuming it.
+	 * Called by {@link #probe(int, int)}, which guarantees that no other IO is in progress while the
+	 * socket's SO_TIMEOUT is temporarily changed. A read of the TLS layer (directly, or under a
+	 * framed connection) is never timed out, as that would consume records: a TLS socket waits for
+	 * input below it instead.
+	 */
+	private int peekWaiting(final int timeoutMillis) throws IOException
+	{
+		final InterruptibleRMITLSSocket tlsSocket = getTLSSocket();
+
+		if (tlsSocket != null)
+		{
+			tlsSocket.awaitInput(timeoutMillis);
+			tlsSocket.decryptArrived();
+			return this.readAheadInput.peek();
+		}
+
+		final int soTimeout = this.decoratee.getSoTimeout();
+		this.decoratee.setSoTimeout(timeoutMillis);
+
+		try
+		{
+			return this.readAheadInput.peekWaiting();
+		}
+		catch (final SocketTimeoutException e)
+		{
+			return InterruptibleRMIReadAheadInputStream.NOTHING_AVAILABLE;
+		}
+		finally
+		{
+			this.decoratee.setSoTimeout(soTimeout);
+		}
 	}
-	
+
+
+
 	/**
-	 * Return true if the current thread is an RMI server thread (i.e. has opened an
-	 * InterruptibleRMIServerSocket).
+	 * Return the TLS socket under this socket (directly, or under its framed connection), or null
+	 * if it is not secured.
 	 */
-	static synchronized boolean isCurrentThreadRMIServer()
+	private InterruptibleRMITLSSocket getTLSSocket()
 	{
-		return threadIsRmi.get();
+		final Socket socket = this.decoratee instanceof InterruptibleRMIFramedSocket
+			? ((InterruptibleRMIFramedSocket) this.decoratee).decoratee : this.decoratee;
+		return socket instanceof InterruptibleRMITLSSocket ? (InterruptibleRMITLSSocket) socket
+			: null;
 	}
 
-	private Thread mostRecentThread;
+
+
+	/**
+	 * Return the server RMI thread currently associated with this socket, or null if there is
+	 * none.
+	 */
+	Thread getBoundThread()
+	{
+		return this.boundThread;
+	}
 
 
 
 	/**
-	 * 
-	 * @see InterruptibleRMISocket#InterruptibleRMISocket(Socket)
+	 * Disassociate this socket from its server RMI thread (if any), and call
+	 * {@link Thread#interrupt()} on that thread in case it is currently waiting.
 	 */
-	InterruptibleRMIServerSideSocket(final Socket decoratee)
+	void unbindThread()
 	{
-		super(decoratee);
+		final Thread thread = boundThreadUpdater.getAndSet(this, null);
 
+		if (thread != null)
+		{
+			thread.interrupt();
+		}
 	}
 
 
 
 	/**
-	 * Does nothing.
+	 * Disassociate this socket from its server RMI thread if that thread has died. Return true if
+	 * a dead thread was disassociated.
+	 */
+	boolean unbindDeadThread()
+	{
+		final Thread thread = this.boundThread;
+
+		return thread != null && thread.isAlive() == false
+			&& boundThreadUpdater.compareAndSet(this, thread, null);
+	}
+
+
+
+	/**
+	 * Record that an IO operation is no longer in progress, and that IO has taken place.
 	 * 
 	 * @see InterruptibleRMISocket#ioEnding()
 	 */
 	@Override
 	void ioEnding()
 	{
-	// do nothing
+		++this.ioSequence;
+		ioStateUpdater.decrementAndGet(this);
 	}
 
 
 
 	/**
-	 * If not already associated, this method associates the current thread with this socket.
+	 * If not already associated, this method associates the current thread with this socket. In
+	 * the common case (the same thread performing successive IO operations) this costs a single
+	 * volatile read. If a {@link CancellationToken} was requested for the RMI call that has just
+	 * been executed, the token is retired. Finally this method records that an IO operation is in
+	 * progress, waiting for any probe of the input stream to complete (a probe takes at most a
+	 * millisecond).
 	 * 
 	 * @see InterruptibleRMISocket#ioStarting()
 	 */
 	@Override
 	void ioStarting()
 	{
-		if (Thread.currentThread() != this.mostRecentThread)
+		if (Thread.currentThread() != this.boundThread)
 		{
-			this.mostRecentThread = Thread.currentThread();
 			registerThreadIsUsingSocket(this);
 		}
+
+		final CancellationToken token = this.callToken;
+
+		if (token != null)
+		{
+			this.callToken = null;
+			token.retire();
+		}
+
+		while (true)
+		{
+			final int state = this.ioState;
+
+			if (state != PROBING && ioStateUpdater.compareAndSet(this, state, state + 1))
+			{
+				return;
+			}
+
+			Thread.yield();
+		}
+	}
+
+
+
+	/**
+	 * Return the cached {@link InterruptibleRMISocketInputStream}, which decorates the read-ahead
+	 * layer used to probe for the shutdown signal.
+	 * 
+	 * @see Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		if (this.decoratee.isClosed())
+		{
+			throw new SocketException("Socket is closed");
+		}
+
+		return this.input;
 	}
 
 
 
 	/**
-	 * Closes the decorated socket and then disassociates the current thread from this socket.
+	 * Closes the decorated socket and then disassociates the current thread from this socket,
+	 * cancelling the token of the RMI call in progress (if any).
 	 * 
 	 * @see InterruptibleRMISocket#close()
 	 */
 	@Override
 	public void close() throws IOException
 	{
+		this.isCancelled = true;
 		this.decoratee.close();
+		releaseStreams();
 		registerSocketIsClosing(this);
+		fireCancellation();
 	}
 
 }
@@ -30,16 +30,43 @@ import java.nio.channels.ServerSocketChannel;
  */
 class InterruptibleRMIServerSocket extends ServerSocket
 {
-	private final ServerSocket decoratee;
+	protected final ServerSocket decoratee;
 
+	/**
+	 * The profile applied to accepted sockets.
+	 */
+	private final InterruptibleRMISocketProfile profile;
 
+	/**
+	 * The compression threshold of accepted sockets (0 for none).
+	 */
+	private final int compressionThreshold;
 
 	/**
-	 * Create decorator for given socket.
+	 * True if accepted sockets are secured with TLS.
 	 */
-	InterruptibleRMIServerSocket(final ServerSocket decoratee) throws IOException
+	private final boolean isSecure;
+
+	/**
+	 * True if accepted sockets use shared memory when the client offers it.
+	 */
+	private final boolean isSharedMemory;
+
+
+
+	/**
+	 * Create decorator for given socket, applying the profile and compression of the supplied
+	 * configuration to accepted sockets.
+	 */
+	InterruptibleRMIServerSocket(final ServerSocket decoratee,
+		final InterruptibleRMISocketFactoryConfig config) throws IOException
 	{
 		this.decoratee = decoratee;
+		this.profile = config.getProfile();
+		this.compressionThreshold = config.getCompressionThreshold();
+		this.isSecure = config.isSecure();
+		this.isSharedMemory = config.isSharedMemory() && config.isSecure() == false
+			&& config.isPreservingConnections() == false && config.isMultiplexed() == false;
 	}
 
 
@@ -50,7 +77,57 @@ class InterruptibleRMIServerSocket extends ServerSocket
 	@Override
 	public Socket accept() throws IOException
 	{
-		return new InterruptibleRMIServerSideSocket(this.decoratee.accept());
+		return newServerSideSocket(acceptConfigured());
+	}
+
+
+
+	/**
+	 * Return a new server side socket that decorates the supplied accepted socket, with the stream
+	 * buffering of the profile, and the compression and shared memory of the configuration.
+	 */
+	InterruptibleRMIServerSideSocket newServerSideSocket(final Socket socket) throws IOException
+	{
+		return newServerSideSocket(socket, -1);
+	}
+
+
+
+	/**
+	 * Return a new server side socket as above, for a socket from which the supplied first byte
+	 * (unless negative) has already been read.
+	 */
+	InterruptibleRMIServerSideSocket newServerSideSocket(final Socket socket, final int firstByte)
+		throws IOException
+	{
+		final InterruptibleRMIServerSideSocket serverSideSocket = new InterruptibleRMIServerSideSocket(
+			this.isSharedMemory ? InterruptibleRMISharedMemorySocket.accept(socket) : socket,
+			this.compressionThreshold, firstByte);
+		serverSideSocket.enableBuffering(this.profile.getBufferSize());
+		return serverSideSocket;
+	}
+
+
+
+	/**
+	 * Accept a socket from the decorated server socket, apply the profile to it, and layer TLS
+	 * over it (if secure).
+	 */
+	Socket acceptConfigured() throws IOException
+	{
+		final Socket socket = this.decoratee.accept();
+
+		try
+		{
+			this.profile.configure(socket);
+		}
+		catch (final IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+
+		return this.isSecure ? InterruptibleRMITLSSocket.accept(socket) : socket;
 	}
 
 
@@ -100,14 +177,17 @@ class InterruptibleRMIServerSocket extends ServerSocket
 
 
 	/**
-	 * Not implemented - always returns null.
+	 * Return the ServerSocketChannel of the decorated server socket, or null if it has none (as is
+	 * the case for the server sockets of the default RMI socket factory). The server side keeps
+	 * plain sockets, as a channel would be closed by an interrupt of an RMI thread that is still
+	 * writing its reply.
 	 * 
 	 * @see ServerSocket#getChannel()
 	 */
 	@Override
 	public ServerSocketChannel getChannel()
 	{
-		return null;
+		return this.decoratee.getChannel();
 	}
 
 
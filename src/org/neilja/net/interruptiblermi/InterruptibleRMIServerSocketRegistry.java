@@ -0,0 +1,258 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the live server-side RMI sockets in this VM. Sockets are held only through weak
+ * references keyed by identity, so the registry never keeps a socket (or its RMI thread) reachable.
+ * A background daemon "reaper" thread drops entries for sockets that were garbage-collected without
+ * being closed, for sockets that were closed without going through
+ * {@link InterruptibleRMIServerSideSocket#close()}, and disassociates threads that have died. The
+ * registry sizes are exposed as gauges through {@link InterruptibleRMISocketFactory}.
+ * 
+ * @see org.neilja.net.interruptiblermi.InterruptibleRMIServerSideSocket
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIServerSocketRegistry
+{
+	/**
+	 * Weak, identity-keyed registry entry for a server-side socket. The entry is also what a server
+	 * RMI thread keeps in its thread-local slot, so that an idle pooled thread does not pin the
+	 * last socket it used.
+	 */
+	static final class Entry extends WeakReference<InterruptibleRMIServerSideSocket>
+	{
+		Entry(final InterruptibleRMIServerSideSocket socket)
+		{
+			super(socket, queue);
+		}
+	}
+
+	/**
+	 * How often the reaper sweeps the registry for closed sockets and dead threads.
+	 */
+	private static final long SWEEP_INTERVAL_MILLIS = 30 * 1000;
+
+	/**
+	 * The registered entries. Entry does not override #equals, so this is an identity set.
+	 */
+	private static final ConcurrentHashMap<Entry, Boolean> entries = new ConcurrentHashMap<Entry, Boolean>();
+
+	/**
+	 * Queue on which entries are enqueued once their socket has been garbage-collected.
+	 */
+	private static final ReferenceQueue<InterruptibleRMIServerSideSocket> queue = new ReferenceQueue<InterruptibleRMIServerSideSocket>();
+
+	/**
+	 * Number of entries (sockets or threads) dropped by the reaper rather than by a regular close.
+	 */
+	private static final AtomicLong reapedCount = new AtomicLong();
+
+	/**
+	 * The reaper thread, lazily started on first registration.
+	 */
+	private static volatile Thread reaper;
+
+
+
+	/**
+	 * Create and register a new entry for the supplied socket.
+	 */
+	static Entry register(final InterruptibleRMIServerSideSocket socket)
+	{
+		if (reaper == null)
+		{
+			startReaper();
+		}
+
+		final Entry entry = new Entry(socket);
+		entries.put(entry, Boolean.TRUE);
+		return entry;
+	}
+
+
+
+	/**
+	 * Remove the supplied entry from the registry. Called when the socket is closed.
+	 */
+	static void unregister(final Entry entry)
+	{
+		entries.remove(entry);
+	}
+
+
+
+	/**
+	 * Return a weakly consistent view of the registered entries.
+	 */
+	static Set<Entry> getEntries()
+	{
+		return entries.keySet();
+	}
+
+
+
+	/**
+	 * Return the number of server-side sockets currently registered.
+	 */
+	static int getSocketCount()
+	{
+		return entries.size();
+	}
+
+
+
+	/**
+	 * Return the number of registered server-side sockets that are currently associated with a
+	 * server RMI thread. This walks the registry, so it is intended for monitoring rather than for
+	 * hot paths.
+	 */
+	static int getBoundThreadCount()
+	{
+		int count = 0;
+
+		for (final Entry entry : entries.keySet())
+		{
+			final InterruptibleRMIServerSideSocket socket = entry.get();
+
+			if (socket != null && socket.getBoundThread() != null)
+			{
+				++count;
+			}
+		}
+
+		return count;
+	}
+
+
+
+	/**
+	 * Return the total number of entries that the reaper has dropped since the VM started.
+	 */
+	static long getReapedCount()
+	{
+		return reapedCount.get();
+	}
+
+
+
+	private static synchronized void startReaper()
+	{
+		if (reaper != null)
+		{
+			return;
+		}
+
+		final Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				reap();
+			}
+		}, "InterruptibleRMI-Reaper");
+
+		thread.setDaemon(true);
+		thread.start();
+		reaper = thread;
+	}
+
+
+
+	/**
+	 * The reaper loop. Blocks on the reference queue, so that collected sockets are dropped
+	 * promptly, and sweeps the whole registry every {@link #SWEEP_INTERVAL_MILLIS}.
+	 */
+	private static void reap()
+	{
+		long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+
+		while (true)
+		{
+			try
+			{
+				final long wait = nextSweep - System.currentTimeMillis();
+				Reference<? extends InterruptibleRMIServerSideSocket> ref = wait > 0
+					? queue.remove(wait)
+					: null;
+
+				while (ref != null)
+				{
+					if (entries.remove(ref) != null)
+					{
+						reapedCount.incrementAndGet();
+					}
+					ref = queue.poll();
+				}
+
+				if (System.currentTimeMillis() >= nextSweep)
+				{
+					sweep();
+					nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+				}
+			}
+			catch (final InterruptedException e)
+			{
+				// the reaper runs for the life of the VM; ignore
+			}
+			catch (final RuntimeException e)
+			{
+				// never let a bad entry kill the reaper
+			}
+		}
+	}
+
+
+
+	/**
+	 * Drop entries whose socket is gone or closed, and disassociate threads that have died.
+	 */
+	private static void sweep()
+	{
+		for (final Entry entry : entries.keySet())
+		{
+			final InterruptibleRMIServerSideSocket socket = entry.get();
+
+			if (socket == null || socket.isClosed())
+			{
+				if (entries.remove(entry) != null)
+				{
+					reapedCount.incrementAndGet();
+				}
+
+				if (socket != null)
+				{
+					socket.unbindThread();
+				}
+			}
+			else if (socket.unbindDeadThread())
+			{
+				reapedCount.incrementAndGet();
+			}
+		}
+	}
+
+
+
+	private InterruptibleRMIServerSocketRegistry()
+	{
+	// static methods only
+	}
+}
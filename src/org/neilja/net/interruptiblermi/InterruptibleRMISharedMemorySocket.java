@@ -0,0 +1,1150 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An RMI socket whose data goes through ring buffers in a memory-mapped file shared by the two
+ * VMs (see {@link InterruptibleRMISocketFactoryConfig#isSharedMemory()}), as seen by the RMI
+ * transport through the decoration of {@link InterruptibleRMIClientSocket} or
+ * {@link InterruptibleRMIServerSideSocket}. It decorates the connected socket of the connection
+ * (TCP, or the Unix domain socket of the local transport), which is kept as its control
+ * connection: it carries the setup of the shared memory, and the wake-ups of parked readers, and
+ * its end of stream tells either side that the other VM has gone away.
+ * <p>
+ * The client creates the file in the directory of
+ * {@link InterruptibleRMISocketFactory#setLocalSocketDirectory(File)}, maps it, and offers it to
+ * the server as the first bytes of the control connection; the server maps it (if it is a regular
+ * file of that directory, with the name and size of one), deletes it, and accepts, or else
+ * refuses, leaving the path alone, in which case the connection carries the data itself, as does
+ * a connection with no offer (from a remote client). The server negotiates on the first read or
+ * write of the socket, by the RMI thread that serves it, as for TLS; a probe never negotiates.
+ * The client waits for the reply as for a connect, so the wait can be cancelled (see
+ * {@link InterruptibleRMIConnector}).
+ * </p>
+ * <p>
+ * The file holds a header and a ring buffer for each direction. Each ring has a single writer and
+ * a single reader, which publish their positions in the header, so the rings need no lock. A
+ * reader that finds its ring empty spins (on a multiprocessor), yields, parks in short steps, and
+ * then flags itself as waiting and blocks on the control connection, until the writer (which
+ * checks the flag after publishing) sends it a wake-up byte: a futex-like wait, with no system
+ * call while data keeps coming. A writer that finds its ring full spins, yields and parks until
+ * there is room.
+ * </p>
+ * <p>
+ * The fields of the header are accessed through byte buffer views of VarHandles, with the memory
+ * ordering of their access modes, which applies to the other VM as to another thread: a side
+ * publishes its position with a release write, after it has copied the data, and reads the
+ * position of the other side with an acquire read, before it copies the data; the flag of a
+ * waiting reader, the position that the writer checks it against, and the states are volatile.
+ * VarHandles appeared in Java 9, so they are used reflectively: on an earlier VM,
+ * {@link #isSupported()} returns false, a client offers no shared memory, and a server refuses it.
+ * </p>
+ * <p>
+ * The header also holds the state of each side: open, closed, or cancelled. A cancel (see
+ * {@link #abort()}) marks this side as cancelled and closes the socket, without blocking; the
+ * liveness check of the server reads the flag directly (see
+ * {@link InterruptibleRMIServerSideSocket#isAlive()}). As for channel sockets, an interrupt of a
+ * thread that spins or parks in the socket cancels the connection, and the wait fails with an
+ * InterruptedIOException; so does an interrupt of a thread blocked on a control connection that
+ * is a channel socket. A thread blocked on a plain control connection is unblocked by a cancel,
+ * as for plain sockets.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMISharedMemorySocket extends InterruptibleRMISocket
+{
+	/**
+	 * The size of the ring buffer of each direction, in bytes.
+	 */
+	static final int RING_SIZE = 256 * 1024;
+
+	/**
+	 * How long a client waits for the server to accept or refuse the shared memory, in
+	 * milliseconds.
+	 */
+	static final int HANDSHAKE_TIMEOUT_MILLIS = 15000;
+
+	/**
+	 * The first byte of a connection that offers shared memory (followed by the path of the file),
+	 * distinct from the first byte of the RMI protocol and of the compression negotiation.
+	 */
+	static final int OFFER = 0x7C;
+
+	/**
+	 * The replies of the server to an offer.
+	 */
+	static final int ACCEPTED = 1, REFUSED = 0;
+
+	/**
+	 * Sent on the control connection to wake a parked reader.
+	 */
+	private static final int WAKE = 0;
+
+	/**
+	 * The size of a header field, which is given a cache line of its own, so that the two sides
+	 * do not contend for the lines of fields that they do not share.
+	 */
+	private static final int LINE = 64;
+
+	/**
+	 * The offsets of the fields of a ring (from the offset of the ring in the header): the
+	 * position of the writer and of the reader (longs, which only grow), and the flag of a
+	 * reader waiting on the control connection (an int).
+	 */
+	private static final int WRITE_POSITION = 0, READ_POSITION = LINE, READER_WAITING = 2 * LINE;
+
+	/**
+	 * The offsets of the rings of the client-to-server and the server-to-client direction, and of
+	 * the state (an int) of the client and of the server, in the header.
+	 */
+	private static final int CLIENT_RING = 0, SERVER_RING = 3 * LINE, CLIENT_STATE = 6 * LINE,
+		SERVER_STATE = 7 * LINE;
+
+	private static final int HEADER_SIZE = 8 * LINE;
+
+	/**
+	 * The size of the file: the header, and the two rings.
+	 */
+	static final int FILE_SIZE = HEADER_SIZE + 2 * RING_SIZE;
+
+	/**
+	 * The states of a side.
+	 */
+	private static final int OPEN = 0, CLOSED = 1, CANCELLED = 2;
+
+	/**
+	 * The modes of a socket: not yet negotiated (on the server side), through shared memory, or
+	 * through the control connection.
+	 */
+	private static final int UNNEGOTIATED = 0, SHARED = 1, PLAIN = 2;
+
+	/**
+	 * How many times a waiting thread polls its ring before it yields (none on a uniprocessor,
+	 * where the other side can't make progress while this one spins), how many times it yields
+	 * before it parks, and how many times it parks (for {@link #PARK_NANOS}) before it blocks on
+	 * the control connection (when reading).
+	 */
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0,
+		YIELDS = 50, PARKS = 20;
+
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * How often a writer waiting for room sends a wake-up byte, which also detects a peer that
+	 * has gone away.
+	 */
+	private static final long NUDGE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * The access modes of the long fields of the header (getAcquire, getVolatile, setRelease and
+	 * setVolatile) and of the int fields (getVolatile, setVolatile and compareAndSet), as method
+	 * handles of byte buffer views of VarHandles in the native byte order (null if not supported).
+	 */
+	private static final MethodHandle longGetAcquire, longGetVolatile, longSetRelease,
+		longSetVolatile, intGetVolatile, intSetVolatile, intCompareAndSet;
+
+	static
+	{
+		MethodHandle[] handles = null;
+
+		try
+		{
+			final Method view = MethodHandles.class.getMethod("byteBufferViewVarHandle",
+				Class.class, ByteOrder.class);
+			final Object longs = view.invoke(null, long[].class, ByteOrder.nativeOrder());
+			final Object ints = view.invoke(null, int[].class, ByteOrder.nativeOrder());
+
+			handles = new MethodHandle[] { accessMode(longs, "GET_ACQUIRE"),
+				accessMode(longs, "GET_VOLATILE"), accessMode(longs, "SET_RELEASE"),
+				accessMode(longs, "SET_VOLATILE"), accessMode(ints, "GET_VOLATILE"),
+				accessMode(ints, "SET_VOLATILE"), accessMode(ints, "COMPARE_AND_SET") };
+		}
+		catch (final Exception e)
+		{
+			// before Java 9
+			handles = null;
+		}
+
+		longGetAcquire = handles != null ? handles[0] : null;
+		longGetVolatile = handles != null ? handles[1] : null;
+		longSetRelease = handles != null ? handles[2] : null;
+		longSetVolatile = handles != null ? handles[3] : null;
+		intGetVolatile = handles != null ? handles[4] : null;
+		intSetVolatile = handles != null ? handles[5] : null;
+		intCompareAndSet = handles != null ? handles[6] : null;
+	}
+
+	private final boolean isClientSide;
+
+	private final RingInputStream input = new RingInputStream();
+	private final RingOutputStream output = new RingOutputStream();
+
+	/**
+	 * The mode of this socket. The fields below are set before the mode is, and not changed after.
+	 */
+	private volatile int mode;
+
+	private MappedByteBuffer memory;
+
+	/**
+	 * The offsets of the rings that this side reads and writes, and of the states of this side and
+	 * of the other side, in the header.
+	 */
+	private int inRing, outRing, ownState, peerState;
+
+	/**
+	 * The first byte of a connection with no offer, read by the negotiation (-2 if none).
+	 */
+	private int pendingByte = -2;
+
+	/**
+	 * True once the control connection has reached its end (i.e. the other VM has closed it, or
+	 * gone away).
+	 */
+	private volatile boolean isPeerGone;
+
+	private volatile boolean isClosed;
+
+	/**
+	 * Guards the writes of wake-up bytes, which may come from the writer and from a cancel.
+	 */
+	private final Object wakeLock = new Object();
+
+
+
+	private InterruptibleRMISharedMemorySocket(final Socket control, final boolean isClientSide)
+	{
+		super(control);
+		this.isClientSide = isClientSide;
+	}
+
+
+
+	/**
+	 * Return the method handle of the supplied access mode of the supplied VarHandle.
+	 */
+	private static MethodHandle accessMode(final Object varHandle, final String mode)
+		throws Exception
+	{
+		final Class<?> modes = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+
+		return (MethodHandle) Class.forName("java.lang.invoke.VarHandle").getMethod(
+			"toMethodHandle", modes).invoke(varHandle, modes.getField(mode).get(null));
+	}
+
+
+
+	/**
+	 * Return true if this VM supports the ordered access to shared memory (see
+	 * {@link InterruptibleRMISharedMemorySocket}).
+	 */
+	static boolean isSupported()
+	{
+		return intCompareAndSet != null;
+	}
+
+
+
+	/**
+	 * Offer shared memory to the server over the supplied connected socket, and return a socket
+	 * that uses it, if the server accepts, or the connection itself, if the server refuses. The
+	 * connection is closed if the setup fails.
+	 */
+	static InterruptibleRMISharedMemorySocket connect(final Socket control) throws IOException
+	{
+		final InterruptibleRMISharedMemorySocket socket = new InterruptibleRMISharedMemorySocket(
+			control, true);
+		File file = null;
+
+		try
+		{
+			file = File.createTempFile("interruptiblermi-", ".shm",
+				InterruptibleRMILocalSocket.getDirectory());
+			final MappedByteBuffer memory = map(file, true);
+
+			final ByteArrayOutputStream offer = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(offer);
+			out.writeByte(OFFER);
+			out.writeUTF(file.getPath());
+			control.getOutputStream().write(offer.toByteArray());
+			control.getOutputStream().flush();
+
+			final int soTimeout = control.getSoTimeout();
+			control.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			final int reply = control.getInputStream().read();
+			control.setSoTimeout(soTimeout);
+
+			if (reply < 0)
+			{
+				throw new SocketException("Connection closed while setting up shared memory");
+			}
+
+			socket.setMode(reply == ACCEPTED ? memory : null);
+			return socket;
+		}
+		catch (final IOException e)
+		{
+			control.close();
+			throw e;
+		}
+		finally
+		{
+			if (file != null)
+			{
+				file.delete();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return a socket for the supplied accepted socket, which uses shared memory if the client
+	 * offers it. The offer is read by the first IO on the socket.
+	 */
+	static InterruptibleRMISharedMemorySocket accept(final Socket control)
+	{
+		return new InterruptibleRMISharedMemorySocket(control, false);
+	}
+
+
+
+	/**
+	 * Map the supplied file, creating it with the size of a shared memory file (the client), or
+	 * checking that it has that size (the server).
+	 */
+	private static MappedByteBuffer map(final File file, final boolean create) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			if (create)
+			{
+				raf.setLength(FILE_SIZE);
+			}
+			else if (raf.length() != FILE_SIZE)
+			{
+				throw new IOException("Not a shared memory file: " + file);
+			}
+
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+
+
+	private static long getAcquire(final ByteBuffer header, final int offset)
+	{
+		try
+		{
+			return (long) longGetAcquire.invokeExact(header, offset);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	private static long getVolatile(final ByteBuffer header, final int offset)
+	{
+		try
+		{
+			return (long) longGetVolatile.invokeExact(header, offset);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	private static void setRelease(final ByteBuffer header, final int offset, final long value)
+	{
+		try
+		{
+			longSetRelease.invokeExact(header, offset, value);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	private static void setVolatile(final ByteBuffer header, final int offset, final long value)
+	{
+		try
+		{
+			longSetVolatile.invokeExact(header, offset, value);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	private static int getIntVolatile(final ByteBuffer header, final int offset)
+	{
+		try
+		{
+			return (int) intGetVolatile.invokeExact(header, offset);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	private static void setIntVolatile(final ByteBuffer header, final int offset, final int value)
+	{
+		try
+		{
+			intSetVolatile.invokeExact(header, offset, value);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	private static boolean compareAndSetInt(final ByteBuffer header, final int offset,
+		final int expected, final int value)
+	{
+		try
+		{
+			return (boolean) intCompareAndSet.invokeExact(header, offset, expected, value);
+		}
+		catch (final Throwable e)
+		{
+			throw unchecked(e);
+		}
+	}
+
+
+
+	/**
+	 * Return the supplied failure of an access to the header (which is always aligned, and never
+	 * fails in practice) as an unchecked exception.
+	 */
+	private static RuntimeException unchecked(final Throwable e)
+	{
+		if (e instanceof Error)
+		{
+			throw (Error) e;
+		}
+
+		return e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+	}
+
+
+
+	/**
+	 * Set the mode of this socket: shared memory in the supplied mapping, or the control
+	 * connection if null.
+	 */
+	private void setMode(final MappedByteBuffer sharedMemory)
+	{
+		if (sharedMemory != null)
+		{
+			this.memory = sharedMemory;
+			this.inRing = this.isClientSide ? SERVER_RING : CLIENT_RING;
+			this.outRing = this.isClientSide ? CLIENT_RING : SERVER_RING;
+			this.ownState = this.isClientSide ? CLIENT_STATE : SERVER_STATE;
+			this.peerState = this.isClientSide ? SERVER_STATE : CLIENT_STATE;
+			this.input.data = sharedMemory.duplicate();
+			this.output.data = sharedMemory.duplicate();
+		}
+
+		this.mode = sharedMemory != null ? SHARED : PLAIN;
+	}
+
+
+
+	/**
+	 * Return the mode of this socket, first reading the offer of the client (if any) on the server
+	 * side. The offer is read by whichever stream is used first, and honours SO_TIMEOUT.
+	 */
+	private int negotiate() throws IOException
+	{
+		int currentMode = this.mode;
+
+		if (currentMode != UNNEGOTIATED)
+		{
+			return currentMode;
+		}
+
+		synchronized (this)
+		{
+			currentMode = this.mode;
+
+			if (currentMode != UNNEGOTIATED)
+			{
+				return currentMode;
+			}
+
+			final InputStream in = this.decoratee.getInputStream();
+			final int first = in.read();
+
+			if (first != OFFER)
+			{
+				this.pendingByte = first;
+				setMode(null);
+				return PLAIN;
+			}
+
+			final File file = new File(new DataInputStream(in).readUTF());
+			MappedByteBuffer sharedMemory = null;
+
+			try
+			{
+				if (isSupported() && isOffered(file))
+				{
+					sharedMemory = map(file, false);
+
+					// only a file that passed the checks is deleted (the path comes from the network)
+					file.delete();
+				}
+			}
+			catch (final IOException e)
+			{
+				// refused
+			}
+
+			this.decoratee.getOutputStream().write(sharedMemory != null ? ACCEPTED : REFUSED);
+			this.decoratee.getOutputStream().flush();
+			setMode(sharedMemory);
+			return this.mode;
+		}
+	}
+
+
+
+	/**
+	 * Return true if the supplied file may be a shared memory file offered by a client: a regular
+	 * file (not a link) of the shared memory directory of this VM, with the name that
+	 * {@link #connect(Socket)} gives one, and its size. (The offer comes from the network, so the
+	 * server maps, and deletes, no other file.)
+	 */
+	private static boolean isOffered(final File file) throws IOException
+	{
+		final File parent = file.getParentFile();
+		final String name = file.getName();
+
+		if (parent == null || name.matches("interruptiblermi-[0-9]+\\.shm") == false)
+		{
+			return false;
+		}
+
+		final File directory = InterruptibleRMILocalSocket.getDirectory().getCanonicalFile();
+
+		return parent.getCanonicalFile().equals(directory)
+			&& file.getCanonicalFile().equals(new File(directory, name)) && file.isFile()
+			&& file.length() == FILE_SIZE;
+	}
+
+
+
+	/**
+	 * Return true if the other side has closed or cancelled the connection, as far as this side
+	 * knows without any IO: the state in shared memory, or the end of the control connection.
+	 * Always false on a connection that does not use shared memory.
+	 */
+	boolean isPeerGone()
+	{
+		return this.mode == SHARED
+			&& (this.isPeerGone || getIntVolatile(this.memory, this.peerState) != OPEN);
+	}
+
+
+
+	/**
+	 * Cancel the connection: mark this side as cancelled in shared memory, wake the other side if
+	 * it is parked, and close this socket. Does not block. (On a connection that does not use
+	 * shared memory, the shutdown signal is written to it instead, as by
+	 * {@link InterruptibleRMIClientSocket#shutdown()}.)
+	 */
+	void abort()
+	{
+		if (this.isClosed)
+		{
+			return;
+		}
+
+		try
+		{
+			if (this.mode == SHARED)
+			{
+				setIntVolatile(this.memory, this.ownState, CANCELLED);
+				wake();
+			}
+			else if (this.isClientSide)
+			{
+				this.decoratee.getOutputStream().write(SHUTDOWN_SOCKET);
+				this.decoratee.getOutputStream().flush();
+			}
+		}
+		catch (final IOException e)
+		{
+			// just swallow this; the socket is closed regardless
+		}
+
+		try
+		{
+			close();
+		}
+		catch (final IOException e)
+		{
+			// just swallow this
+		}
+	}
+
+
+
+	/**
+	 * Mark this side as closed in shared memory (unless it was cancelled), and close the control
+	 * connection, which wakes a thread of this side that is blocked on it.
+	 * 
+	 * @see java.net.Socket#close()
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (this.isClosed)
+		{
+			return;
+		}
+
+		this.isClosed = true;
+
+		if (this.mode == SHARED)
+		{
+			compareAndSetInt(this.memory, this.ownState, OPEN, CLOSED);
+		}
+
+		super.close();
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed()
+	{
+		return this.isClosed || super.isClosed();
+	}
+
+
+
+	/**
+	 * Send a wake-up byte to the other side.
+	 */
+	private void wake() throws IOException
+	{
+		synchronized (this.wakeLock)
+		{
+			this.decoratee.getOutputStream().write(WAKE);
+			this.decoratee.getOutputStream().flush();
+		}
+	}
+
+
+
+	/**
+	 * Throw a SocketException if this socket has been closed, and cancel the connection if the
+	 * thread has been interrupted (see {@link #abort()}).
+	 */
+	private void checkWaiting() throws IOException
+	{
+		if (this.isClosed)
+		{
+			throw new SocketException("Socket closed");
+		}
+
+		if (Thread.currentThread().isInterrupted())
+		{
+			abort();
+			throw new InterruptedIOException("The RMI call was interrupted");
+		}
+	}
+
+
+
+	/**
+	 * No-op: a thread blocked in this socket is unblocked by closing it.
+	 */
+	@Override
+	void ioStarting()
+	{
+	}
+
+
+
+	/**
+	 * No-op.
+	 */
+	@Override
+	void ioEnding()
+	{
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		this.decoratee.getInputStream();
+		return this.input;
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		this.decoratee.getOutputStream();
+		return this.output;
+	}
+
+	/**
+	 * Reads the inbound ring, or the control connection if shared memory is not in use.
+	 */
+	private final class RingInputStream extends InputStream
+	{
+		/**
+		 * The view of the mapped file used to copy data out of the ring.
+		 */
+		ByteBuffer data;
+
+		private final byte[] singleByte = new byte[1];
+
+		/**
+		 * Receives the wake-up bytes.
+		 */
+		private final byte[] wakeBytes = new byte[64];
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			return read(this.singleByte, 0, 1) < 0 ? -1 : this.singleByte[0] & 0xff;
+		}
+
+
+
+		/**
+		 * Read from the ring, waiting (spinning, parking, and then blocking on the control
+		 * connection, up to the SO_TIMEOUT of the socket) until data is available.
+		 * 
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			if (negotiate() == PLAIN)
+			{
+				return readPlain(b, off, len);
+			}
+
+			final MappedByteBuffer header = InterruptibleRMISharedMemorySocket.this.memory;
+			final int ring = InterruptibleRMISharedMemorySocket.this.inRing;
+			final int timeoutMillis = getSoTimeout();
+			final long deadlineNanos = timeoutMillis > 0 ? System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis) | 1 : 0;
+			int waits = 0;
+
+			while (true)
+			{
+				final long readPosition = getAcquire(header, ring + READ_POSITION);
+				final int available = (int) (getAcquire(header, ring + WRITE_POSITION)
+					- readPosition);
+
+				if (available > 0)
+				{
+					final int index = (int) (readPosition % RING_SIZE);
+					final int count = Math.min(Math.min(len, available), RING_SIZE - index);
+					this.data.position(dataOffset(ring) + index);
+					this.data.get(b, off, count);
+					setRelease(header, ring + READ_POSITION, readPosition + count);
+					return count;
+				}
+
+				if (isPeerGone())
+				{
+					return -1;
+				}
+
+				checkWaiting();
+
+				if (waits < SPINS + YIELDS + PARKS)
+				{
+					pause(waits++);
+				}
+				else
+				{
+					// the first block waits even if the deadline has passed, so that a waiting
+					// probe sees the end of the control connection
+					if (waits > SPINS + YIELDS + PARKS && deadlineNanos != 0
+						&& deadlineNanos - System.nanoTime() <= 0)
+					{
+						throw new SocketTimeoutException("Read timed out");
+					}
+
+					waits = SPINS + YIELDS + PARKS + 1;
+					block(header, ring);
+				}
+			}
+		}
+
+
+
+		/**
+		 * Flag this reader as waiting, and block on the control connection until a wake-up byte,
+		 * the end of the connection, or the SO_TIMEOUT of the socket; unless data has arrived (or
+		 * the other side has gone) since the ring was last found empty. If the control connection
+		 * is a channel socket, an interrupt cancels it; the cancel is then marked in shared memory
+		 * too.
+		 */
+		private void block(final MappedByteBuffer header, final int ring) throws IOException
+		{
+			setIntVolatile(header, ring + READER_WAITING, 1);
+
+			try
+			{
+				if (getVolatile(header, ring + WRITE_POSITION) != getAcquire(header, ring
+					+ READ_POSITION)
+					|| isPeerGone())
+				{
+					return;
+				}
+
+				if (InterruptibleRMISharedMemorySocket.this.decoratee.getInputStream().read(
+					this.wakeBytes) < 0)
+				{
+					InterruptibleRMISharedMemorySocket.this.isPeerGone = true;
+				}
+			}
+			catch (final InterruptedIOException e)
+			{
+				if (e instanceof SocketTimeoutException == false)
+				{
+					abort();
+				}
+
+				throw e;
+			}
+			finally
+			{
+				setIntVolatile(header, ring + READER_WAITING, 0);
+			}
+		}
+
+
+
+		/**
+		 * Read from the control connection (after the byte read by the negotiation, if any).
+		 */
+		private int readPlain(final byte[] b, final int off, final int len) throws IOException
+		{
+			final int pending = InterruptibleRMISharedMemorySocket.this.pendingByte;
+
+			if (pending == -2)
+			{
+				return InterruptibleRMISharedMemorySocket.this.decoratee.getInputStream().read(b, off,
+					len);
+			}
+
+			InterruptibleRMISharedMemorySocket.this.pendingByte = -2;
+
+			if (pending < 0)
+			{
+				return -1;
+			}
+
+			b[off] = (byte) pending;
+			return 1;
+		}
+
+
+
+		/**
+		 * Return the number of bytes in the ring (the end of the stream counting as one byte), or
+		 * the number available on the control connection. Does not block, so never negotiates: 0
+		 * until the first read has (which, on the server side, precedes any RMI call).
+		 * 
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException
+		{
+			final InputStream in = InterruptibleRMISharedMemorySocket.this.decoratee.getInputStream();
+			final int currentMode = InterruptibleRMISharedMemorySocket.this.mode;
+
+			if (currentMode == UNNEGOTIATED)
+			{
+				// reading the offer may block
+				return 0;
+			}
+
+			if (currentMode == PLAIN)
+			{
+				return (InterruptibleRMISharedMemorySocket.this.pendingByte == -2 ? 0 : 1)
+					+ in.available();
+			}
+
+			final MappedByteBuffer header = InterruptibleRMISharedMemorySocket.this.memory;
+			final int ring = InterruptibleRMISharedMemorySocket.this.inRing;
+			final int available = (int) (getAcquire(header, ring + WRITE_POSITION) - getAcquire(
+				header, ring + READ_POSITION));
+
+			return available > 0 ? available : isPeerGone() ? 1 : 0;
+		}
+
+
+
+		/**
+		 * Close the socket.
+		 * 
+		 * @see InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			InterruptibleRMISharedMemorySocket.this.close();
+		}
+	}
+
+	/**
+	 * Writes the outbound ring, or the control connection if shared memory is not in use.
+	 */
+	private final class RingOutputStream extends OutputStream
+	{
+		/**
+		 * The view of the mapped file used to copy data into the ring.
+		 */
+		ByteBuffer data;
+
+		private final byte[] singleByte = new byte[1];
+
+
+
+		/**
+		 * @see OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException
+		{
+			this.singleByte[0] = (byte) b;
+			write(this.singleByte, 0, 1);
+		}
+
+
+
+		/**
+		 * Write to the ring, waiting (spinning, then parking) whenever it is full, and wake the
+		 * reader if it is blocked on the control connection.
+		 * 
+		 * @see OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, final int offset, final int length) throws IOException
+		{
+			if (negotiate() == PLAIN)
+			{
+				InterruptibleRMISharedMemorySocket.this.decoratee.getOutputStream().write(b, offset,
+					length);
+				return;
+			}
+
+			int off = offset;
+			int len = length;
+
+			final MappedByteBuffer header = InterruptibleRMISharedMemorySocket.this.memory;
+			final int ring = InterruptibleRMISharedMemorySocket.this.outRing;
+			int waits = 0;
+			long nudgeNanos = 0;
+
+			while (len > 0)
+			{
+				if (isPeerGone())
+				{
+					throw new SocketException("Connection reset by peer");
+				}
+
+				final long writePosition = getAcquire(header, ring + WRITE_POSITION);
+				final int room = RING_SIZE
+					- (int) (writePosition - getAcquire(header, ring + READ_POSITION));
+
+				if (room == 0)
+				{
+					checkWaiting();
+
+					if (waits < SPINS + YIELDS + PARKS)
+					{
+						pause(waits++);
+						continue;
+					}
+
+					final long now = System.nanoTime();
+
+					if (nudgeNanos == 0)
+					{
+						nudgeNanos = now + NUDGE_INTERVAL_NANOS;
+					}
+					else if (now - nudgeNanos >= 0)
+					{
+						nudgeNanos = now + NUDGE_INTERVAL_NANOS;
+						wake();
+					}
+
+					LockSupport.parkNanos(PARK_NANOS);
+					continue;
+				}
+
+				final int index = (int) (writePosition % RING_SIZE);
+				final int count = Math.min(Math.min(len, room), RING_SIZE - index);
+				this.data.position(dataOffset(ring) + index);
+				this.data.put(b, off, count);
+
+				// volatile, so that the flag is read after the position is published (as the
+				// reader checks the position after it has raised the flag)
+				setVolatile(header, ring + WRITE_POSITION, writePosition + count);
+
+				if (getIntVolatile(header, ring + READER_WAITING) != 0)
+				{
+					wake();
+				}
+
+				off += count;
+				len -= count;
+				waits = 0;
+			}
+		}
+
+
+
+		/**
+		 * @see OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			if (negotiate() == PLAIN)
+			{
+				InterruptibleRMISharedMemorySocket.this.decoratee.getOutputStream().flush();
+			}
+		}
+
+
+
+		/**
+		 * Close the socket.
+		 * 
+		 * @see OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			InterruptibleRMISharedMemorySocket.this.close();
+		}
+	}
+
+
+
+	/**
+	 * Spin, yield or park, according to the number of times that the calling thread has already
+	 * waited.
+	 */
+	static void pause(final int waits)
+	{
+		if (waits < SPINS)
+		{
+			return;
+		}
+
+		if (waits < SPINS + YIELDS)
+		{
+			Thread.yield();
+		}
+		else
+		{
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+
+
+	/**
+	 * Return the offset in the file of the data of the ring whose fields are at the supplied
+	 * offset of the header.
+	 */
+	static int dataOffset(final int ring)
+	{
+		return HEADER_SIZE + (ring == CLIENT_RING ? 0 : RING_SIZE);
+	}
+}
@@ -21,6 +21,8 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Abstract class to that decorates a Socket to return instances of
@@ -44,8 +46,52 @@ abstract class InterruptibleRMISocket extends Socket
 	 */
 	protected static final byte SHUTDOWN_SOCKET = Byte.MAX_VALUE;
 
+	/**
+	 * Updater for {@link #input}.
+	 */
+	private static final AtomicReferenceFieldUpdater<InterruptibleRMISocket, InterruptibleRMISocketInputStream> inputUpdater = AtomicReferenceFieldUpdater.newUpdater(
+		InterruptibleRMISocket.class, InterruptibleRMISocketInputStream.class, "input");
+
+	/**
+	 * Updater for {@link #output}.
+	 */
+	private static final AtomicReferenceFieldUpdater<InterruptibleRMISocket, InterruptibleRMISocketOutputStream> outputUpdater = AtomicReferenceFieldUpdater.newUpdater(
+		InterruptibleRMISocket.class, InterruptibleRMISocketOutputStream.class, "output");
+
+	/**
+	 * Updater for {@link #writer}.
+	 */
+	private static final AtomicIntegerFieldUpdater<InterruptibleRMISocket> writerUpdater = AtomicIntegerFieldUpdater.newUpdater(
+		InterruptibleRMISocket.class, "writer");
+
 	protected final Socket decoratee;
 
+	/**
+	 * The InputStream returned by {@link #getInputStream()}, created on first use.
+	 */
+	private volatile InterruptibleRMISocketInputStream input;
+
+	/**
+	 * The OutputStream returned by {@link #getOutputStream()}, created on first use.
+	 */
+	private volatile InterruptibleRMISocketOutputStream output;
+
+	/**
+	 * 1 while a thread is in a write (or a flush) of the output stream, else 0. Written with
+	 * ordered (not volatile) writes, as it is only read as a hint (see {@link #hasWriter()}).
+	 */
+	private volatile int writer;
+
+	/**
+	 * The size of the stream buffers, or 0 for unbuffered streams.
+	 */
+	private int bufferSize;
+
+	/**
+	 * The compression stage of the streams, or null for uncompressed streams.
+	 */
+	private InterruptibleRMICompression compression;
+
 
 
 	/**
@@ -58,6 +104,55 @@ abstract class InterruptibleRMISocket extends Socket
 
 
 
+	/**
+	 * Enable the buffered mode of the streams of this socket (if size is positive), which must be
+	 * called before the streams are first used.
+	 * 
+	 * @see InterruptibleRMISocketProfile#getBufferSize()
+	 */
+	void enableBuffering(final int size)
+	{
+		this.bufferSize = size;
+	}
+
+
+
+	/**
+	 * Enable the compression stage of the streams of this socket (if threshold is positive),
+	 * which must be called before the streams are first used.
+	 * 
+	 * @see InterruptibleRMISocketFactoryConfig#getCompressionThreshold()
+	 */
+	void enableCompression(final int threshold, final boolean isServer)
+	{
+		if (threshold > 0)
+		{
+			this.compression = new InterruptibleRMICompression(threshold, isServer);
+		}
+	}
+
+
+
+	/**
+	 * Return the supplied input of the decoratee, behind the compression stage (if enabled).
+	 */
+	InputStream decorate(final InputStream in)
+	{
+		return this.compression == null ? in : this.compression.decorate(in);
+	}
+
+
+
+	/**
+	 * Return the supplied output of the decoratee, behind the compression stage (if enabled).
+	 */
+	OutputStream decorate(final OutputStream out)
+	{
+		return this.compression == null ? out : this.compression.decorate(out);
+	}
+
+
+
 	/**
 	 * Called by {@link InterruptibleRMISocketInputStream} and
 	 * {@link InterruptibleRMISocketOutputStream} before the thread enters an RMI IO operation.
@@ -68,9 +163,50 @@ abstract class InterruptibleRMISocket extends Socket
 
 	/**
 	 * Called by {@link InterruptibleRMISocketInputStream} and
-	 * {@link InterruptibleRMISocketOutputStream} after the thread exits an RMI IO operation.
+	 * {@link InterruptibleRMISocketOutputStream} after the thread exits an RMI IO operation. An
+	 * exception thrown here fails the operation, even if it completed.
 	 */
-	abstract void ioEnding();
+	abstract void ioEnding() throws IOException;
+
+
+
+	/**
+	 * Called by the output streams of this socket before the thread enters an RMI write (or
+	 * flush): marks this socket as having a writer, and calls {@link #ioStarting()}.
+	 */
+	final void writeStarting()
+	{
+		writerUpdater.lazySet(this, 1);
+		ioStarting();
+	}
+
+
+
+	/**
+	 * Called by the output streams of this socket after the thread exits an RMI write (or flush).
+	 */
+	final void writeEnding() throws IOException
+	{
+		try
+		{
+			ioEnding();
+		}
+		finally
+		{
+			writerUpdater.lazySet(this, 0);
+		}
+	}
+
+
+
+	/**
+	 * Return true if a thread is (as far as the calling thread can tell) in a write to this
+	 * socket, and so may be blocked on a full send buffer.
+	 */
+	boolean hasWriter()
+	{
+		return this.writer != 0;
+	}
 
 
 
@@ -92,6 +228,36 @@ abstract class InterruptibleRMISocket extends Socket
 	public void close() throws IOException
 	{
 		this.decoratee.close();
+		releaseStreams();
+	}
+
+
+
+	/**
+	 * Return the buffers of the streams (if buffered) to the pool, and release the compression
+	 * stage (if enabled). Called when RMI closes the socket, which it does not do while the
+	 * streams are in use.
+	 */
+	void releaseStreams()
+	{
+		if (this.compression != null)
+		{
+			this.compression.end();
+		}
+
+		final InterruptibleRMISocketInputStream in = this.input;
+
+		if (in instanceof InterruptibleRMIBufferedInputStream)
+		{
+			((InterruptibleRMIBufferedInputStream) in).release();
+		}
+
+		final InterruptibleRMISocketOutputStream out = this.output;
+
+		if (out instanceof InterruptibleRMIBufferedOutputStream)
+		{
+			((InterruptibleRMIBufferedOutputStream) out).release();
+		}
 	}
 
 
@@ -132,14 +298,16 @@ abstract class InterruptibleRMISocket extends Socket
 
 
 	/**
-	 * This decorator does not implement a decorated SocketChannel. This method will always return
-	 * null.
+	 * Return the SocketChannel of the decorated socket, or null if it has none (see
+	 * {@link InterruptibleRMISocketFactory#setChannelSockets(boolean)}, which returns channels in
+	 * non-blocking mode). IO made directly on the channel does not call back to this socket.
 	 * 
+	 * @see Socket#getChannel()
 	 */
 	@Override
 	public SocketChannel getChannel()
 	{
-		return null;
+		return this.decoratee.getChannel();
 	}
 
 
@@ -156,15 +324,35 @@ abstract class InterruptibleRMISocket extends Socket
 
 
 	/**
-	 * Return an instance of {@link InterruptibleRMISocketInputStream} that decorates the
-	 * InputStream returned by decoratee#getInputStream.
+	 * Return the instance of {@link InterruptibleRMISocketInputStream} that decorates the
+	 * InputStream returned by decoratee#getInputStream (buffered, if buffering is enabled, and
+	 * decompressed, if compression is enabled). It is created by the first call, and returned by
+	 * subsequent calls (while the decoratee is open and its input is not shut down).
 	 * 
 	 * @see Socket#getInputStream()
 	 */
 	@Override
 	public InputStream getInputStream() throws IOException
 	{
-		return new InterruptibleRMISocketInputStream(this, this.decoratee.getInputStream());
+		final InterruptibleRMISocketInputStream in = this.input;
+
+		if (in == null)
+		{
+			final InputStream stream = decorate(this.decoratee.getInputStream());
+			inputUpdater.compareAndSet(this, null, this.bufferSize > 0
+				? new InterruptibleRMIBufferedInputStream(this, stream, this.bufferSize)
+				: new InterruptibleRMISocketInputStream(this, stream));
+			return this.input;
+		}
+
+		checkOpen();
+
+		if (this.decoratee.isInputShutdown())
+		{
+			throw new SocketException("Socket input is shutdown");
+		}
+
+		return in;
 	}
 
 
@@ -225,15 +413,49 @@ abstract class InterruptibleRMISocket extends Socket
 
 
 	/**
-	 * Return an instance of {@link InterruptibleRMISocketOutputStream} that decorates the
-	 * OutputStream returned by decoratee#getOutputStream
+	 * Return the instance of {@link InterruptibleRMISocketOutputStream} that decorates the
+	 * OutputStream returned by decoratee#getOutputStream (buffered, if buffering is enabled, and
+	 * compressed, if compression is enabled). It is created by the first call, and returned by
+	 * subsequent calls (while the decoratee is open and its output is not shut down).
 	 * 
 	 * @see Socket#getInputStream()
 	 */
 	@Override
 	public OutputStream getOutputStream() throws IOException
 	{
-		return new InterruptibleRMISocketOutputStream(this, this.decoratee.getOutputStream());
+		final InterruptibleRMISocketOutputStream out = this.output;
+
+		if (out == null)
+		{
+			final OutputStream stream = decorate(this.decoratee.getOutputStream());
+			outputUpdater.compareAndSet(this, null, this.bufferSize > 0
+				? new InterruptibleRMIBufferedOutputStream(this, stream, this.bufferSize)
+				: new InterruptibleRMISocketOutputStream(this, stream));
+			return this.output;
+		}
+
+		checkOpen();
+
+		if (this.decoratee.isOutputShutdown())
+		{
+			throw new SocketException("Socket output is shutdown");
+		}
+
+		return out;
+	}
+
+
+
+	/**
+	 * Throw a SocketException if the decoratee is closed (as its #getInputStream and
+	 * #getOutputStream would).
+	 */
+	private void checkOpen() throws SocketException
+	{
+		if (this.decoratee.isClosed())
+		{
+			throw new SocketException("Socket is closed");
+		}
 	}
 
 
@@ -13,6 +13,7 @@
  */
 package org.neilja.net.interruptiblermi;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -22,10 +23,30 @@ import java.net.Socket;
 import java.rmi.server.RMIClientSocketFactory;
 import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.RMISocketFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * Decorates RMISocketFactory to return Socket and ServerSocket instances that support interruptible
  * RMI.
+ * <p>
+ * By default, cancelling an RMI call closes its connection, and the next call to the same endpoint
+ * opens a new one. In the connection-preserving cancel mode (see
+ * {@link #InterruptibleRMISocketFactory(boolean)}), both ends frame the RMI data so that only the
+ * call is cancelled: the server discards the rest of the call and acknowledges the cancel, and the
+ * TCP connection is then reused for subsequent calls. Both ends must use this mode, so the same
+ * factory instance must be used as the client and the server socket factory when exporting.
+ * Cancels are acknowledged promptly when the server monitor is running (see
+ * {@link #startServerMonitor(long)}); a cancel that is not acknowledged within a second falls back
+ * to resetting the connection.
+ * </p>
+ * <p>
+ * A factory can also be given an {@link InterruptibleRMISocketProfile} of TCP options. RMI shares
+ * connections only between equal factories, and factories with different profiles are not
+ * equal, so exporting latency-critical and bulk services with different profiles gives each its
+ * own connections.
+ * </p>
  * 
  * @author neilotoole@apache.org
  */
@@ -45,6 +66,11 @@ public class InterruptibleRMISocketFactory extends RMISocketFactory
 	 */
 	private RMISocketFactory factory;
 
+	/**
+	 * The configuration, which is serialized with this factory.
+	 */
+	private InterruptibleRMISocketFactoryConfig config = InterruptibleRMISocketFactoryConfig.DEFAULT;
+
 
 
 	/**
@@ -69,27 +95,126 @@ public class InterruptibleRMISocketFactory extends RMISocketFactory
 
 
 	/**
-	 * Override #writeObject, as there is no need to write anything to the ObjectOutputStream. This
-	 * class has holds no instance-specific data.
+	 * Create a new instance of this class, returning decorated sockets from
+	 * {@link RMISocketFactory#getDefaultSocketFactory()}. If preserveConnections is true, the
+	 * factory uses the connection-preserving cancel mode.
+	 */
+	public InterruptibleRMISocketFactory(final boolean preserveConnections)
+	{
+		this(RMISocketFactory.getDefaultSocketFactory(), preserveConnections);
+	}
+
+
+
+	/**
+	 * Create a new instance of this class, returning decorated sockets from the supplied factory.
+	 * If preserveConnections is true, the factory uses the connection-preserving cancel mode.
+	 */
+	public InterruptibleRMISocketFactory(final RMISocketFactory factory,
+		final boolean preserveConnections)
+	{
+		this(factory, preserveConnections, InterruptibleRMISocketProfile.DEFAULT);
+	}
+
+
+
+	/**
+	 * Create a new instance of this class, returning decorated sockets from
+	 * {@link RMISocketFactory#getDefaultSocketFactory()}, configured with the supplied profile.
+	 */
+	public InterruptibleRMISocketFactory(final InterruptibleRMISocketProfile profile)
+	{
+		this(RMISocketFactory.getDefaultSocketFactory(), false, profile);
+	}
+
+
+
+	/**
+	 * Create a new instance of this class, returning decorated sockets from the supplied factory,
+	 * configured with the supplied profile. If preserveConnections is true, the factory uses the
+	 * connection-preserving cancel mode.
+	 */
+	public InterruptibleRMISocketFactory(final RMISocketFactory factory,
+		final boolean preserveConnections, final InterruptibleRMISocketProfile profile)
+	{
+		this(factory, new InterruptibleRMISocketFactoryConfig(preserveConnections, profile, 0));
+	}
+
+
+
+	/**
+	 * Create a new instance of this class, returning decorated sockets from the supplied factory,
+	 * with the supplied configuration (which is serialized with this factory, so it applies to
+	 * clients as well).
+	 */
+	public InterruptibleRMISocketFactory(final RMISocketFactory factory,
+		final InterruptibleRMISocketFactoryConfig config)
+	{
+		if (config == null)
+		{
+			throw new NullPointerException("config");
+		}
+
+		this.factory = factory;
+		this.config = config;
+	}
+
+
+
+	/**
+	 * Return true if this factory uses the connection-preserving cancel mode, in which cancelling
+	 * an RMI call keeps its TCP connection open for subsequent calls.
+	 */
+	public boolean isPreservingConnections()
+	{
+		return this.config.isPreservingConnections();
+	}
+
+
+
+	/**
+	 * Return the profile of TCP options of this factory's sockets.
+	 */
+	public InterruptibleRMISocketProfile getProfile()
+	{
+		return this.config.getProfile();
+	}
+
+
+
+	/**
+	 * Return the configuration of this factory.
+	 */
+	public InterruptibleRMISocketFactoryConfig getConfig()
+	{
+		return this.config;
+	}
+
+
+
+	/**
+	 * Override #writeObject, as the only instance-specific data that the client needs is the
+	 * configuration (written in its compact, versioned form).
 	 * 
 	 */
 	@SuppressWarnings("unused")
-	private void writeObject(final ObjectOutputStream out)
+	private void writeObject(final ObjectOutputStream out) throws IOException
 	{
-	/*
-	 * don't need to do anything here
-	 */
+		this.config.write(out);
 	}
 
 
 
 	/**
-	 * Override #readObject to initialize the this.factory member to the default RMISocketFactory.
+	 * Override #readObject to initialize the this.factory member to the default RMISocketFactory
+	 * (the server's underlying factory is not serializable in general, and is only used on the
+	 * server side), and read the configuration.
 	 */
 	@SuppressWarnings("unused")
-	private void readObject(final ObjectInputStream in)
+	private void readObject(final ObjectInputStream in) throws IOException
 	{
 		this.factory = RMISocketFactory.getDefaultSocketFactory();
+		this.config = InterruptibleRMISocketFactoryConfig.read(in);
 	}
 
 
@@ -102,29 +227,61 @@ public class InterruptibleRMISocketFactory extends RMISocketFactory
 	@Override
 	public Socket createSocket(final String host, final int port) throws IOException
 	{
-		return new InterruptibleRMIClientSocket(this.factory.createSocket(host, port));
+		final InterruptibleRMISocketFactoryConfig config = this.config;
+
+		final InterruptibleRMIClientSocket socket;
+
+		if (config.isPreservingConnections() == false && config.isMultiplexed() == false
+			&& config.getSpareConnections() == 0 && InterruptibleRMIEndpoint.getSpareTarget() == 0)
+		{
+			socket = new InterruptibleRMIClientSocket(InterruptibleRMIConnector.connect(this.factory,
+				config, host, port));
+		}
+		else
+		{
+			final InterruptibleRMIEndpoint endpoint = InterruptibleRMIEndpoint.getInstance(
+				this.factory, config, host, port);
+			final Socket connected = endpoint.connect();
+
+			if (config.isPreservingConnections() == false)
+			{
+				socket = new InterruptibleRMIClientSocket(connected, endpoint);
+			}
+			else
+			{
+				socket = new InterruptibleRMIClientSocket(new InterruptibleRMIFramedSocket(
+					new InterruptibleRMIFramedConnection(connected, null, endpoint)), endpoint);
+			}
+		}
+
+		socket.enableBuffering(config.getProfile().getBufferSize());
+		socket.enableCompression(config.getCompressionThreshold(), false);
+		return socket;
 	}
 
 
 
 	/**
-	 * Return true if object is an instance of InterruptibleRMISocketFactory.
+	 * Return true if object is an instance of InterruptibleRMISocketFactory with an equal
+	 * configuration. (RMI shares connections and server sockets between equal factories, the two
+	 * cancel modes are not compatible on the wire, and each profile gets its own connections.)
 	 */
 	@Override
 	public boolean equals(final Object object)
 	{
-		return object instanceof InterruptibleRMISocketFactory;
+		return object instanceof InterruptibleRMISocketFactory
+			&& ((InterruptibleRMISocketFactory) object).config.equals(this.config);
 	}
 
 
 
 	/**
-	 * Return the hashCode value of this class's name.
+	 * Return the hashCode value of this class's name, adjusted for the configuration.
 	 */
 	@Override
 	public int hashCode()
 	{
-		return this.getClass().getName().hashCode();
+		return this.getClass().getName().hashCode() * 31 + this.config.hashCode();
 	}
 
 
@@ -148,7 +305,26 @@ public class InterruptibleRMISocketFactory extends RMISocketFactory
 	@Override
 	public synchronized ServerSocket createServerSocket(final int port) throws IOException
 	{
-		return new InterruptibleRMIServerSocket(this.factory.createServerSocket(port));
+		if (this.config.isPreservingConnections())
+		{
+			return new InterruptibleRMIFramedServerSocket(this.factory.createServerSocket(port),
+				this.config);
+		}
+
+		if (this.config.isMultiplexed())
+		{
+			return new InterruptibleRMIMultiplexedServerSocket(this.factory.createServerSocket(port),
+				this.config);
+		}
+
+		if (this.config.isLocal() && this.config.isSecure() == false
+			&& InterruptibleRMILocalSocket.isSupported())
+		{
+			return new InterruptibleRMILocalServerSocket(this.factory.createServerSocket(port),
+				this.config);
+		}
+
+		return new InterruptibleRMIServerSocket(this.factory.createServerSocket(port), this.config);
 	}
 
 
@@ -188,4 +364,256 @@ public class InterruptibleRMISocketFactory extends RMISocketFactory
 		 */
 		return InterruptibleRMIServerSideSocket.isCurrentThreadRMIServer();
 	}
+
+
+
+	/**
+	 * Set the number of spare connections that are kept open to each RMI endpoint used by this VM
+	 * (0, the default, disables this). Spares are opened in the background: when an endpoint is
+	 * first used, whenever a spare is taken by a new RMI connection, and whenever cancelling an RMI
+	 * call costs the endpoint its connection. So the call that follows a cancellation does not
+	 * wait for a TCP connect. A spare that is unused for fifteen seconds is closed. A factory whose
+	 * configuration asks for more spares (see
+	 * {@link InterruptibleRMISocketFactoryConfig#getSpareConnections()}) gets that many.
+	 * 
+	 * @param perEndpoint
+	 *            the number of spares per endpoint, between 0 and 8
+	 */
+	public static void setSpareConnections(final int perEndpoint)
+	{
+		InterruptibleRMIEndpoint.setSpareTarget(perEndpoint);
+	}
+
+
+
+	/**
+	 * Return the number of spare connections kept open to each RMI endpoint.
+	 * 
+	 * @see #setSpareConnections(int)
+	 */
+	public static int getSpareConnections()
+	{
+		return InterruptibleRMIEndpoint.getSpareTarget();
+	}
+
+
+
+	/**
+	 * Set whether the RMI client sockets connected by this VM through the default RMI socket
+	 * factory are backed by a {@link java.nio.channels.SocketChannel} (false, the default, uses
+	 * plain sockets). The streams of a channel socket wait for the channel in a selector, so
+	 * interrupting any thread that is blocked in an RMI call on such a socket cancels the call,
+	 * even if the thread is not an {@link InterruptibleRMIThread} and has no cancel handle: the
+	 * shutdown signal is sent to the server (without blocking), the connection is closed, and the
+	 * thread is unblocked with an InterruptedIOException. The channel of a socket is returned by
+	 * its {@link Socket#getChannel()} method, and in the buffered mode (see
+	 * {@link InterruptibleRMISocketProfile#getBufferSize()}), a large write and the buffered data
+	 * before it go out in a single gathering write. Connections of factories in the
+	 * connection-preserving cancel mode or the TLS mode are never backed by a channel (an interrupt
+	 * would close them).
+	 */
+	public static void setChannelSockets(final boolean useChannels)
+	{
+		InterruptibleRMIConnector.setUsingChannels(useChannels);
+	}
+
+
+
+	/**
+	 * Return true if RMI client sockets are backed by a SocketChannel.
+	 * 
+	 * @see #setChannelSockets(boolean)
+	 */
+	public static boolean isUsingChannelSockets()
+	{
+		return InterruptibleRMIConnector.isUsingChannels();
+	}
+
+
+
+	/**
+	 * Set how long the host addresses resolved by this VM's RMI client connects are cached: ttl
+	 * for successful resolutions (30 seconds by default), and negativeTTL for failures (10 seconds
+	 * by default). 0 disables caching. Only connects through the default RMI socket factory use the
+	 * cache; they also track the connect health of each address, trying the addresses that connect
+	 * fastest first and those that failed recently last.
+	 */
+	public static void setAddressCacheTTL(final long ttl, final long negativeTTL, final TimeUnit unit)
+	{
+		InterruptibleRMIAddressCache.getInstance().setTTL(ttl, negativeTTL, unit);
+	}
+
+
+
+	/**
+	 * Return how long successfully resolved host addresses are cached, in the supplied unit.
+	 * 
+	 * @see #setAddressCacheTTL(long, long, TimeUnit)
+	 */
+	public static long getAddressCacheTTL(final TimeUnit unit)
+	{
+		return InterruptibleRMIAddressCache.getInstance().getTTL(unit);
+	}
+
+
+
+	/**
+	 * Return how long failures to resolve host addresses are cached, in the supplied unit.
+	 * 
+	 * @see #setAddressCacheTTL(long, long, TimeUnit)
+	 */
+	public static long getAddressCacheNegativeTTL(final TimeUnit unit)
+	{
+		return InterruptibleRMIAddressCache.getInstance().getNegativeTTL(unit);
+	}
+
+
+
+	/**
+	 * Set the TLS context of the sockets of factories in the TLS mode (see
+	 * {@link InterruptibleRMISocketFactoryConfig#isSecure()}) created from now on, on both the
+	 * client and the server side; null (the default) uses {@link SSLContext#getDefault()}. The
+	 * context holds the keys and trust material, and, on the client side, the cache of resumable
+	 * sessions: all client sockets share it, so set the context once, rather than per connection.
+	 * Sessions are resumed with session tickets where the server issues them (as the JDK does by
+	 * default since Java 13), so that the server keeps no session state. Clients verify that the
+	 * certificate of the server names the host they connect to (its java.rmi.server.hostname), as
+	 * HTTPS clients do.
+	 */
+	public static void setSSLContext(final SSLContext context)
+	{
+		InterruptibleRMITLSSocket.setContext(context);
+	}
+
+
+
+	/**
+	 * Return the number of TLS handshakes completed by RMI client sockets in this VM.
+	 * 
+	 * @see #getResumedHandshakeCount()
+	 */
+	public static long getHandshakeCount()
+	{
+		return InterruptibleRMITLSSocket.getHandshakeCount();
+	}
+
+
+
+	/**
+	 * Return the number of TLS handshakes completed by RMI client sockets in this VM that resumed
+	 * a session (i.e. abbreviated handshakes). It should track {@link #getHandshakeCount()}
+	 * closely, including across cancels; a growing gap indicates sessions that are not resumed
+	 * (for example, because the server's session cache or tickets expire too soon).
+	 */
+	public static long getResumedHandshakeCount()
+	{
+		return InterruptibleRMITLSSocket.getResumedCount();
+	}
+
+
+
+	/**
+	 * Set the directory of the Unix domain socket files of the local transport (see
+	 * {@link InterruptibleRMISocketFactoryConfig#isLocal()}): the server sockets created from now
+	 * on listen on a file in it, and clients look for the files of their endpoints in it, so the
+	 * server and its local clients must agree on it. The default is the directory of the
+	 * <code>java.io.tmpdir</code> system property. The directory must be writable by the server,
+	 * and its permissions are those of the local connections. The shared memory transport (see
+	 * {@link InterruptibleRMISocketFactoryConfig#isSharedMemory()}) creates its files in the same
+	 * directory, which must then be writable by the clients too.
+	 */
+	public static void setLocalSocketDirectory(final File dir)
+	{
+		InterruptibleRMILocalSocket.setDirectory(dir);
+	}
+
+
+
+	/**
+	 * Return the directory of the Unix domain socket files of the local transport.
+	 * 
+	 * @see #setLocalSocketDirectory(File)
+	 */
+	public static File getLocalSocketDirectory()
+	{
+		return InterruptibleRMILocalSocket.getDirectory();
+	}
+
+
+
+	/**
+	 * Return true if this VM supports the Unix domain sockets of the local transport (Java 16 or
+	 * later); if not, factories in the local mode use TCP.
+	 */
+	public static boolean isLocalSocketSupported()
+	{
+		return InterruptibleRMILocalSocket.isSupported();
+	}
+
+
+
+	/**
+	 * Start a background monitor that interrupts server RMI threads as soon as their client goes
+	 * away. Every server-side RMI socket with a call in progress is checked at the supplied
+	 * interval; when the client's shutdown signal, a connection reset, or the end of the stream is
+	 * seen, {@link Thread#interrupt()} is called on the associated server RMI thread. This turns a
+	 * "zombie" thread that is blocked in {@link Object#wait()} (or another interruptible operation)
+	 * into one that is woken promptly, rather than at its next unrelated wakeup. Calling this
+	 * method again restarts the monitor with the new interval.
+	 * 
+	 * @param intervalMillis
+	 *            the interval between two checks, in milliseconds; a client that goes away is
+	 *            detected within about two intervals
+	 */
+	public static void startServerMonitor(final long intervalMillis)
+	{
+		InterruptibleRMIServerMonitor.start(intervalMillis);
+	}
+
+
+
+	/**
+	 * Stop the monitor started by {@link #startServerMonitor(long)}, if it is running.
+	 */
+	public static void stopServerMonitor()
+	{
+		InterruptibleRMIServerMonitor.stop();
+	}
+
+
+
+	/**
+	 * Return the number of server-side RMI sockets currently tracked in this VM. This is a gauge
+	 * for monitoring: it should track the number of open RMI connections, and stay flat over time
+	 * for a steady connection load.
+	 */
+	public static int getServerSocketCount()
+	{
+		return InterruptibleRMIServerSocketRegistry.getSocketCount();
+	}
+
+
+
+	/**
+	 * Return the number of tracked server-side RMI sockets that are currently associated with a
+	 * server RMI thread. This gauge walks the registry, so call it from monitoring code rather than
+	 * from hot paths.
+	 */
+	public static int getServerThreadCount()
+	{
+		return InterruptibleRMIServerSocketRegistry.getBoundThreadCount();
+	}
+
+
+
+	/**
+	 * Return the number of server-side socket or thread entries that have been dropped by the
+	 * background reaper (as opposed to being removed by a regular socket close) since the VM
+	 * started. A steadily rising value indicates sockets that are being abandoned without being
+	 * closed.
+	 */
+	public static long getServerReapedCount()
+	{
+		return InterruptibleRMIServerSocketRegistry.getReapedCount();
+	}
 }
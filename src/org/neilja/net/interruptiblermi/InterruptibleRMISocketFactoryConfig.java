@@ -0,0 +1,495 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * The configuration of an {@link InterruptibleRMISocketFactory}. It is serialized with the factory
+ * (and so with every stub exported with the factory), so a server can push its tuning of the
+ * client side of its connections to all clients, without redeploying them. The configuration
+ * comprises:
+ * <ul>
+ * <li>the connection-preserving cancel mode;</li>
+ * <li>the {@link InterruptibleRMISocketProfile} of TCP options and stream buffering; and</li>
+ * <li>the number of spare connections that clients keep to each endpoint (see
+ * {@link InterruptibleRMISocketFactory#setSpareConnections(int)}; the greater of the two
+ * applies);</li>
+ * <li>the compression threshold (see {@link #getCompressionThreshold()});</li>
+ * <li>the TLS mode (see {@link #isSecure()});</li>
+ * <li>the local transport (see {@link #isLocal()});</li>
+ * <li>the shared memory transport (see {@link #isSharedMemory()}); and</li>
+ * <li>the multiplexed transport (see {@link #getMultiplexedConnections()}).</li>
+ * </ul>
+ * <p>
+ * The serialized form is compact, and versioned: each version only appends fields to those of the
+ * previous version, so a client reads the fields it knows of from the data of a newer server
+ * (ignoring the rest), and uses the defaults for fields that are absent from the data of an older
+ * server.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketFactory#InterruptibleRMISocketFactory(java.rmi.server.RMISocketFactory, InterruptibleRMISocketFactoryConfig)
+ * @author neilotoole@apache.org
+ */
+public final class InterruptibleRMISocketFactoryConfig implements Serializable
+{
+	/**
+	 * For serialization support.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The current version of the serialized form. Version 1 was the mode flag, and version 2 added
+	 * the profile; both were written by earlier versions of {@link InterruptibleRMISocketFactory},
+	 * and are kept as the prefix of later versions, so that earlier versions can still read it.
+	 * Version 3 added the number of spare connections, version 4 the stream buffer size of the
+	 * profile, version 5 the compression threshold, version 6 the TLS mode, version 7 the
+	 * local transport, version 8 the shared memory transport, and version 9 the number of
+	 * multiplexed connections.
+	 */
+	private static final int VERSION = 9;
+
+	/**
+	 * The maximum number of multiplexed connections per endpoint.
+	 */
+	static final int MAX_MULTIPLEXED_CONNECTIONS = 8;
+
+	/**
+	 * The default configuration.
+	 */
+	public static final InterruptibleRMISocketFactoryConfig DEFAULT = new InterruptibleRMISocketFactoryConfig(
+		false, InterruptibleRMISocketProfile.DEFAULT, 0);
+
+	private boolean isPreservingConnections;
+	private InterruptibleRMISocketProfile profile;
+	private int spareConnections;
+	private int compressionThreshold;
+	private boolean isSecure;
+	private boolean isLocal;
+	private boolean isSharedMemory;
+	private int multiplexedConnections;
+
+
+
+	/**
+	 * Create a configuration. The other settings are off; configurations with them are derived
+	 * from this one with the <code>with</code> methods, e.g.
+	 * <code>new InterruptibleRMISocketFactoryConfig(false, profile, 0).withSecure(true)</code>.
+	 * 
+	 * @param preserveConnections
+	 *            true for the connection-preserving cancel mode
+	 * @param profile
+	 *            the TCP options of the sockets
+	 * @param spareConnections
+	 *            the number of spare connections that clients keep to each endpoint, between 0
+	 *            and 8
+	 */
+	public InterruptibleRMISocketFactoryConfig(final boolean preserveConnections,
+		final InterruptibleRMISocketProfile profile, final int spareConnections)
+	{
+		this(preserveConnections, profile, spareConnections, 0, false, false, false, 0);
+	}
+
+
+
+	/**
+	 * Create a configuration with the supplied values.
+	 */
+	private InterruptibleRMISocketFactoryConfig(final boolean preserveConnections,
+		final InterruptibleRMISocketProfile profile, final int spareConnections,
+		final int compressionThreshold, final boolean secure, final boolean local,
+		final boolean sharedMemory, final int multiplexedConnections)
+	{
+		if (profile == null)
+		{
+			throw new NullPointerException("profile");
+		}
+
+		if (spareConnections < 0 || spareConnections > InterruptibleRMIEndpoint.MAX_SPARES)
+		{
+			throw new IllegalArgumentException("The number of spare connections must be between 0 and "
+				+ InterruptibleRMIEndpoint.MAX_SPARES + ": " + spareConnections);
+		}
+
+		if (compressionThreshold < 0)
+		{
+			throw new IllegalArgumentException("The compression threshold must not be negative: "
+				+ compressionThreshold);
+		}
+
+		if (multiplexedConnections < 0 || multiplexedConnections > MAX_MULTIPLEXED_CONNECTIONS)
+		{
+			throw new IllegalArgumentException(
+				"The number of multiplexed connections must be between 0 and "
+					+ MAX_MULTIPLEXED_CONNECTIONS + ": " + multiplexedConnections);
+		}
+
+		this.isPreservingConnections = preserveConnections;
+		this.profile = profile;
+		this.spareConnections = spareConnections;
+		this.compressionThreshold = compressionThreshold;
+		this.isSecure = secure;
+		this.isLocal = local;
+		this.isSharedMemory = sharedMemory;
+		this.multiplexedConnections = multiplexedConnections;
+	}
+
+
+
+	/**
+	 * Read a configuration written by {@link #write(ObjectOutput)}, or by an earlier version of
+	 * {@link InterruptibleRMISocketFactory}. Absent fields take their default values.
+	 */
+	static InterruptibleRMISocketFactoryConfig read(final ObjectInput in) throws IOException
+	{
+		final int mode = in.read();
+
+		if (mode < 0)
+		{
+			// written by the first version of the factory, which wrote nothing
+			return DEFAULT;
+		}
+
+		final boolean preserveConnections = mode != 0;
+		InterruptibleRMISocketProfile profile = in.available() > 0 ? InterruptibleRMISocketProfile.read(in)
+			: InterruptibleRMISocketProfile.DEFAULT;
+		final int version = in.available() > 0 ? in.readUnsignedByte() : 2;
+
+		// newer versions append fields, which are ignored
+		final int spareConnections = version >= 3 ? Math.min(in.readUnsignedByte(),
+			InterruptibleRMIEndpoint.MAX_SPARES) : 0;
+
+		if (version >= 4)
+		{
+			profile = profile.withBufferSize(Math.max(in.readInt(), 0));
+		}
+
+		final int compressionThreshold = version >= 5 ? Math.max(in.readInt(), 0) : 0;
+		final boolean secure = version >= 6 ? in.readBoolean() : false;
+		final boolean local = version >= 7 ? in.readBoolean() : false;
+		final boolean sharedMemory = version >= 8 ? in.readBoolean() : false;
+		final int multiplexedConnections = version >= 9 ? Math.min(in.readUnsignedByte(),
+			MAX_MULTIPLEXED_CONNECTIONS) : 0;
+
+		if (preserveConnections == false && profile.equals(InterruptibleRMISocketProfile.DEFAULT)
+			&& spareConnections == 0 && compressionThreshold == 0 && secure == false
+			&& local == false && sharedMemory == false && multiplexedConnections == 0)
+		{
+			return DEFAULT;
+		}
+
+		return new InterruptibleRMISocketFactoryConfig(preserveConnections, profile, spareConnections,
+			compressionThreshold, secure, local, sharedMemory, multiplexedConnections);
+	}
+
+
+
+	/**
+	 * Write this configuration to the supplied stream, in the current version.
+	 */
+	void write(final ObjectOutput out) throws IOException
+	{
+		out.writeBoolean(this.isPreservingConnections);
+		this.profile.write(out);
+		out.writeByte(VERSION);
+		out.writeByte(this.spareConnections);
+		out.writeInt(this.profile.getBufferSize());
+		out.writeInt(this.compressionThreshold);
+		out.writeBoolean(this.isSecure);
+		out.writeBoolean(this.isLocal);
+		out.writeBoolean(this.isSharedMemory);
+		out.writeByte(this.multiplexedConnections);
+	}
+
+
+
+	/**
+	 * Override #writeObject to write the compact form.
+	 */
+	@SuppressWarnings("unused")
+	private void writeObject(final ObjectOutputStream out) throws IOException
+	{
+		write(out);
+	}
+
+
+
+	/**
+	 * Override #readObject to read the compact form.
+	 */
+	@SuppressWarnings("unused")
+	private void readObject(final ObjectInputStream in) throws IOException
+	{
+		final InterruptibleRMISocketFactoryConfig config = read(in);
+		this.isPreservingConnections = config.isPreservingConnections;
+		this.profile = config.profile;
+		this.spareConnections = config.spareConnections;
+		this.compressionThreshold = config.compressionThreshold;
+		this.isSecure = config.isSecure;
+		this.isLocal = config.isLocal;
+		this.isSharedMemory = config.isSharedMemory;
+		this.multiplexedConnections = config.multiplexedConnections;
+	}
+
+
+
+	/**
+	 * Return true for the connection-preserving cancel mode.
+	 */
+	public boolean isPreservingConnections()
+	{
+		return this.isPreservingConnections;
+	}
+
+
+
+	/**
+	 * Return the TCP options of the sockets.
+	 */
+	public InterruptibleRMISocketProfile getProfile()
+	{
+		return this.profile;
+	}
+
+
+
+	/**
+	 * Return the number of spare connections that clients keep to each endpoint.
+	 */
+	public int getSpareConnections()
+	{
+		return this.spareConnections;
+	}
+
+
+
+	/**
+	 * Return the size in bytes from which blocks of data are compressed, or 0 if the connections
+	 * are not compressed. Compression pays on slow links, for calls that carry large or repetitive
+	 * arguments and results; on a LAN, or for small calls, it only costs CPU. The data of each
+	 * connection is sent in blocks, which end where RMI flushes (at the end of each message), and
+	 * blocks smaller than the threshold are sent uncompressed. Compression is negotiated per
+	 * connection, so a server also accepts connections from clients that do not compress.
+	 */
+	public int getCompressionThreshold()
+	{
+		return this.compressionThreshold;
+	}
+
+
+
+	/**
+	 * Return true if the connections are secured with TLS, using the context set by
+	 * {@link InterruptibleRMISocketFactory#setSSLContext(javax.net.ssl.SSLContext)} on each side.
+	 * Clients keep their TLS sessions resumable through cancels, so that the reconnect after a
+	 * cancel costs an abbreviated handshake rather than a full one. (Clients that predate the TLS
+	 * mode ignore it, and so can't connect to a server that uses it.)
+	 */
+	public boolean isSecure()
+	{
+		return this.isSecure;
+	}
+
+
+
+	/**
+	 * Return true if clients on the host of the server connect through a Unix domain socket
+	 * rather than TCP loopback, which saves the TCP/IP stack on each message. The server listens
+	 * on a socket file besides its TCP port (see
+	 * {@link InterruptibleRMISocketFactory#setLocalSocketDirectory(java.io.File)}), and a client
+	 * uses it when the host of the endpoint is an address of its own host and the file exists;
+	 * otherwise, or if the VM predates Unix domain socket channels (Java 16), it connects with
+	 * TCP. The local transport has the cancel semantics of channel sockets (see
+	 * {@link InterruptibleRMISocketFactory#setChannelSockets(boolean)}). It does not combine with
+	 * the connection-preserving cancel mode, the TLS mode or the multiplexed transport, which keep
+	 * to TCP.
+	 */
+	public boolean isLocal()
+	{
+		return this.isLocal;
+	}
+
+
+
+	/**
+	 * Return true if the data of clients on the host of the server goes through ring buffers in
+	 * shared memory (a memory-mapped file) rather than through the socket, which saves the system
+	 * calls of the socket while calls keep coming. The connection is still made (through TCP, or
+	 * the Unix domain socket of the local transport), and the client offers the server a file in
+	 * the directory of
+	 * {@link InterruptibleRMISocketFactory#setLocalSocketDirectory(java.io.File)}; a client whose
+	 * endpoint is remote, or whose file the server can't map, uses the connection as usual. A
+	 * cancel is a flag in the shared memory, which the liveness check of the server reads
+	 * directly. The shared memory is accessed with VarHandles, so both VMs must be Java 9 or later
+	 * (otherwise the connection is used as usual). It does not combine with the
+	 * connection-preserving cancel mode, the TLS mode or the multiplexed transport.
+	 */
+	public boolean isSharedMemory()
+	{
+		return this.isSharedMemory;
+	}
+
+
+
+	/**
+	 * Return the number of physical connections per endpoint over which clients multiplex their
+	 * RMI connections, or 0 if they don't. RMI opens a connection for each concurrent call, so
+	 * thousands of concurrent clients otherwise cost the server thousands of file descriptors. In
+	 * the multiplexed transport, each RMI connection is a stream of frames over one of these few
+	 * physical connections, with its own flow control, and cancelling a call cancels only its
+	 * stream. A server that uses the transport serves clients that don't (such as those that
+	 * predate it) over plain connections. It combines with compression and the TLS mode, which
+	 * apply to the streams and the physical connections respectively, and supersedes the local and
+	 * shared memory transports; the connection-preserving cancel mode supersedes it.
+	 */
+	public int getMultiplexedConnections()
+	{
+		return this.multiplexedConnections;
+	}
+
+
+
+	/**
+	 * Return true if the multiplexed transport is in use, i.e. if there are multiplexed
+	 * connections, and the connection-preserving cancel mode is off.
+	 */
+	boolean isMultiplexed()
+	{
+		return this.multiplexedConnections > 0 && this.isPreservingConnections == false;
+	}
+
+
+
+	/**
+	 * Return this configuration with the supplied compression threshold: the size in bytes from
+	 * which blocks of data are compressed, or 0 for no compression (see
+	 * {@link #getCompressionThreshold()}).
+	 */
+	public InterruptibleRMISocketFactoryConfig withCompressionThreshold(final int threshold)
+	{
+		return new InterruptibleRMISocketFactoryConfig(this.isPreservingConnections, this.profile,
+			this.spareConnections, threshold, this.isSecure, this.isLocal, this.isSharedMemory,
+			this.multiplexedConnections);
+	}
+
+
+
+	/**
+	 * Return this configuration with the TLS mode on or off (see {@link #isSecure()}).
+	 */
+	public InterruptibleRMISocketFactoryConfig withSecure(final boolean secure)
+	{
+		return new InterruptibleRMISocketFactoryConfig(this.isPreservingConnections, this.profile,
+			this.spareConnections, this.compressionThreshold, secure, this.isLocal,
+			this.isSharedMemory, this.multiplexedConnections);
+	}
+
+
+
+	/**
+	 * Return this configuration with the local transport on or off (see {@link #isLocal()}).
+	 */
+	public InterruptibleRMISocketFactoryConfig withLocal(final boolean local)
+	{
+		return new InterruptibleRMISocketFactoryConfig(this.isPreservingConnections, this.profile,
+			this.spareConnections, this.compressionThreshold, this.isSecure, local,
+			this.isSharedMemory, this.multiplexedConnections);
+	}
+
+
+
+	/**
+	 * Return this configuration with the shared memory transport on or off (see
+	 * {@link #isSharedMemory()}).
+	 */
+	public InterruptibleRMISocketFactoryConfig withSharedMemory(final boolean sharedMemory)
+	{
+		return new InterruptibleRMISocketFactoryConfig(this.isPreservingConnections, this.profile,
+			this.spareConnections, this.compressionThreshold, this.isSecure, this.isLocal,
+			sharedMemory, this.multiplexedConnections);
+	}
+
+
+
+	/**
+	 * Return this configuration with the supplied number of multiplexed connections, between 0
+	 * (for no multiplexing) and 8 (see {@link #getMultiplexedConnections()}).
+	 */
+	public InterruptibleRMISocketFactoryConfig withMultiplexedConnections(final int connections)
+	{
+		return new InterruptibleRMISocketFactoryConfig(this.isPreservingConnections, this.profile,
+			this.spareConnections, this.compressionThreshold, this.isSecure, this.isLocal,
+			this.isSharedMemory, connections);
+	}
+
+
+
+	/**
+	 * Return true if object is a configuration with the same values.
+	 */
+	@Override
+	public boolean equals(final Object object)
+	{
+		if (object instanceof InterruptibleRMISocketFactoryConfig == false)
+		{
+			return false;
+		}
+
+		final InterruptibleRMISocketFactoryConfig config = (InterruptibleRMISocketFactoryConfig) object;
+		return config.isPreservingConnections == this.isPreservingConnections
+			&& config.profile.equals(this.profile) && config.spareConnections == this.spareConnections
+			&& config.compressionThreshold == this.compressionThreshold
+			&& config.isSecure == this.isSecure && config.isLocal == this.isLocal
+			&& config.isSharedMemory == this.isSharedMemory
+			&& config.multiplexedConnections == this.multiplexedConnections;
+	}
+
+
+
+	/**
+	 * Return a hashCode consistent with {@link #equals(Object)}.
+	 */
+	@Override
+	public int hashCode()
+	{
+		int hash = this.isPreservingConnections ? 1 : 0;
+		hash = 31 * hash + this.profile.hashCode();
+		hash = 31 * hash + this.spareConnections;
+		hash = 31 * hash + this.compressionThreshold;
+		hash = 31 * hash + (this.isSecure ? 1 : 0);
+		hash = 31 * hash + (this.isLocal ? 1 : 0);
+		hash = 31 * hash + (this.isSharedMemory ? 1 : 0);
+		return 31 * hash + this.multiplexedConnections;
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the values of this configuration.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [preserveConnections=" + this.isPreservingConnections
+			+ ", profile=" + this.profile.getName() + ", spareConnections=" + this.spareConnections
+			+ ", compressionThreshold=" + this.compressionThreshold + ", secure=" + this.isSecure
+			+ ", local=" + this.isLocal + ", sharedMemory=" + this.isSharedMemory
+			+ ", multiplexedConnections=" + this.multiplexedConnections + "]";
+	}
+}
@@ -19,17 +19,17 @@ import java.io.OutputStream;
 
 /**
  * Decorator object for InputStream that invokes the listener's #ioStarting and #ioEnding methods
- * when entering and exiting IO blocks. The IO methods of this class are generally synchronized,
- * with the notable exception of #close.
+ * when entering and exiting IO blocks. The methods of this class take no locks: the decorated
+ * stream provides whatever thread safety it has, and the listener's hooks are lock-free.
  * 
  * 
  * @author neilotoole@apache.org
  */
 class InterruptibleRMISocketInputStream extends InputStream
 {
-	private final InputStream decoratee;
+	final InputStream decoratee;
 
-	private final InterruptibleRMISocket listener;
+	final InterruptibleRMISocket listener;
 
 
 
@@ -56,7 +56,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#available()
 	 */
 	@Override
-	public synchronized int available() throws IOException
+	public int available() throws IOException
 	{
 		return this.decoratee.available();
 	}
@@ -64,8 +64,8 @@ class InterruptibleRMISocketInputStream extends InputStream
 
 
 	/**
-	 * Close the underlying OutputStream. Unlike the #read methods, this method is not synchronized,
-	 * and it does not call back to the listener.
+	 * Close the underlying OutputStream. Unlike the #read methods, this method does not call back
+	 * to the listener.
 	 * 
 	 * 
 	 * @see OutputStream#close()
@@ -109,7 +109,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#mark(int)
 	 */
 	@Override
-	public synchronized void mark(final int readlimit)
+	public void mark(final int readlimit)
 	{
 		this.decoratee.mark(readlimit);
 	}
@@ -131,7 +131,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#read()
 	 */
 	@Override
-	public synchronized int read() throws IOException
+	public int read() throws IOException
 	{
 		try
 		{
@@ -151,7 +151,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#read(byte[])
 	 */
 	@Override
-	public synchronized int read(final byte[] b) throws IOException
+	public int read(final byte[] b) throws IOException
 	{
 		try
 		{
@@ -170,7 +170,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#read(byte[], int, int)
 	 */
 	@Override
-	public synchronized int read(final byte[] b, final int off, final int len) throws IOException
+	public int read(final byte[] b, final int off, final int len) throws IOException
 	{
 		try
 		{
@@ -189,7 +189,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#reset()
 	 */
 	@Override
-	public synchronized void reset() throws IOException
+	public void reset() throws IOException
 	{
 		this.decoratee.reset();
 	}
@@ -200,7 +200,7 @@ class InterruptibleRMISocketInputStream extends InputStream
 	 * @see InputStream#skip(long)
 	 */
 	@Override
-	public synchronized long skip(final long n) throws IOException
+	public long skip(final long n) throws IOException
 	{
 		try
 		{
@@ -17,18 +17,19 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * Decorator object for OutputStream that invokes the listener's #ioStarting and #ioEnding methods
- * when entering and exiting IO blocks. The #flush and #write methods in this class are
- * synchronized.
+ * Decorator object for OutputStream that invokes the listener's #writeStarting and #writeEnding
+ * methods (which call #ioStarting and #ioEnding) when entering and exiting IO blocks. The methods
+ * of this class take no locks: the decorated stream provides whatever thread safety it has, and the
+ * listener's hooks are lock-free.
  * 
  * 
  * @author neilotoole@apache.org
  */
 class InterruptibleRMISocketOutputStream extends OutputStream
 {
-	private final OutputStream decoratee;
+	final OutputStream decoratee;
 
-	private final InterruptibleRMISocket listener;
+	final InterruptibleRMISocket listener;
 
 
 
@@ -55,24 +56,24 @@ class InterruptibleRMISocketOutputStream extends OutputStream
 	 * @see OutputStream#write(int)
 	 */
 	@Override
-	public synchronized void write(final int b) throws IOException
+	public void write(final int b) throws IOException
 	{
 		try
 		{
-			this.listener.ioStarting();
+			this.listener.writeStarting();
 			this.decoratee.write(b);
 		}
 		finally
 		{
-			this.listener.ioEnding();
+			this.listener.writeEnding();
 		}
 	}
 
 
 
 	/**
-	 * Close the underlying OutputStream. Unlike the #flush and #write methods, this method is not
-	 * synchronized, and it does not call back to the listener.
+	 * Close the underlying OutputStream. Unlike the #flush and #write methods, this method does not
+	 * call back to the listener.
 	 * 
 	 * 
 	 * @see OutputStream#close()
@@ -106,16 +107,16 @@ class InterruptibleRMISocketOutputStream extends OutputStream
 	 * @see OutputStream#flush()
 	 */
 	@Override
-	public synchronized void flush() throws IOException
+	public void flush() throws IOException
 	{
 		try
 		{
-			this.listener.ioStarting();
+			this.listener.writeStarting();
 			this.decoratee.flush();
 		}
 		finally
 		{
-			this.listener.ioEnding();
+			this.listener.writeEnding();
 		}
 	}
 
@@ -147,16 +148,16 @@ class InterruptibleRMISocketOutputStream extends OutputStream
 	 * @see OutputStream#write(byte[])
 	 */
 	@Override
-	public synchronized void write(final byte[] b) throws IOException
+	public void write(final byte[] b) throws IOException
 	{
 		try
 		{
-			this.listener.ioStarting();
+			this.listener.writeStarting();
 			this.decoratee.write(b);
 		}
 		finally
 		{
-			this.listener.ioEnding();
+			this.listener.writeEnding();
 		}
 	}
 
@@ -166,16 +167,16 @@ class InterruptibleRMISocketOutputStream extends OutputStream
 	 * @see OutputStream#write(byte[], int, int)
 	 */
 	@Override
-	public synchronized void write(final byte[] b, final int off, final int len) throws IOException
+	public void write(final byte[] b, final int off, final int len) throws IOException
 	{
 		try
 		{
-			this.listener.ioStarting();
+			this.listener.writeStarting();
 			this.decoratee.write(b, off, len);
 		}
 		finally
 		{
-			this.listener.ioEnding();
+			this.listener.writeEnding();
 		}
 	}
 }
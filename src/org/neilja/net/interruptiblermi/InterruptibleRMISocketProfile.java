@@ -0,0 +1,349 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * A profile of the TCP options of the sockets created by an {@link InterruptibleRMISocketFactory}.
+ * Factories with different profiles are not equal, so RMI keeps a separate connection cache (and
+ * separate server sockets) for each profile: for example, exporting a lock service with
+ * {@link #INTERACTIVE} and a file service with {@link #BULK} ensures that short lock calls never
+ * queue behind large transfers on the same connection.
+ * <p>
+ * The profile of a factory is serialized with it, so it applies to the client side as well as
+ * the server side. Note that RMI itself enables TCP_NODELAY on all its connections.
+ * </p>
+ * <p>
+ * A profile may also enable the buffered mode of the socket streams (see
+ * {@link #getBufferSize()}); none of the constants do.
+ * </p>
+ * 
+ * @see InterruptibleRMISocketFactory#InterruptibleRMISocketFactory(InterruptibleRMISocketProfile)
+ * @author neilotoole@apache.org
+ */
+public final class InterruptibleRMISocketProfile
+{
+	/**
+	 * The IPTOS_LOWDELAY traffic class.
+	 */
+	private static final int IPTOS_LOWDELAY = 0x10;
+
+	/**
+	 * The IPTOS_THROUGHPUT traffic class.
+	 */
+	private static final int IPTOS_THROUGHPUT = 0x08;
+
+	/**
+	 * The profile that leaves all socket options at the platform defaults.
+	 */
+	public static final InterruptibleRMISocketProfile DEFAULT = new InterruptibleRMISocketProfile(
+		"default", false, 0, 0, 0);
+
+	/**
+	 * A profile for short, latency-critical calls: TCP_NODELAY, small (16 KiB) buffers, so that
+	 * little data queues in the socket, and the low-delay traffic class.
+	 */
+	public static final InterruptibleRMISocketProfile INTERACTIVE = new InterruptibleRMISocketProfile(
+		"interactive", true, 16 * 1024, 16 * 1024, IPTOS_LOWDELAY);
+
+	/**
+	 * A profile for large transfers: large (512 KiB) buffers, and the throughput traffic class.
+	 */
+	public static final InterruptibleRMISocketProfile BULK = new InterruptibleRMISocketProfile(
+		"bulk", false, 512 * 1024, 512 * 1024, IPTOS_THROUGHPUT);
+
+	private final String name;
+	private final boolean isTcpNoDelay;
+	private final int sendBufferSize;
+	private final int receiveBufferSize;
+	private final int trafficClass;
+	private final int bufferSize;
+
+
+
+	/**
+	 * Create a profile.
+	 * 
+	 * @param name
+	 *            the name of the profile
+	 * @param tcpNoDelay
+	 *            true to enable TCP_NODELAY (false leaves it at the default)
+	 * @param sendBufferSize
+	 *            the SO_SNDBUF size, or 0 for the default
+	 * @param receiveBufferSize
+	 *            the SO_RCVBUF size, or 0 for the default
+	 * @param trafficClass
+	 *            the IP traffic class, or 0 for the default
+	 */
+	public InterruptibleRMISocketProfile(final String name, final boolean tcpNoDelay,
+		final int sendBufferSize, final int receiveBufferSize, final int trafficClass)
+	{
+		this(name, tcpNoDelay, sendBufferSize, receiveBufferSize, trafficClass, 0);
+	}
+
+
+
+	/**
+	 * Create a profile that (if bufferSize is positive) enables the buffered mode of the socket
+	 * streams.
+	 * 
+	 * @param name
+	 *            the name of the profile
+	 * @param tcpNoDelay
+	 *            true to enable TCP_NODELAY (false leaves it at the default)
+	 * @param sendBufferSize
+	 *            the SO_SNDBUF size, or 0 for the default
+	 * @param receiveBufferSize
+	 *            the SO_RCVBUF size, or 0 for the default
+	 * @param trafficClass
+	 *            the IP traffic class, or 0 for the default
+	 * @param bufferSize
+	 *            the size of the stream buffers, or 0 for unbuffered streams
+	 * @see #getBufferSize()
+	 */
+	public InterruptibleRMISocketProfile(final String name, final boolean tcpNoDelay,
+		final int sendBufferSize, final int receiveBufferSize, final int trafficClass,
+		final int bufferSize)
+	{
+		if (name == null)
+		{
+			throw new NullPointerException("name");
+		}
+
+		if (sendBufferSize < 0 || receiveBufferSize < 0 || trafficClass < 0 || trafficClass > 255
+			|| bufferSize < 0)
+		{
+			throw new IllegalArgumentException("Invalid socket options for profile " + name);
+		}
+
+		this.name = name;
+		this.isTcpNoDelay = tcpNoDelay;
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.trafficClass = trafficClass;
+		this.bufferSize = bufferSize;
+	}
+
+
+
+	/**
+	 * Read a profile written by {@link #write(ObjectOutput)}.
+	 */
+	static InterruptibleRMISocketProfile read(final ObjectInput in) throws IOException
+	{
+		final InterruptibleRMISocketProfile profile = new InterruptibleRMISocketProfile(in.readUTF(),
+			in.readBoolean(), in.readInt(), in.readInt(), in.readInt());
+
+		// keep the constants unique on the client side
+		for (final InterruptibleRMISocketProfile constant : new InterruptibleRMISocketProfile[] {
+			DEFAULT, INTERACTIVE, BULK })
+		{
+			if (constant.equals(profile))
+			{
+				return constant;
+			}
+		}
+
+		return profile;
+	}
+
+
+
+	/**
+	 * Return this profile with the supplied stream buffer size.
+	 */
+	InterruptibleRMISocketProfile withBufferSize(final int size)
+	{
+		if (size == this.bufferSize)
+		{
+			return this;
+		}
+
+		return new InterruptibleRMISocketProfile(this.name, this.isTcpNoDelay, this.sendBufferSize,
+			this.receiveBufferSize, this.trafficClass, size);
+	}
+
+
+
+	/**
+	 * Write this profile to the supplied stream. The stream buffer size is not written here, as
+	 * older readers do not expect it: {@link InterruptibleRMISocketFactoryConfig} writes it after
+	 * its own fields.
+	 */
+	void write(final ObjectOutput out) throws IOException
+	{
+		out.writeUTF(this.name);
+		out.writeBoolean(this.isTcpNoDelay);
+		out.writeInt(this.sendBufferSize);
+		out.writeInt(this.receiveBufferSize);
+		out.writeInt(this.trafficClass);
+	}
+
+
+
+	/**
+	 * Apply this profile to the supplied socket (ideally before it is connected, so that the
+	 * buffer sizes can affect the TCP window).
+	 */
+	void configure(final Socket socket) throws SocketException
+	{
+		if (this.isTcpNoDelay)
+		{
+			socket.setTcpNoDelay(true);
+		}
+
+		if (this.sendBufferSize > 0)
+		{
+			socket.setSendBufferSize(this.sendBufferSize);
+		}
+
+		if (this.receiveBufferSize > 0)
+		{
+			socket.setReceiveBufferSize(this.receiveBufferSize);
+		}
+
+		if (this.trafficClass > 0)
+		{
+			try
+			{
+				socket.setTrafficClass(this.trafficClass);
+			}
+			catch (final SocketException e)
+			{
+				// the traffic class is only a hint, and is not supported everywhere
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the name of this profile.
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+
+
+	/**
+	 * Return true if this profile enables TCP_NODELAY.
+	 */
+	public boolean isTcpNoDelay()
+	{
+		return this.isTcpNoDelay;
+	}
+
+
+
+	/**
+	 * Return the SO_SNDBUF size, or 0 for the default.
+	 */
+	public int getSendBufferSize()
+	{
+		return this.sendBufferSize;
+	}
+
+
+
+	/**
+	 * Return the SO_RCVBUF size, or 0 for the default.
+	 */
+	public int getReceiveBufferSize()
+	{
+		return this.receiveBufferSize;
+	}
+
+
+
+	/**
+	 * Return the IP traffic class, or 0 for the default.
+	 */
+	public int getTrafficClass()
+	{
+		return this.trafficClass;
+	}
+
+
+
+	/**
+	 * Return the size of the stream buffers, or 0 if the socket streams are unbuffered (the
+	 * default). In the buffered mode, the streams of each connection use buffers of this size
+	 * (drawn from a shared pool), and the cancellation hooks run once per buffer fill or flush
+	 * rather than once per read or write. RMI already buffers its own streams, so the buffered
+	 * mode mostly benefits small writes and reads such as the single bytes of the RMI protocol
+	 * headers; a call interrupted during a flush is unblocked just as in the unbuffered mode.
+	 * Client sockets buffer both streams, server sockets buffer only their output.
+	 */
+	public int getBufferSize()
+	{
+		return this.bufferSize;
+	}
+
+
+
+	/**
+	 * Return true if object is a profile with the same name and socket options.
+	 */
+	@Override
+	public boolean equals(final Object object)
+	{
+		if (object instanceof InterruptibleRMISocketProfile == false)
+		{
+			return false;
+		}
+
+		final InterruptibleRMISocketProfile profile = (InterruptibleRMISocketProfile) object;
+		return profile.name.equals(this.name) && profile.isTcpNoDelay == this.isTcpNoDelay
+			&& profile.sendBufferSize == this.sendBufferSize
+			&& profile.receiveBufferSize == this.receiveBufferSize
+			&& profile.trafficClass == this.trafficClass && profile.bufferSize == this.bufferSize;
+	}
+
+
+
+	/**
+	 * Return a hashCode consistent with {@link #equals(Object)}.
+	 */
+	@Override
+	public int hashCode()
+	{
+		int hash = this.name.hashCode();
+		hash = 31 * hash + (this.isTcpNoDelay ? 1 : 0);
+		hash = 31 * hash + this.sendBufferSize;
+		hash = 31 * hash + this.receiveBufferSize;
+		hash = 31 * hash + this.trafficClass;
+		return 31 * hash + this.bufferSize;
+	}
+
+
+
+	/**
+	 * Return the name of this class, and the name and options of this profile.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.getClass().getName() + " [" + this.name + ", tcpNoDelay=" + this.isTcpNoDelay
+			+ ", sendBufferSize=" + this.sendBufferSize + ", receiveBufferSize="
+			+ this.receiveBufferSize + ", trafficClass=" + this.trafficClass + ", bufferSize="
+			+ this.bufferSize + "]";
+	}
+}
@@ -0,0 +1,791 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * An RMI socket secured with TLS (see {@link InterruptibleRMISocketFactoryConfig#isSecure()}): it
+ * decorates an {@link SSLSocket} layered over a plain connected socket, as seen by the RMI
+ * transport through the decoration of {@link InterruptibleRMIClientSocket} or
+ * {@link InterruptibleRMIServerSideSocket}. All sockets use the one {@link SSLContext} of
+ * {@link #setContext(SSLContext)}, so client sockets share its session cache, and a reconnect to
+ * an endpoint resumes the session of the previous connection (with a session ticket, if the server
+ * issues them) in an abbreviated handshake.
+ * <p>
+ * The socket keeps its sessions resumable through cancels. JSSE invalidates a session when it
+ * can't send close_notify (as when a connection with a blocked writer is closed with a zero
+ * SO_LINGER), but not when the transport fails. So a cancel either closes the socket gracefully
+ * (when the shutdown signal could be written), or resets the plain socket under the TLS layer
+ * ({@link #close()} with a zero SO_LINGER), which fails the blocked writer without involving the
+ * session.
+ * </p>
+ * <p>
+ * {@link InputStream#available()} of an SSLSocket only counts input that has already been
+ * decrypted, and a probe must never read the TLS layer, which would consume records (and block on
+ * an incomplete one). So the TLS layer reads the plain socket through a {@link PlainInputStream},
+ * which can read ahead what has arrived without consuming it, and the input stream of this socket
+ * also counts the end of the plain stream, once it has been read ahead, as one byte: a read then
+ * returns whatever the records before it hold (such as the shutdown signal that precedes the
+ * close of a cancelled client) without blocking. The waiting probe of the server side waits for
+ * the end of the stream below the TLS layer (see {@link #awaitInput(int)}). The end of the stream
+ * only shows once it has been read, and a cancel frame of the framed connection is not followed
+ * by it, so the probe also decrypts the next record, but only once the whole record has arrived
+ * (see {@link #decryptArrived()}); a read of the TLS layer is never timed out.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMITLSSocket extends InterruptibleRMISocket
+{
+	/**
+	 * How long a client waits for the server during the handshake, in milliseconds.
+	 */
+	static final int HANDSHAKE_TIMEOUT_MILLIS = 15000;
+
+	/**
+	 * The context of all sockets, or null for {@link SSLContext#getDefault()}.
+	 */
+	private static volatile SSLContext context;
+
+	private static final AtomicLong handshakeCount = new AtomicLong();
+	private static final AtomicLong resumedCount = new AtomicLong();
+
+	/**
+	 * The plain socket under the TLS layer.
+	 */
+	private final Socket plain;
+
+	/**
+	 * The input of the plain socket, as read by the TLS layer.
+	 */
+	private final PlainInputStream plainInput;
+
+	private final RecordInputStream input;
+
+
+
+	private InterruptibleRMITLSSocket(final SSLSocket decoratee, final PlainSocket layer)
+		throws IOException
+	{
+		super(decoratee);
+		this.plain = layer.decoratee;
+		this.plainInput = layer.input;
+		this.input = new RecordInputStream(decoratee.getInputStream());
+	}
+
+
+
+	/**
+	 * Layer TLS over the supplied socket, connected to the supplied host and port, in client mode,
+	 * and perform the handshake (abbreviated, if there is a resumable session for the host and
+	 * port), which fails unless the certificate of the server names the host. The plain socket is
+	 * closed if the handshake fails.
+	 */
+	static InterruptibleRMITLSSocket connect(final Socket plain, final String host, final int port)
+		throws IOException
+	{
+		try
+		{
+			final SSLContext sslContext = getContext();
+			final PlainSocket layer = new PlainSocket(plain);
+			final SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(layer,
+				host, port, true);
+			socket.setUseClientMode(true);
+
+			// the certificate of the server must name the host
+			final SSLParameters parameters = socket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			socket.setSSLParameters(parameters);
+
+			final Set<String> cachedIds = getSessionIds(sslContext);
+			final int soTimeout = plain.getSoTimeout();
+			plain.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			socket.startHandshake();
+			plain.setSoTimeout(soTimeout);
+
+			handshakeCount.incrementAndGet();
+
+			// a resumed session is the cached session it resumes
+			if (cachedIds.contains(toHex(socket.getSession().getId())))
+			{
+				resumedCount.incrementAndGet();
+			}
+
+			return new InterruptibleRMITLSSocket(socket, layer);
+		}
+		catch (final IOException e)
+		{
+			plain.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Return the IDs of the sessions in the client session cache of the supplied context (as hex
+	 * strings).
+	 */
+	private static Set<String> getSessionIds(final SSLContext sslContext)
+	{
+		final Set<String> ids = new HashSet<String>();
+		final Enumeration<byte[]> cached = sslContext.getClientSessionContext().getIds();
+
+		while (cached.hasMoreElements())
+		{
+			ids.add(toHex(cached.nextElement()));
+		}
+
+		return ids;
+	}
+
+
+
+	private static String toHex(final byte[] bytes)
+	{
+		final StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+		for (final byte b : bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+	}
+
+
+
+	/**
+	 * Layer TLS over the supplied accepted socket, in server mode. The handshake is performed by
+	 * the first IO on the socket (i.e. by the RMI thread that serves the connection, rather than
+	 * by the thread that accepts connections).
+	 */
+	static InterruptibleRMITLSSocket accept(final Socket plain) throws IOException
+	{
+		try
+		{
+			final PlainSocket layer = new PlainSocket(plain);
+			final SSLSocket socket = (SSLSocket) getContext().getSocketFactory().createSocket(layer,
+				null, plain.getPort(), true);
+			socket.setUseClientMode(false);
+			return new InterruptibleRMITLSSocket(socket, layer);
+		}
+		catch (final IOException e)
+		{
+			plain.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Set the context of the sockets created from now on (null for
+	 * {@link SSLContext#getDefault()}).
+	 */
+	static void setContext(final SSLContext sslContext)
+	{
+		context = sslContext;
+	}
+
+
+
+	/**
+	 * Return the context of new sockets.
+	 */
+	static SSLContext getContext() throws IOException
+	{
+		final SSLContext sslContext = context;
+
+		if (sslContext != null)
+		{
+			return sslContext;
+		}
+
+		try
+		{
+			return SSLContext.getDefault();
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			throw new IOException("No default SSLContext: " + e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * Return the number of client handshakes completed in this VM.
+	 */
+	static long getHandshakeCount()
+	{
+		return handshakeCount.get();
+	}
+
+
+
+	/**
+	 * Return the number of client handshakes completed in this VM that resumed a session.
+	 */
+	static long getResumedCount()
+	{
+		return resumedCount.get();
+	}
+
+
+
+	/**
+	 * No-op: a thread blocked in this socket is unblocked by closing it.
+	 */
+	@Override
+	void ioStarting()
+	{
+	}
+
+
+
+	/**
+	 * No-op.
+	 */
+	@Override
+	void ioEnding()
+	{
+	}
+
+
+
+	/**
+	 * Wait up to the supplied time for input below the TLS layer, without reading the TLS layer:
+	 * read ahead what arrives on the plain socket, until its end (or until enough for a record has
+	 * been read ahead). {@link InputStream#available()} then counts the end of the stream. Called
+	 * by a probe of the server side, which guarantees that no other IO is in progress.
+	 */
+	void awaitInput(final int timeoutMillis) throws IOException
+	{
+		this.plainInput.readAhead(timeoutMillis);
+	}
+
+
+
+	/**
+	 * Decrypt the next record, if it is an application data record that has arrived in full below
+	 * the TLS layer (so that the read doesn't block), unless decrypted input is left. Its data is
+	 * then counted by {@link InputStream#available()}. Called by a probe of the server side, which
+	 * guarantees that no other IO is in progress.
+	 */
+	void decryptArrived() throws IOException
+	{
+		this.input.decryptArrived();
+	}
+
+
+
+	/**
+	 * Close this socket. If SO_LINGER is set to zero (i.e. the connection is being reset, as by a
+	 * cancel), the plain socket is closed first: the TLS layer may be held by a blocked writer,
+	 * which then fails with a SocketException, and the session is left resumable.
+	 * 
+	 * @see java.net.Socket#close()
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (this.plain.getSoLinger() == 0)
+			{
+				this.plain.close();
+			}
+		}
+		catch (final IOException e)
+		{
+			// just swallow this; the plain socket is already closed
+		}
+
+		super.close();
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		this.decoratee.getInputStream();
+		return this.input;
+	}
+
+
+
+	/**
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		return this.decoratee.getOutputStream();
+	}
+
+	/**
+	 * The input of the SSLSocket, whose {@link #available()} never reads the TLS layer.
+	 */
+	private final class RecordInputStream extends FilterInputStream
+	{
+		/**
+		 * The value of {@link #pending} when no byte has been read ahead.
+		 */
+		private static final int NONE = -2;
+
+		/**
+		 * The byte read ahead by {@link #decryptArrived()}, or NONE.
+		 */
+		private int pending = NONE;
+
+
+
+		RecordInputStream(final InputStream in)
+		{
+			super(in);
+		}
+
+
+
+		/**
+		 * Decrypt the next record, if it has arrived in full (see
+		 * {@link InterruptibleRMITLSSocket#decryptArrived()}), reading its first byte ahead.
+		 */
+		void decryptArrived() throws IOException
+		{
+			if (this.pending == NONE && this.in.available() <= 0
+				&& InterruptibleRMITLSSocket.this.plainInput.hasRecord())
+			{
+				this.pending = this.in.read();
+			}
+		}
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			final int val = this.pending;
+
+			if (val != NONE)
+			{
+				this.pending = NONE;
+				return val;
+			}
+
+			return this.in.read();
+		}
+
+
+
+		/**
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			final int val = this.pending;
+
+			if (val == NONE || len == 0)
+			{
+				return this.in.read(b, off, len);
+			}
+
+			this.pending = NONE;
+
+			if (val < 0)
+			{
+				return -1;
+			}
+
+			b[off] = (byte) val;
+			return 1;
+		}
+
+
+
+		/**
+		 * @see InputStream#skip(long)
+		 */
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			if (n <= 0 || this.pending == NONE)
+			{
+				return this.in.skip(n);
+			}
+
+			return read() < 0 ? 0 : 1;
+		}
+
+
+
+		/**
+		 * Return the number of bytes that have already been decrypted, or, if there are none, 1 if
+		 * the end of the plain stream has been read ahead (as the read that returns the rest of
+		 * the stream then doesn't block), else 0. What has arrived on the plain socket is read
+		 * ahead without blocking.
+		 * 
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException
+		{
+			if (this.pending != NONE)
+			{
+				return 1 + (this.pending < 0 ? 0 : this.in.available());
+			}
+
+			final int available = this.in.available();
+
+			if (available > 0)
+			{
+				return available;
+			}
+
+			return InterruptibleRMITLSSocket.this.plainInput.readAhead(0) ? 1 : 0;
+		}
+	}
+
+	/**
+	 * The plain socket as seen by the TLS layer, which reads it through a {@link PlainInputStream}.
+	 */
+	private static final class PlainSocket extends InterruptibleRMISocket
+	{
+		final PlainInputStream input;
+
+
+
+		PlainSocket(final Socket plain) throws IOException
+		{
+			super(plain);
+			this.input = new PlainInputStream(plain);
+		}
+
+
+
+		/**
+		 * No-op: the TLS layer makes the IO.
+		 */
+		@Override
+		void ioStarting()
+		{
+		}
+
+
+
+		/**
+		 * No-op.
+		 */
+		@Override
+		void ioEnding()
+		{
+		}
+
+
+
+		/**
+		 * @see java.net.Socket#getInputStream()
+		 */
+		@Override
+		public InputStream getInputStream() throws IOException
+		{
+			this.decoratee.getInputStream();
+			return this.input;
+		}
+
+
+
+		/**
+		 * @see java.net.Socket#getOutputStream()
+		 */
+		@Override
+		public OutputStream getOutputStream() throws IOException
+		{
+			return this.decoratee.getOutputStream();
+		}
+	}
+
+	/**
+	 * The input of the plain socket, which returns what {@link #readAhead(int)} has read ahead
+	 * before reading on. It is used by the thread that reads the socket, or by a probe that
+	 * excludes it, so changing the SO_TIMEOUT of the socket meanwhile is safe.
+	 */
+	private static final class PlainInputStream extends FilterInputStream
+	{
+		/**
+		 * The most that is read ahead: more than a TLS record.
+		 */
+		private static final int MAX_READ_AHEAD = 20 * 1024;
+
+		/**
+		 * The size of the header of a TLS record: its type, version and length.
+		 */
+		private static final int RECORD_HEADER_SIZE = 5;
+
+		/**
+		 * The type of a TLS application data record.
+		 */
+		private static final int RECORD_TYPE_APPLICATION_DATA = 23;
+
+		private final Socket socket;
+
+		/**
+		 * The bytes read ahead (from readPos to readLimit), in a buffer that grows as needed, or
+		 * null until the first read ahead.
+		 */
+		private byte[] readAhead;
+		private int readPos;
+		private int readLimit;
+
+		/**
+		 * Set once the end of the stream has been read ahead.
+		 */
+		private boolean isEndOfStream;
+
+
+
+		PlainInputStream(final Socket socket) throws IOException
+		{
+			super(socket.getInputStream());
+			this.socket = socket;
+		}
+
+
+
+		/**
+		 * Read ahead what has arrived, waiting up to the supplied time (if positive) for more,
+		 * until the end of the stream or {@link #MAX_READ_AHEAD} bytes. Return true if the end of
+		 * the stream has been read ahead.
+		 */
+		boolean readAhead(final int timeoutMillis) throws IOException
+		{
+			boolean mayWait = timeoutMillis > 0;
+
+			while (this.isEndOfStream == false && this.readLimit - this.readPos < MAX_READ_AHEAD)
+			{
+				final int available = this.in.available();
+
+				if (available <= 0 && mayWait == false)
+				{
+					break;
+				}
+
+				final int space = reserve(Math.max(available, 1));
+				final int count;
+
+				if (available > 0)
+				{
+					count = this.in.read(this.readAhead, this.readLimit, Math.min(available,
+						space));
+				}
+				else
+				{
+					mayWait = false;
+					count = readWaiting(timeoutMillis);
+				}
+
+				if (count < 0)
+				{
+					this.isEndOfStream = true;
+				}
+				else
+				{
+					this.readLimit += count;
+				}
+			}
+
+			return this.isEndOfStream;
+		}
+
+
+
+		/**
+		 * Make room for the supplied number of bytes after those read ahead (as far as
+		 * {@link #MAX_READ_AHEAD} allows), and return the room made.
+		 */
+		private int reserve(final int count)
+		{
+			if (this.readPos > 0)
+			{
+				System.arraycopy(this.readAhead, this.readPos, this.readAhead, 0, this.readLimit
+					- this.readPos);
+				this.readLimit -= this.readPos;
+				this.readPos = 0;
+			}
+
+			final int size = Math.min(this.readLimit + count, MAX_READ_AHEAD);
+
+			if (this.readAhead == null || this.readAhead.length < size)
+			{
+				final byte[] buffer = new byte[Math.max(size, Math.min(2 * this.readLimit,
+					MAX_READ_AHEAD))];
+
+				if (this.readLimit > 0)
+				{
+					System.arraycopy(this.readAhead, 0, buffer, 0, this.readLimit);
+				}
+
+				this.readAhead = buffer;
+			}
+
+			return this.readAhead.length - this.readLimit;
+		}
+
+
+
+		/**
+		 * Return true if the next record has arrived in full, and is an application data record,
+		 * reading ahead what has arrived first. (In TLS 1.3, an application data record may also
+		 * carry a key update, which a peer only sends after writing vast amounts of data.)
+		 */
+		boolean hasRecord() throws IOException
+		{
+			readAhead(0);
+
+			final int buffered = this.readLimit - this.readPos;
+
+			if (buffered < RECORD_HEADER_SIZE
+				|| this.readAhead[this.readPos] != RECORD_TYPE_APPLICATION_DATA)
+			{
+				return false;
+			}
+
+			final int length = ((this.readAhead[this.readPos + 3] & 0xFF) << 8)
+				| (this.readAhead[this.readPos + 4] & 0xFF);
+			return buffered >= RECORD_HEADER_SIZE + length;
+		}
+
+
+
+		/**
+		 * Read ahead one byte, waiting up to the supplied time for it. Return 1, 0 if none
+		 * arrived, or -1 at the end of the stream.
+		 */
+		private int readWaiting(final int timeoutMillis) throws IOException
+		{
+			final int soTimeout = this.socket.getSoTimeout();
+			this.socket.setSoTimeout(timeoutMillis);
+
+			try
+			{
+				return this.in.read(this.readAhead, this.readLimit, 1);
+			}
+			catch (final SocketTimeoutException e)
+			{
+				return 0;
+			}
+			finally
+			{
+				this.socket.setSoTimeout(soTimeout);
+			}
+		}
+
+
+
+		/**
+		 * @see InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException
+		{
+			if (this.readPos < this.readLimit)
+			{
+				return this.readAhead[this.readPos++] & 0xFF;
+			}
+
+			return this.isEndOfStream ? -1 : this.in.read();
+		}
+
+
+
+		/**
+		 * @see InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			final int buffered = this.readLimit - this.readPos;
+
+			if (buffered <= 0)
+			{
+				return this.isEndOfStream ? -1 : this.in.read(b, off, len);
+			}
+
+			final int count = Math.min(buffered, len);
+			System.arraycopy(this.readAhead, this.readPos, b, off, count);
+			this.readPos += count;
+			return count;
+		}
+
+
+
+		/**
+		 * @see InputStream#skip(long)
+		 */
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			final int buffered = this.readLimit - this.readPos;
+
+			if (buffered <= 0)
+			{
+				return this.isEndOfStream ? 0 : this.in.skip(n);
+			}
+
+			final int count = (int) Math.min(buffered, Math.max(n, 0));
+			this.readPos += count;
+			return count;
+		}
+
+
+
+		/**
+		 * @see InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException
+		{
+			return this.readLimit - this.readPos + (this.isEndOfStream ? 0 : this.in.available());
+		}
+	}
+}
@@ -13,10 +13,6 @@
  */
 package org.neilja.net.interruptiblermi;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-
 /**
  * Extends Thread to provide support for interrupting the thread while the thread is in a blocking
  * RMI IO operation. Typically, threads that are in blocking IO operations can't be interrupted.
@@ -25,7 +21,8 @@ import java.net.Socket;
  * to register when it enters blocking IO. When {@link #interrupt()} is called on this thread, the
  * associated RMI socket is shutdown and closed, thus terminating the blocking IO operation. Use
  * {@link org.neilja.net.interruptiblermi.InterruptibleRMIThreadFactory#newThread(Runnable)}
- * to create instances of this thread class.
+ * to create instances of this thread class. Threads of other kinds (e.g. virtual threads) can use
+ * {@link InterruptibleRMICancelHandle} instead.
  * 
  * @author neilotoole@apache.org
  * 
@@ -33,7 +30,11 @@ import java.net.Socket;
  */
 class InterruptibleRMIThread extends Thread
 {
-	private Socket rmiSocket;
+	/**
+	 * The cancel handle of this thread, which tracks the RMI socket (if any) that this thread has
+	 * in a blocking IO operation.
+	 */
+	private final InterruptibleRMICancelHandle cancelHandle = new InterruptibleRMICancelHandle(this);
 
 
 
@@ -48,23 +49,11 @@ class InterruptibleRMIThread extends Thread
 
 
 	/**
-	 * Register the supplied socket as currently being in an IO operation.
-	 * 
+	 * Return the cancel handle of this thread.
 	 */
-	synchronized void registerSocketInIO(final InterruptibleRMIClientSocket socket)
+	InterruptibleRMICancelHandle getCancelHandle()
 	{
-		this.rmiSocket = socket;
-	}
-
-
-
-	/**
-	 * Unregister the socket currently registered as being in an IO operation.
-	 * 
-	 */
-	synchronized void unregisterSocketInIO()
-	{
-		this.rmiSocket = null;
+		return this.cancelHandle;
 	}
 
 
@@ -72,37 +61,20 @@ class InterruptibleRMIThread extends Thread
 	/**
 	 * Interrupt this thread, even if it is in a blocking RMI IO operation. This method first
 	 * invokes the superclass's #interrupt method. Then, if an RMI socket has been registered as
-	 * being in IO for this thread, a special marker (like an EOF) is written to the socket (to help
-	 * the server side shutdown its threads), and then the RMI socket is directly closed.
-	 * Afterwards, this thread's interrupt status will have been set.
+	 * being in IO for this thread, a background thread writes a special marker (like an EOF) to the
+	 * socket (to help the server side shutdown its threads), and then directly closes the RMI
+	 * socket. This method never blocks. Afterwards, this thread's interrupt status will have been
+	 * set.
 	 * 
 	 * @see Thread#interrupt()
+	 * @see InterruptibleRMICancelHandle#cancel()
 	 */
 	@Override
-	public synchronized void interrupt()
+	public void interrupt()
 	{
 		super.interrupt();
 
-		if (this.rmiSocket != null)
-		{
-			try
-			{
-				OutputStream out = this.rmiSocket.getOutputStream();
-				out.write(InterruptibleRMISocket.SHUTDOWN_SOCKET);
-				out.flush();
-				out.close();
-
-				this.rmiSocket.close();
-			}
-			catch (final IOException e)
-			{
-				// just swallow this
-			}
-			finally
-			{
-				this.rmiSocket = null;
-			}
-		}
+		this.cancelHandle.abortSocketInIO();
 	}
 
 }
@@ -0,0 +1,407 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel shared by all the deadlines of this library. Scheduling and cancelling a
+ * timeout cost O(1) (an object and a queue insertion), and a single daemon thread services every
+ * outstanding timeout, so hundreds of thousands of deadlines need neither a
+ * {@link java.util.concurrent.ScheduledFuture} nor a thread each. Timeouts fire at a granularity
+ * of {@link #TICK_NANOS}, never early, and typically within a tick of their deadline.
+ * <p>
+ * The wheel's buckets are only touched by the timer thread: new and cancelled timeouts are handed
+ * to it via lock-free queues. When there are no outstanding timeouts, the timer thread parks
+ * until the next timeout is scheduled. Tasks run on the timer thread, so they must be quick and
+ * must not block.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+final class InterruptibleRMITimerWheel implements Runnable
+{
+	/**
+	 * The duration of a tick of the wheel.
+	 */
+	static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * The number of buckets in the wheel (a power of two), i.e. one revolution covers a little over
+	 * five seconds; longer timeouts wait out the extra revolutions in their bucket.
+	 */
+	private static final int WHEEL_SIZE = 512;
+
+	/**
+	 * The shared wheel, created (and its thread started) on first use.
+	 */
+	private static InterruptibleRMITimerWheel instance;
+
+
+
+	/**
+	 * Return the shared wheel.
+	 */
+	static synchronized InterruptibleRMITimerWheel getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new InterruptibleRMITimerWheel();
+			instance.thread.start();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * A scheduled task. The timer-thread-only fields describe its position in the wheel.
+	 */
+	static final class Timeout
+	{
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater = AtomicIntegerFieldUpdater.newUpdater(
+			Timeout.class, "state");
+
+		private final InterruptibleRMITimerWheel wheel;
+		private final Runnable task;
+
+		/**
+		 * The deadline, relative to the start of the wheel.
+		 */
+		private final long deadline;
+
+		private volatile int state = PENDING;
+
+		// fields below are only accessed by the timer thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+
+
+		Timeout(final InterruptibleRMITimerWheel wheel, final Runnable task, final long deadline)
+		{
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+
+
+		/**
+		 * Cancel this timeout. Return true if the task will not run, or false if it has already
+		 * run (or is running) or was already cancelled.
+		 */
+		boolean cancel()
+		{
+			if (stateUpdater.compareAndSet(this, PENDING, CANCELLED) == false)
+			{
+				return false;
+			}
+
+			this.wheel.pendingCount.decrementAndGet();
+			this.wheel.cancelled.add(this);
+			return true;
+		}
+
+
+
+		/**
+		 * Run the task, unless this timeout has been cancelled. Called by the timer thread.
+		 */
+		void expire()
+		{
+			if (stateUpdater.compareAndSet(this, PENDING, EXPIRED) == false)
+			{
+				return;
+			}
+
+			this.wheel.pendingCount.decrementAndGet();
+
+			try
+			{
+				this.task.run();
+			}
+			catch (final Throwable t)
+			{
+				// a failing task must not kill the timer thread
+			}
+		}
+	}
+
+	/**
+	 * A doubly-linked list of timeouts, accessed by the timer thread only.
+	 */
+	private static final class Bucket
+	{
+		private Timeout head;
+		private Timeout tail;
+
+
+
+		void add(final Timeout timeout)
+		{
+			timeout.bucket = this;
+			timeout.prev = this.tail;
+
+			if (this.tail == null)
+			{
+				this.head = timeout;
+			}
+			else
+			{
+				this.tail.next = timeout;
+			}
+
+			this.tail = timeout;
+		}
+
+
+
+		void remove(final Timeout timeout)
+		{
+			if (timeout.prev == null)
+			{
+				this.head = timeout.next;
+			}
+			else
+			{
+				timeout.prev.next = timeout.next;
+			}
+
+			if (timeout.next == null)
+			{
+				this.tail = timeout.prev;
+			}
+			else
+			{
+				timeout.next.prev = timeout.prev;
+			}
+
+			timeout.bucket = null;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+
+
+
+		/**
+		 * Expire every timeout in this bucket that is due by the supplied deadline, and count down
+		 * the rounds of the others.
+		 */
+		void expire(final long tickDeadline)
+		{
+			Timeout timeout = this.head;
+
+			while (timeout != null)
+			{
+				final Timeout next = timeout.next;
+
+				if (timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline)
+				{
+					remove(timeout);
+					timeout.expire();
+				}
+				else
+				{
+					--timeout.remainingRounds;
+				}
+
+				timeout = next;
+			}
+		}
+	}
+
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * The number of timeouts that have been scheduled, and have neither expired nor been
+	 * cancelled.
+	 */
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	/**
+	 * Set while the timer thread is parked because there are no pending timeouts.
+	 */
+	private volatile boolean isIdle;
+
+	private final long startNanos = System.nanoTime();
+	private final Thread thread;
+
+	/**
+	 * The number of ticks processed, accessed by the timer thread only.
+	 */
+	private long tick;
+
+
+
+	private InterruptibleRMITimerWheel()
+	{
+		for (int i = 0; i < WHEEL_SIZE; i++)
+		{
+			this.wheel[i] = new Bucket();
+		}
+
+		this.thread = new Thread(this, "InterruptibleRMI-Timer");
+		this.thread.setDaemon(true);
+	}
+
+
+
+	/**
+	 * Schedule the supplied task to run on the timer thread once the supplied delay has elapsed.
+	 */
+	Timeout schedule(final Runnable task, final long delay, final TimeUnit unit)
+	{
+		long deadline = System.nanoTime() + unit.toNanos(delay) - this.startNanos;
+
+		if (delay > 0 && deadline < 0)
+		{
+			// overflow: effectively never
+			deadline = Long.MAX_VALUE;
+		}
+
+		final Timeout timeout = new Timeout(this, task, deadline);
+
+		this.pendingCount.incrementAndGet();
+		this.added.add(timeout);
+
+		if (this.isIdle)
+		{
+			LockSupport.unpark(this.thread);
+		}
+
+		return timeout;
+	}
+
+
+
+	/**
+	 * Return the number of timeouts that have neither expired nor been cancelled.
+	 */
+	int getPendingCount()
+	{
+		return this.pendingCount.get();
+	}
+
+
+
+	/**
+	 * The timer loop: wait for the end of the current tick, move new and cancelled timeouts into
+	 * and out of the wheel, and expire the current bucket.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			if (this.pendingCount.get() == 0)
+			{
+				awaitTimeouts();
+			}
+
+			final long tickDeadline = (this.tick + 1) * TICK_NANOS;
+			long sleepNanos;
+
+			while ((sleepNanos = tickDeadline - (System.nanoTime() - this.startNanos)) > 0)
+			{
+				LockSupport.parkNanos(this, sleepNanos);
+			}
+
+			transferCancelled();
+			transferAdded();
+
+			this.wheel[(int) (this.tick & (WHEEL_SIZE - 1))].expire(tickDeadline);
+			++this.tick;
+		}
+	}
+
+
+
+	/**
+	 * Park until a timeout is scheduled, then realign the wheel with the current time (no
+	 * timeouts were waiting in the wheel, so the skipped ticks have nothing to expire).
+	 */
+	private void awaitTimeouts()
+	{
+		// release the cancelled timeouts before parking
+		transferCancelled();
+		transferAdded();
+
+		this.isIdle = true;
+
+		while (this.pendingCount.get() == 0)
+		{
+			LockSupport.park(this);
+		}
+
+		this.isIdle = false;
+
+		final long currentTick = (System.nanoTime() - this.startNanos) / TICK_NANOS;
+
+		if (currentTick > this.tick)
+		{
+			this.tick = currentTick;
+		}
+	}
+
+
+
+	/**
+	 * Place the newly scheduled timeouts in their buckets.
+	 */
+	private void transferAdded()
+	{
+		Timeout timeout;
+
+		while ((timeout = this.added.poll()) != null)
+		{
+			if (timeout.state != Timeout.PENDING)
+			{
+				continue;
+			}
+
+			final long dueTick = Math.max(timeout.deadline / TICK_NANOS, this.tick);
+			timeout.remainingRounds = (dueTick - this.tick) / WHEEL_SIZE;
+			this.wheel[(int) (dueTick & (WHEEL_SIZE - 1))].add(timeout);
+		}
+	}
+
+
+
+	/**
+	 * Remove the cancelled timeouts from their buckets, so that they can be garbage collected.
+	 */
+	private void transferCancelled()
+	{
+		Timeout timeout;
+
+		while ((timeout = this.cancelled.poll()) != null)
+		{
+			if (timeout.bucket != null)
+			{
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FIFO queue of threads waiting on one of the cancellation-aware synchronizers
+ * ({@link InterruptibleRMILock}, {@link InterruptibleRMISemaphore} and the lock's conditions).
+ * Each waiter is tied to the {@link CancellationToken} of the RMI call its thread is executing:
+ * when the client cancels the call, the waiter is unlinked from the queue at once (in constant
+ * time) and its thread is woken to throw {@link CancellationException}. When a waiter is to be
+ * granted, {@link #pollLive()} skips (and cancels) waiters whose call is known to have been
+ * cancelled, and a thread that releases or signals first checks the token of the first waiter
+ * ({@link #probeHead()}), which finds a cancel that has not been noticed yet, so grants don't go
+ * to "zombie" threads. Exactly one thread is woken per grant.
+ * <p>
+ * Checking a token may probe the socket of another thread's RMI call, and run cancel actions, so
+ * it is never done while holding the mutex. All methods other than {@link #probeHead()} and
+ * {@link #await(Waiter, boolean, boolean, long)} must be called while holding the mutex supplied
+ * to the constructor.
+ * </p>
+ * 
+ * @author neilotoole@apache.org
+ */
+class InterruptibleRMIWaitQueue
+{
+	/**
+	 * A waiting thread. The waiter is registered as a cancel action with its token while it waits.
+	 */
+	static final class Waiter implements Runnable
+	{
+		static final int WAITING = 0;
+
+		static final int GRANTED = 1;
+
+		static final int CANCELLED = 2;
+
+		final Thread thread;
+
+		final CancellationToken token;
+
+		/**
+		 * Synchronizer-specific value carried by the waiter (e.g. a lock hold count).
+		 */
+		int holds;
+
+		volatile int state = WAITING;
+
+		private final InterruptibleRMIWaitQueue queue;
+
+		private Waiter previous;
+
+		private Waiter next;
+
+
+
+		private Waiter(final InterruptibleRMIWaitQueue queue, final CancellationToken token)
+		{
+			this.queue = queue;
+			this.thread = Thread.currentThread();
+			this.token = token;
+		}
+
+
+
+		/**
+		 * Cancel action: called when the waiter's RMI call has been cancelled.
+		 */
+		public void run()
+		{
+			synchronized (this.queue.mutex)
+			{
+				this.queue.cancel(this);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the token of the RMI call being executed by the current thread. For threads that are
+	 * not RMI server threads, the token is never cancelled.
+	 */
+	static CancellationToken currentToken()
+	{
+		return RMICallContext.current().cancellationToken();
+	}
+
+	private final Object mutex;
+
+	/**
+	 * The first waiter. Volatile, so that {@link #probeHead()} can read it without the mutex.
+	 */
+	private volatile Waiter head;
+
+	private Waiter tail;
+
+	private int size = 0;
+
+
+
+	/**
+	 * Create a queue guarded by the supplied mutex.
+	 */
+	InterruptibleRMIWaitQueue(final Object mutex)
+	{
+		this.mutex = mutex;
+	}
+
+
+
+	/**
+	 * Append a waiter for the current thread to the queue.
+	 */
+	Waiter add(final CancellationToken token)
+	{
+		final Waiter waiter = new Waiter(this, token);
+
+		if (this.tail == null)
+		{
+			this.head = waiter;
+		}
+		else
+		{
+			this.tail.next = waiter;
+			waiter.previous = this.tail;
+		}
+
+		this.tail = waiter;
+		++this.size;
+		return waiter;
+	}
+
+
+
+	/**
+	 * Return true if there are no waiters.
+	 */
+	boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+
+
+	/**
+	 * Return the number of waiters.
+	 */
+	int size()
+	{
+		return this.size;
+	}
+
+
+
+	/**
+	 * Check the token of the first waiter (if any), so that a cancel of its RMI call that has not
+	 * been noticed yet is found (and the waiter cancelled by its cancel action) before the next
+	 * grant. Must be called without holding the mutex, as checking the token may probe the socket
+	 * of the call, and run cancel actions.
+	 */
+	void probeHead()
+	{
+		final Waiter waiter = this.head;
+
+		if (waiter != null)
+		{
+			waiter.token.isCancelled();
+		}
+	}
+
+
+
+	/**
+	 * Remove and return the first waiter whose RMI call is not known to have been cancelled, or
+	 * return null if there is none. Waiters whose call is known to have been cancelled are
+	 * cancelled on the way.
+	 */
+	Waiter pollLive()
+	{
+		Waiter waiter;
+
+		while ((waiter = this.head) != null)
+		{
+			if (waiter.token.isKnownCancelled())
+			{
+				cancel(waiter);
+				continue;
+			}
+
+			unlink(waiter);
+			return waiter;
+		}
+
+		return null;
+	}
+
+
+
+	/**
+	 * Mark the supplied waiter (which must already be removed from the queue) as granted, and wake
+	 * its thread.
+	 */
+	static void grant(final Waiter waiter)
+	{
+		waiter.state = Waiter.GRANTED;
+		LockSupport.unpark(waiter.thread);
+	}
+
+
+
+	/**
+	 * If the supplied waiter is still waiting, remove it from the queue and return true.
+	 */
+	boolean withdraw(final Waiter waiter)
+	{
+		if (waiter.state != Waiter.WAITING)
+		{
+			return false;
+		}
+
+		unlink(waiter);
+		waiter.state = Waiter.CANCELLED;
+		return true;
+	}
+
+
+
+	/**
+	 * If the supplied waiter is still waiting, remove it from the queue, mark it as cancelled, and
+	 * wake its thread.
+	 */
+	void cancel(final Waiter waiter)
+	{
+		if (withdraw(waiter))
+		{
+			LockSupport.unpark(waiter.thread);
+		}
+	}
+
+
+
+	/**
+	 * Park the current thread until the supplied waiter (created by the current thread) is
+	 * granted. Must be called without holding the mutex. Return true if the waiter was granted, or
+	 * false if the timeout elapsed first.
+	 * 
+	 * @throws CancellationException
+	 *             if the waiter's RMI call was cancelled
+	 * @throws InterruptedException
+	 *             if interruptible is true and the thread is interrupted while waiting
+	 */
+	boolean await(final Waiter waiter, final boolean interruptible, final boolean timed,
+		final long nanos) throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + nanos;
+		boolean isInterrupted = false;
+
+		waiter.token.onCancel(waiter);
+
+		try
+		{
+			while (true)
+			{
+				final int state = waiter.state;
+
+				if (state == Waiter.GRANTED)
+				{
+					return true;
+				}
+
+				if (state == Waiter.CANCELLED)
+				{
+					throw new CancellationException("The RMI call has been cancelled by the client");
+				}
+
+				if (timed)
+				{
+					final long remaining = deadline - System.nanoTime();
+
+					if (remaining <= 0)
+					{
+						synchronized (this.mutex)
+						{
+							if (withdraw(waiter))
+							{
+								return false;
+							}
+						}
+
+						continue;
+					}
+
+					LockSupport.parkNanos(this, remaining);
+				}
+				else
+				{
+					LockSupport.park(this);
+				}
+
+				if (Thread.interrupted())
+				{
+					if (interruptible)
+					{
+						synchronized (this.mutex)
+						{
+							if (withdraw(waiter))
+							{
+								throw new InterruptedException();
+							}
+						}
+					}
+
+					/*
+					 * Either the waiter was granted or cancelled in the meantime, or interrupts
+					 * are to be ignored: keep the interrupt status for the caller.
+					 */
+					isInterrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			waiter.token.removeCancelAction(waiter);
+
+			if (isInterrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+
+	private void unlink(final Waiter waiter)
+	{
+		if (waiter.previous == null)
+		{
+			this.head = waiter.next;
+		}
+		else
+		{
+			waiter.previous.next = waiter.next;
+		}
+
+		if (waiter.next == null)
+		{
+			this.tail = waiter.previous;
+		}
+		else
+		{
+			waiter.next.previous = waiter.previous;
+		}
+
+		waiter.previous = null;
+		waiter.next = null;
+		--this.size;
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2005 Neil O'Toole - neilotoole@apache.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.neilja.net.interruptiblermi;
+
+/**
+ * The context of the RMI call being executed by the current thread. Use {@link #current()} to
+ * obtain the context, e.g.
+ * 
+ * <pre>
+ * final CancellationToken token = RMICallContext.current().cancellationToken();
+ * 
+ * token.onCancel(new Runnable()
+ * {
+ * 	public void run()
+ * 	{
+ * 		statement.cancel();
+ * 	}
+ * });
+ * </pre>
+ * 
+ * @see CancellationToken
+ * @author neilotoole@apache.org
+ */
+public final class RMICallContext
+{
+	/**
+	 * Context for threads that are not RMI server threads.
+	 */
+	private static final RMICallContext NONE = new RMICallContext(CancellationToken.NEVER, false);
+
+
+
+	/**
+	 * Return the context of the RMI call being executed by the current thread. If the current
+	 * thread is not an RMI server thread, the returned context's {@link #isRMICall()} method
+	 * returns false, and its token is never cancelled.
+	 */
+	public static RMICallContext current()
+	{
+		final CancellationToken token = InterruptibleRMIServerSideSocket.getCurrentCallToken();
+
+		return token == null ? NONE : new RMICallContext(token, true);
+	}
+
+	private final CancellationToken cancellationToken;
+
+	private final boolean isRMICall;
+
+
+
+	private RMICallContext(final CancellationToken cancellationToken, final boolean isRMICall)
+	{
+		this.cancellationToken = cancellationToken;
+		this.isRMICall = isRMICall;
+	}
+
+
+
+	/**
+	 * Return the token that signals the cancellation of the RMI call by its client.
+	 */
+	public CancellationToken cancellationToken()
+	{
+		return this.cancellationToken;
+	}
+
+
+
+	/**
+	 * Return true if the current thread was executing an RMI call when this context was obtained.
+	 * 
+	 * @see InterruptibleRMISocketFactory#isCurrentThreadRMIServer()
+	 */
+	public boolean isRMICall()
+	{
+		return this.isRMICall;
+	}
+}
@@ -25,10 +25,54 @@
  * <code>InterruptibleRMIThreadFactory</code> when the socket is about to enter a blocking IO
  * operation (and unregisters on exit of that IO operation). So, when <code>#interrupt()</code> is
  * invoked, the thread has a reference to the socket object that is currently in blocking IO. The
- * thread directly calls <code>#close()</code> on that socket (after sending a shutdown signal to
- * the RMI server), terminating the blocking IO operation, and effectively simulating a regular
- * interrupt. Note that after the interrupt, the socket is now dead, and the thread's interrupt
- * status has been set.
+ * socket is handed to one of a few background threads, which calls <code>#close()</code> on it
+ * (after sending a shutdown signal to the RMI server), terminating the blocking IO operation, and
+ * effectively simulating a regular interrupt. <code>#interrupt()</code> itself never blocks; if the
+ * call is stuck writing (e.g. a large argument), or the shutdown signal can't be sent promptly, the
+ * connection is reset instead. Note that after the interrupt, the socket is now dead, and the
+ * thread's interrupt status has been set.
+ * </p>
+ * 
+ * <p>
+ * Threads that can't be created by <code>InterruptibleRMIThreadFactory</code> (e.g. virtual
+ * threads, or the threads of a pool that you don't control) can instead register themselves
+ * with {@link org.neilja.net.interruptiblermi.InterruptibleRMICancelHandle#register()}, which
+ * returns a handle whose <code>#cancel()</code> method has the same effect as the
+ * <code>#interrupt()</code> method described above. The registration is held in a thread-local
+ * slot, and should be removed with <code>InterruptibleRMICancelHandle#unregister()</code> when
+ * the thread is done making cancellable calls.
+ * </p>
+ * 
+ * <p>
+ * To run RMI calls on a pool of threads, use
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMIExecutorService}: calling
+ * <code>Future#cancel(true)</code> on a submitted task terminates that task's RMI call (and no
+ * other), and the worker thread is then reused for the next task.
+ * </p>
+ * 
+ * <p>
+ * To bound the duration of an RMI call, wrap it in
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMI#withDeadline(long, java.util.concurrent.TimeUnit, java.util.concurrent.Callable)}:
+ * if the deadline expires, the call is cancelled and a <code>TimeoutException</code> is thrown.
+ * All deadlines share a single timer thread.
+ * </p>
+ * 
+ * <p>
+ * Cancellation and deadlines also apply while a new RMI connection is being connected, so a thread
+ * is not stuck in a connect to an unreachable host until the operating system gives up: the
+ * connect throws an <code>InterruptedIOException</code>, and the connect attempts are abandoned.
+ * When connecting (through the default RMI socket factory) to a host with several addresses, the
+ * addresses are tried "happy eyeballs" style: alternating between IPv6 and IPv4, a new attempt is
+ * started every 250 milliseconds (or as soon as the previous one fails), and the first connection
+ * wins.
+ * </p>
+ * 
+ * <p>
+ * Resolved host addresses are cached for 30 seconds (and failures to resolve for 10 seconds); use
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMISocketFactory#setAddressCacheTTL(long, long, java.util.concurrent.TimeUnit)}
+ * to change this. The connect health of each address is tracked too: addresses that connect
+ * fastest are tried first, and addresses that failed to connect in the last 30 seconds are tried
+ * last, so reconnects after a burst of cancellations go straight to a working address.
  * </p>
  * 
  * <h3>Server Side</h3>
@@ -114,6 +158,196 @@
  * </pre>
  * </p>
  * 
+ * <p>
+ * Instead of polling, server code can obtain a
+ * {@link org.neilja.net.interruptiblermi.CancellationToken} for the current RMI call from
+ * {@link org.neilja.net.interruptiblermi.RMICallContext#current()}, and register cleanup actions
+ * that run as soon as the client cancels the call:
+ * 
+ * <pre>
+ * final CancellationToken token = RMICallContext.current().cancellationToken();
+ * 
+ * token.onCancel(new Runnable()
+ * {
+ * 	public void run()
+ * 	{
+ * 		// e.g. release a database connection, or abort a computation
+ * 	}
+ * });
+ * 
+ * // ... and in loops, where appropriate
+ * token.throwIfCancelled();
+ * </pre>
+ * 
+ * For cancellation to be noticed while the server RMI thread is blocked, start the server monitor
+ * with {@link org.neilja.net.interruptiblermi.InterruptibleRMISocketFactory#startServerMonitor(long)}.
+ * The monitor also calls <code>Thread#interrupt</code> on the server RMI thread of a cancelled
+ * call.
+ * </p>
+ * 
+ * <p>
+ * For server RMI threads that wait for a contested resource, the
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMILock} (and its conditions) and
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMISemaphore} synchronizers take care of
+ * zombie threads: a waiter whose call is cancelled is dropped from the queue (its wait method
+ * throws <code>CancellationException</code>), and the resource is only ever handed to a live
+ * waiter. Only one waiter is woken per hand-off, so there is no need for the
+ * <code>#notifyAll</code>-and-check pattern shown above.
+ * </p>
+ * 
+ * <h3>Connection-Preserving Cancel Mode</h3>
+ * <p>
+ * By default, cancelling an RMI call closes its connection, so the next call to the same endpoint
+ * pays for a new TCP connect, and the closed connection lingers in TIME_WAIT. A factory created
+ * with <code>new InterruptibleRMISocketFactory(true)</code> instead frames the RMI data on both
+ * ends, so that only the call is cancelled: the client sends a cancel frame, the server discards
+ * the rest of the call and acknowledges the cancel, and the TCP connection is then reused for
+ * subsequent calls. Use the same factory as the client and server socket factory when exporting,
+ * and run the server monitor, so that cancels are acknowledged promptly. A cancel that is not
+ * acknowledged within a second falls back to resetting the connection.
+ * </p>
+ * 
+ * <h3>Socket Profiles</h3>
+ * <p>
+ * RMI shares a connection cache between equal client socket factories. An
+ * <code>InterruptibleRMISocketFactory</code> created with an
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMISocketProfile} (TCP options such as
+ * buffer sizes and the IP traffic class) is only equal to factories with the same profile, so
+ * services exported with different profiles use separate connections. For example, export a lock
+ * service with <code>InterruptibleRMISocketProfile.INTERACTIVE</code> (small buffers, low-delay
+ * traffic class) and a file transfer service with <code>InterruptibleRMISocketProfile.BULK</code>
+ * (large buffers, throughput traffic class): large transfers then never hold up short lock calls.
+ * The profile is serialized with the factory, so it applies on the client side too.
+ * </p>
+ * 
+ * <h3>Factory Configuration</h3>
+ * <p>
+ * All the settings of an <code>InterruptibleRMISocketFactory</code> are held by an
+ * {@link org.neilja.net.interruptiblermi.InterruptibleRMISocketFactoryConfig}: the cancel mode,
+ * the socket profile, and the number of spare connections (see below) that clients keep to each
+ * endpoint. The configuration is serialized with the factory, in a compact, versioned form, so the
+ * server's tuning of the client side of its connections reaches every client with the stub,
+ * without redeploying the clients.
+ * </p>
+ * 
+ * <h3>Spare Connections</h3>
+ * <p>
+ * When a cancel does cost a connection (the default mode, or a cancel that is not acknowledged in
+ * connection-preserving mode), the next call to the same endpoint has to wait for a new TCP
+ * connect. Calling <code>InterruptibleRMISocketFactory.setSpareConnections(n)</code> on the client
+ * keeps up to <code>n</code> (at most 8) connections to each endpoint open in the background: a
+ * cancel immediately starts a replacement connect, and the next call takes a spare instead of
+ * connecting. Spares that are unused for fifteen seconds are closed. The default is 0 (no spares),
+ * unless the factory's configuration asks for more.
+ * </p>
+ * 
+ * <h3>Buffered Streams</h3>
+ * <p>
+ * By default the socket streams run the cancellation hooks around every read and write that RMI
+ * makes, including the single-byte reads and writes of its protocol headers. A profile created
+ * with a stream buffer size (the last argument of the six-argument
+ * <code>InterruptibleRMISocketProfile</code> constructor) enables the buffered mode: the streams of
+ * each connection use buffers of that size, drawn from a shared pool, and the hooks run once per
+ * buffer fill or flush. A call that is interrupted while a buffer is being flushed is still
+ * unblocked. Client sockets buffer both streams; server sockets buffer only their output. The
+ * buffer size is part of the profile, so it is serialized with the factory (older clients ignore
+ * it).
+ * </p>
+ * 
+ * <h3>Channel Sockets</h3>
+ * <p>
+ * Calling <code>InterruptibleRMISocketFactory.setChannelSockets(true)</code> on the client backs
+ * new RMI client sockets with a <code>SocketChannel</code> (for factories that connect directly,
+ * and are not in the connection-preserving or TLS mode), which their <code>getChannel()</code>
+ * method returns. The channel is in non-blocking mode, and its streams wait for it in a selector.
+ * So interrupting <em>any</em> thread blocked in an RMI call cancels the call: it does not have to
+ * be an <code>InterruptibleRMIThread</code> or to have a cancel handle. The shutdown signal is sent
+ * to the server without blocking (or the connection is reset, if the send buffer is full), and the
+ * thread is unblocked with an <code>InterruptedIOException</code>. Server sockets are not
+ * affected.
+ * </p>
+ * 
+ * <h3>Compression</h3>
+ * <p>
+ * A configuration with a compression threshold (set with
+ * <code>InterruptibleRMISocketFactoryConfig.withCompressionThreshold(threshold)</code>) compresses
+ * the connections of the factory, which pays on slow links for calls with large or repetitive
+ * arguments and results. The data of each connection is sent in blocks, which end where RMI flushes
+ * (at the end of each message) or at 64 KiB; blocks of at least the threshold are deflated at the
+ * fastest level, with a dictionary that lasts as long as the connection, and smaller blocks are
+ * sent as they are. Compression is negotiated when the connection opens, without a round trip, so a
+ * server also accepts connections from clients that do not compress (such as older clients, which
+ * ignore the threshold). Cancellation works as before, including in the middle of a block.
+ * </p>
+ * 
+ * <h3>TLS</h3>
+ * <p>
+ * A configuration in the TLS mode (<code>withSecure(true)</code>) secures the connections of the
+ * factory with TLS, using the context set by
+ * <code>InterruptibleRMISocketFactory.setSSLContext(context)</code> on each side (the default
+ * context otherwise). Clients verify that the certificate of the server names the host they connect
+ * to (the <code>java.rmi.server.hostname</code> of the server), as HTTPS clients do. Interrupting a
+ * call works as with plain sockets, the handshake included, and the server sees the shutdown signal
+ * just as promptly. Cancels keep the TLS sessions of the clients resumable (the connection of a
+ * blocked writer is reset under the TLS layer, rather than through it), and all client sockets
+ * share the session cache of the one context, so the reconnect after a cancel, and the spare
+ * connections, cost an abbreviated handshake rather than a full one. Sessions are resumed with
+ * session tickets where the server issues them, as the JDK does by default since Java 13.
+ * <code>InterruptibleRMISocketFactory.getHandshakeCount()</code> and
+ * <code>getResumedHandshakeCount()</code> show how many client handshakes were resumed.
+ * </p>
+ * 
+ * <h3>Local Sockets</h3>
+ * <p>
+ * A configuration in the local mode (<code>withLocal(true)</code>) lets clients on the host of the
+ * server connect through a Unix domain socket instead of TCP loopback, saving the TCP/IP stack on
+ * each message. Each server socket of the factory also listens on the socket file
+ * <code>interruptiblermi-&lt;port&gt;.sock</code> in the directory set by
+ * <code>InterruptibleRMISocketFactory.setLocalSocketDirectory(dir)</code> (the
+ * <code>java.io.tmpdir</code> directory by default), and a client connects to that file when the
+ * host of the endpoint is one of its own addresses and the file exists. Otherwise it connects with
+ * TCP as before; so does a VM older than Java 16, which has no Unix domain socket channels
+ * (<code>InterruptibleRMISocketFactory.isLocalSocketSupported()</code>). Local connections are
+ * channel sockets on both sides, so interrupting any thread blocked in an RMI call cancels it, and
+ * the server detects the cancel through the shutdown signal as it does over TCP. The local mode
+ * does not combine with the connection-preserving or TLS modes, which keep to TCP.
+ * </p>
+ * 
+ * <h3>Shared Memory</h3>
+ * <p>
+ * A configuration in the shared memory mode (<code>withSharedMemory(true)</code>) carries the calls
+ * of clients on the host of the server through a pair of ring buffers in a memory-mapped file, so
+ * that a message is one copy into shared memory rather than a trip through the kernel. The client
+ * still opens a connection (over TCP, or a local socket in the local mode), and offers the server a
+ * file that it creates in the local socket directory; a server that does not map it just refuses,
+ * and the connection carries the calls as before. Readers of an empty ring spin briefly (only on
+ * multiprocessor hosts), yield, park for short intervals, and then block on the connection until
+ * the writer sends a wake-up byte; writers of a full ring wait the same way. A cancel sets a flag
+ * in the shared file, which the server's liveness check reads directly, so the server detects it
+ * without any message. The positions of the rings are published with release writes and read with
+ * acquire reads (through VarHandles, reached reflectively), so the mode needs Java 9 or later on
+ * both sides; on an earlier VM the connection carries the calls. The server only maps (and
+ * deletes) regular files of the local socket directory that are named and sized as shared memory
+ * files, and leaves any other path it is offered alone. The shared memory mode does not combine
+ * with the connection-preserving or TLS modes.
+ * </p>
+ * 
+ * <h3>Multiplexed Connections</h3>
+ * <p>
+ * RMI opens a connection for each concurrent call, so thousands of concurrent clients cost the
+ * server thousands of file descriptors. A configuration with a number of multiplexed connections
+ * (<code>withMultiplexedConnections(connections)</code>, at most 8) carries all the RMI connections
+ * of a client to an endpoint as streams over that many physical connections, which are opened as
+ * calls need them and closed after fifteen idle seconds. Every stream has its own flow control, so
+ * a slow reader never holds up the other streams. Cancelling a call sends a cancel frame for its
+ * stream alone, without blocking: the call fails at once, the server's liveness check sees the
+ * cancel as soon as the frame arrives, and the physical connection carries on. As with channel
+ * sockets, interrupting any thread blocked in an RMI call over a stream cancels it. The mode
+ * combines with compression and TLS; it supersedes the local and shared memory transports, and the
+ * connection-preserving mode supersedes it. A server that uses it serves clients that don't (such
+ * as those that predate it) over plain connections.
+ * </p>
+ * 
  * @author neilotoole@apache.org
  * @see org.neilja.net.interruptiblermi.InterruptibleRMISocketFactory
  * @see org.neilja.net.interruptiblermi.InterruptibleRMIThreadFactory